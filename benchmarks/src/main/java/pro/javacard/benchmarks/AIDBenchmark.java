@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pro.javacard.capfile.AID;
+import pro.javacard.capfile.WellKnownAID;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// AID handling, done for every applet, import and registry lookup
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AIDBenchmark {
+    private final byte[] bytes = {(byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x01, 0x01};
+    private final String hex = "A0000000620101";
+    private final String formatted = "A0:00:00:00:62:01:01";
+    private final AID aid = new AID(bytes);
+    private final AID same = new AID(bytes);
+    private final AID other = new AID("A0000006170001");
+
+    @Benchmark
+    public AID fromBytes() {
+        return new AID(bytes);
+    }
+
+    @Benchmark
+    public AID fromHex() {
+        return new AID(hex);
+    }
+
+    @Benchmark
+    public AID fromString() {
+        return AID.fromString(formatted);
+    }
+
+    @Benchmark
+    public int hash() {
+        return aid.hashCode();
+    }
+
+    @Benchmark
+    public boolean equal() {
+        return aid.equals(same);
+    }
+
+    @Benchmark
+    public boolean notEqual() {
+        return aid.equals(other);
+    }
+
+    @Benchmark
+    public String toHex() {
+        return aid.toString();
+    }
+
+    @Benchmark
+    public Optional<String> wellKnownName() {
+        return WellKnownAID.getName(aid);
+    }
+
+    @Benchmark
+    public Optional<String> unknownName() {
+        return WellKnownAID.getName(other);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import pro.javacard.capfile.CAPFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+// Parsing and reading of CAP files
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CAPFileBenchmark {
+    @Param({"small", "medium", "large", "limit"})
+    public String size;
+
+    private byte[] bytes;
+    private CAPFile cap;
+    private PrintStream devnull;
+
+    @Setup
+    public void setup() throws IOException {
+        bytes = Corpus.cap(size);
+        cap = CAPFile.fromBytes(bytes);
+        devnull = new PrintStream(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public CAPFile fromBytes() throws IOException {
+        return CAPFile.fromBytes(bytes);
+    }
+
+    @Benchmark
+    public CAPFile fromStream() throws IOException {
+        return CAPFile.fromStream(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public byte[] getCode() {
+        return cap.getCode();
+    }
+
+    @Benchmark
+    public void dump(Blackhole bh) {
+        cap.dump(devnull);
+        bh.consume(devnull);
+    }
+}
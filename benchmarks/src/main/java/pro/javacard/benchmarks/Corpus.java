@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.benchmarks;
+
+import pro.javacard.capfile.SyntheticCAP;
+
+// Generated CAP files of different sizes, the same in every run
+final class Corpus {
+    private Corpus() {
+    }
+
+    // small: a single applet class; medium: a typical applet; large: close to the 64K limit of the Method component;
+    // limit: the maximum of 255 classes
+    static byte[] cap(String size) {
+        switch (size) {
+            case "small":
+                return SyntheticCAP.builder().classes(1).methods(2).statics(1).body(16).debug(true).build();
+            case "medium":
+                return SyntheticCAP.builder().classes(8).methods(8).statics(4).arrays(2, 32).body(48).debug(true).build();
+            case "large":
+                return SyntheticCAP.builder().classes(32).methods(16).statics(8).arrays(4, 64).body(100).debug(true).build();
+            case "limit":
+                return SyntheticCAP.builder().classes(255).methods(4).statics(2).arrays(1, 16).body(40).debug(true).build();
+            default:
+                throw new IllegalArgumentException("Unknown corpus size: " + size);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pro.javacard.HexUtils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Hex conversions: AID-s, hashes and APDU-s
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexUtilsBenchmark {
+    @Param({"16", "256", "4096"})
+    public int length;
+
+    private byte[] bytes;
+    private String hex;
+    private String formatted;
+
+    @Setup
+    public void setup() {
+        bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        hex = HexUtils.bin2hex(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < hex.length(); i += 2)
+            sb.append(i == 0 ? "" : ":").append(hex, i, i + 2);
+        formatted = sb.toString();
+    }
+
+    @Benchmark
+    public String bin2hex() {
+        return HexUtils.bin2hex(bytes);
+    }
+
+    @Benchmark
+    public byte[] hex2bin() {
+        return HexUtils.hex2bin(hex);
+    }
+
+    @Benchmark
+    public byte[] stringToBin() {
+        return HexUtils.stringToBin(formatted);
+    }
+}
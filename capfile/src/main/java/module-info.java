@@ -1,6 +1,7 @@
 @SuppressWarnings({"requires-automatic"})
 module pro.javacard.capfile {
     requires java.xml;
+    requires static jdk.jfr;
 
     exports pro.javacard.capfile;
     exports pro.javacard.sdk;
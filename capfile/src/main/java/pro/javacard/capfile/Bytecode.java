@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import static pro.javacard.capfile.Components.*;
+
+// JavaCard VM instruction set, see JCVM 2.2 spec chapter 7
+final class Bytecode {
+    static final String[] MNEMONICS = new String[256];
+    // Length of operands, -1 for switches
+    static final int[] OPERANDS = new int[256];
+
+    // Opcodes referenced by analysis code
+    static final int ACONST_NULL = 1;
+    static final int SCONST_M1 = 2;
+    static final int SCONST_5 = 8;
+    static final int ICONST_M1 = 9;
+    static final int ICONST_5 = 15;
+    static final int BSPUSH = 16;
+    static final int SSPUSH = 17;
+    static final int BIPUSH = 18;
+    static final int SIPUSH = 19;
+    static final int IIPUSH = 20;
+    static final int ALOAD = 21;
+    static final int SLOAD = 22;
+    static final int ILOAD = 23;
+    static final int ALOAD_0 = 24;
+    static final int ILOAD_3 = 35;
+    static final int ASTORE = 40;
+    static final int SSTORE = 41;
+    static final int ISTORE = 42;
+    static final int ASTORE_0 = 43;
+    static final int ISTORE_3 = 54;
+    static final int POP = 59;
+    static final int POP2 = 60;
+    static final int DUP = 61;
+    static final int DUP2 = 62;
+    static final int DUP_X = 63;
+    static final int SWAP_X = 64;
+    static final int IFEQ = 96;
+    static final int SINC = 89;
+    static final int IINC = 90;
+    static final int GOTO = 112;
+    static final int JSR = 113;
+    static final int RET = 114;
+    static final int STABLESWITCH = 115;
+    static final int ITABLESWITCH = 116;
+    static final int SLOOKUPSWITCH = 117;
+    static final int ILOOKUPSWITCH = 118;
+    static final int GETSTATIC_A = 123;
+    static final int PUTSTATIC_A = 127;
+    static final int PUTSTATIC_I = 130;
+    static final int GETFIELD_A = 131;
+    static final int PUTFIELD_A = 135;
+    static final int PUTFIELD_I = 138;
+    static final int ARETURN = 119;
+    static final int RETURN = 122;
+    static final int INVOKEVIRTUAL = 139;
+    static final int INVOKESPECIAL = 140;
+    static final int INVOKESTATIC = 141;
+    static final int INVOKEINTERFACE = 142;
+    static final int NEW = 143;
+    static final int ANEWARRAY = 145;
+    static final int CHECKCAST = 148;
+    static final int INSTANCEOF = 149;
+    static final int SINC_W = 150;
+    static final int IINC_W = 151;
+    static final int IFEQ_W = 152;
+    static final int GOTO_W = 168;
+    static final int GETFIELD_A_W = 169;
+    static final int GETFIELD_A_THIS = 173;
+    static final int PUTFIELD_A_W = 177;
+    static final int PUTFIELD_A_THIS = 181;
+    static final int PUTFIELD_I_THIS = 184;
+
+    private static void op(int opcode, String mnemonic, int operands) {
+        MNEMONICS[opcode] = mnemonic;
+        OPERANDS[opcode] = operands;
+    }
+
+    static {
+        op(0, "nop", 0);
+        op(1, "aconst_null", 0);
+        String[] consts = {"m1", "0", "1", "2", "3", "4", "5"};
+        for (int i = 0; i < consts.length; i++) {
+            op(2 + i, "sconst_" + consts[i], 0);
+            op(9 + i, "iconst_" + consts[i], 0);
+        }
+        op(16, "bspush", 1);
+        op(17, "sspush", 2);
+        op(18, "bipush", 1);
+        op(19, "sipush", 2);
+        op(20, "iipush", 4);
+        op(21, "aload", 1);
+        op(22, "sload", 1);
+        op(23, "iload", 1);
+        op(40, "astore", 1);
+        op(41, "sstore", 1);
+        op(42, "istore", 1);
+        for (int i = 0; i < 4; i++) {
+            op(24 + i, "aload_" + i, 0);
+            op(28 + i, "sload_" + i, 0);
+            op(32 + i, "iload_" + i, 0);
+            op(43 + i, "astore_" + i, 0);
+            op(47 + i, "sstore_" + i, 0);
+            op(51 + i, "istore_" + i, 0);
+        }
+        String[] types = {"a", "b", "s", "i"};
+        for (int i = 0; i < 4; i++) {
+            op(36 + i, types[i] + "aload", 0);
+            op(55 + i, types[i] + "astore", 0);
+            op(123 + i, "getstatic_" + types[i], 2);
+            op(127 + i, "putstatic_" + types[i], 2);
+            op(131 + i, "getfield_" + types[i], 1);
+            op(135 + i, "putfield_" + types[i], 1);
+            op(169 + i, "getfield_" + types[i] + "_w", 2);
+            op(173 + i, "getfield_" + types[i] + "_this", 1);
+            op(177 + i, "putfield_" + types[i] + "_w", 2);
+            op(181 + i, "putfield_" + types[i] + "_this", 1);
+        }
+        op(59, "pop", 0);
+        op(60, "pop2", 0);
+        op(61, "dup", 0);
+        op(62, "dup2", 0);
+        op(63, "dup_x", 1);
+        op(64, "swap_x", 1);
+        String[] arithmetic = {"add", "sub", "mul", "div", "rem", "neg", "shl", "shr", "ushr", "and", "or", "xor"};
+        for (int i = 0; i < arithmetic.length; i++) {
+            op(65 + i * 2, "s" + arithmetic[i], 0);
+            op(66 + i * 2, "i" + arithmetic[i], 0);
+        }
+        op(SINC, "sinc", 2);
+        op(IINC, "iinc", 2);
+        op(91, "s2b", 0);
+        op(92, "s2i", 0);
+        op(93, "i2b", 0);
+        op(94, "i2s", 0);
+        op(95, "icmp", 0);
+        String[] branches = {"ifeq", "ifne", "iflt", "ifge", "ifgt", "ifle", "ifnull", "ifnonnull", "if_acmpeq", "if_acmpne",
+                "if_scmpeq", "if_scmpne", "if_scmplt", "if_scmpge", "if_scmpgt", "if_scmple"};
+        for (int i = 0; i < branches.length; i++) {
+            op(96 + i, branches[i], 1);
+            op(IFEQ_W + i, branches[i] + "_w", 2);
+        }
+        op(GOTO, "goto", 1);
+        op(113, "jsr", 2);
+        op(114, "ret", 1);
+        op(STABLESWITCH, "stableswitch", -1);
+        op(ITABLESWITCH, "itableswitch", -1);
+        op(SLOOKUPSWITCH, "slookupswitch", -1);
+        op(ILOOKUPSWITCH, "ilookupswitch", -1);
+        op(119, "areturn", 0);
+        op(120, "sreturn", 0);
+        op(121, "ireturn", 0);
+        op(122, "return", 0);
+        op(INVOKEVIRTUAL, "invokevirtual", 2);
+        op(INVOKESPECIAL, "invokespecial", 2);
+        op(INVOKESTATIC, "invokestatic", 2);
+        op(INVOKEINTERFACE, "invokeinterface", 4);
+        op(NEW, "new", 2);
+        op(144, "newarray", 1);
+        op(ANEWARRAY, "anewarray", 2);
+        op(146, "arraylength", 0);
+        op(147, "athrow", 0);
+        op(CHECKCAST, "checkcast", 3);
+        op(INSTANCEOF, "instanceof", 3);
+        op(SINC_W, "sinc_w", 3);
+        op(IINC_W, "iinc_w", 3);
+        op(GOTO_W, "goto_w", 2);
+        op(254, "impdep1", 0);
+        op(255, "impdep2", 0);
+    }
+
+    private Bytecode() {
+    }
+
+    static boolean isValid(int opcode) {
+        return MNEMONICS[opcode] != null;
+    }
+
+    // Length of the instruction at pc, including opcode
+    static int length(byte[] code, int pc) {
+        int op = u1(code, pc);
+        if (MNEMONICS[op] == null)
+            throw new IllegalArgumentException(String.format("Invalid opcode %d at %d", op, pc));
+        switch (op) {
+            case STABLESWITCH:
+                return 7 + 2 * (s2(code, pc + 5) - s2(code, pc + 3) + 1);
+            case ITABLESWITCH:
+                return 11 + 2 * (s4(code, pc + 7) - s4(code, pc + 3) + 1);
+            case SLOOKUPSWITCH:
+                return 5 + 4 * u2(code, pc + 3);
+            case ILOOKUPSWITCH:
+                return 5 + 6 * u2(code, pc + 3);
+            default:
+                return 1 + OPERANDS[op];
+        }
+    }
+
+    // Offset of a constant pool index operand within the instruction, -1 if none
+    static int poolIndex(int op) {
+        if ((op >= GETSTATIC_A && op <= PUTSTATIC_I) || (op >= INVOKEVIRTUAL && op <= INVOKESTATIC) || op == NEW || op == ANEWARRAY
+                || (op >= GETFIELD_A_W && op < GETFIELD_A_THIS) || (op >= PUTFIELD_A_W && op < PUTFIELD_A_THIS))
+            return 1; // u2
+        if ((op >= GETFIELD_A && op <= PUTFIELD_I) || (op >= GETFIELD_A_THIS && op < PUTFIELD_A_W) || op >= PUTFIELD_A_THIS && op <= PUTFIELD_I_THIS)
+            return 1; // u1
+        if (op == CHECKCAST || op == INSTANCEOF || op == INVOKEINTERFACE)
+            return 2; // u2
+        return -1;
+    }
+
+    // True if the constant pool index operand is a single byte
+    static boolean isShortPoolIndex(int op) {
+        return (op >= GETFIELD_A && op <= PUTFIELD_I) || (op >= GETFIELD_A_THIS && op < PUTFIELD_A_W) || (op >= PUTFIELD_A_THIS && op <= PUTFIELD_I_THIS);
+    }
+
+    static int s1(byte[] b, int offset) {
+        return b[offset];
+    }
+
+    static int s2(byte[] b, int offset) {
+        return (short) u2(b, offset);
+    }
+
+    static int s4(byte[] b, int offset) {
+        return (u2(b, offset) << 16) | u2(b, offset + 2);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import pro.javacard.HexUtils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static pro.javacard.capfile.Components.*;
+
+/**
+ * Structural comparison of two CAP files, to decide if a new version needs to be loaded to cards.
+ * <p>
+ * Every difference is classified by what it affects: ZIP metadata (manifest, applet.xml etc), data that is not
+ * part of the load file (Debug and Descriptor components), loadable code, the exported API or the identity of
+ * the package (AID-s, version, name). Only the last three need a reload.
+ * <p>
+ * The deploy hash is a SHA-256 of the load file data where the Directory sizes of Debug and Descriptor
+ * components are zeroed, so it only changes when something that needs a reload changes.
+ */
+public final class CAPDiff {
+    /**
+     * Kind of a change, in order of importance.
+     */
+    public enum Change {
+        METADATA, DEBUG, CODE, API, IDENTITY;
+
+        public boolean needsReload() {
+            return this.compareTo(CODE) >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Single difference between two CAP files.
+     */
+    public static final class Difference {
+        private final String entry;
+        private final Change change;
+        private final String description;
+
+        Difference(String entry, Change change, String description) {
+            this.entry = entry;
+            this.change = change;
+            this.description = description;
+        }
+
+        // Component name or ZIP entry name
+        public String getEntry() {
+            return entry;
+        }
+
+        public Change getChange() {
+            return change;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s change, %s", entry, change, description);
+        }
+    }
+
+    private final CAPFile a;
+    private final CAPFile b;
+    private final List<Difference> differences = new ArrayList<>();
+
+    private CAPDiff(CAPFile a, CAPFile b) {
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Compares an old and a new CAP file.
+     */
+    public static CAPDiff of(CAPFile a, CAPFile b) {
+        CAPDiff d = new CAPDiff(a, b);
+        d.run();
+        return d;
+    }
+
+    public List<Difference> getDifferences() {
+        return Collections.unmodifiableList(differences);
+    }
+
+    public Set<Change> getChanges() {
+        Set<Change> result = EnumSet.noneOf(Change.class);
+        differences.forEach(d -> result.add(d.change));
+        return result;
+    }
+
+    // True if cards with the old CAP file need the new one loaded
+    public boolean needsReload() {
+        return differences.stream().anyMatch(d -> d.change.needsReload());
+    }
+
+    public List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        String ha = HexUtils.bin2hex(getDeployHash(a)).toLowerCase();
+        String hb = HexUtils.bin2hex(getDeployHash(b)).toLowerCase();
+        lines.add("Deploy hash " + (ha.equals(hb) ? ha + " (unchanged)" : ha + " -> " + hb));
+        if (differences.isEmpty())
+            lines.add("No differences");
+        else
+            lines.add("Reload " + (needsReload() ? "needed" : "not needed") + ": " + getChanges().stream().map(Change::toString).collect(Collectors.joining(", ")) + " changes");
+        differences.forEach(d -> lines.add(d.toString()));
+        return lines;
+    }
+
+    /**
+     * SHA-256 of the load file data, ignoring the sizes of Debug and Descriptor components in Directory.
+     */
+    public static byte[] getDeployHash(CAPFile cap) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (byte[] c : cap.loadComponents(false)) {
+                if (c.length > 0 && c[0] == DIRECTORY)
+                    c = canonicalDirectory(cap, c);
+                md.update(c);
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Not possible", e);
+        }
+    }
+
+    // Directory without sizes of components that are not loaded. CAP 2.1 has no Debug size.
+    private static byte[] canonicalDirectory(CAPFile cap, byte[] directory) {
+        byte[] d = directory.clone();
+        put2(d, INFO + 2 * (DESCRIPTOR - 1), 0);
+        if (u1(cap.component("Header"), 7) >= 2)
+            put2(d, INFO + 2 * (DEBUG - 1), 0);
+        return d;
+    }
+
+    private void add(String entry, Change change, String fmt, Object... args) {
+        differences.add(new Difference(entry, change, String.format(fmt, args)));
+    }
+
+    private void run() {
+        // Components, in tag order
+        for (int tag = 1; tag < NAMES.length; tag++) {
+            String name = NAMES[tag];
+            byte[] x = a.component(name);
+            byte[] y = b.component(name);
+            if (Arrays.equals(x, y))
+                continue;
+            if (x == null || y == null) {
+                add(name, classify(tag), "component %s", x == null ? "added" : "removed");
+                continue;
+            }
+            switch (tag) {
+                case HEADER:
+                    header(x, y);
+                    break;
+                case DIRECTORY:
+                    if (Arrays.equals(canonicalDirectory(a, x), canonicalDirectory(b, y)))
+                        add(name, Change.DEBUG, "only sizes of Debug or Descriptor differ");
+                    else
+                        add(name, Change.CODE, "component sizes differ");
+                    break;
+                case APPLET:
+                    applets(x, y);
+                    break;
+                case IMPORT:
+                    add(name, Change.CODE, "imports %s -> %s", a.getImports(), b.getImports());
+                    break;
+                case METHOD:
+                    methods(x, y);
+                    break;
+                default:
+                    add(name, classify(tag), "%d -> %d bytes%s", x.length, y.length, x.length == y.length ? ", " + changed(x, y) + " bytes differ" : "");
+            }
+        }
+        // Other ZIP entries
+        String dirA = CAPFile.pkg2jcdir(a.getPackageName());
+        String dirB = CAPFile.pkg2jcdir(b.getPackageName());
+        Set<String> names = new TreeSet<>();
+        a.entries.keySet().stream().filter(n -> !isComponent(n, dirA)).forEach(names::add);
+        b.entries.keySet().stream().filter(n -> !isComponent(n, dirB)).forEach(names::add);
+        for (String n : names) {
+            byte[] x = a.entries.get(n);
+            byte[] y = b.entries.get(n);
+            if (!Arrays.equals(x, y))
+                add(n, Change.METADATA, x == null ? "added" : y == null ? "removed" : "contents differ");
+        }
+    }
+
+    private static boolean isComponent(String entry, String dir) {
+        return entry.startsWith(dir) && entry.endsWith(".cap") && tag(entry.substring(dir.length(), entry.length() - 4)) > 0;
+    }
+
+    private static Change classify(int tag) {
+        switch (tag) {
+            case HEADER:
+            case APPLET:
+                return Change.IDENTITY;
+            case EXPORT:
+                return Change.API;
+            case DESCRIPTOR:
+            case DEBUG:
+                return Change.DEBUG;
+            default:
+                return Change.CODE;
+        }
+    }
+
+    private static int changed(byte[] x, byte[] y) {
+        int n = 0;
+        for (int i = 0; i < x.length; i++)
+            if (x[i] != y[i])
+                n++;
+        return n;
+    }
+
+    // Header component, see JCVM 2.2.2 section 6.3
+    private void header(byte[] x, byte[] y) {
+        if (!a.getPackage().equals(b.getPackage()) || !a.getPackageName().equals(b.getPackageName()))
+            add("Header", Change.IDENTITY, "package %s %s v%s -> %s %s v%s", a.getPackageName(), a.getPackageAID(), a.getPackageVersion(),
+                    b.getPackageName(), b.getPackageAID(), b.getPackageVersion());
+        if (u1(x, 7) != u1(y, 7) || u1(x, 8) != u1(y, 8))
+            add("Header", Change.CODE, "CAP format %s -> %s", a.getCAPVersion(), b.getCAPVersion());
+        if (u1(x, 9) != u1(y, 9)) {
+            boolean export = ((u1(x, 9) ^ u1(y, 9)) & ACC_EXPORT) != 0;
+            add("Header", export ? Change.API : Change.CODE, "flags %s -> %s", a.getFlags(), b.getFlags());
+        }
+    }
+
+    // Applet component, see JCVM 2.2.2 section 6.5
+    private void applets(byte[] x, byte[] y) {
+        Set<AID> ax = new LinkedHashSet<>(a.getAppletAIDs());
+        Set<AID> ay = new LinkedHashSet<>(b.getAppletAIDs());
+        if (!ax.equals(ay))
+            add("Applet", Change.IDENTITY, "applets %s -> %s", ax, ay);
+        else
+            add("Applet", Change.CODE, "install method offsets differ");
+    }
+
+    // Method component, with names of changed methods, matched by class and method token
+    private void methods(byte[] x, byte[] y) {
+        byte[] dx = a.component("Descriptor");
+        byte[] dy = b.component("Descriptor");
+        if (dx == null || dy == null) {
+            add("Method", Change.CODE, "%d -> %d bytes", x.length, y.length);
+            return;
+        }
+        Descriptor descX = Descriptor.parse(dx);
+        Descriptor descY = Descriptor.parse(dy);
+        DebugInfo debug = DebugInfo.parse(b.component("Debug"));
+        Map<String, Descriptor.MethodDescriptor> old = descX.methods.stream().collect(Collectors.toMap(CAPDiff::key, m -> m, (m1, m2) -> m1));
+        List<String> changed = new ArrayList<>();
+        for (Descriptor.MethodDescriptor m : descY.methods) {
+            Descriptor.MethodDescriptor o = old.remove(key(m));
+            if (o == null || !Arrays.equals(body(x, o), body(y, m)))
+                changed.add(debug.methodName(m));
+        }
+        changed.addAll(old.values().stream().map(m -> "removed " + key(m)).collect(Collectors.toList()));
+        add("Method", Change.CODE, "%d -> %d bytes, %d of %d methods changed%s", x.length, y.length, changed.size(), descY.methods.size(),
+                changed.isEmpty() ? "" : ": " + String.join(", ", changed.subList(0, Math.min(10, changed.size()))) + (changed.size() > 10 ? ", ..." : ""));
+    }
+
+    // Private and static methods have no tokens, so position in class is part of the key
+    private static String key(Descriptor.MethodDescriptor m) {
+        return m.owner.token + "." + m.owner.methods.indexOf(m) + "." + m.token;
+    }
+
+    private static byte[] body(byte[] method, Descriptor.MethodDescriptor m) {
+        if (m.isAbstract())
+            return new byte[0];
+        int start = INFO + m.offset;
+        return Arrays.copyOfRange(method, start, start + Descriptor.headerSize(method, m.offset) + m.bytecodes);
+    }
+}
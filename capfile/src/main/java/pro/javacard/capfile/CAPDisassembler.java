@@ -0,0 +1,617 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static pro.javacard.capfile.Bytecode.*;
+import static pro.javacard.capfile.Components.*;
+
+/**
+ * Disassembler of CAP files into text similar to the JCA files of the converter, without a JavaCard SDK.
+ * <p>
+ * Lists the package, imports, applets, constant pool, classes with fields, method tables and bytecode of
+ * methods, and exports. Names come from the Debug component, if present; otherwise classes and members of
+ * the package are named by token and offset. Method and field types are decoded from the Descriptor component.
+ * Output is written as it is produced.
+ */
+public final class CAPDisassembler {
+    private final CAPFile cap;
+    private final Writer out;
+    private final DebugInfo debug;
+    private final Descriptor descriptor;
+    private final byte[] desc;
+    private final byte[] pool;
+    private final byte[] classes;
+    private final byte[] method;
+    private final Map<Integer, Descriptor.ClassDescriptor> byRef = new HashMap<>();
+    private final Map<Integer, Descriptor.MethodDescriptor> byOffset = new HashMap<>();
+
+    private CAPDisassembler(CAPFile cap, Writer out) {
+        this.cap = cap;
+        this.out = out;
+        this.debug = DebugInfo.parse(cap.component("Debug"));
+        this.desc = cap.component("Descriptor");
+        this.pool = cap.component("ConstantPool");
+        this.classes = cap.component("Class");
+        this.method = cap.component("Method");
+        if ((u1(cap.component("Header"), 9) & ACC_EXTENDED) != 0)
+            throw new IllegalArgumentException("Extended CAP format is not supported");
+        if (desc == null || pool == null || classes == null || method == null)
+            throw new IllegalArgumentException("CAP file has no Descriptor, ConstantPool, Class or Method component");
+        this.descriptor = Descriptor.parse(desc);
+        for (Descriptor.ClassDescriptor c : descriptor.classes)
+            byRef.put(c.ref, c);
+        for (Descriptor.MethodDescriptor m : descriptor.methods)
+            if (!m.isAbstract())
+                byOffset.put(m.offset, m);
+    }
+
+    /**
+     * Writes the disassembly of a CAP file.
+     *
+     * @throws IllegalArgumentException if the CAP file is in extended format or components are missing
+     */
+    public static void disassemble(CAPFile cap, Writer out) throws IOException {
+        try {
+            new CAPDisassembler(cap, out).run();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated component: " + e.getMessage(), e);
+        }
+    }
+
+    public static String disassemble(CAPFile cap) {
+        StringWriter w = new StringWriter();
+        try {
+            disassemble(cap, w);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return w.toString();
+    }
+
+    private void line(int indent, String s) throws IOException {
+        for (int i = 0; i < indent; i++)
+            out.write('\t');
+        out.write(s);
+        out.write('\n');
+    }
+
+    private void run() throws IOException {
+        String pkg = cap.getPackageName().replace('.', '/');
+        line(0, String.format("// CAP file format %s: %s", cap.getCAPVersion(), String.join(", ", cap.getFlags())));
+        line(0, "");
+        line(0, ".package " + pkg + " {");
+        line(1, ".aid " + aid(cap.getPackageAID()) + ";");
+        line(1, ".version " + cap.getPackageVersion() + ";");
+        line(0, "");
+        line(1, ".imports {");
+        int token = 0;
+        for (CAPPackage p : cap.getImports()) {
+            String name = WellKnownAID.getName(p.getAid()).orElse("");
+            line(2, String.format("%s %s;\t\t// %d%s", aid(p.getAid()), p.getVersionString(), token++, name.isEmpty() ? "" : " " + name.replace('.', '/')));
+        }
+        line(1, "}");
+        applets();
+        constantPool();
+        for (Descriptor.ClassDescriptor c : descriptor.classes)
+            type(c);
+        exports();
+        line(0, "}");
+        out.flush();
+    }
+
+    private void applets() throws IOException {
+        byte[] applets = cap.component("Applet");
+        if (applets == null)
+            return;
+        line(0, "");
+        line(1, ".applet {");
+        int off = INFO + 1;
+        for (int i = 0; i < u1(applets, INFO); i++) {
+            int len = u1(applets, off);
+            AID aid = new AID(applets, off + 1, len);
+            int install = u2(applets, off + 1 + len);
+            String name = cap.getApplets().get(aid);
+            Descriptor.MethodDescriptor m = byOffset.get(install);
+            if (name == null && m != null)
+                name = className(m.owner.ref);
+            line(2, String.format("%s %s;\t\t// install() at %d", aid(aid), name == null ? "?" : name, install));
+            off += 1 + len + 2;
+        }
+        line(1, "}");
+    }
+
+    private void constantPool() throws IOException {
+        line(0, "");
+        line(1, ".constantPool {");
+        for (int i = 0; i < u2(pool, INFO); i++) {
+            line(2, "// " + i);
+            line(2, constant(i) + ";");
+        }
+        line(1, "}");
+    }
+
+    // Constant pool entry, see JCVM 2.2.2 section 6.7
+    private String constant(int index) {
+        int e = INFO + 2 + index * 4;
+        int tag = u1(pool, e);
+        switch (tag) {
+            case 1:
+                return "classRef " + classRef(u2(pool, e + 1));
+            case 2:
+                return "instanceFieldRef " + instanceField(u2(pool, e + 1), u1(pool, e + 3));
+            case 3:
+                return "virtualMethodRef " + classRef(u2(pool, e + 1)) + "." + u1(pool, e + 3);
+            case 4:
+                return "superMethodRef " + classRef(u2(pool, e + 1)) + "." + u1(pool, e + 3);
+            case 5:
+                if ((u1(pool, e + 1) & 0x80) != 0)
+                    return String.format("staticFieldRef %d.%d.%d", u1(pool, e + 1) & 0x7F, u1(pool, e + 2), u1(pool, e + 3));
+                return "staticFieldRef " + staticField(u2(pool, e + 2));
+            case 6:
+                if ((u1(pool, e + 1) & 0x80) != 0)
+                    return String.format("staticMethodRef %d.%d.%d", u1(pool, e + 1) & 0x7F, u1(pool, e + 2), u1(pool, e + 3));
+                return "staticMethodRef " + methodName(u2(pool, e + 2));
+            default:
+                return "unknown " + tag;
+        }
+    }
+
+    private String classRef(int ref) {
+        if ((ref & 0x8000) != 0)
+            return String.format("%d.%d", (ref >> 8) & 0x7F, ref & 0xFF);
+        return className(ref);
+    }
+
+    private String className(int ref) {
+        String name = debug.classes.get(ref);
+        if (name != null)
+            return name.replace('.', '/');
+        Descriptor.ClassDescriptor c = byRef.get(ref);
+        return c == null ? "class@" + ref : "class_" + c.token;
+    }
+
+    private String instanceField(int classRef, int token) {
+        String name = debug.fields.get(DebugInfo.fieldKey(classRef, false, token));
+        return classRef(classRef) + "." + (name == null ? String.valueOf(token) : name);
+    }
+
+    private String staticField(int offset) {
+        for (Descriptor.ClassDescriptor c : descriptor.classes) {
+            String name = debug.fields.get(DebugInfo.fieldKey(c.ref, true, offset));
+            if (name != null)
+                return className(c.ref) + "." + name;
+        }
+        return "field@" + offset;
+    }
+
+    // Short name and type of a method of the package
+    private String methodName(int offset) {
+        Descriptor.MethodDescriptor m = byOffset.get(offset);
+        if (m == null)
+            return "method@" + offset;
+        return className(m.owner.ref) + "." + shortName(m) + type(m.type);
+    }
+
+    private String shortName(Descriptor.MethodDescriptor m) {
+        String name = debug.methods.get(m.offset);
+        String owner = debug.classes.get(m.owner.ref);
+        if (name != null && owner != null && name.startsWith(owner + ".")) {
+            name = name.substring(owner.length() + 1);
+            return name.contains("(") ? name.substring(0, name.indexOf('(')) : name;
+        }
+        if ((m.access & Descriptor.ACC_INIT) != 0)
+            return "<init>";
+        return m.isAbstract() ? "method_" + m.token : "method@" + m.offset;
+    }
+
+    // Method type, from a type descriptor
+    private String type(int offset) {
+        if (offset == 0xFFFF)
+            return "";
+        List<String> types = types(offset);
+        if (types.isEmpty())
+            return "?";
+        return "(" + String.join("", types.subList(0, types.size() - 1)) + ")" + types.get(types.size() - 1);
+    }
+
+    // Types in a type descriptor, see JCVM 2.2.2 section 6.13
+    private List<String> types(int offset) {
+        int base = descriptor.types + offset;
+        int nibbles = u1(desc, base);
+        List<String> types = new ArrayList<>();
+        for (int i = 0; i < nibbles; ) {
+            int n = nibble(base + 1, i++);
+            String t;
+            switch (n & 0x7) {
+                case 1:
+                    t = "V";
+                    break;
+                case 2:
+                    t = "Z";
+                    break;
+                case 3:
+                    t = "B";
+                    break;
+                case 4:
+                    t = "S";
+                    break;
+                case 5:
+                    t = "I";
+                    break;
+                case 6:
+                    int ref = 0;
+                    for (int k = 0; k < 4; k++)
+                        ref = (ref << 4) | nibble(base + 1, i++);
+                    t = "L" + classRef(ref) + ";";
+                    break;
+                default:
+                    t = "?";
+            }
+            types.add((n & 0x8) != 0 ? "[" + t : t);
+        }
+        return types;
+    }
+
+    private int nibble(int offset, int index) {
+        int b = u1(desc, offset + index / 2);
+        return index % 2 == 0 ? b >> 4 : b & 0xF;
+    }
+
+    private static String fieldType(int type) {
+        if ((type & 0x8000) == 0)
+            return null;
+        switch (type & 0x7FFF) {
+            case 2:
+                return "boolean";
+            case 3:
+                return "byte";
+            case 4:
+                return "short";
+            case 5:
+                return "int";
+            default:
+                return "?";
+        }
+    }
+
+    private String javaType(int type) {
+        String t = fieldType(type);
+        if (t != null)
+            return t;
+        List<String> types = types(type);
+        if (types.size() != 1)
+            return "?";
+        String d = types.get(0);
+        String array = d.startsWith("[") ? "[]" : "";
+        d = array.isEmpty() ? d : d.substring(1);
+        switch (d) {
+            case "Z":
+                return "boolean" + array;
+            case "B":
+                return "byte" + array;
+            case "S":
+                return "short" + array;
+            case "I":
+                return "int" + array;
+            default:
+                return d.startsWith("L") ? d.substring(1, d.length() - 1) + array : "?";
+        }
+    }
+
+    private static String access(int access, boolean method) {
+        List<String> r = new ArrayList<>();
+        if ((access & Descriptor.ACC_PUBLIC) != 0)
+            r.add("public");
+        if ((access & Descriptor.ACC_PRIVATE) != 0)
+            r.add("private");
+        if ((access & Descriptor.ACC_PROTECTED) != 0)
+            r.add("protected");
+        if ((access & Descriptor.ACC_STATIC) != 0)
+            r.add("static");
+        if ((access & Descriptor.ACC_FINAL) != 0)
+            r.add("final");
+        if (method && (access & Descriptor.ACC_ABSTRACT) != 0)
+            r.add("abstract");
+        return r.isEmpty() ? "" : String.join(" ", r) + " ";
+    }
+
+    // Class or interface, see JCVM 2.2.2 section 6.8
+    private void type(Descriptor.ClassDescriptor c) throws IOException {
+        int base = INFO + c.ref;
+        int bitfield = u1(classes, base);
+        int interfaces = bitfield & 0xF;
+        String access = (c.access & Descriptor.ACC_PUBLIC) != 0 ? "public " : "";
+        if ((c.access & Descriptor.ACC_FINAL) != 0)
+            access += "final ";
+        if ((c.access & 0x80) != 0 && !c.isInterface())
+            access += "abstract ";
+        if ((bitfield & 0x40) != 0)
+            access += "shareable ";
+        if ((bitfield & 0x20) != 0)
+            access += "remote ";
+        line(0, "");
+        if (c.isInterface()) {
+            line(1, String.format(".interface %s%s %d {", access, className(c.ref), c.token));
+            if (interfaces > 0) {
+                line(2, ".superInterfaces {");
+                for (int i = 0; i < interfaces; i++)
+                    line(3, classRef(u2(classes, base + 1 + i * 2)) + ";");
+                line(2, "}");
+            }
+        } else {
+            int superRef = u2(classes, base + 1);
+            line(1, String.format(".class %s%s %d%s {", access, className(c.ref), c.token, superRef == 0xFFFF ? "" : " extends " + classRef(superRef)));
+            fields(c);
+            int publicCount = u1(classes, base + 7);
+            int packageCount = u1(classes, base + 9);
+            int table = base + 10;
+            line(0, "");
+            line(2, String.format(".publicMethodTable %d {", u1(classes, base + 6)));
+            for (int i = 0; i < publicCount; i++, table += 2)
+                line(3, tableEntry(u2(classes, table)));
+            line(2, "}");
+            line(0, "");
+            line(2, String.format(".packageMethodTable %d {", u1(classes, base + 8)));
+            for (int i = 0; i < packageCount; i++, table += 2)
+                line(3, tableEntry(u2(classes, table)));
+            line(2, "}");
+            if (interfaces > 0) {
+                line(0, "");
+                line(2, ".implementedInterfaceInfoTable {");
+                for (int i = 0; i < interfaces; i++) {
+                    int count = u1(classes, table + 2);
+                    StringBuilder sb = new StringBuilder(".interface " + classRef(u2(classes, table)) + " {");
+                    for (int k = 0; k < count; k++)
+                        sb.append(' ').append(u1(classes, table + 3 + k));
+                    line(3, sb.append(" }").toString());
+                    table += 3 + count;
+                }
+                line(2, "}");
+            }
+        }
+        for (Descriptor.MethodDescriptor m : c.methods)
+            method(m);
+        line(1, "}");
+    }
+
+    private String tableEntry(int offset) {
+        return offset == 0xFFFF ? "// inherited" : methodLabel(offset) + ";";
+    }
+
+    private String methodLabel(int offset) {
+        Descriptor.MethodDescriptor m = byOffset.get(offset);
+        return m == null ? "method@" + offset : shortName(m) + type(m.type);
+    }
+
+    // Fields from the Descriptor component
+    private void fields(Descriptor.ClassDescriptor c) throws IOException {
+        if (c.fields == 0)
+            return;
+        line(0, "");
+        line(2, ".fields {");
+        int off = c.position + 9 + u1(desc, c.position + 4) * 2;
+        for (int i = 0; i < c.fields; i++, off += 7) {
+            int token = u1(desc, off);
+            int access = u1(desc, off + 1);
+            boolean isStatic = (access & Descriptor.ACC_STATIC) != 0;
+            int location = isStatic ? u2(desc, off + 3) : token;
+            String name = debug.fields.get(DebugInfo.fieldKey(c.ref, isStatic, location));
+            if (name == null)
+                name = isStatic ? "field@" + location : "field_" + token;
+            line(3, String.format("%s%s %s %d;", access(access, false), javaType(u2(desc, off + 5)), name, token));
+        }
+        line(2, "}");
+    }
+
+    private void method(Descriptor.MethodDescriptor m) throws IOException {
+        line(0, "");
+        String head = String.format(".method %s%s%s %d", access(m.access, true), shortName(m), type(m.type), m.token);
+        if (m.isAbstract()) {
+            line(2, head + ";");
+            return;
+        }
+        line(2, head + " {");
+        int start = INFO + m.offset;
+        int header = Descriptor.headerSize(method, m.offset);
+        int maxStack = header == 4 ? u1(method, start + 1) : u1(method, start) & 0xF;
+        int nargs = header == 4 ? u1(method, start + 2) : u1(method, start + 1) >> 4;
+        int maxLocals = header == 4 ? u1(method, start + 3) : u1(method, start + 1) & 0xF;
+        line(3, ".stack " + maxStack + ";");
+        line(3, ".locals " + maxLocals + ";");
+        if ((u1(method, start) & 0x80) != 0)
+            line(3, "// extended header, " + nargs + " argument words");
+        line(0, "");
+
+        int code = start + header;
+        int end = code + m.bytecodes;
+        // Labels of branch targets and exception handler boundaries
+        TreeMap<Integer, String> labels = new TreeMap<>();
+        List<int[]> handlers = new ArrayList<>();
+        for (int i = 0; i < m.handlers; i++) {
+            int h = INFO + 1 + (m.handlerIndex + i) * 8;
+            int from = u2(method, h) - m.offset - header;
+            int to = from + (u2(method, h + 2) & 0x7FFF);
+            int handler = u2(method, h + 4) - m.offset - header;
+            handlers.add(new int[]{from, to, handler, u2(method, h + 6)});
+            labels.put(from, null);
+            labels.put(to, null);
+            labels.put(handler, null);
+        }
+        for (int pc = 0; code + pc < end; pc += Bytecode.length(method, code + pc))
+            for (int t : targets(code, pc))
+                labels.put(t, null);
+        int n = 0;
+        for (Map.Entry<Integer, String> e : labels.entrySet())
+            e.setValue("L" + n++);
+
+        for (int pc = 0; code + pc < end; pc += Bytecode.length(method, code + pc)) {
+            String label = labels.get(pc);
+            out.write("\t\t\t");
+            out.write(label == null ? "\t" : label + ":\t");
+            out.write(instruction(code, pc, labels));
+            out.write('\n');
+        }
+        if (labels.containsKey(m.bytecodes))
+            line(3, labels.get(m.bytecodes) + ":");
+        if (!handlers.isEmpty()) {
+            line(0, "");
+            line(3, ".exceptionTable {");
+            line(4, "// start_block end_block handler_block catch_type_index");
+            for (int[] h : handlers)
+                line(4, String.format("%s %s %s %d;", labels.get(h[0]), labels.get(h[1]), labels.get(h[2]), h[3]));
+            line(3, "}");
+        }
+        line(2, "}");
+    }
+
+    // Branch targets of the instruction at pc, relative to bytecode start
+    private int[] targets(int code, int pc) {
+        int at = code + pc;
+        int op = u1(method, at);
+        if (op >= IFEQ && op <= GOTO)
+            return new int[]{pc + s1(method, at + 1)};
+        if (op >= IFEQ_W && op <= GOTO_W)
+            return new int[]{pc + s2(method, at + 1)};
+        if (op == STABLESWITCH || op == ITABLESWITCH) {
+            int first = op == ITABLESWITCH ? 11 : 7;
+            int count = (Bytecode.length(method, at) - first) / 2;
+            int[] r = new int[1 + count];
+            r[0] = pc + s2(method, at + 1);
+            for (int k = 0; k < count; k++)
+                r[1 + k] = pc + s2(method, at + first + k * 2);
+            return r;
+        }
+        if (op == SLOOKUPSWITCH || op == ILOOKUPSWITCH) {
+            int pair = op == ILOOKUPSWITCH ? 6 : 4;
+            int count = u2(method, at + 3);
+            int[] r = new int[1 + count];
+            r[0] = pc + s2(method, at + 1);
+            for (int k = 0; k < count; k++)
+                r[1 + k] = pc + s2(method, at + 5 + k * pair + pair - 2);
+            return r;
+        }
+        return new int[0];
+    }
+
+    private String instruction(int code, int pc, Map<Integer, String> labels) {
+        int at = code + pc;
+        int op = u1(method, at);
+        StringBuilder sb = new StringBuilder(MNEMONICS[op]);
+        int index = Bytecode.poolIndex(op);
+        int[] targets = targets(code, pc);
+        if (op == STABLESWITCH || op == ITABLESWITCH) {
+            boolean wide = op == ITABLESWITCH;
+            sb.append(' ').append(labels.get(targets[0]));
+            sb.append(' ').append(wide ? s4(method, at + 3) : s2(method, at + 3));
+            sb.append(' ').append(wide ? s4(method, at + 7) : s2(method, at + 5));
+            for (int k = 1; k < targets.length; k++)
+                sb.append(' ').append(labels.get(targets[k]));
+        } else if (op == SLOOKUPSWITCH || op == ILOOKUPSWITCH) {
+            boolean wide = op == ILOOKUPSWITCH;
+            sb.append(' ').append(labels.get(targets[0])).append(' ').append(targets.length - 1);
+            for (int k = 1; k < targets.length; k++) {
+                int match = at + 5 + (k - 1) * (wide ? 6 : 4);
+                sb.append(' ').append(wide ? s4(method, match) : s2(method, match)).append(' ').append(labels.get(targets[k]));
+            }
+        } else if (targets.length > 0) {
+            sb.append(' ').append(labels.get(targets[0]));
+        } else if (index > 0) {
+            int cp = isShortPoolIndex(op) ? u1(method, at + index) : u2(method, at + index);
+            if (op == CHECKCAST || op == INSTANCEOF)
+                sb.append(' ').append(u1(method, at + 1));
+            if (op == INVOKEINTERFACE)
+                sb.append(' ').append(u1(method, at + 1));
+            sb.append(' ').append(cp);
+            if (op == INVOKEINTERFACE)
+                sb.append(' ').append(u1(method, at + 4));
+            sb.append(";\t\t// ").append(cp < u2(pool, INFO) ? constant(cp) : "?");
+            return sb.toString();
+        } else {
+            switch (op) {
+                case BSPUSH:
+                case BIPUSH:
+                    sb.append(' ').append(s1(method, at + 1));
+                    break;
+                case SSPUSH:
+                case SIPUSH:
+                    sb.append(' ').append(s2(method, at + 1));
+                    break;
+                case IIPUSH:
+                    sb.append(' ').append(s4(method, at + 1));
+                    break;
+                case SINC:
+                case IINC:
+                    sb.append(' ').append(u1(method, at + 1)).append(' ').append(s1(method, at + 2));
+                    break;
+                case SINC_W:
+                case IINC_W:
+                    sb.append(' ').append(u1(method, at + 1)).append(' ').append(s2(method, at + 2));
+                    break;
+                default:
+                    // dup_x and swap_x operands are two nibbles
+                    for (int k = 1; k < Bytecode.length(method, at); k++)
+                        sb.append(' ').append(String.format(op == DUP_X || op == SWAP_X ? "0x%02X" : "%d", u1(method, at + k)));
+            }
+        }
+        return sb.append(';').toString();
+    }
+
+    // Export component, see JCVM 2.2.2 section 6.12
+    private void exports() throws IOException {
+        byte[] export = cap.component("Export");
+        if (export == null)
+            return;
+        line(0, "");
+        line(1, ".exports {");
+        int off = INFO + 1;
+        for (int i = 0; i < u1(export, INFO); i++) {
+            int ref = u2(export, off);
+            int fields = u1(export, off + 2);
+            int methods = u1(export, off + 3);
+            line(2, ".class " + className(ref) + " {");
+            off += 4;
+            for (int k = 0; k < fields; k++, off += 2)
+                line(3, "staticField " + staticField(u2(export, off)) + ";");
+            for (int k = 0; k < methods; k++, off += 2)
+                line(3, "staticMethod " + methodLabel(u2(export, off)) + ";");
+            line(2, "}");
+        }
+        line(1, "}");
+    }
+
+    private static String aid(AID aid) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : aid.getBytes())
+            sb.append(sb.length() == 0 ? "" : ":").append(String.format("0x%02X", b & 0xFF));
+        return sb.toString();
+    }
+}
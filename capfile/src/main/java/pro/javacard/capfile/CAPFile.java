@@ -28,6 +28,8 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 import pro.javacard.HexUtils;
+import pro.javacard.jfr.Span;
+import pro.javacard.jfr.Trace;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -70,7 +72,13 @@ public final class CAPFile {
 
 
     public static CAPFile fromStream(InputStream in) throws IOException {
-        return new CAPFile(in);
+        try (Span span = Trace.parse()) {
+            CAPFile cap = new CAPFile(in);
+            if (span.enabled()) {
+                span.packageAID(cap.getPackageAID().toString()).read(cap.entries.values().stream().mapToLong(e -> e.length).sum());
+            }
+            return cap;
+        }
     }
 
     public static CAPFile fromBytes(byte[] bytes) throws IOException {
@@ -94,6 +102,11 @@ public final class CAPFile {
         return c == null ? null : c.clone();
     }
 
+    // Internal access, without copying
+    byte[] component(String name) {
+        return entries.get(pkg2jcdir(getPackageName()) + name + ".cap");
+    }
+
     public byte[] getMetaInfEntry(String name) {
         return entries.get("META-INF/" + name);
     }
@@ -236,6 +249,29 @@ public final class CAPFile {
         return pkg.getName().orElseThrow(() -> new IllegalStateException("No package name"));
     }
 
+    public CAPPackage getPackage() {
+        return pkg;
+    }
+
+    public String getPackageVersion() {
+        return pkg.getVersionString();
+    }
+
+    public String getCAPVersion() {
+        return cap_version;
+    }
+
+    // Sizes of present components, including tag and size, in load order
+    public Map<String, Integer> getComponentSizes() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (String name : componentNames) {
+            byte[] c = component(name);
+            if (c != null)
+                result.put(name, c.length);
+        }
+        return result;
+    }
+
     public byte[] getCode() {
         return _getCode(false);
     }
@@ -247,12 +283,7 @@ public final class CAPFile {
 
     byte[] _getCode(boolean includeDebug) {
         ByteArrayOutputStream result = new ByteArrayOutputStream();
-        for (String name : componentNames) {
-            byte[] c = getComponent(name);
-            if (c == null)
-                continue;
-            if (!includeDebug && (name.equals("Debug") || name.equals("Descriptor")))
-                continue;
+        for (byte[] c : loadComponents(includeDebug)) {
             try {
                 result.write(c);
             } catch (IOException e) {
@@ -262,9 +293,27 @@ public final class CAPFile {
         return result.toByteArray();
     }
 
+    // Components of the load file, in load order, without copying
+    List<byte[]> loadComponents(boolean includeDebug) {
+        List<byte[]> result = new ArrayList<>();
+        for (String name : componentNames) {
+            byte[] c = component(name);
+            if (c == null)
+                continue;
+            if (!includeDebug && (name.equals("Debug") || name.equals("Descriptor")))
+                continue;
+            result.add(c);
+        }
+        return result;
+    }
+
     public byte[] getLoadFileDataHash(String hash) {
-        try {
-            return MessageDigest.getInstance(hash).digest(getCode());
+        try (Span span = Trace.hash(hash)) {
+            byte[] code = getCode();
+            if (span.enabled()) {
+                span.packageAID(pkg.getAid().toString()).read(code.length);
+            }
+            return MessageDigest.getInstance(hash).digest(code);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("Not possible", e);
         }
@@ -425,7 +474,7 @@ public final class CAPFile {
         return Optional.empty();
     }
 
-    private static String pkg2jcdir(String pkgname) {
+    static String pkg2jcdir(String pkgname) {
         return pkgname.replace(".", "/") + "/javacard/";
     }
 
@@ -443,6 +492,14 @@ public final class CAPFile {
 
     // Remove compiled code from capfile
     public static void strip(Path cap) throws IOException {
+        try (Span span = Trace.strip()) {
+            span.read(span.enabled() ? Files.size(cap) : 0);
+            _strip(cap);
+            span.written(span.enabled() ? Files.size(cap) : 0);
+        }
+    }
+
+    private static void _strip(Path cap) throws IOException {
         Map<String, String> props = new HashMap<>();
         props.put("create", "false");
 
@@ -0,0 +1,577 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Persistent, memory-mapped index of CAP file metadata: package and applet AID-s, versions, imports and
+ * load file data hashes.
+ * <p>
+ * Lookups are binary searches over the mapped file and never touch the indexed CAP files. The index is
+ * updated incrementally: only files with a changed path, modification time or size are parsed again.
+ * <p>
+ * File format (big endian): a fixed header with section offsets, entry records sorted by package AID,
+ * SHA-1 and SHA-256 hash tables, applet AID and import AID tables (each sorted) and a blob area with
+ * length prefixed paths and AID-s.
+ */
+public final class CAPIndex implements Closeable {
+    private static final int MAGIC = 0x43415058; // CAPX
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 44;
+    // Entry record: path, mtime, size, package aid, major, minor, flags, applet count, applets, import count, imports, sha1, sha256
+    private static final int ENTRY_SIZE = 4 + 8 + 8 + 4 + 4 + 4 + 4 + 4 + 20 + 32;
+    private static final int SHA1_SIZE = 20 + 4;
+    private static final int SHA256_SIZE = 32 + 4;
+    private static final int AID_REF_SIZE = 4 + 4;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int appletCount;
+    private final int importCount;
+    private final int entries;
+    private final int sha1s;
+    private final int sha256s;
+    private final int applets;
+    private final int imports;
+    private final int blob;
+
+    /**
+     * Metadata of a single indexed CAP file.
+     */
+    public static final class Entry {
+        private final Path path;
+        private final long modified;
+        private final long size;
+        private final CAPPackage pkg;
+        private final int flags;
+        private final List<AID> applets;
+        private final List<CAPPackage> imports;
+        private final byte[] sha1;
+        private final byte[] sha256;
+
+        Entry(Path path, long modified, long size, CAPPackage pkg, int flags, List<AID> applets, List<CAPPackage> imports, byte[] sha1, byte[] sha256) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.pkg = pkg;
+            this.flags = flags;
+            this.applets = Collections.unmodifiableList(applets);
+            this.imports = Collections.unmodifiableList(imports);
+            this.sha1 = sha1;
+            this.sha256 = sha256;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public CAPPackage getPackage() {
+            return pkg;
+        }
+
+        public List<String> getFlags() {
+            return CAPFile.flags2strings((byte) flags);
+        }
+
+        public List<AID> getApplets() {
+            return applets;
+        }
+
+        public List<CAPPackage> getImports() {
+            return imports;
+        }
+
+        public byte[] getSHA1() {
+            return sha1.clone();
+        }
+
+        public byte[] getSHA256() {
+            return sha256.clone();
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + pkg.getAid() + " v" + pkg.getVersionString();
+        }
+    }
+
+    /**
+     * Outcome of an index update.
+     */
+    public static final class Stats {
+        public final int unchanged;
+        public final int parsed;
+        public final int removed;
+        public final List<String> failed;
+
+        Stats(int unchanged, int parsed, int removed, List<String> failed) {
+            this.unchanged = unchanged;
+            this.parsed = parsed;
+            this.removed = removed;
+            this.failed = Collections.unmodifiableList(failed);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d unchanged, %d parsed, %d removed, %d failed", unchanged, parsed, removed, failed.size());
+        }
+    }
+
+    private CAPIndex(FileChannel channel, ByteBuffer buffer) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getShort(4) != FORMAT)
+            throw new IOException("Not a CAP index file");
+        count = buffer.getInt(8);
+        appletCount = buffer.getInt(12);
+        importCount = buffer.getInt(16);
+        entries = buffer.getInt(20);
+        sha1s = buffer.getInt(24);
+        sha256s = buffer.getInt(28);
+        applets = buffer.getInt(32);
+        imports = buffer.getInt(36);
+        blob = buffer.getInt(40);
+    }
+
+    /**
+     * Opens an existing index file, mapping it into memory.
+     */
+    public static CAPIndex open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CAPIndex(channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates or updates the index file with all CAP files found in given files or directories.
+     * Files with unchanged path, modification time and size are not parsed again.
+     */
+    public static Stats update(Path file, Collection<Path> roots) throws IOException {
+        Map<Path, Entry> previous = new HashMap<>();
+        if (Files.exists(file)) {
+            try (CAPIndex index = open(file)) {
+                for (int i = 0; i < index.count; i++) {
+                    Entry e = index.entry(i);
+                    previous.put(e.path, e);
+                }
+            } catch (IOException e) {
+                // Not a valid index, rebuild from scratch
+                previous.clear();
+            }
+        }
+
+        List<Path> files = new ArrayList<>();
+        for (Path root : roots) {
+            try (Stream<Path> paths = Files.walk(root)) {
+                files.addAll(paths.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".cap")).map(Path::toAbsolutePath).collect(Collectors.toList()));
+            }
+        }
+
+        List<Entry> result = Collections.synchronizedList(new ArrayList<>());
+        List<String> failed = Collections.synchronizedList(new ArrayList<>());
+        int[] unchanged = new int[1];
+        List<Path> todo = new ArrayList<>();
+        for (Path p : files) {
+            BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class);
+            Entry e = previous.remove(p);
+            if (e != null && e.modified == attributes.lastModifiedTime().toMillis() && e.size == attributes.size()) {
+                result.add(e);
+                unchanged[0]++;
+            } else {
+                todo.add(p);
+            }
+        }
+        todo.parallelStream().forEach(p -> {
+            try {
+                result.add(parse(p));
+            } catch (IOException | RuntimeException e) {
+                failed.add(p + ": " + e.getMessage());
+            }
+        });
+        write(file, result);
+        Collections.sort(failed);
+        return new Stats(unchanged[0], todo.size() - failed.size(), previous.size(), failed);
+    }
+
+    static Entry parse(Path p) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class);
+        CAPFile cap = CAPFile.fromFile(p);
+        CAPPackage pkg = new CAPPackage(cap.getPackageAID(), cap.getPackage().getMajor(), cap.getPackage().getMinor());
+        return new Entry(p, attributes.lastModifiedTime().toMillis(), attributes.size(), pkg, cap.component("Header")[9] & 0xFF, cap.getAppletAIDs(), cap.getImports(),
+                cap.getLoadFileDataHash("SHA-1"), cap.getLoadFileDataHash("SHA-256"));
+    }
+
+    private static final Comparator<Entry> ORDER = Comparator.comparing((Entry e) -> e.pkg.getAid().getBytes(), CAPIndex::compare)
+            .thenComparingInt(e -> e.pkg.getMajor())
+            .thenComparingInt(e -> e.pkg.getMinor())
+            .thenComparing(e -> e.path.toString());
+
+    static void write(Path file, List<Entry> list) throws IOException {
+        List<Entry> sorted = new ArrayList<>(list);
+        sorted.sort(ORDER);
+
+        ByteArrayOutputStream blobs = new ByteArrayOutputStream();
+        Map<AID, Integer> aids = new HashMap<>();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        List<int[]> appletRefs = new ArrayList<>(); // aid offset, entry
+        List<int[]> importRefs = new ArrayList<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            Entry e = sorted.get(i);
+            out.writeInt(blob(blobs, e.path.toString().getBytes(StandardCharsets.UTF_8)));
+            out.writeLong(e.modified);
+            out.writeLong(e.size);
+            out.writeInt(aid(blobs, aids, e.pkg.getAid()));
+            out.writeByte(e.pkg.getMajor());
+            out.writeByte(e.pkg.getMinor());
+            out.writeByte(e.flags);
+            out.writeByte(e.applets.size());
+            // Applets and imports are consecutive in blob area
+            out.writeInt(blobs.size());
+            for (AID a : e.applets) {
+                int offset = blob(blobs, a.getBytes());
+                appletRefs.add(new int[]{offset, i});
+            }
+            out.writeInt(e.imports.size());
+            out.writeInt(blobs.size());
+            for (CAPPackage p : e.imports) {
+                blobs.write(p.getMajor());
+                blobs.write(p.getMinor());
+                importRefs.add(new int[]{blob(blobs, p.getAid().getBytes()), i});
+            }
+            out.write(e.sha1);
+            out.write(e.sha256);
+        }
+        byte[] blobBytes = blobs.toByteArray();
+        Comparator<int[]> byAid = (a, b) -> {
+            int c = compare(blobBytes, a[0], b[0]);
+            return c != 0 ? c : Integer.compare(a[1], b[1]);
+        };
+        appletRefs.sort(byAid);
+        importRefs.sort(byAid);
+
+        int entriesOffset = HEADER_SIZE;
+        int sha1Offset = entriesOffset + records.size();
+        int sha256Offset = sha1Offset + sorted.size() * SHA1_SIZE;
+        int appletsOffset = sha256Offset + sorted.size() * SHA256_SIZE;
+        int importsOffset = appletsOffset + appletRefs.size() * AID_REF_SIZE;
+        int blobOffset = importsOffset + importRefs.size() * AID_REF_SIZE;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(blobOffset + blobBytes.length);
+        DataOutputStream index = new DataOutputStream(bos);
+        index.writeInt(MAGIC);
+        index.writeShort(FORMAT);
+        index.writeShort(0);
+        index.writeInt(sorted.size());
+        index.writeInt(appletRefs.size());
+        index.writeInt(importRefs.size());
+        index.writeInt(entriesOffset);
+        index.writeInt(sha1Offset);
+        index.writeInt(sha256Offset);
+        index.writeInt(appletsOffset);
+        index.writeInt(importsOffset);
+        index.writeInt(blobOffset);
+        records.writeTo(index);
+        for (boolean sha1 : new boolean[]{true, false}) {
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < sorted.size(); i++)
+                order.add(i);
+            order.sort(Comparator.comparing(i -> sha1 ? sorted.get(i).sha1 : sorted.get(i).sha256, CAPIndex::compare));
+            for (int i : order) {
+                index.write(sha1 ? sorted.get(i).sha1 : sorted.get(i).sha256);
+                index.writeInt(i);
+            }
+        }
+        for (List<int[]> refs : Arrays.asList(appletRefs, importRefs)) {
+            for (int[] ref : refs) {
+                index.writeInt(ref[0]);
+                index.writeInt(ref[1]);
+            }
+        }
+        index.write(blobBytes);
+        index.flush();
+
+        // Replace atomically, so that readers never see a partial index
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, bos.toByteArray());
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Blob items are u2 length + bytes
+    private static int blob(ByteArrayOutputStream blobs, byte[] data) {
+        int offset = blobs.size();
+        blobs.write(data.length >> 8);
+        blobs.write(data.length);
+        blobs.write(data, 0, data.length);
+        return offset;
+    }
+
+    private static int aid(ByteArrayOutputStream blobs, Map<AID, Integer> aids, AID aid) {
+        return aids.computeIfAbsent(aid, a -> blob(blobs, a.getBytes()));
+    }
+
+    // Unsigned lexicographic comparison
+    static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int c = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    private static int compare(byte[] blob, int a, int b) {
+        return compare(blob(blob, a), blob(blob, b));
+    }
+
+    private static byte[] blob(byte[] blob, int offset) {
+        int len = ((blob[offset] & 0xFF) << 8) | (blob[offset + 1] & 0xFF);
+        return Arrays.copyOfRange(blob, offset + 2, offset + 2 + len);
+    }
+
+    // Reading from mapped buffer, only absolute access, so that queries are thread safe
+
+    private byte[] bytes(int offset, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++)
+            result[i] = buffer.get(offset + i);
+        return result;
+    }
+
+    private byte[] blob(int offset) {
+        int position = blob + offset;
+        return bytes(position + 2, buffer.getShort(position) & 0xFFFF);
+    }
+
+    // Compares the AID blob at offset with prefix, considering only the length of the prefix
+    private int comparePrefix(int offset, byte[] prefix) {
+        int position = blob + offset;
+        int len = buffer.getShort(position) & 0xFFFF;
+        for (int i = 0; i < Math.min(len, prefix.length); i++) {
+            int c = Integer.compare(buffer.get(position + 2 + i) & 0xFF, prefix[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return len < prefix.length ? -1 : 0;
+    }
+
+    private int compareHash(int position, byte[] hash) {
+        for (int i = 0; i < hash.length; i++) {
+            int c = Integer.compare(buffer.get(position + i) & 0xFF, hash[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    Entry entry(int i) {
+        int r = entries + i * ENTRY_SIZE;
+        Path path = Paths.get(new String(blob(buffer.getInt(r)), StandardCharsets.UTF_8));
+        AID aid = new AID(blob(buffer.getInt(r + 20)));
+        CAPPackage pkg = new CAPPackage(aid, buffer.get(r + 24) & 0xFF, buffer.get(r + 25) & 0xFF);
+        int flags = buffer.get(r + 26) & 0xFF;
+        List<AID> appletList = new ArrayList<>();
+        int position = buffer.getInt(r + 28);
+        for (int j = 0; j < (buffer.get(r + 27) & 0xFF); j++) {
+            byte[] a = blob(position);
+            appletList.add(new AID(a));
+            position += 2 + a.length;
+        }
+        List<CAPPackage> importList = new ArrayList<>();
+        position = buffer.getInt(r + 36);
+        for (int j = 0; j < buffer.getInt(r + 32); j++) {
+            int major = buffer.get(blob + position) & 0xFF;
+            int minor = buffer.get(blob + position + 1) & 0xFF;
+            byte[] a = blob(position + 2);
+            importList.add(new CAPPackage(new AID(a), major, minor));
+            position += 4 + a.length;
+        }
+        return new Entry(path, buffer.getLong(r + 4), buffer.getLong(r + 12), pkg, flags, appletList, importList,
+                bytes(r + 40, 20), bytes(r + 60, 32));
+    }
+
+    /**
+     * Number of indexed CAP files.
+     */
+    public int size() {
+        return count;
+    }
+
+    public List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            result.add(entry(i));
+        return result;
+    }
+
+    // Index of first item in a sorted table where the AID (referenced at field) is not less than prefix
+    private int lowerBound(int table, int size, int stride, int field, byte[] prefix) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(buffer.getInt(table + mid * stride + field), prefix) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private List<Integer> prefixed(int table, int size, int stride, int field, int entryOffset, byte[] prefix) {
+        List<Integer> result = new ArrayList<>();
+        for (int i = lowerBound(table, size, stride, field, prefix); i < size; i++) {
+            int item = table + i * stride;
+            if (comparePrefix(buffer.getInt(item + field), prefix) != 0)
+                break;
+            result.add(entryOffset < 0 ? i : buffer.getInt(item + entryOffset));
+        }
+        return result;
+    }
+
+    /**
+     * CAP files with package AID starting with given bytes.
+     */
+    public List<Entry> findByPackagePrefix(byte[] prefix) {
+        return prefixed(entries, count, ENTRY_SIZE, 20, -1, prefix).stream().map(this::entry).collect(Collectors.toList());
+    }
+
+    /**
+     * CAP files containing an applet with AID starting with given bytes.
+     */
+    public List<Entry> findByAppletPrefix(byte[] prefix) {
+        return prefixed(applets, appletCount, AID_REF_SIZE, 0, 4, prefix).stream().distinct().map(this::entry).collect(Collectors.toList());
+    }
+
+    /**
+     * CAP files providing package with given AID in a version that satisfies an import of given version:
+     * same major version and same or newer minor version.
+     */
+    public List<Entry> findProviders(AID aid, int major, int minor) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry e : findByPackagePrefix(aid.getBytes())) {
+            CAPPackage p = e.getPackage();
+            if (p.getAid().equals(aid) && p.getMajor() == major && p.getMinor() >= minor)
+                result.add(e);
+        }
+        return result;
+    }
+
+    /**
+     * CAP files with given load file data hash, either SHA-1 or SHA-256 (selected by length).
+     */
+    public List<Entry> findByHash(byte[] hash) {
+        final int table;
+        final int stride;
+        if (hash.length == 20) {
+            table = sha1s;
+            stride = SHA1_SIZE;
+        } else if (hash.length == 32) {
+            table = sha256s;
+            stride = SHA256_SIZE;
+        } else {
+            throw new IllegalArgumentException("Hash must be SHA-1 or SHA-256: " + hash.length);
+        }
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareHash(table + mid * stride, hash) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        List<Entry> result = new ArrayList<>();
+        for (int i = lo; i < count && compareHash(table + i * stride, hash) == 0; i++)
+            result.add(entry(buffer.getInt(table + i * stride + hash.length)));
+        return result;
+    }
+
+    /**
+     * CAP files that import the package with given AID, in any version.
+     */
+    public List<Entry> findDependents(AID aid) {
+        byte[] bytes = aid.getBytes();
+        List<Entry> result = new ArrayList<>();
+        for (int i = lowerBound(imports, importCount, AID_REF_SIZE, 0, bytes); i < importCount; i++) {
+            int item = imports + i * AID_REF_SIZE;
+            if (comparePrefix(buffer.getInt(item), bytes) != 0)
+                break;
+            // Exact match only, not prefix
+            if ((buffer.getShort(blob + buffer.getInt(item)) & 0xFFFF) == bytes.length)
+                result.add(entry(buffer.getInt(item + 4)));
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,761 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static pro.javacard.capfile.Bytecode.*;
+import static pro.javacard.capfile.Components.*;
+
+/**
+ * Peephole optimizer for the Method component of a converted CAP file.
+ * <p>
+ * Rewrites bytecode with shorter constant, local variable and increment forms, removes values that are pushed
+ * and popped right away, loads of a local into itself and jumps to the next instruction, threads jumps to jumps,
+ * replaces jumps to return instructions with the return and uses the short form of every branch that fits.
+ * All offsets into the Method component are updated: exception handlers, ConstantPool, Class, Applet, Export,
+ * Descriptor, RefLocation, Debug and the sizes in Directory. Method headers (max_stack, max_locals) stay valid,
+ * as no rewrite needs more stack.
+ * <p>
+ * The result should be checked with the off-card verifier before loading.
+ */
+public final class CAPOptimizer {
+    // Names of optimizations, in the order of reports
+    public static final String CONSTANT = "constant";
+    public static final String LOCAL = "local";
+    public static final String INCREMENT = "increment";
+    public static final String DEAD_VALUE = "dead-value";
+    public static final String LOAD_STORE = "load-store";
+    public static final String GOTO_NEXT = "goto-next";
+    public static final String GOTO_RETURN = "goto-return";
+    public static final String JUMP_THREAD = "jump-thread";
+    public static final String BRANCH = "branch";
+    static final String[] OPTIMIZATIONS = {CONSTANT, LOCAL, INCREMENT, DEAD_VALUE, LOAD_STORE, GOTO_NEXT, GOTO_RETURN, JUMP_THREAD, BRANCH};
+
+    private final CAPFile cap;
+    private final Map<String, Integer> counts = new LinkedHashMap<>();
+    private final Map<String, Integer> savings = new LinkedHashMap<>();
+
+    /**
+     * Result of the optimization of a CAP file.
+     */
+    public static final class Result {
+        private final CAPFile before;
+        private final CAPFile after;
+        private final byte[] bytes;
+        private final Map<String, Integer> counts;
+        private final Map<String, Integer> savings;
+
+        Result(CAPFile before, byte[] bytes, Map<String, Integer> counts, Map<String, Integer> savings) throws IOException {
+            this.before = before;
+            this.bytes = bytes;
+            this.after = CAPFile.fromBytes(bytes);
+            this.counts = counts;
+            this.savings = savings;
+        }
+
+        public CAPFile getCAP() {
+            return after;
+        }
+
+        // Optimized CAP file as ZIP
+        public byte[] getBytes() {
+            return bytes.clone();
+        }
+
+        public void store(OutputStream out) throws IOException {
+            out.write(bytes);
+        }
+
+        // Number of applied rewrites, by optimization
+        public Map<String, Integer> getCounts() {
+            return new LinkedHashMap<>(counts);
+        }
+
+        // Bytes saved in the Method component, by optimization. Jump threading may make branches wider.
+        public Map<String, Integer> getSavings() {
+            return new LinkedHashMap<>(savings);
+        }
+
+        public int getMethodSizeBefore() {
+            return size(before.component("Method"));
+        }
+
+        public int getMethodSizeAfter() {
+            return size(after.component("Method"));
+        }
+
+        public int getLoadFileSizeBefore() {
+            return before.getCode().length;
+        }
+
+        public int getLoadFileSizeAfter() {
+            return after.getCode().length;
+        }
+
+        // Sum of static costs of all methods (see CodeAnalyzer) before optimization
+        public long getCostBefore() {
+            return cost(before);
+        }
+
+        public long getCostAfter() {
+            return cost(after);
+        }
+
+        private static long cost(CAPFile cap) {
+            return CodeAnalyzer.of(cap).getMethods().stream().mapToLong(CodeAnalyzer.MethodInfo::getCost).sum();
+        }
+
+        public List<String> summary() {
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format("Method component %d -> %d bytes, load file %d -> %d bytes, static cost %d -> %d",
+                    getMethodSizeBefore(), getMethodSizeAfter(), getLoadFileSizeBefore(), getLoadFileSizeAfter(), getCostBefore(), getCostAfter()));
+            for (String o : OPTIMIZATIONS) {
+                if (counts.getOrDefault(o, 0) != 0 || savings.getOrDefault(o, 0) != 0)
+                    lines.add(String.format("%-12s %5d rewrites %6d bytes", o, counts.getOrDefault(o, 0), savings.getOrDefault(o, 0)));
+            }
+            return lines;
+        }
+    }
+
+    // Instruction of a method being optimized
+    private static final class Insn {
+        final int pc; // original offset in bytecode
+        byte[] code; // current encoding, branch offsets not valid
+        int[] targets = new int[0]; // original offsets of branch targets (default first for switches)
+        boolean removed;
+        boolean wide; // for branches
+        int newPc;
+
+        Insn(int pc, byte[] code) {
+            this.pc = pc;
+            this.code = code;
+        }
+
+        int op() {
+            return u1(code, 0);
+        }
+
+        boolean isBranch() {
+            int op = op();
+            return op >= IFEQ && op <= GOTO;
+        }
+
+        boolean isSwitch() {
+            int op = op();
+            return op >= STABLESWITCH && op <= ILOOKUPSWITCH;
+        }
+
+        int length() {
+            return isBranch() ? (wide ? 3 : 2) : code.length;
+        }
+    }
+
+    // Method with its original and new layout
+    private static final class MethodLayout {
+        final int offset; // in Method component info
+        final int header;
+        final int bytecodes;
+        int newOffset;
+        List<Insn> insns; // null if not optimized
+        byte[] body;
+        Map<Integer, Insn> byPc = new HashMap<>();
+
+        MethodLayout(int offset, int header, int bytecodes) {
+            this.offset = offset;
+            this.header = header;
+            this.bytecodes = bytecodes;
+        }
+
+        // New offset in bytecode of an original offset in bytecode
+        int map(int pc) {
+            if (insns == null || pc >= bytecodes)
+                return pc - bytecodes + body.length;
+            Insn i = byPc.get(pc);
+            if (i != null && !i.removed)
+                return i.newPc;
+            // Inside an instruction, or a removed instruction
+            for (int j = insns.size() - 1; j >= 0; j--) {
+                Insn c = insns.get(j);
+                if (c.pc <= pc) {
+                    if (!c.removed)
+                        return c.newPc + Math.min(pc - c.pc, c.length() - 1);
+                    for (int k = j; k < insns.size(); k++)
+                        if (!insns.get(k).removed)
+                            return insns.get(k).newPc;
+                    return body.length;
+                }
+            }
+            return pc;
+        }
+    }
+
+    private CAPOptimizer(CAPFile cap) {
+        this.cap = cap;
+        for (String o : OPTIMIZATIONS) {
+            counts.put(o, 0);
+            savings.put(o, 0);
+        }
+    }
+
+    /**
+     * Optimizes the Method component of a CAP file.
+     *
+     * @throws IllegalArgumentException if the CAP file is in extended format or the components are not understood
+     */
+    public static Result optimize(CAPFile cap) throws IOException {
+        return new CAPOptimizer(cap).run();
+    }
+
+    private Result run() throws IOException {
+        byte[] header = cap.component("Header");
+        if ((u1(header, 9) & ACC_EXTENDED) != 0)
+            throw new IllegalArgumentException("Extended CAP format is not supported");
+        byte[] method = cap.component("Method");
+        byte[] descriptor = cap.component("Descriptor");
+        if (method == null || descriptor == null)
+            throw new IllegalArgumentException("CAP file has no Method or Descriptor component");
+        Descriptor d = Descriptor.parse(descriptor);
+
+        // Methods must cover the Method component after the exception handlers
+        int handlers = u1(method, INFO);
+        TreeMap<Integer, MethodLayout> layouts = new TreeMap<>();
+        for (Descriptor.MethodDescriptor m : d.methods) {
+            if (!m.isAbstract())
+                layouts.put(m.offset, new MethodLayout(m.offset, Descriptor.headerSize(method, m.offset), m.bytecodes));
+        }
+        int expected = 1 + handlers * 8;
+        for (MethodLayout l : layouts.values()) {
+            if (l.offset != expected)
+                throw new IllegalArgumentException("Method component has data outside of methods at " + expected);
+            expected = l.offset + l.header + l.bytecodes;
+        }
+        if (expected != size(method))
+            throw new IllegalArgumentException("Method component has data outside of methods at " + expected);
+
+        // Exception handler boundaries are barriers for rewrites
+        Set<Integer> boundaries = new HashSet<>();
+        for (int i = 0; i < handlers; i++) {
+            int h = INFO + 1 + i * 8;
+            int start = u2(method, h);
+            boundaries.add(start);
+            boundaries.add(start + (u2(method, h + 2) & 0x7FFF));
+            boundaries.add(u2(method, h + 4));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(method, INFO, 1 + handlers * 8);
+        for (MethodLayout l : layouts.values()) {
+            int base = INFO + l.offset + l.header;
+            byte[] body = Arrays.copyOfRange(method, base, base + l.bytecodes);
+            l.newOffset = out.size();
+            out.write(method, INFO + l.offset, l.header);
+            Set<Integer> barriers = new HashSet<>();
+            for (int b : boundaries)
+                if (b >= l.offset + l.header && b <= l.offset + l.header + l.bytecodes)
+                    barriers.add(b - l.offset - l.header);
+            l.insns = decode(body);
+            if (l.insns == null) {
+                l.body = body;
+            } else {
+                for (Insn i : l.insns)
+                    l.byPc.put(i.pc, i);
+                optimize(l, barriers);
+                l.body = encode(l);
+            }
+            out.write(l.body, 0, l.body.length);
+        }
+        byte[] info = out.toByteArray();
+        if (info.length > 0xFFFF)
+            throw new IllegalArgumentException("Method component is too large");
+
+        Map<String, byte[]> changed = new LinkedHashMap<>();
+        // Exception handlers
+        for (int i = 0; i < handlers; i++) {
+            int h = 1 + i * 8;
+            int start = u2(info, h);
+            int length = u2(info, h + 2);
+            int newStart = mapOffset(layouts, start);
+            int newEnd = mapOffset(layouts, start + (length & 0x7FFF));
+            put2(info, h, newStart);
+            put2(info, h + 2, (length & 0x8000) | (newEnd - newStart));
+            put2(info, h + 4, mapOffset(layouts, u2(info, h + 4)));
+        }
+        changed.put("Method", component(METHOD, info));
+
+        // Descriptor: method offsets and bytecode counts
+        byte[] desc = descriptor.clone();
+        for (Descriptor.MethodDescriptor m : d.methods) {
+            MethodLayout l = layouts.get(m.offset);
+            if (l == null)
+                continue;
+            put2(desc, m.position, l.newOffset);
+            put2(desc, m.position + 4, l.body.length);
+        }
+        changed.put("Descriptor", desc);
+
+        // Constant pool: internal static method references
+        byte[] cp = cap.component("ConstantPool").clone();
+        for (int i = 0; i < u2(cp, INFO); i++) {
+            int e = INFO + 2 + i * 4;
+            if (u1(cp, e) == 6 && (u1(cp, e + 1) & 0x80) == 0)
+                put2(cp, e + 2, mapMethod(layouts, u2(cp, e + 2)));
+        }
+        changed.put("ConstantPool", cp);
+
+        // Class: virtual method tables
+        byte[] cls = cap.component("Class").clone();
+        for (Descriptor.ClassDescriptor c : d.classes) {
+            if (c.isInterface())
+                continue;
+            int base = INFO + c.ref;
+            int count = u1(cls, base + 7) + u1(cls, base + 9);
+            for (int i = 0; i < count; i++)
+                put2(cls, base + 10 + i * 2, mapMethod(layouts, u2(cls, base + 10 + i * 2)));
+        }
+        changed.put("Class", cls);
+
+        // Applet: install methods
+        byte[] applets = cap.component("Applet");
+        if (applets != null) {
+            applets = applets.clone();
+            int off = INFO + 1;
+            for (int i = 0; i < u1(applets, INFO); i++) {
+                int len = u1(applets, off);
+                put2(applets, off + 1 + len, mapMethod(layouts, u2(applets, off + 1 + len)));
+                off += 1 + len + 2;
+            }
+            changed.put("Applet", applets);
+        }
+
+        // Export: static methods
+        byte[] export = cap.component("Export");
+        if (export != null) {
+            export = export.clone();
+            int off = INFO + 1;
+            for (int i = 0; i < u1(export, INFO); i++) {
+                int fields = u1(export, off + 2);
+                int methods = u1(export, off + 3);
+                off += 4 + fields * 2;
+                for (int j = 0; j < methods; j++, off += 2)
+                    put2(export, off, mapMethod(layouts, u2(export, off)));
+            }
+            changed.put("Export", export);
+        }
+
+        // RefLocation
+        byte[] refs = cap.component("RefLocation");
+        if (refs != null) {
+            ByteArrayOutputStream r = new ByteArrayOutputStream();
+            int off = INFO;
+            for (int list = 0; list < 2; list++) {
+                int count = u2(refs, off);
+                List<Integer> locations = new ArrayList<>();
+                int location = 0;
+                for (int i = 0; i < count; i++) {
+                    int delta = u1(refs, off + 2 + i);
+                    location += delta;
+                    if (delta != 255)
+                        locations.add(mapOffset(layouts, location));
+                }
+                off += 2 + count;
+                locations.sort(Integer::compare);
+                ByteArrayOutputStream deltas = new ByteArrayOutputStream();
+                int last = 0;
+                for (int l : locations) {
+                    int delta = l - last;
+                    while (delta >= 255) {
+                        deltas.write(255);
+                        delta -= 255;
+                    }
+                    deltas.write(delta);
+                    last = l;
+                }
+                r.write(deltas.size() >> 8);
+                r.write(deltas.size());
+                deltas.writeTo(r);
+            }
+            changed.put("RefLocation", component(REF_LOCATION, r.toByteArray()));
+        }
+
+        // Debug: method locations, sizes and pc ranges
+        byte[] debug = cap.component("Debug");
+        if (debug != null) {
+            changed.put("Debug", debug(debug.clone(), layouts));
+        }
+
+        // Directory: component sizes
+        byte[] directory = cap.component("Directory").clone();
+        for (Map.Entry<String, byte[]> e : changed.entrySet())
+            put2(directory, INFO + 2 * (tag(e.getKey()) - 1), size(e.getValue()));
+        changed.put("Directory", directory);
+
+        Map<String, byte[]> entries = new LinkedHashMap<>(cap.entries);
+        for (Map.Entry<String, byte[]> e : changed.entrySet())
+            entries.put(CAPFile.pkg2jcdir(cap.getPackageName()) + e.getKey() + ".cap", e.getValue());
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream z = new ZipOutputStream(zip)) {
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                z.putNextEntry(new ZipEntry(e.getKey()));
+                z.write(e.getValue());
+                z.closeEntry();
+            }
+        }
+        return new Result(cap, zip.toByteArray(), counts, savings);
+    }
+
+    // New offset of a method, unchanged if the offset is not the start of a method
+    private static int mapMethod(TreeMap<Integer, MethodLayout> layouts, int offset) {
+        MethodLayout l = layouts.get(offset);
+        return l == null ? offset : l.newOffset;
+    }
+
+    // New offset of any offset in Method component info
+    private static int mapOffset(TreeMap<Integer, MethodLayout> layouts, int offset) {
+        Map.Entry<Integer, MethodLayout> e = layouts.floorEntry(offset);
+        if (e == null)
+            return offset; // exception handler table
+        MethodLayout l = e.getValue();
+        if (offset < l.offset + l.header)
+            return l.newOffset + offset - l.offset;
+        return l.newOffset + l.header + l.map(offset - l.offset - l.header);
+    }
+
+    private static byte[] component(int tag, byte[] info) {
+        byte[] c = new byte[INFO + info.length];
+        c[0] = (byte) tag;
+        put2(c, 1, info.length);
+        System.arraycopy(info, 0, c, INFO, info.length);
+        return c;
+    }
+
+    // Debug component, see JCVM 2.2.2 spec section 6.14. Sizes do not change.
+    private static byte[] debug(byte[] c, TreeMap<Integer, MethodLayout> layouts) {
+        int off = INFO;
+        int strings = u2(c, off);
+        off += 2;
+        for (int i = 0; i < strings; i++)
+            off += 2 + u2(c, off);
+        off += 2; // package name
+        int classes = u2(c, off);
+        off += 2;
+        for (int i = 0; i < classes; i++) {
+            int interfaces = u1(c, off + 10);
+            int fields = u2(c, off + 11);
+            int methods = u2(c, off + 13);
+            off += 15 + interfaces * 2 + fields * 10;
+            for (int j = 0; j < methods; j++) {
+                MethodLayout l = layouts.get(u2(c, off + 6));
+                int variables = u2(c, off + 11);
+                int lines = u2(c, off + 13);
+                if (l != null && l.insns != null) {
+                    put2(c, off + 6, l.newOffset);
+                    put2(c, off + 9, l.body.length);
+                    for (int v = 0; v < variables; v++) {
+                        int p = off + 15 + v * 9 + 5;
+                        int start = u2(c, p);
+                        int end = start + u2(c, p + 2);
+                        put2(c, p, l.map(start));
+                        put2(c, p + 2, l.map(end) - l.map(start));
+                    }
+                    for (int n = 0; n < lines; n++) {
+                        int p = off + 15 + variables * 9 + n * 6;
+                        put2(c, p, l.map(u2(c, p)));
+                        put2(c, p + 2, l.map(u2(c, p + 2)));
+                    }
+                } else if (l != null) {
+                    put2(c, off + 6, l.newOffset);
+                }
+                off += 15 + variables * 9 + lines * 6;
+            }
+        }
+        return c;
+    }
+
+    // Splits bytecode into instructions, null if the method can not be optimized
+    private static List<Insn> decode(byte[] body) {
+        List<Insn> result = new ArrayList<>();
+        for (int pc = 0; pc < body.length; ) {
+            int op = u1(body, pc);
+            if (!isValid(op) || op == JSR || op == RET)
+                return null;
+            int length = Bytecode.length(body, pc);
+            Insn i = new Insn(pc, Arrays.copyOfRange(body, pc, pc + length));
+            if (op >= IFEQ && op <= GOTO) {
+                i.targets = new int[]{pc + s1(body, pc + 1)};
+            } else if (op >= IFEQ_W && op <= GOTO_W) {
+                i.code = new byte[]{(byte) (op - IFEQ_W + IFEQ), 0};
+                i.wide = true;
+                i.targets = new int[]{pc + s2(body, pc + 1)};
+            } else if (op == STABLESWITCH || op == ITABLESWITCH) {
+                int wide = op == ITABLESWITCH ? 2 : 0;
+                int first = pc + 7 + 2 * wide;
+                int count = (length - 7 - 2 * wide) / 2;
+                i.targets = new int[1 + count];
+                i.targets[0] = pc + s2(body, pc + 1);
+                for (int k = 0; k < count; k++)
+                    i.targets[1 + k] = pc + s2(body, first + k * 2);
+            } else if (op == SLOOKUPSWITCH || op == ILOOKUPSWITCH) {
+                int pair = op == ILOOKUPSWITCH ? 6 : 4;
+                int count = u2(body, pc + 3);
+                i.targets = new int[1 + count];
+                i.targets[0] = pc + s2(body, pc + 1);
+                for (int k = 0; k < count; k++)
+                    i.targets[1 + k] = pc + s2(body, pc + 5 + k * pair + pair - 2);
+            }
+            for (int t : i.targets)
+                if (t < 0 || t >= body.length)
+                    return null;
+            result.add(i);
+            pc += length;
+        }
+        return result;
+    }
+
+    private void count(String optimization, int bytes) {
+        counts.put(optimization, counts.get(optimization) + 1);
+        savings.put(optimization, savings.get(optimization) + bytes);
+    }
+
+    private void replace(Insn i, String optimization, int... code) {
+        byte[] b = new byte[code.length];
+        for (int k = 0; k < code.length; k++)
+            b[k] = (byte) code[k];
+        count(optimization, i.code.length - b.length);
+        i.code = b;
+    }
+
+    private void remove(Insn i, String optimization) {
+        count(optimization, i.length());
+        i.removed = true;
+    }
+
+    private void optimize(MethodLayout l, Set<Integer> barriers) {
+        List<Insn> insns = l.insns;
+        int before = l.bytecodes;
+        Map<String, Integer> saved = new HashMap<>(savings);
+        // Single instruction forms
+        for (Insn i : insns) {
+            int op = i.op();
+            byte[] c = i.code;
+            if (op == BSPUSH || op == SSPUSH || op == BIPUSH || op == SIPUSH || op == IIPUSH) {
+                boolean isInt = op >= BIPUSH;
+                int v = op == BSPUSH || op == BIPUSH ? s1(c, 1) : op == IIPUSH ? s4(c, 1) : s2(c, 1);
+                if (v >= -1 && v <= 5)
+                    replace(i, CONSTANT, (isInt ? ICONST_M1 : SCONST_M1) + v + 1);
+                else if (v >= -128 && v <= 127 && (op == SSPUSH || op == SIPUSH || op == IIPUSH))
+                    replace(i, CONSTANT, isInt ? BIPUSH : BSPUSH, v);
+                else if (v >= -32768 && v <= 32767 && op == IIPUSH)
+                    replace(i, CONSTANT, SIPUSH, v >> 8, v);
+            } else if ((op == ALOAD || op == SLOAD || op == ILOAD) && u1(c, 1) <= 3) {
+                replace(i, LOCAL, ALOAD_0 + (op - ALOAD) * 4 + u1(c, 1));
+            } else if ((op == ASTORE || op == SSTORE || op == ISTORE) && u1(c, 1) <= 3) {
+                replace(i, LOCAL, ASTORE_0 + (op - ASTORE) * 4 + u1(c, 1));
+            } else if ((op == SINC_W || op == IINC_W) && s2(c, 2) >= -128 && s2(c, 2) <= 127) {
+                replace(i, INCREMENT, op == SINC_W ? SINC : IINC, u1(c, 1), s2(c, 2));
+            }
+        }
+
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            Set<Integer> targets = new HashSet<>(barriers);
+            for (Insn i : insns)
+                for (int t : i.targets)
+                    targets.add(t);
+
+            // Jump threading and jumps to returns
+            for (Insn i : insns) {
+                if (i.removed)
+                    continue;
+                for (int k = 0; k < i.targets.length; k++) {
+                    int t = i.targets[k];
+                    Set<Integer> seen = new HashSet<>();
+                    while (seen.add(t)) {
+                        Insn target = next(l, t);
+                        if (target == null || target.op() != GOTO)
+                            break;
+                        t = target.targets[0];
+                    }
+                    if (next(l, t) != null && next(l, t).op() == GOTO)
+                        t = i.targets[k]; // endless loop of jumps
+                    if (t != i.targets[k]) {
+                        i.targets[k] = t;
+                        count(JUMP_THREAD, 0);
+                        changed = true;
+                    }
+                }
+                if (i.op() == GOTO) {
+                    Insn target = next(l, i.targets[0]);
+                    if (target != null && target.op() >= ARETURN && target.op() <= RETURN) {
+                        count(GOTO_RETURN, i.length() - 1);
+                        i.code = new byte[]{(byte) target.op()};
+                        i.targets = new int[0];
+                        i.wide = false;
+                        changed = true;
+                    }
+                }
+            }
+
+            // Pairs of instructions
+            Insn prev = null;
+            for (Insn i : insns) {
+                if (i.removed)
+                    continue;
+                if (prev != null && !targets.contains(i.pc) && !barriers.contains(prev.pc)) {
+                    String pair = pair(prev, i);
+                    if (pair != null) {
+                        remove(prev, pair);
+                        remove(i, pair);
+                        changed = true;
+                        prev = null;
+                        continue;
+                    }
+                }
+                prev = i;
+            }
+
+            // Jumps to the next instruction
+            for (int k = 0; k < insns.size(); k++) {
+                Insn i = insns.get(k);
+                if (i.removed || i.op() != GOTO || barriers.contains(i.pc))
+                    continue;
+                Insn after = null;
+                for (int j = k + 1; j < insns.size() && after == null; j++)
+                    if (!insns.get(j).removed)
+                        after = insns.get(j);
+                if (after != null && next(l, i.targets[0]) == after) {
+                    remove(i, GOTO_NEXT);
+                    changed = true;
+                }
+            }
+        }
+        layout(l);
+        int after = l.insns.stream().filter(i -> !i.removed).mapToInt(Insn::length).sum();
+        int explained = 0;
+        for (String o : OPTIMIZATIONS)
+            if (!o.equals(BRANCH))
+                explained += savings.get(o) - saved.get(o);
+        // Whatever is not explained by other rewrites comes from branch forms
+        savings.put(BRANCH, savings.get(BRANCH) + (before - after) - explained);
+    }
+
+    // First instruction that is not removed, at or after an original offset
+    private static Insn next(MethodLayout l, int pc) {
+        Insn i = l.byPc.get(pc);
+        if (i == null)
+            return null;
+        int k = l.insns.indexOf(i);
+        for (; k < l.insns.size(); k++)
+            if (!l.insns.get(k).removed)
+                return l.insns.get(k);
+        return null;
+    }
+
+    // Name of the optimization if the pair of instructions can be removed, null otherwise
+    private static String pair(Insn a, Insn b) {
+        int x = a.op();
+        int y = b.op();
+        boolean shortValue = x == ACONST_NULL || (x >= SCONST_M1 && x <= SCONST_5) || x == BSPUSH || x == SSPUSH
+                || x == ALOAD || x == SLOAD || (x >= ALOAD_0 && x <= ALOAD_0 + 7) || x == DUP;
+        boolean intValue = (x >= ICONST_M1 && x <= ICONST_5) || x == BIPUSH || x == SIPUSH || x == IIPUSH || x == ILOAD
+                || (x >= ALOAD_0 + 8 && x <= ILOAD_3) || x == DUP2;
+        if ((shortValue && y == POP) || (intValue && y == POP2))
+            return DEAD_VALUE;
+        int load = local(a, ALOAD, ALOAD_0);
+        if (load >= 0 && load == local(b, ASTORE, ASTORE_0))
+            return LOAD_STORE;
+        return null;
+    }
+
+    // Type (a, s, i) and index of a local variable load or store as type * 256 + index, -1 if not one
+    private static int local(Insn i, int base, int base0) {
+        int op = i.op();
+        if (op >= base && op <= base + 2)
+            return (op - base) * 256 + u1(i.code, 1);
+        if (op >= base0 && op < base0 + 12)
+            return (op - base0) / 4 * 256 + (op - base0) % 4;
+        return -1;
+    }
+
+    // Assigns new offsets, with the shortest branch forms that fit
+    private static void layout(MethodLayout l) {
+        for (Insn i : l.insns)
+            if (i.isBranch())
+                i.wide = false;
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            int pc = 0;
+            for (Insn i : l.insns) {
+                i.newPc = pc;
+                if (!i.removed)
+                    pc += i.length();
+            }
+            for (Insn i : l.insns) {
+                if (i.removed || !i.isBranch() || i.wide)
+                    continue;
+                int delta = next(l, i.targets[0]).newPc - i.newPc;
+                if (delta < -128 || delta > 127) {
+                    i.wide = true;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(MethodLayout l) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Insn i : l.insns) {
+            if (i.removed)
+                continue;
+            byte[] c = i.code.clone();
+            if (i.isBranch()) {
+                int delta = next(l, i.targets[0]).newPc - i.newPc;
+                c = i.wide ? new byte[]{(byte) (i.op() - IFEQ + IFEQ_W), (byte) (delta >> 8), (byte) delta} : new byte[]{(byte) i.op(), (byte) delta};
+            } else if (i.isSwitch()) {
+                int op = i.op();
+                put2(c, 1, next(l, i.targets[0]).newPc - i.newPc);
+                for (int k = 1; k < i.targets.length; k++) {
+                    int delta = next(l, i.targets[k]).newPc - i.newPc;
+                    if (op == STABLESWITCH || op == ITABLESWITCH)
+                        put2(c, (op == ITABLESWITCH ? 11 : 7) + (k - 1) * 2, delta);
+                    else
+                        put2(c, 5 + (k - 1) * (op == ILOOKUPSWITCH ? 6 : 4) + (op == ILOOKUPSWITCH ? 4 : 2), delta);
+                }
+            }
+            out.write(c, 0, c.length);
+        }
+        return out.toByteArray();
+    }
+}
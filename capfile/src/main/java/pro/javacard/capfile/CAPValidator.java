@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static pro.javacard.capfile.Components.*;
+
+/**
+ * Structural validation of CAP files, as specified in JavaCard 2.2 VM Specification, chapter 6.
+ * <p>
+ * This is not a replacement for the off-card verifier, it only checks that the components
+ * are consistent with each other: sizes, counts and offsets. It is fast and needs no SDK, so
+ * it is useful as a pre-filter before verification and for bulk scans.
+ * <p>
+ * Extended CAP files (4 byte sizes and offsets) and components not defined by the 2.2 specification
+ * (like StaticResources of CAP 2.3) are not checked and produce no problems.
+ */
+public final class CAPValidator {
+    // Components that must be present in every CAP file
+    static final int[] REQUIRED = {HEADER, DIRECTORY, IMPORT, CLASS, METHOD, STATIC_FIELD, CONSTANT_POOL, REF_LOCATION, DESCRIPTOR};
+
+    private final CAPFile cap;
+    private final List<String> problems = new ArrayList<>();
+    private final byte[][] components = new byte[NAMES.length][];
+
+    private CAPValidator(CAPFile cap) {
+        this.cap = cap;
+    }
+
+    /**
+     * Validates the structure of a CAP file.
+     *
+     * @return list of problems, empty if the CAP file is structurally sound
+     */
+    public static List<String> validate(CAPFile cap) {
+        CAPValidator v = new CAPValidator(cap);
+        try {
+            v.run();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            v.problems.add("Truncated component: " + e.getMessage());
+        }
+        return v.problems;
+    }
+
+    private void problem(String fmt, Object... args) {
+        problems.add(String.format(fmt, args));
+    }
+
+    private int infoSize(int tag) {
+        return components[tag] == null ? 0 : size(components[tag]);
+    }
+
+    private void run() {
+        // Extended format has 4 byte sizes and offsets, not handled
+        byte[] extended = cap.component(NAMES[HEADER]);
+        if (extended != null && extended.length > 9 && (u1(extended, 9) & ACC_EXTENDED) == ACC_EXTENDED)
+            return;
+        // Presence, tags and sizes
+        for (int tag = 1; tag < NAMES.length; tag++) {
+            byte[] c = cap.component(NAMES[tag]);
+            if (c == null)
+                continue;
+            if (c.length < INFO) {
+                problem("%s component is truncated (%d bytes)", NAMES[tag], c.length);
+                continue;
+            }
+            if (c[0] != tag)
+                problem("%s component has tag %d instead of %d", NAMES[tag], c[0], tag);
+            if (INFO + size(c) != c.length) {
+                problem("%s component size is %d but contains %d bytes", NAMES[tag], size(c), c.length - INFO);
+                continue;
+            }
+            components[tag] = c;
+        }
+        for (int tag : REQUIRED) {
+            if (components[tag] == null)
+                problem("%s component is missing", NAMES[tag]);
+        }
+        if (components[HEADER] == null || components[DIRECTORY] == null)
+            return;
+
+        // Header
+        byte[] header = components[HEADER];
+        if (u2(header, 3) != 0xDECA || u2(header, 5) != 0xFFED)
+            problem("Header component has invalid magic %04X%04X", u2(header, 3), u2(header, 5));
+        int minor = u1(header, 7);
+        int major = u1(header, 8);
+        int flags = u1(header, 9);
+        if (major != 2 || minor < 1 || minor > 3)
+            problem("Unsupported CAP file format %d.%d", major, minor);
+        int aidlen = u1(header, 12);
+        if (aidlen < 5 || aidlen > 16)
+            problem("Package AID length is %d", aidlen);
+        if (((flags & ACC_APPLET) != 0) != (components[APPLET] != null))
+            problem("Header applet flag does not match presence of Applet component");
+        if (((flags & ACC_EXPORT) != 0) != (components[EXPORT] != null))
+            problem("Header export flag does not match presence of Export component");
+
+        int imports = checkImport();
+        int applets = checkApplet();
+        checkDirectory(minor, imports, applets);
+        int cpcount = checkConstantPool(imports);
+        checkRefLocation(cpcount);
+        checkMethod(cpcount);
+        checkDescriptor();
+    }
+
+    private void checkDirectory(int minor, int imports, int applets) {
+        byte[] dir = components[DIRECTORY];
+        int size = size(dir);
+        // 2.1 has no Debug component, 2.3 might have more components. Pick the count that makes the structure add up
+        int[] candidates = minor == 1 ? new int[]{11} : minor == 2 ? new int[]{12} : new int[]{12, 13, 14};
+        int count = -1;
+        for (int n : candidates) {
+            int off = INFO + n * 2 + 6 + 2;
+            if (off >= dir.length)
+                continue;
+            int customs = u1(dir, off);
+            off += 1;
+            for (int i = 0; i < customs && off + 3 < dir.length; i++)
+                off += 4 + u1(dir, off + 3);
+            if (off == INFO + size) {
+                count = n;
+                break;
+            }
+        }
+        if (count == -1) {
+            problem("Directory component size %d does not match its structure", size);
+            return;
+        }
+        // Components after Debug (StaticResources of 2.3) are not known, so not checked
+        for (int tag = 1; tag <= count && tag < NAMES.length; tag++) {
+            int expected = u2(dir, INFO + (tag - 1) * 2);
+            if (cap.component(NAMES[tag]) != null && components[tag] == null)
+                continue; // Already reported
+            if (expected != infoSize(tag))
+                problem("Directory claims %s component size %d, actual is %d", NAMES[tag], expected, infoSize(tag));
+        }
+        int off = INFO + count * 2;
+        int imageSize = u2(dir, off);
+        int arrayInitCount = u2(dir, off + 2);
+        byte[] sf = components[STATIC_FIELD];
+        if (sf != null) {
+            if (u2(sf, INFO) != imageSize)
+                problem("Directory claims static field image size %d, StaticField component has %d", imageSize, u2(sf, INFO));
+            if (u2(sf, INFO + 4) != arrayInitCount)
+                problem("Directory claims %d array initializers, StaticField component has %d", arrayInitCount, u2(sf, INFO + 4));
+        }
+        off += 6;
+        if (u1(dir, off) != imports)
+            problem("Directory claims %d imports, Import component has %d", u1(dir, off), imports);
+        if (u1(dir, off + 1) != applets)
+            problem("Directory claims %d applets, Applet component has %d", u1(dir, off + 1), applets);
+    }
+
+    // Returns the number of imported packages
+    private int checkImport() {
+        byte[] imp = components[IMPORT];
+        if (imp == null)
+            return 0;
+        int count = u1(imp, INFO);
+        int off = INFO + 1;
+        for (int i = 0; i < count; i++) {
+            int len = u1(imp, off + 2);
+            if (len < 5 || len > 16)
+                problem("Import #%d has AID length %d", i, len);
+            off += 3 + len;
+        }
+        if (off != imp.length)
+            problem("Import component size %d does not match %d imports", size(imp), count);
+        if (count > 128)
+            problem("Import component has %d packages (maximum is 128)", count);
+        return count;
+    }
+
+    // Returns the number of applets
+    private int checkApplet() {
+        byte[] app = components[APPLET];
+        if (app == null)
+            return 0;
+        int count = u1(app, INFO);
+        int methods = infoSize(METHOD);
+        int off = INFO + 1;
+        for (int i = 0; i < count; i++) {
+            int len = u1(app, off);
+            if (len < 5 || len > 16)
+                problem("Applet #%d has AID length %d", i, len);
+            int install = u2(app, off + 1 + len);
+            if (components[METHOD] != null && install >= methods)
+                problem("Applet #%d install method offset %d is outside of Method component (%d bytes)", i, install, methods);
+            off += 3 + len;
+        }
+        if (off != app.length)
+            problem("Applet component size %d does not match %d applets", size(app), count);
+        return count;
+    }
+
+    // Returns the number of constant pool entries
+    private int checkConstantPool(int imports) {
+        byte[] cp = components[CONSTANT_POOL];
+        if (cp == null)
+            return 0;
+        int count = u2(cp, INFO);
+        if (size(cp) != 2 + count * 4) {
+            problem("ConstantPool component size %d does not match %d entries", size(cp), count);
+            return count;
+        }
+        int classes = infoSize(CLASS);
+        int methods = infoSize(METHOD);
+        int image = components[STATIC_FIELD] == null ? 0 : u2(components[STATIC_FIELD], INFO);
+        for (int i = 0; i < count; i++) {
+            int off = INFO + 2 + i * 4;
+            int tag = u1(cp, off);
+            int b1 = u1(cp, off + 1);
+            switch (tag) {
+                case 1: // Classref
+                case 2: // InstanceFieldref
+                case 3: // VirtualMethodref
+                case 4: // SuperMethodref
+                    if ((b1 & 0x80) == 0x80) {
+                        if ((b1 & 0x7F) >= imports)
+                            problem("ConstantPool #%d refers to package token %d, but only %d imported", i, b1 & 0x7F, imports);
+                    } else if (u2(cp, off + 1) >= classes) {
+                        problem("ConstantPool #%d class offset %d is outside of Class component (%d bytes)", i, u2(cp, off + 1), classes);
+                    }
+                    break;
+                case 5: // StaticFieldref
+                case 6: // StaticMethodref
+                    if ((b1 & 0x80) == 0x80) {
+                        if ((b1 & 0x7F) >= imports)
+                            problem("ConstantPool #%d refers to package token %d, but only %d imported", i, b1 & 0x7F, imports);
+                    } else if (b1 != 0) {
+                        problem("ConstantPool #%d internal reference has non-zero padding", i);
+                    } else if (tag == 6 && u2(cp, off + 2) >= methods) {
+                        problem("ConstantPool #%d method offset %d is outside of Method component (%d bytes)", i, u2(cp, off + 2), methods);
+                    } else if (tag == 5 && u2(cp, off + 2) >= image) {
+                        problem("ConstantPool #%d static field offset %d is outside of static field image (%d bytes)", i, u2(cp, off + 2), image);
+                    }
+                    break;
+                default:
+                    problem("ConstantPool #%d has invalid tag %d", i, tag);
+            }
+        }
+        return count;
+    }
+
+    // See section 6.11
+    private void checkRefLocation(int cpcount) {
+        byte[] rl = components[REF_LOCATION];
+        byte[] method = components[METHOD];
+        if (rl == null || method == null)
+            return;
+        int off = INFO;
+        for (int width = 1; width <= 2; width++) {
+            int count = u2(rl, off);
+            off += 2;
+            int location = 0;
+            for (int i = 0; i < count; i++) {
+                int delta = u1(rl, off + i);
+                location += delta;
+                if (delta == 255)
+                    continue;
+                if (location + width > size(method)) {
+                    problem("RefLocation offset %d is outside of Method component (%d bytes)", location, size(method));
+                    continue;
+                }
+                int index = width == 1 ? u1(method, INFO + location) : u2(method, INFO + location);
+                if (index >= cpcount)
+                    problem("Constant pool index %d at Method offset %d is out of range (%d entries)", index, location, cpcount);
+            }
+            off += count;
+        }
+        if (off != rl.length)
+            problem("RefLocation component size %d does not match its content", size(rl));
+    }
+
+    // Exception handler table, see section 6.9
+    private void checkMethod(int cpcount) {
+        byte[] method = components[METHOD];
+        if (method == null)
+            return;
+        int handlers = u1(method, INFO);
+        int size = size(method);
+        if (1 + handlers * 8 > size) {
+            problem("Method component has %d exception handlers, but only %d bytes", handlers, size);
+            return;
+        }
+        for (int i = 0; i < handlers; i++) {
+            int off = INFO + 1 + i * 8;
+            int start = u2(method, off);
+            int length = u2(method, off + 2) & 0x7FFF;
+            int handler = u2(method, off + 4);
+            int type = u2(method, off + 6);
+            if (start + length > size || handler >= size)
+                problem("Exception handler #%d is outside of Method component", i);
+            if (type >= cpcount)
+                problem("Exception handler #%d catch type %d is out of range (%d entries)", i, type, cpcount);
+        }
+    }
+
+    private void checkDescriptor() {
+        byte[] method = components[METHOD];
+        if (components[DESCRIPTOR] == null || method == null)
+            return;
+        int size = size(method);
+        try {
+            for (Descriptor.MethodDescriptor m : Descriptor.parse(components[DESCRIPTOR]).methods) {
+                if (m.isAbstract())
+                    continue;
+                if (m.offset >= size) {
+                    problem("Descriptor of method %d/%d has offset %d, outside of Method component (%d bytes)", m.owner.token, m.token, m.offset, size);
+                } else if (m.offset + Descriptor.headerSize(method, m.offset) + m.bytecodes > size) {
+                    problem("Descriptor of method %d/%d claims %d bytes, beyond Method component (%d bytes)", m.owner.token, m.token, m.bytecodes, size);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            problem("Descriptor component is malformed: %s", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import static pro.javacard.capfile.Components.*;
+
+/**
+ * Static analysis of the bytecode in the Method component: size, stack usage, arithmetic, calls and an
+ * estimated cost of every method, based on a table of per-instruction weights.
+ * <p>
+ * Calls are resolved within the package: static and private methods, constructors, and virtual methods
+ * by the static type of the reference. Calls to other packages and interface calls are counted but not followed.
+ */
+public final class CodeAnalyzer {
+    // Public virtual method token of javacard.framework.Applet.process(APDU)
+    static final int PROCESS_TOKEN = 7;
+
+    private final CAPFile cap;
+    private final Map<String, Integer> weights;
+    private final Map<Integer, MethodInfo> methods = new LinkedHashMap<>();
+    private final Map<AID, MethodInfo> process = new LinkedHashMap<>();
+    private byte[] classes;
+    private byte[] pool;
+
+    /**
+     * Analysis results of a single method.
+     */
+    public static final class MethodInfo {
+        private final String name;
+        private final int offset;
+        private final int size;
+        private final int maxStack;
+        private final int maxLocals;
+        private final int nargs;
+        int instructions;
+        int shortArithmetic;
+        int intArithmetic;
+        int intInstructions;
+        int calls;
+        int callers;
+        long cost;
+        final Set<MethodInfo> callees = new LinkedHashSet<>();
+
+        MethodInfo(String name, int offset, int size, int maxStack, int maxLocals, int nargs) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            this.nargs = nargs;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Offset in Method component
+        public int getOffset() {
+            return offset;
+        }
+
+        // Size of header and bytecode
+        public int getSize() {
+            return size;
+        }
+
+        public int getMaxStack() {
+            return maxStack;
+        }
+
+        public int getMaxLocals() {
+            return maxLocals;
+        }
+
+        public int getArguments() {
+            return nargs;
+        }
+
+        public int getInstructions() {
+            return instructions;
+        }
+
+        public int getShortArithmetic() {
+            return shortArithmetic;
+        }
+
+        public int getIntArithmetic() {
+            return intArithmetic;
+        }
+
+        // Instructions working with int values: arithmetic, loads, stores, constants, conversions
+        public int getIntInstructions() {
+            return intInstructions;
+        }
+
+        // Number of invoke instructions
+        public int getCalls() {
+            return calls;
+        }
+
+        // Number of invoke instructions in the package that call this method
+        public int getCallers() {
+            return callers;
+        }
+
+        // Sum of instruction weights, every instruction counted once
+        public long getCost() {
+            return cost;
+        }
+
+        public Set<MethodInfo> getCallees() {
+            return Collections.unmodifiableSet(callees);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private CodeAnalyzer(CAPFile cap, Map<String, Integer> weights) {
+        this.cap = cap;
+        this.weights = weights;
+    }
+
+    /**
+     * Default instruction weights, from opcode_weights.properties.
+     */
+    public static Map<String, Integer> defaultWeights() {
+        try (InputStream in = CodeAnalyzer.class.getResourceAsStream("opcode_weights.properties")) {
+            Properties p = new Properties();
+            p.load(in);
+            return weights(p, new HashMap<>());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Default weights, overridden by given properties (mnemonic or "default" as key).
+     */
+    public static Map<String, Integer> weights(Properties overrides) {
+        return weights(overrides, defaultWeights());
+    }
+
+    private static Map<String, Integer> weights(Properties p, Map<String, Integer> base) {
+        Map<String, Integer> result = new HashMap<>(base);
+        for (String key : p.stringPropertyNames()) {
+            boolean known = key.equals("default");
+            for (String m : Bytecode.MNEMONICS)
+                known |= key.equals(m);
+            if (!known)
+                throw new IllegalArgumentException("Unknown instruction in weights: " + key);
+            result.put(key, Integer.parseInt(p.getProperty(key).trim()));
+        }
+        return result;
+    }
+
+    public static CodeAnalyzer of(CAPFile cap) {
+        return of(cap, defaultWeights());
+    }
+
+    public static CodeAnalyzer of(CAPFile cap, Map<String, Integer> weights) {
+        CodeAnalyzer a = new CodeAnalyzer(cap, weights);
+        a.analyze();
+        return a;
+    }
+
+    private void analyze() {
+        byte[] descriptor = cap.component("Descriptor");
+        byte[] method = cap.component("Method");
+        classes = cap.component("Class");
+        pool = cap.component("ConstantPool");
+        if (descriptor == null || method == null || classes == null || pool == null)
+            return;
+        Descriptor d = Descriptor.parse(descriptor);
+        DebugInfo debug = DebugInfo.parse(cap.component("Debug"));
+        int fallback = weights.getOrDefault("default", 1);
+
+        // Headers first, so that calls can be resolved to methods
+        List<Descriptor.MethodDescriptor> concrete = new ArrayList<>();
+        for (Descriptor.MethodDescriptor m : d.methods) {
+            if (m.isAbstract())
+                continue;
+            int base = INFO + m.offset;
+            int header = Descriptor.headerSize(method, m.offset);
+            final MethodInfo info;
+            if (header == 4)
+                info = new MethodInfo(debug.methodName(m), m.offset, header + m.bytecodes, u1(method, base + 1), u1(method, base + 3), u1(method, base + 2));
+            else
+                info = new MethodInfo(debug.methodName(m), m.offset, header + m.bytecodes, u1(method, base) & 0x0F, u1(method, base + 1) & 0x0F, u1(method, base + 1) >> 4);
+            methods.put(m.offset, info);
+            concrete.add(m);
+        }
+
+        for (Descriptor.MethodDescriptor m : concrete) {
+            MethodInfo info = methods.get(m.offset);
+            int start = INFO + m.offset + Descriptor.headerSize(method, m.offset);
+            int end = start + m.bytecodes;
+            for (int pc = start; pc < end; pc += Bytecode.length(method, pc)) {
+                int op = u1(method, pc);
+                String mnemonic = Bytecode.MNEMONICS[op];
+                if (mnemonic == null)
+                    throw new IllegalArgumentException(String.format("Invalid opcode 0x%02X in %s", op, info.name));
+                info.instructions++;
+                info.cost += weights.getOrDefault(mnemonic, fallback);
+                if (isShortArithmetic(mnemonic))
+                    info.shortArithmetic++;
+                if (isIntArithmetic(mnemonic))
+                    info.intArithmetic++;
+                if (isInt(mnemonic))
+                    info.intInstructions++;
+                if (op >= Bytecode.INVOKEVIRTUAL && op <= Bytecode.INVOKEINTERFACE) {
+                    info.calls++;
+                    MethodInfo callee = op == Bytecode.INVOKEINTERFACE ? null : resolve(op, u2(method, pc + 1));
+                    if (callee != null) {
+                        callee.callers++;
+                        info.callees.add(callee);
+                    }
+                }
+            }
+        }
+
+        // process() of applets
+        byte[] applets = cap.component("Applet");
+        if (applets != null) {
+            int off = INFO + 1;
+            for (int i = 0; i < u1(applets, INFO); i++) {
+                int len = u1(applets, off);
+                AID aid = new AID(applets, off + 1, len);
+                int install = u2(applets, off + 1 + len);
+                off += 1 + len + 2;
+                for (Descriptor.MethodDescriptor m : d.methods) {
+                    if (m.offset == install) {
+                        MethodInfo p = findProcess(m.owner.ref, debug);
+                        if (p != null)
+                            process.put(aid, p);
+                    }
+                }
+            }
+        }
+    }
+
+    private MethodInfo findProcess(int classRef, DebugInfo debug) {
+        // By name, if names are known
+        for (int c = classRef; c >= 0; c = superClass(c)) {
+            for (Map.Entry<Integer, String> e : debug.methods.entrySet()) {
+                String cls = debug.classes.get(c);
+                if (cls != null && e.getValue().startsWith(cls + ".process(Ljavacard/framework/APDU;)"))
+                    return methods.get(e.getKey());
+            }
+        }
+        Integer offset = virtual(classRef, PROCESS_TOKEN);
+        return offset == null ? null : methods.get(offset);
+    }
+
+    private static boolean isShortArithmetic(String m) {
+        return m.matches("s(add|sub|mul|div|rem|neg|shl|shr|ushr|and|or|xor)|sinc(_w)?");
+    }
+
+    private static boolean isIntArithmetic(String m) {
+        return m.matches("i(add|sub|mul|div|rem|neg|shl|shr|ushr|and|or|xor)|iinc(_w)?|icmp");
+    }
+
+    private static boolean isInt(String m) {
+        return (m.startsWith("i") && !m.startsWith("if") && !m.startsWith("invoke") && !m.equals("instanceof"))
+                || m.endsWith("_i") || m.endsWith("_i_w") || m.endsWith("_i_this") || m.equals("s2i");
+    }
+
+    // Resolves an invoke instruction to a method in this package, null if not possible
+    private MethodInfo resolve(int op, int index) {
+        int entry = INFO + 2 + index * 4;
+        int tag = u1(pool, entry);
+        if (tag == 6) {
+            // StaticMethodref, internal if high bit is not set
+            if ((u1(pool, entry + 1) & 0x80) != 0)
+                return null;
+            return methods.get(u2(pool, entry + 2));
+        }
+        int classRef = u2(pool, entry + 1);
+        if ((classRef & 0x8000) != 0)
+            return null;
+        int token = u1(pool, entry + 3);
+        if (tag == 4) {
+            // SuperMethodref: implementation in the superclass of the referenced class
+            classRef = superClass(classRef);
+            if (classRef < 0)
+                return null;
+        } else if (tag != 3 || op != Bytecode.INVOKEVIRTUAL) {
+            return null;
+        }
+        Integer offset = virtual(classRef, token);
+        return offset == null ? null : methods.get(offset);
+    }
+
+    // Superclass in this package, -1 if external or none. See JCVM 2.2 spec section 6.8
+    private int superClass(int classRef) {
+        int c = INFO + classRef;
+        if ((u1(classes, c) & 0x80) != 0)
+            return -1; // interface
+        int ref = u2(classes, c + 1);
+        return (ref & 0x8000) != 0 ? -1 : ref;
+    }
+
+    // Method offset of a virtual method, following the class hierarchy within the package
+    private Integer virtual(int classRef, int token) {
+        for (int depth = 0; classRef >= 0 && depth < 256; depth++) {
+            int c = INFO + classRef;
+            if ((u1(classes, c) & 0x80) != 0)
+                return null;
+            int publicBase = u1(classes, c + 6);
+            int publicCount = u1(classes, c + 7);
+            int packageBase = u1(classes, c + 8);
+            int packageCount = u1(classes, c + 9);
+            if ((token & 0x80) == 0 && token >= publicBase && token < publicBase + publicCount) {
+                return u2(classes, c + 10 + 2 * (token - publicBase));
+            } else if ((token & 0x80) != 0 && (token & 0x7F) >= packageBase && (token & 0x7F) < packageBase + packageCount) {
+                return u2(classes, c + 10 + 2 * publicCount + 2 * ((token & 0x7F) - packageBase));
+            }
+            classRef = superClass(classRef);
+        }
+        return null;
+    }
+
+    /**
+     * All analyzed methods, in the order of the Method component.
+     */
+    public List<MethodInfo> getMethods() {
+        List<MethodInfo> result = new ArrayList<>(methods.values());
+        result.sort(Comparator.comparingInt(MethodInfo::getOffset));
+        return result;
+    }
+
+    /**
+     * The process() method of every applet, if found.
+     */
+    public Map<AID, MethodInfo> getProcessMethods() {
+        return Collections.unmodifiableMap(process);
+    }
+
+    /**
+     * Given method and all methods it calls within the package, directly or indirectly, most expensive first.
+     */
+    public List<MethodInfo> getReachable(MethodInfo method) {
+        Set<MethodInfo> seen = new LinkedHashSet<>();
+        Deque<MethodInfo> todo = new ArrayDeque<>();
+        todo.add(method);
+        while (!todo.isEmpty()) {
+            MethodInfo m = todo.poll();
+            if (seen.add(m))
+                todo.addAll(m.callees);
+        }
+        List<MethodInfo> result = new ArrayList<>(seen);
+        result.sort(Comparator.comparingLong(MethodInfo::getCost).reversed().thenComparingInt(MethodInfo::getOffset));
+        return result;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+// Component tags and byte helpers, see JCVM 2.2 spec section 6.1
+final class Components {
+    static final int HEADER = 1;
+    static final int DIRECTORY = 2;
+    static final int APPLET = 3;
+    static final int IMPORT = 4;
+    static final int CONSTANT_POOL = 5;
+    static final int CLASS = 6;
+    static final int METHOD = 7;
+    static final int STATIC_FIELD = 8;
+    static final int REF_LOCATION = 9;
+    static final int EXPORT = 10;
+    static final int DESCRIPTOR = 11;
+    static final int DEBUG = 12;
+
+    // Indexed by tag
+    static final String[] NAMES = {null, "Header", "Directory", "Applet", "Import", "ConstantPool", "Class", "Method",
+            "StaticField", "RefLocation", "Export", "Descriptor", "Debug"};
+
+    // Header flags, Table 6-3
+    static final int ACC_INT = 0x01;
+    static final int ACC_EXPORT = 0x02;
+    static final int ACC_APPLET = 0x04;
+    static final int ACC_EXTENDED = 0x08;
+
+    // Size of component header (tag and size)
+    static final int INFO = 3;
+
+    private Components() {
+    }
+
+    static int tag(String name) {
+        for (int i = 1; i < NAMES.length; i++)
+            if (NAMES[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    static int u1(byte[] b, int offset) {
+        return b[offset] & 0xFF;
+    }
+
+    static int u2(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    static void put2(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 8);
+        b[offset + 1] = (byte) value;
+    }
+
+    // Size of the info item of a component, as claimed by the component
+    static int size(byte[] component) {
+        return u2(component, 1);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static pro.javacard.capfile.Components.*;
+
+// Names from the Debug component, see JCVM 2.2.2 spec section 6.14
+final class DebugInfo {
+    final Map<Integer, String> classes = new HashMap<>(); // Class component offset -> class name
+    final Map<Integer, String> methods = new HashMap<>(); // Method component offset -> method name and descriptor
+    final Map<Integer, String> sources = new HashMap<>(); // Class component offset -> source file
+    final Map<String, String> fields = new HashMap<>(); // field key -> field name
+
+    private DebugInfo() {
+    }
+
+    String className(Descriptor.ClassDescriptor c) {
+        return classes.getOrDefault(c.ref, String.format("class@%d (token %d)", c.ref, c.token));
+    }
+
+    String methodName(Descriptor.MethodDescriptor m) {
+        return methods.getOrDefault(m.offset, String.format("%s.method@%d (token %d)", className(m.owner), m.offset, m.token));
+    }
+
+    // Static fields by offset in static field image, instance fields by token
+    static String fieldKey(int classRef, boolean isStatic, int location) {
+        return classRef + (isStatic ? ":s" : ":i") + location;
+    }
+
+    static DebugInfo parse(byte[] component) {
+        DebugInfo d = new DebugInfo();
+        if (component == null)
+            return d;
+        int off = INFO;
+        int count = u2(component, off);
+        off += 2;
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int len = u2(component, off);
+            strings[i] = new String(component, off + 2, len, StandardCharsets.UTF_8);
+            off += 2 + len;
+        }
+        off += 2; // package name
+        int classes = u2(component, off);
+        off += 2;
+        for (int i = 0; i < classes; i++) {
+            String name = strings[u2(component, off)].replace('/', '.');
+            int location = u2(component, off + 4);
+            int source = u2(component, off + 8);
+            int interfaces = u1(component, off + 10);
+            int fields = u2(component, off + 11);
+            int methods = u2(component, off + 13);
+            d.classes.put(location, name);
+            if (source < strings.length)
+                d.sources.put(location, strings[source]);
+            off += 15 + interfaces * 2;
+            for (int j = 0; j < fields; j++, off += 10) {
+                boolean isStatic = (u2(component, off + 4) & Descriptor.ACC_STATIC) != 0;
+                int contents = (u2(component, off + 6) << 16) | u2(component, off + 8);
+                d.fields.put(fieldKey(location, isStatic, contents), strings[u2(component, off)]);
+            }
+            for (int j = 0; j < methods; j++) {
+                String method = strings[u2(component, off)] + strings[u2(component, off + 2)];
+                d.methods.put(u2(component, off + 6), name + "." + method);
+                int variables = u2(component, off + 11);
+                int lines = u2(component, off + 13);
+                off += 15 + variables * 9 + lines * 6;
+            }
+        }
+        return d;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static pro.javacard.capfile.Components.*;
+
+// Parsed Descriptor component, see JCVM 2.2 spec section 6.13
+final class Descriptor {
+    // method_descriptor_info access flags
+    static final int ACC_PUBLIC = 0x01;
+    static final int ACC_PRIVATE = 0x02;
+    static final int ACC_PROTECTED = 0x04;
+    static final int ACC_STATIC = 0x08;
+    static final int ACC_FINAL = 0x10;
+    static final int ACC_ABSTRACT = 0x40;
+    static final int ACC_INIT = 0x80;
+    // class_descriptor_info access flags
+    static final int ACC_INTERFACE = 0x40;
+
+    final List<ClassDescriptor> classes = new ArrayList<>();
+    final List<MethodDescriptor> methods = new ArrayList<>();
+    int types; // offset of type_descriptor_info in Descriptor component
+
+    static final class ClassDescriptor {
+        int position; // offset of class_descriptor_info in Descriptor component
+        int token;
+        int access;
+        int ref; // offset in Class component
+        int fields;
+        final List<MethodDescriptor> methods = new ArrayList<>();
+
+        boolean isInterface() {
+            return (access & ACC_INTERFACE) == ACC_INTERFACE;
+        }
+    }
+
+    static final class MethodDescriptor {
+        ClassDescriptor owner;
+        int position; // offset of method_offset item in Descriptor component
+        int token;
+        int access;
+        int offset; // offset in Method component info
+        int type;
+        int bytecodes;
+        int handlers;
+        int handlerIndex;
+
+        boolean isAbstract() {
+            return (access & ACC_ABSTRACT) == ACC_ABSTRACT || offset == 0;
+        }
+    }
+
+    private Descriptor() {
+    }
+
+    static Descriptor parse(byte[] component) {
+        Descriptor d = new Descriptor();
+        int count = u1(component, INFO);
+        int off = INFO + 1;
+        for (int i = 0; i < count; i++) {
+            ClassDescriptor c = new ClassDescriptor();
+            c.position = off;
+            c.token = u1(component, off);
+            c.access = u1(component, off + 1);
+            c.ref = u2(component, off + 2);
+            int interfaces = u1(component, off + 4);
+            c.fields = u2(component, off + 5);
+            int methods = u2(component, off + 7);
+            off += 9 + interfaces * 2 + c.fields * 7;
+            for (int j = 0; j < methods; j++) {
+                MethodDescriptor m = new MethodDescriptor();
+                m.owner = c;
+                m.token = u1(component, off);
+                m.access = u1(component, off + 1);
+                m.position = off + 2;
+                m.offset = u2(component, off + 2);
+                m.type = u2(component, off + 4);
+                m.bytecodes = u2(component, off + 6);
+                m.handlers = u2(component, off + 8);
+                m.handlerIndex = u2(component, off + 10);
+                c.methods.add(m);
+                d.methods.add(m);
+                off += 12;
+            }
+            d.classes.add(c);
+        }
+        d.types = off;
+        if (off > component.length)
+            throw new ArrayIndexOutOfBoundsException("Descriptor component is truncated");
+        return d;
+    }
+
+    // Size of the method header in Method component, see section 6.9
+    static int headerSize(byte[] method, int offset) {
+        return (u1(method, INFO + offset) & 0x80) == 0x80 ? 4 : 2;
+    }
+}
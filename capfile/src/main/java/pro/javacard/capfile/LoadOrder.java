@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves the load order of a set of CAP files, based on the Import components.
+ * <p>
+ * Imports of packages not present in the set are expected to be on the card already. By default only
+ * packages of the JavaCard platform (RID A000000062) and GlobalPlatform (RID A000000151) are assumed
+ * present, other unresolved imports are reported as missing.
+ */
+public final class LoadOrder {
+    public static final Predicate<AID> PLATFORM = aid -> aid.toString().startsWith("A000000062") || aid.toString().startsWith("A000000151");
+
+    private final List<CAPFile> order = new ArrayList<>();
+    private final List<List<CAPFile>> groups = new ArrayList<>();
+    private final List<String> problems = new ArrayList<>();
+
+    private LoadOrder() {
+    }
+
+    /**
+     * Parses CAP files in parallel and resolves their load order.
+     */
+    public static LoadOrder fromFiles(Collection<Path> files) throws IOException {
+        try {
+            List<CAPFile> caps = files.parallelStream().map(p -> {
+                try {
+                    return CAPFile.fromFile(p);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(new IOException(p + ": " + e.getMessage(), e));
+                }
+            }).collect(Collectors.toList());
+            return resolve(caps);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public static LoadOrder resolve(Collection<CAPFile> caps) {
+        return resolve(caps, PLATFORM);
+    }
+
+    /**
+     * Resolves the load order of given CAP files.
+     *
+     * @param caps   CAP files to be loaded
+     * @param onCard packages that are expected to be present on the card
+     */
+    public static LoadOrder resolve(Collection<CAPFile> caps, Predicate<AID> onCard) {
+        LoadOrder result = new LoadOrder();
+
+        Map<AID, CAPFile> providers = new LinkedHashMap<>();
+        for (CAPFile cap : caps) {
+            CAPFile other = providers.putIfAbsent(cap.getPackageAID(), cap);
+            if (other != null)
+                result.problems.add(String.format("Package %s is provided by both %s and %s", cap.getPackageAID(), name(other), name(cap)));
+        }
+
+        // Edges from dependency to dependents, in the order of given files
+        Map<CAPFile, Set<CAPFile>> dependents = new LinkedHashMap<>();
+        Map<CAPFile, Set<CAPFile>> dependencies = new LinkedHashMap<>();
+        for (CAPFile cap : caps) {
+            dependents.putIfAbsent(cap, new LinkedHashSet<>());
+            dependencies.putIfAbsent(cap, new LinkedHashSet<>());
+        }
+        for (CAPFile cap : dependencies.keySet()) {
+            for (CAPPackage imp : cap.getImports()) {
+                CAPFile provider = providers.get(imp.getAid());
+                if (provider == null) {
+                    if (!onCard.test(imp.getAid()))
+                        result.problems.add(String.format("%s imports %s v%s which is missing", name(cap), imp.getAid(), imp.getVersionString()));
+                    continue;
+                }
+                CAPPackage provided = provider.getPackage();
+                // Binary compatibility: same major and same or newer minor version
+                if (provided.getMajor() != imp.getMajor() || provided.getMinor() < imp.getMinor())
+                    result.problems.add(String.format("%s imports %s v%s but %s provides v%s", name(cap), imp.getAid(), imp.getVersionString(), name(provider), provided.getVersionString()));
+                if (provider != cap) {
+                    dependencies.get(cap).add(provider);
+                    dependents.get(provider).add(cap);
+                }
+            }
+        }
+
+        // Kahn's algorithm, keeping the given order among independent packages
+        Map<CAPFile, Integer> pending = new LinkedHashMap<>();
+        dependencies.forEach((k, v) -> pending.put(k, v.size()));
+        Deque<CAPFile> ready = pending.entrySet().stream().filter(e -> e.getValue() == 0).map(Map.Entry::getKey).collect(Collectors.toCollection(ArrayDeque::new));
+        while (!ready.isEmpty()) {
+            CAPFile cap = ready.poll();
+            result.order.add(cap);
+            for (CAPFile d : dependents.get(cap)) {
+                if (pending.merge(d, -1, Integer::sum) == 0)
+                    ready.add(d);
+            }
+        }
+        if (result.order.size() != dependencies.size()) {
+            List<String> cycle = dependencies.keySet().stream().filter(c -> !result.order.contains(c)).map(LoadOrder::name).collect(Collectors.toList());
+            result.problems.add("Circular dependencies between " + String.join(", ", cycle));
+        }
+
+        // Independent groups: connected components of the dependency graph, each in load order
+        Map<CAPFile, Integer> component = new LinkedHashMap<>();
+        for (CAPFile cap : result.order) {
+            if (component.containsKey(cap))
+                continue;
+            int id = result.groups.size();
+            result.groups.add(new ArrayList<>());
+            Deque<CAPFile> todo = new ArrayDeque<>(Collections.singleton(cap));
+            while (!todo.isEmpty()) {
+                CAPFile c = todo.poll();
+                if (component.putIfAbsent(c, id) != null)
+                    continue;
+                todo.addAll(dependencies.get(c));
+                todo.addAll(dependents.get(c));
+            }
+        }
+        for (CAPFile cap : result.order)
+            result.groups.get(component.get(cap)).add(cap);
+        return result;
+    }
+
+    private static String name(CAPFile cap) {
+        return cap.getFile().map(Path::toString).orElse(cap.getPackageName());
+    }
+
+    /**
+     * CAP files in the order they can be loaded: dependencies before dependents.
+     */
+    public List<CAPFile> getLoadOrder() {
+        return Collections.unmodifiableList(order);
+    }
+
+    /**
+     * CAP files in the order they can be deleted: dependents before dependencies.
+     */
+    public List<CAPFile> getDeleteOrder() {
+        List<CAPFile> result = new ArrayList<>(order);
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Groups of CAP files without dependencies between groups, each in load order.
+     * Groups can be loaded independently, for example to different cards at the same time.
+     */
+    public List<List<CAPFile>> getGroups() {
+        return groups.stream().map(Collections::unmodifiableList).collect(Collectors.toList());
+    }
+
+    /**
+     * Missing, duplicate, incompatible and circular dependencies.
+     */
+    public List<String> getProblems() {
+        return Collections.unmodifiableList(problems);
+    }
+}
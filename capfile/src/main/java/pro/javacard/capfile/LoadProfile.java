@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static pro.javacard.capfile.Components.*;
+
+/**
+ * Where the bytes of a CAP file go when it is loaded: component sizes, number of LOAD commands,
+ * relocations (a proxy for on-card linking time), static field image and sizes of classes and methods.
+ */
+public final class LoadProfile {
+    public static final int[] BLOCK_SIZES = {128, 247, 255, 1024, 4096};
+
+    private final CAPFile cap;
+    private final Map<String, Integer> components;
+    private final List<Item> classes = new ArrayList<>();
+    private final List<Item> methods = new ArrayList<>();
+    private int byteRelocations;
+    private int shortRelocations;
+    private int staticImage;
+    private int arrayInitCount;
+    private int arrayInitSize;
+
+    /**
+     * Size of a class or method. Names come from the Debug component, if present.
+     */
+    public static final class Item {
+        private final String name;
+        private final int offset;
+        private final int size;
+
+        Item(String name, int offset, int size) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Offset in Class or Method component
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + size;
+        }
+    }
+
+    private LoadProfile(CAPFile cap) {
+        this.cap = cap;
+        this.components = cap.getComponentSizes();
+    }
+
+    public static LoadProfile of(CAPFile cap) {
+        LoadProfile p = new LoadProfile(cap);
+        p.parse();
+        return p;
+    }
+
+    private void parse() {
+        // See JCVM 2.2 spec section 6.11
+        byte[] refs = cap.component("RefLocation");
+        if (refs != null) {
+            int off = INFO;
+            int count = u2(refs, off);
+            byteRelocations = relocations(refs, off + 2, count);
+            off += 2 + count;
+            shortRelocations = relocations(refs, off + 2, u2(refs, off));
+        }
+        // See section 6.10
+        byte[] statics = cap.component("StaticField");
+        if (statics != null) {
+            staticImage = u2(statics, INFO);
+            arrayInitCount = u2(statics, INFO + 4);
+            int off = INFO + 6;
+            for (int i = 0; i < arrayInitCount; i++) {
+                int count = u2(statics, off + 1);
+                arrayInitSize += count;
+                off += 3 + count;
+            }
+        }
+
+        byte[] descriptor = cap.component("Descriptor");
+        byte[] method = cap.component("Method");
+        if (descriptor == null || method == null)
+            return;
+        Descriptor d = Descriptor.parse(descriptor);
+        DebugInfo debug = DebugInfo.parse(cap.component("Debug"));
+        for (Descriptor.ClassDescriptor c : d.classes) {
+            String className = debug.className(c);
+            int size = 0;
+            for (Descriptor.MethodDescriptor m : c.methods) {
+                if (m.isAbstract())
+                    continue;
+                int s = Descriptor.headerSize(method, m.offset) + m.bytecodes;
+                size += s;
+                methods.add(new Item(debug.methodName(m), m.offset, s));
+            }
+            classes.add(new Item(className, c.ref, size));
+        }
+        Comparator<Item> bySize = Comparator.comparingInt(Item::getSize).reversed().thenComparing(Item::getOffset);
+        classes.sort(bySize);
+        methods.sort(bySize);
+    }
+
+    // Number of offsets in a RefLocation index list, 255 is a continuation
+    private static int relocations(byte[] refs, int off, int count) {
+        int result = 0;
+        for (int i = 0; i < count; i++)
+            if (u1(refs, off + i) != 255)
+                result++;
+        return result;
+    }
+
+    public CAPFile getCAP() {
+        return cap;
+    }
+
+    /**
+     * Sizes of present components, including tag and size, in load order.
+     */
+    public Map<String, Integer> getComponentSizes() {
+        return Collections.unmodifiableMap(components);
+    }
+
+    /**
+     * Size of load file data, as in CAPFile.getCode(): without Descriptor and Debug.
+     */
+    public int getCodeSize() {
+        return components.entrySet().stream().filter(e -> !e.getKey().equals("Debug") && !e.getKey().equals("Descriptor")).mapToInt(Map.Entry::getValue).sum();
+    }
+
+    /**
+     * Size of load file data with Descriptor and Debug components.
+     */
+    public int getFullSize() {
+        return components.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Number of LOAD commands with given block size, extended length APDU-s for block sizes over 255.
+     */
+    public int getLoadCommands(int blockSize, boolean includeDebug) {
+        return LoadStream.of(cap).includeDebug(includeDebug).extendedLength(blockSize > 255).blockSize(blockSize).getBlockCount();
+    }
+
+    public Map<Integer, Integer> getLoadCommands() {
+        Map<Integer, Integer> result = new LinkedHashMap<>();
+        for (int size : BLOCK_SIZES)
+            result.put(size, getLoadCommands(size, false));
+        return result;
+    }
+
+    /**
+     * Number of 1 byte (constant pool index) locations to be relocated on card.
+     */
+    public int getByteRelocations() {
+        return byteRelocations;
+    }
+
+    /**
+     * Number of 2 byte (constant pool index) locations to be relocated on card.
+     */
+    public int getShortRelocations() {
+        return shortRelocations;
+    }
+
+    public int getStaticImageSize() {
+        return staticImage;
+    }
+
+    public int getArrayInitCount() {
+        return arrayInitCount;
+    }
+
+    public int getArrayInitSize() {
+        return arrayInitSize;
+    }
+
+    /**
+     * Classes by total size of their methods, largest first.
+     */
+    public List<Item> getClasses() {
+        return Collections.unmodifiableList(classes);
+    }
+
+    /**
+     * Methods by size (header and bytecode), largest first.
+     */
+    public List<Item> getMethods() {
+        return Collections.unmodifiableList(methods);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import pro.javacard.HexUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * GlobalPlatform LOAD command stream for a CAP file, see GPCS 2.3 sections 11.5 and 11.6.
+ * <p>
+ * The load file is DAP blocks (tag E2, optional) followed by the Load File Data Block (tag C4) with CAP components
+ * in load order. It is split into LOAD command payloads of a configurable size, directly from the components of
+ * the CAP file, without building intermediate copies of the whole load file.
+ */
+public final class LoadStream implements Iterable<byte[]> {
+    // Short APDU maximum, minus 8 bytes for a C-MAC of secure messaging
+    public static final int DEFAULT_BLOCK_SIZE = 247;
+
+    private final CAPFile cap;
+    private final List<byte[]> daps = new ArrayList<>();
+    private boolean includeDebug = false;
+    private boolean extended = false;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private LoadStream(CAPFile cap) {
+        this.cap = cap;
+    }
+
+    public static LoadStream of(CAPFile cap) {
+        return new LoadStream(cap);
+    }
+
+    // Include Descriptor and Debug components, like the deprecated CAPFile.getCode(true)
+    public LoadStream includeDebug(boolean includeDebug) {
+        this.includeDebug = includeDebug;
+        return this;
+    }
+
+    // Use extended length APDU-s, allowing blocks of up to 65535 bytes
+    public LoadStream extendedLength(boolean extended) {
+        this.extended = extended;
+        return this;
+    }
+
+    public LoadStream blockSize(int blockSize) {
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    // Add a DAP block with the signature of given security domain
+    public LoadStream dap(AID securityDomain, byte[] signature) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        value.write(0x4F);
+        value.write(securityDomain.getLength());
+        value.write(securityDomain.getBytes(), 0, securityDomain.getLength());
+        value.write(0xC3);
+        byte[] length = berLength(signature.length);
+        value.write(length, 0, length.length);
+        value.write(signature, 0, signature.length);
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(0xE2);
+        length = berLength(value.size());
+        block.write(length, 0, length.length);
+        block.write(value.toByteArray(), 0, value.size());
+        daps.add(block.toByteArray());
+        return this;
+    }
+
+    static byte[] berLength(int length) {
+        if (length < 0x80)
+            return new byte[]{(byte) length};
+        else if (length < 0x100)
+            return new byte[]{(byte) 0x81, (byte) length};
+        else if (length < 0x10000)
+            return new byte[]{(byte) 0x82, (byte) (length >> 8), (byte) length};
+        else
+            return new byte[]{(byte) 0x83, (byte) (length >> 16), (byte) (length >> 8), (byte) length};
+    }
+
+    // DAP blocks, C4 tag and length, components
+    private List<byte[]> segments() {
+        List<byte[]> components = cap.loadComponents(includeDebug);
+        int length = 0;
+        for (byte[] c : components)
+            length += c.length;
+        List<byte[]> result = new ArrayList<>(daps);
+        byte[] ber = berLength(length);
+        byte[] tag = new byte[1 + ber.length];
+        tag[0] = (byte) 0xC4;
+        System.arraycopy(ber, 0, tag, 1, ber.length);
+        result.add(tag);
+        result.addAll(components);
+        return result;
+    }
+
+    /**
+     * Length of the load file: DAP blocks and Load File Data Block.
+     */
+    public int getLength() {
+        int length = 0;
+        for (byte[] s : segments())
+            length += s.length;
+        return length;
+    }
+
+    private int checkedBlockSize() {
+        int max = extended ? 0xFFFF : 0xFF;
+        if (blockSize < 1 || blockSize > max)
+            throw new IllegalStateException(String.format("Block size must be between 1 and %d: %d", max, blockSize));
+        return blockSize;
+    }
+
+    /**
+     * Number of LOAD commands.
+     */
+    public int getBlockCount() {
+        int size = checkedBlockSize();
+        return (getLength() + size - 1) / size;
+    }
+
+    /**
+     * Hash of the Load File Data Block content, as used in INSTALL [for load]. Same as CAPFile.getLoadFileDataHash()
+     * unless debug components are included.
+     */
+    public byte[] getLoadFileDataHash(String algorithm) {
+        try {
+            MessageDigest md = MessageDigest.getInstance(algorithm);
+            for (byte[] c : cap.loadComponents(includeDebug))
+                md.update(c);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported hash algorithm: " + algorithm, e);
+        }
+    }
+
+    /**
+     * Writes the load file: DAP blocks and Load File Data Block.
+     */
+    public void writeLoadFile(OutputStream out) throws IOException {
+        for (byte[] s : segments())
+            out.write(s);
+    }
+
+    /**
+     * Writes all LOAD commands, back to back.
+     */
+    public void writeAPDUs(OutputStream out) throws IOException {
+        for (byte[] apdu : this)
+            out.write(apdu);
+    }
+
+    /**
+     * LOAD commands, each generated when requested.
+     */
+    @Override
+    public Iterator<byte[]> iterator() {
+        final int size = checkedBlockSize();
+        final List<byte[]> segments = segments();
+        int length = 0;
+        for (byte[] s : segments)
+            length += s.length;
+        final int total = length;
+        final int blocks = (total + size - 1) / size;
+        if (blocks > 256)
+            throw new IllegalStateException(String.format("Load file of %d bytes needs %d LOAD commands, more than 256. Use a larger block size", total, blocks));
+
+        return new Iterator<byte[]>() {
+            private int block = 0;
+            private int segment = 0;
+            private int offset = 0;
+
+            @Override
+            public boolean hasNext() {
+                return block < blocks;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                int len = Math.min(size, total - block * size);
+                int header = extended ? 7 : 5;
+                byte[] apdu = new byte[header + len];
+                apdu[0] = (byte) 0x80;
+                apdu[1] = (byte) 0xE8;
+                apdu[2] = (byte) (block == blocks - 1 ? 0x80 : 0x00);
+                apdu[3] = (byte) block;
+                if (extended) {
+                    apdu[5] = (byte) (len >> 8);
+                    apdu[6] = (byte) len;
+                } else {
+                    apdu[4] = (byte) len;
+                }
+                int pos = header;
+                while (pos < apdu.length) {
+                    byte[] s = segments.get(segment);
+                    int n = Math.min(s.length - offset, apdu.length - pos);
+                    System.arraycopy(s, offset, apdu, pos, n);
+                    pos += n;
+                    offset += n;
+                    if (offset == s.length) {
+                        segment++;
+                        offset = 0;
+                    }
+                }
+                block++;
+                return apdu;
+            }
+        };
+    }
+
+    /**
+     * INSTALL [for load] command, see GPCS 2.3 section 11.5.2.3.
+     *
+     * @param securityDomain associated security domain, null for the ISD
+     * @param hash           algorithm of the Load File Data Block hash, null for no hash
+     */
+    public byte[] getInstallForLoad(AID securityDomain, String hash) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        AID pkg = cap.getPackageAID();
+        data.write(pkg.getLength());
+        data.write(pkg.getBytes(), 0, pkg.getLength());
+        if (securityDomain == null) {
+            data.write(0);
+        } else {
+            data.write(securityDomain.getLength());
+            data.write(securityDomain.getBytes(), 0, securityDomain.getLength());
+        }
+        if (hash == null) {
+            data.write(0);
+        } else {
+            byte[] h = getLoadFileDataHash(hash);
+            data.write(h.length);
+            data.write(h, 0, h.length);
+        }
+        data.write(0); // load parameters
+        data.write(0); // load token
+        ByteArrayOutputStream apdu = new ByteArrayOutputStream();
+        apdu.write(new byte[]{(byte) 0x80, (byte) 0xE6, 0x02, 0x00, (byte) data.size()}, 0, 5);
+        apdu.write(data.toByteArray(), 0, data.size());
+        return apdu.toByteArray();
+    }
+
+    /**
+     * Writes a script of INSTALL [for load] and LOAD commands, one APDU in hex per line, with comments starting with #.
+     */
+    public void writeScript(Writer out, AID securityDomain, String hash) throws IOException {
+        String nl = System.lineSeparator();
+        out.write(String.format("# Load %s %s v%s, %d bytes in %d blocks%s", cap.getPackageName(), cap.getPackageAID(), cap.getPackageVersion(), getLength(), getBlockCount(), nl));
+        out.write("# INSTALL [for load]" + nl);
+        out.write(HexUtils.bin2hex(getInstallForLoad(securityDomain, hash)) + nl);
+        int i = 0;
+        for (byte[] apdu : this) {
+            out.write(String.format("# LOAD block %d%s", i++, nl));
+            out.write(HexUtils.bin2hex(apdu) + nl);
+        }
+        out.flush();
+    }
+}
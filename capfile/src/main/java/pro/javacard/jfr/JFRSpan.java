@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+// Attributes common to all events
+@Category("JavaCard")
+@StackTrace(false)
+abstract class JFRSpan extends Event implements Span {
+    @Label("Package AID")
+    String packageAID;
+
+    @Label("SDK Version")
+    String sdk;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long read;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long written;
+
+    @Override
+    public boolean enabled() {
+        return true;
+    }
+
+    @Override
+    public Span packageName(String name) {
+        return this;
+    }
+
+    @Override
+    public Span packageAID(String aid) {
+        packageAID = aid;
+        return this;
+    }
+
+    @Override
+    public Span sdk(String version) {
+        sdk = version;
+        return this;
+    }
+
+    @Override
+    public Span read(long bytes) {
+        read = bytes;
+        return this;
+    }
+
+    @Override
+    public Span written(long bytes) {
+        written = bytes;
+        return this;
+    }
+
+    @Override
+    public Span cache(String outcome) {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (shouldCommit()) {
+            commit();
+        }
+    }
+}
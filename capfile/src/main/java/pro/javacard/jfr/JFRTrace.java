@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.jfr;
+
+import jdk.jfr.EventType;
+
+// Events are created only if enabled, so that nothing is allocated when not recording
+final class JFRTrace implements Trace.Tracer {
+    private static final EventType PHASE = EventType.getEventType(JFRBuildPhase.class);
+    private static final EventType PARSE = EventType.getEventType(JFRParse.class);
+    private static final EventType HASH = EventType.getEventType(JFRHash.class);
+    private static final EventType STRIP = EventType.getEventType(JFRStrip.class);
+    private static final EventType VERIFY = EventType.getEventType(JFRVerify.class);
+
+    @Override
+    public boolean recording() {
+        return PHASE.isEnabled();
+    }
+
+    @Override
+    public Span phase(String phase) {
+        if (!PHASE.isEnabled())
+            return Span.NONE;
+        JFRBuildPhase e = new JFRBuildPhase();
+        e.phase = phase;
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public Span parse() {
+        return begin(PARSE.isEnabled() ? new JFRParse() : null);
+    }
+
+    @Override
+    public Span hash(String algorithm) {
+        if (!HASH.isEnabled())
+            return Span.NONE;
+        JFRHash e = new JFRHash();
+        e.algorithm = algorithm;
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public Span strip() {
+        return begin(STRIP.isEnabled() ? new JFRStrip() : null);
+    }
+
+    @Override
+    public Span verify() {
+        return begin(VERIFY.isEnabled() ? new JFRVerify() : null);
+    }
+
+    private static Span begin(JFRSpan e) {
+        if (e == null)
+            return Span.NONE;
+        e.begin();
+        return e;
+    }
+}
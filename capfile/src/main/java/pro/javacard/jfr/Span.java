@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.jfr;
+
+// A timed operation, recorded as a Java Flight Recorder event by close() if recording is on.
+// Attributes that an event does not have are ignored, computing attributes is worth it only if enabled().
+public interface Span extends AutoCloseable {
+    // Used when JFR is not available or the event is not enabled
+    Span NONE = new Span() {
+        @Override
+        public boolean enabled() {
+            return false;
+        }
+
+        @Override
+        public Span packageName(String name) {
+            return this;
+        }
+
+        @Override
+        public Span packageAID(String aid) {
+            return this;
+        }
+
+        @Override
+        public Span sdk(String version) {
+            return this;
+        }
+
+        @Override
+        public Span read(long bytes) {
+            return this;
+        }
+
+        @Override
+        public Span written(long bytes) {
+            return this;
+        }
+
+        @Override
+        public Span cache(String outcome) {
+            return this;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    boolean enabled();
+
+    Span packageName(String name);
+
+    Span packageAID(String aid);
+
+    Span sdk(String version);
+
+    Span read(long bytes);
+
+    Span written(long bytes);
+
+    // "hit" or "miss"
+    Span cache(String outcome);
+
+    @Override
+    void close();
+}
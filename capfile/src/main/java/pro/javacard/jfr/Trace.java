@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.jfr;
+
+// Java Flight Recorder events of <cap> build phases and of CAP file operations.
+// Events are defined by the JFR* classes, which are compiled only if jdk.jfr is available (Java 11, or 8u272 and later)
+// and used only if they can be loaded at runtime. Otherwise, and for events not enabled in a recording, spans are Span.NONE.
+public final class Trace {
+    // Implemented by JFRTrace
+    interface Tracer {
+        boolean recording();
+
+        Span phase(String phase);
+
+        Span parse();
+
+        Span hash(String algorithm);
+
+        Span strip();
+
+        Span verify();
+    }
+
+    private static final Tracer tracer = load();
+
+    private Trace() {
+    }
+
+    private static Tracer load() {
+        try {
+            return (Tracer) Class.forName("pro.javacard.jfr.JFRTrace").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // True if build phase events are being recorded
+    public static boolean recording() {
+        return tracer != null && tracer.recording();
+    }
+
+    // Phase of a <cap> build
+    public static Span phase(String phase) {
+        return tracer == null ? Span.NONE : tracer.phase(phase);
+    }
+
+    // Parsing of a CAP file
+    public static Span parse() {
+        return tracer == null ? Span.NONE : tracer.parse();
+    }
+
+    // Load File Data Block hash
+    public static Span hash(String algorithm) {
+        return tracer == null ? Span.NONE : tracer.hash(algorithm);
+    }
+
+    // Removal of class files from a CAP file
+    public static Span strip() {
+        return tracer == null ? Span.NONE : tracer.strip();
+    }
+
+    // Off-card verification
+    public static Span verify() {
+        return tracer == null ? Span.NONE : tracer.verify();
+    }
+}
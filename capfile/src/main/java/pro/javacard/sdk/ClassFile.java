@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Minimal reader for Java class files, as specified in JVMS chapter 4.
+ * Only the bits needed to reason about JavaCard compatibility of compiled code are kept.
+ */
+public final class ClassFile {
+    // Constant pool tags
+    static final int CONSTANT_Utf8 = 1;
+    static final int CONSTANT_Integer = 3;
+    static final int CONSTANT_Float = 4;
+    static final int CONSTANT_Long = 5;
+    static final int CONSTANT_Double = 6;
+    static final int CONSTANT_Class = 7;
+    static final int CONSTANT_String = 8;
+    static final int CONSTANT_Fieldref = 9;
+    static final int CONSTANT_Methodref = 10;
+    static final int CONSTANT_InterfaceMethodref = 11;
+    static final int CONSTANT_NameAndType = 12;
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PRIVATE = 0x0002;
+    public static final int ACC_PROTECTED = 0x0004;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_SYNCHRONIZED = 0x0020;
+    public static final int ACC_INTERFACE = 0x0200;
+    public static final int ACC_ABSTRACT = 0x0400;
+
+    private final byte[] bytes;
+    private final int minor;
+    private final int major;
+    private final int[] tags;
+    private final Object[] pool;
+    private final int access;
+    private final String name;
+    private final String superName;
+    private final List<String> interfaces = new ArrayList<>();
+    private final List<Member> fields = new ArrayList<>();
+    private final List<Member> methods = new ArrayList<>();
+    private String sourceFile = null;
+    final int fieldsOffset; // of fields_count
+    final int methodsOffset; // of methods_count
+
+    public static ClassFile fromFile(Path path) throws IOException {
+        return fromBytes(Files.readAllBytes(path));
+    }
+
+    public static ClassFile fromBytes(byte[] bytes) throws IOException {
+        return new ClassFile(bytes);
+    }
+
+    private ClassFile(byte[] bytes) throws IOException {
+        this.bytes = bytes;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != 0xCAFEBABE)
+                throw new IOException("Not a class file");
+            minor = in.readUnsignedShort();
+            major = in.readUnsignedShort();
+            int count = in.readUnsignedShort();
+            tags = new int[count];
+            pool = new Object[count];
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                tags[i] = tag;
+                switch (tag) {
+                    case CONSTANT_Utf8:
+                        pool[i] = in.readUTF();
+                        break;
+                    case CONSTANT_Integer:
+                        pool[i] = in.readInt();
+                        break;
+                    case CONSTANT_Float:
+                        pool[i] = in.readFloat();
+                        break;
+                    case CONSTANT_Long:
+                        pool[i++] = in.readLong();
+                        break;
+                    case CONSTANT_Double:
+                        pool[i++] = in.readDouble();
+                        break;
+                    case CONSTANT_Class:
+                    case CONSTANT_String:
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        pool[i] = new int[]{in.readUnsignedShort()};
+                        break;
+                    case CONSTANT_Fieldref:
+                    case CONSTANT_Methodref:
+                    case CONSTANT_InterfaceMethodref:
+                    case CONSTANT_NameAndType:
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        pool[i] = new int[]{in.readUnsignedShort(), in.readUnsignedShort()};
+                        break;
+                    case 15: // MethodHandle
+                        pool[i] = new int[]{in.readUnsignedByte(), in.readUnsignedShort()};
+                        break;
+                    default:
+                        throw new IOException("Invalid constant pool tag " + tag + " at index " + i);
+                }
+            }
+            access = in.readUnsignedShort();
+            name = className(in.readUnsignedShort());
+            int superIndex = in.readUnsignedShort();
+            superName = superIndex == 0 ? null : className(superIndex);
+            int interfaceCount = in.readUnsignedShort();
+            for (int i = 0; i < interfaceCount; i++)
+                interfaces.add(className(in.readUnsignedShort()));
+            fieldsOffset = bytes.length - in.available();
+            readMembers(in, fields);
+            methodsOffset = bytes.length - in.available();
+            readMembers(in, methods);
+            int attributeCount = in.readUnsignedShort();
+            for (int i = 0; i < attributeCount; i++) {
+                String attribute = utf8(in.readUnsignedShort());
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                if (attribute.equals("SourceFile"))
+                    sourceFile = utf8(((value[0] & 0xFF) << 8) | (value[1] & 0xFF));
+            }
+        } catch (ClassCastException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed class file: " + e.getMessage(), e);
+        }
+    }
+
+    private void readMembers(DataInputStream in, List<Member> to) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            int start = bytes.length - in.available();
+            int flags = in.readUnsignedShort();
+            String n = utf8(in.readUnsignedShort());
+            String d = utf8(in.readUnsignedShort());
+            Code code = null;
+            int attributeCount = in.readUnsignedShort();
+            for (int j = 0; j < attributeCount; j++) {
+                String attribute = utf8(in.readUnsignedShort());
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                if (attribute.equals("Code"))
+                    code = new Code(this, value);
+            }
+            to.add(new Member(flags, n, d, code, start, bytes.length - in.available()));
+        }
+    }
+
+    public int getMajorVersion() {
+        return major;
+    }
+
+    public int getMinorVersion() {
+        return minor;
+    }
+
+    public int getAccess() {
+        return access;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Optional<String> getSuperName() {
+        return Optional.ofNullable(superName);
+    }
+
+    public List<String> getInterfaces() {
+        return Collections.unmodifiableList(interfaces);
+    }
+
+    public List<Member> getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    public List<Member> getMethods() {
+        return Collections.unmodifiableList(methods);
+    }
+
+    public Optional<String> getSourceFile() {
+        return Optional.ofNullable(sourceFile);
+    }
+
+    public boolean isInterface() {
+        return (access & ACC_INTERFACE) == ACC_INTERFACE;
+    }
+
+    // Returns the raw bytes of the class file
+    public byte[] getBytes() {
+        return bytes.clone();
+    }
+
+    public int getConstantCount() {
+        return tags.length;
+    }
+
+    public int getConstantTag(int index) {
+        return tags[index];
+    }
+
+    // Returns the value of Utf8, Integer, Float, Long, Double and String constants
+    public Object getConstant(int index) {
+        if (tags[index] == CONSTANT_String)
+            return utf8(((int[]) pool[index])[0]);
+        if (tags[index] == CONSTANT_Class)
+            return className(index);
+        return pool[index];
+    }
+
+    public String utf8(int index) {
+        return (String) pool[index];
+    }
+
+    public String className(int index) {
+        return utf8(((int[]) pool[index])[0]);
+    }
+
+    // Resolves a field, method or interface method reference
+    public Ref ref(int index) {
+        int[] r = (int[]) pool[index];
+        int[] nat = (int[]) pool[r[1]];
+        return new Ref(className(r[0]), utf8(nat[0]), utf8(nat[1]));
+    }
+
+    // Returns the indexes of a reference constant
+    int[] entry(int index) {
+        return (int[]) pool[index];
+    }
+
+    // Returns the package of a class as a path ("foo/bar/Baz" -> "foo/bar")
+    public static String packageOf(String className) {
+        int i = className.lastIndexOf('/');
+        return i == -1 ? "" : className.substring(0, i);
+    }
+
+    // Field or method of a class
+    public static final class Member {
+        final int access;
+        final String name;
+        final String descriptor;
+        final Code code;
+        final int start;
+        final int end;
+
+        Member(int access, String name, String descriptor, Code code, int start, int end) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.code = code;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int getAccess() {
+            return access;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescriptor() {
+            return descriptor;
+        }
+
+        public Optional<Code> getCode() {
+            return Optional.ofNullable(code);
+        }
+
+        // Size of the member_info structure in the class file
+        public int getSize() {
+            return end - start;
+        }
+
+        public boolean isStatic() {
+            return (access & ACC_STATIC) == ACC_STATIC;
+        }
+
+        @Override
+        public String toString() {
+            return name + descriptor;
+        }
+    }
+
+    // Code attribute of a method
+    public static final class Code {
+        final int maxStack;
+        final int maxLocals;
+        final byte[] code;
+        final int[] handlers; // start_pc, end_pc, handler_pc, catch_type
+        final List<int[]> lines = new ArrayList<>(); // start_pc, line_number
+
+        Code(ClassFile cls, byte[] attribute) throws IOException {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(attribute))) {
+                maxStack = in.readUnsignedShort();
+                maxLocals = in.readUnsignedShort();
+                code = new byte[in.readInt()];
+                in.readFully(code);
+                int handlerCount = in.readUnsignedShort();
+                handlers = new int[handlerCount * 4];
+                for (int i = 0; i < handlers.length; i++)
+                    handlers[i] = in.readUnsignedShort();
+                int attributeCount = in.readUnsignedShort();
+                for (int i = 0; i < attributeCount; i++) {
+                    String name = cls.utf8(in.readUnsignedShort());
+                    int len = in.readInt();
+                    if (name.equals("LineNumberTable")) {
+                        int n = in.readUnsignedShort();
+                        for (int j = 0; j < n; j++)
+                            lines.add(new int[]{in.readUnsignedShort(), in.readUnsignedShort()});
+                    } else {
+                        in.skipBytes(len);
+                    }
+                }
+            }
+        }
+
+        public int getMaxStack() {
+            return maxStack;
+        }
+
+        public int getMaxLocals() {
+            return maxLocals;
+        }
+
+        public byte[] getBytecode() {
+            return code.clone();
+        }
+
+        public int getLength() {
+            return code.length;
+        }
+
+        public int getHandlerCount() {
+            return handlers.length / 4;
+        }
+
+        // Returns the source line of a bytecode offset, or -1 if not known
+        public int line(int pc) {
+            int line = -1;
+            int best = -1;
+            for (int[] l : lines) {
+                if (l[0] <= pc && l[0] > best) {
+                    best = l[0];
+                    line = l[1];
+                }
+            }
+            return line;
+        }
+    }
+
+    // Resolved field or method reference
+    public static final class Ref {
+        public final String owner;
+        public final String name;
+        public final String descriptor;
+
+        Ref(String owner, String name, String descriptor) {
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        @Override
+        public String toString() {
+            return owner.replace('/', '.') + "." + name + descriptor;
+        }
+    }
+
+    // JVMS chapter 6 opcodes, by value
+    static final String[] MNEMONICS = ("nop aconst_null iconst_m1 iconst_0 iconst_1 iconst_2 iconst_3 iconst_4 iconst_5 lconst_0 lconst_1 "
+            + "fconst_0 fconst_1 fconst_2 dconst_0 dconst_1 bipush sipush ldc ldc_w ldc2_w iload lload fload dload aload "
+            + "iload_0 iload_1 iload_2 iload_3 lload_0 lload_1 lload_2 lload_3 fload_0 fload_1 fload_2 fload_3 dload_0 dload_1 "
+            + "dload_2 dload_3 aload_0 aload_1 aload_2 aload_3 iaload laload faload daload aaload baload caload saload istore "
+            + "lstore fstore dstore astore istore_0 istore_1 istore_2 istore_3 lstore_0 lstore_1 lstore_2 lstore_3 fstore_0 "
+            + "fstore_1 fstore_2 fstore_3 dstore_0 dstore_1 dstore_2 dstore_3 astore_0 astore_1 astore_2 astore_3 iastore "
+            + "lastore fastore dastore aastore bastore castore sastore pop pop2 dup dup_x1 dup_x2 dup2 dup2_x1 dup2_x2 swap "
+            + "iadd ladd fadd dadd isub lsub fsub dsub imul lmul fmul dmul idiv ldiv fdiv ddiv irem lrem frem drem ineg lneg "
+            + "fneg dneg ishl lshl ishr lshr iushr lushr iand land ior lor ixor lxor iinc i2l i2f i2d l2i l2f l2d f2i f2l f2d "
+            + "d2i d2l d2f i2b i2c i2s lcmp fcmpl fcmpg dcmpl dcmpg ifeq ifne iflt ifge ifgt ifle if_icmpeq if_icmpne "
+            + "if_icmplt if_icmpge if_icmpgt if_icmple if_acmpeq if_acmpne goto jsr ret tableswitch lookupswitch ireturn "
+            + "lreturn freturn dreturn areturn return getstatic putstatic getfield putfield invokevirtual invokespecial "
+            + "invokestatic invokeinterface invokedynamic new newarray anewarray arraylength athrow checkcast instanceof "
+            + "monitorenter monitorexit wide multianewarray ifnull ifnonnull goto_w jsr_w").split(" ");
+
+    public static String mnemonic(int opcode) {
+        return opcode < MNEMONICS.length ? MNEMONICS[opcode] : String.format("opcode_0x%02X", opcode);
+    }
+
+    // Returns the length of the instruction at pc, including operands
+    public static int instructionLength(byte[] code, int pc) {
+        int op = code[pc] & 0xFF;
+        switch (op) {
+            case 16: // bipush
+            case 18: // ldc
+            case 188: // newarray
+            case 169: // ret
+                return 2;
+            case 17: // sipush
+            case 19: // ldc_w
+            case 20: // ldc2_w
+            case 132: // iinc
+                return 3;
+            case 185: // invokeinterface
+            case 186: // invokedynamic
+            case 200: // goto_w
+            case 201: // jsr_w
+                return 5;
+            case 197: // multianewarray
+                return 4;
+            case 196: // wide
+                return (code[pc + 1] & 0xFF) == 132 ? 6 : 4;
+            case 170: { // tableswitch
+                int base = pc + 1 + ((4 - ((pc + 1) % 4)) % 4);
+                int low = s4(code, base + 4);
+                int high = s4(code, base + 8);
+                return base - pc + 12 + (high - low + 1) * 4;
+            }
+            case 171: { // lookupswitch
+                int base = pc + 1 + ((4 - ((pc + 1) % 4)) % 4);
+                int npairs = s4(code, base + 4);
+                return base - pc + 8 + npairs * 8;
+            }
+            default:
+                if (op >= 21 && op <= 25 || op >= 54 && op <= 58) // xload, xstore
+                    return 2;
+                if (op >= 153 && op <= 168 || op >= 178 && op <= 184 || op == 187 || op == 189 || op == 192 || op == 193 || op == 198 || op == 199)
+                    return 3;
+                return 1;
+        }
+    }
+
+    static int s4(byte[] code, int offset) {
+        return ((code[offset] & 0xFF) << 24) | ((code[offset + 1] & 0xFF) << 16) | ((code[offset + 2] & 0xFF) << 8) | (code[offset + 3] & 0xFF);
+    }
+
+    static int u2(byte[] code, int offset) {
+        return ((code[offset] & 0xFF) << 8) | (code[offset + 1] & 0xFF);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (class file v" + major + "." + minor + ")";
+    }
+}
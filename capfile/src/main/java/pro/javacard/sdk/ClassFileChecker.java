@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.sdk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static pro.javacard.sdk.SDKVersion.*;
+
+/**
+ * Checks compiled class files for constructs that the JavaCard converter of a given SDK would reject.
+ * <p>
+ * This is meant to fail fast, before a (slow) converter run, with messages that point to the source line.
+ * See JCVM 3.0.5 specification, section 2.2 for the supported subset and limits.
+ */
+public final class ClassFileChecker {
+    // JCVM 2.2.4.1 limits
+    static final int MAX_CLASSES = 255;
+    static final int MAX_INTERFACES = 15;
+    static final int MAX_METHODS = 255;
+    static final int MAX_VIRTUAL_METHODS = 128;
+    static final int MAX_INSTANCE_FIELDS = 255;
+    static final int MAX_STACK = 255;
+    static final int MAX_LOCALS = 255;
+    static final int MAX_CODE = 32767;
+
+    // Opcodes operating on long, float and double types
+    private static final Pattern WIDE_TYPES = Pattern.compile("^[lfd](const_.|load.*|store.*|aload|astore|add|sub|mul|div|rem|neg|shl|shr|ushr|and|or|xor|cmp.?|return)$|^.2[lfd]$|^[lfd]2.$|^ldc2_w$");
+
+    private final SDKVersion kit;
+    private final SDKVersion target;
+    private final boolean ints;
+
+    /**
+     * @param kit    SDK used for conversion, determines the accepted class file version
+     * @param target SDK targeted by the conversion, determines the available API
+     * @param ints   if 32 bit integers are enabled (converter option -i)
+     */
+    public ClassFileChecker(SDKVersion kit, SDKVersion target, boolean ints) {
+        this.kit = kit;
+        this.target = target;
+        this.ints = ints;
+    }
+
+    public ClassFileChecker(SDKVersion version, boolean ints) {
+        this(version, version, ints);
+    }
+
+    // Highest class file major version accepted by converter of the SDK: "1.N" -> 44 + N
+    static int maxClassVersion(SDKVersion version) {
+        return 44 + Integer.parseInt(JavaCardSDK.getJavaVersion(version).substring(2));
+    }
+
+    /**
+     * Checks all class files of a package in a folder with compiled classes.
+     *
+     * @param classes root folder of compiled classes
+     * @param pkg     package name to check ("foo.bar") or null to check all class files
+     * @return list of problems, formatted as "path/File.java:line: message", empty if none
+     */
+    public List<String> check(Path classes, String pkg) throws IOException {
+        Path dir = pkg == null ? classes : classes.resolve(pkg.replace('.', '/'));
+        if (!Files.isDirectory(dir))
+            throw new IOException("No such folder: " + dir);
+        final List<Path> files;
+        try (Stream<Path> s = pkg == null ? Files.walk(dir) : Files.list(dir)) {
+            files = s.filter(p -> p.toString().endsWith(".class"))
+                    .filter(p -> !p.getFileName().toString().matches("(package|module)-info\\.class"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        List<String> result = new ArrayList<>();
+        if (files.size() > MAX_CLASSES)
+            result.add(String.format("%s: package has %d classes (maximum is %d)", dir, files.size(), MAX_CLASSES));
+        // Ordered parallel processing keeps the output deterministic
+        files.parallelStream().map(p -> {
+            try {
+                return check(ClassFile.fromFile(p));
+            } catch (IOException e) {
+                return Collections.singletonList(p + ": " + e.getMessage());
+            }
+        }).forEachOrdered(result::addAll);
+        return result;
+    }
+
+    /**
+     * Checks a single class.
+     *
+     * @return list of problems, formatted as "path/File.java:line: message", empty if none
+     */
+    public List<String> check(ClassFile cls) {
+        List<String> result = new ArrayList<>();
+        String pkgdir = ClassFile.packageOf(cls.getName());
+        String file = cls.getSourceFile().orElse(cls.getName().substring(cls.getName().lastIndexOf('/') + 1) + ".class");
+        String where = pkgdir.isEmpty() ? file : pkgdir + "/" + file;
+        String cn = cls.getName().replace('/', '.');
+
+        // Class file version
+        if (cls.getMajorVersion() > maxClassVersion(kit)) {
+            result.add(String.format("%s: class %s has version %d.%d, but JavaCard %s converter supports up to %d.0 (Java %s)", where, cn,
+                    cls.getMajorVersion(), cls.getMinorVersion(), kit, maxClassVersion(kit), JavaCardSDK.getJavaVersion(kit)));
+        }
+
+        // Limits
+        if (cls.getInterfaces().size() > MAX_INTERFACES)
+            result.add(String.format("%s: class %s implements %d interfaces (maximum is %d)", where, cn, cls.getInterfaces().size(), MAX_INTERFACES));
+        if (cls.getMethods().size() > MAX_METHODS)
+            result.add(String.format("%s: class %s has %d methods (maximum is %d)", where, cn, cls.getMethods().size(), MAX_METHODS));
+        long pubvirtual = cls.getMethods().stream().filter(m -> !m.isStatic() && !m.getName().startsWith("<") && (m.getAccess() & (ClassFile.ACC_PUBLIC | ClassFile.ACC_PROTECTED)) != 0).count();
+        if (pubvirtual > MAX_VIRTUAL_METHODS)
+            result.add(String.format("%s: class %s has %d public or protected virtual methods (maximum is %d)", where, cn, pubvirtual, MAX_VIRTUAL_METHODS));
+        long pkgvirtual = cls.getMethods().stream().filter(m -> !m.isStatic() && !m.getName().startsWith("<") && (m.getAccess() & (ClassFile.ACC_PUBLIC | ClassFile.ACC_PROTECTED | ClassFile.ACC_PRIVATE)) == 0).count();
+        if (pkgvirtual > MAX_VIRTUAL_METHODS)
+            result.add(String.format("%s: class %s has %d package-visible virtual methods (maximum is %d)", where, cn, pkgvirtual, MAX_VIRTUAL_METHODS));
+        long instanceFields = cls.getFields().stream().filter(f -> !f.isStatic()).count();
+        if (instanceFields > MAX_INSTANCE_FIELDS)
+            result.add(String.format("%s: class %s has %d instance fields (maximum is %d)", where, cn, instanceFields, MAX_INSTANCE_FIELDS));
+
+        // Types of fields
+        for (ClassFile.Member f : cls.getFields()) {
+            checkDescriptor(f.getDescriptor()).ifPresent(t -> result.add(String.format("%s: field %s.%s uses unsupported type %s", where, cn, f.getName(), t)));
+        }
+
+        // Methods
+        for (ClassFile.Member m : cls.getMethods()) {
+            String mn = cn + "." + m.getName() + "()";
+            ClassFile.Code code = m.getCode().orElse(null);
+            int line = code == null ? -1 : code.line(0);
+            String at = line == -1 ? where : where + ":" + line;
+            checkDescriptor(m.getDescriptor()).ifPresent(t -> result.add(String.format("%s: method %s uses unsupported type %s", at, mn, t)));
+            if ((m.getAccess() & ClassFile.ACC_SYNCHRONIZED) != 0)
+                result.add(String.format("%s: method %s is synchronized, which is not supported", at, mn));
+            if (code == null)
+                continue;
+            if (code.getMaxStack() > MAX_STACK)
+                result.add(String.format("%s: method %s needs %d stack words (maximum is %d)", at, mn, code.getMaxStack(), MAX_STACK));
+            if (code.getMaxLocals() > MAX_LOCALS)
+                result.add(String.format("%s: method %s needs %d local variables (maximum is %d)", at, mn, code.getMaxLocals(), MAX_LOCALS));
+            if (code.getLength() > MAX_CODE)
+                result.add(String.format("%s: method %s has %d bytes of bytecode (maximum is %d)", at, mn, code.getLength(), MAX_CODE));
+            checkCode(cls, code, where, mn, result);
+        }
+        return result;
+    }
+
+    private void checkCode(ClassFile cls, ClassFile.Code code, String where, String mn, List<String> result) {
+        // Same problem is reported only once per line
+        Set<String> problems = new LinkedHashSet<>();
+        byte[] bc = code.code;
+        for (int pc = 0; pc < bc.length; pc += ClassFile.instructionLength(bc, pc)) {
+            int op = bc[pc] & 0xFF;
+            String mnemonic = ClassFile.mnemonic(op);
+            int line = code.line(pc);
+            String at = line == -1 ? where : where + ":" + line;
+            final String problem;
+            if (WIDE_TYPES.matcher(mnemonic).matches()) {
+                problem = "long, float and double types are not supported (" + mnemonic + ")";
+            } else if (op == 52 || op == 85 || op == 146) { // caload, castore, i2c
+                problem = "char type is not supported (" + mnemonic + ")";
+            } else if (op == 194 || op == 195) {
+                problem = "synchronized blocks are not supported (" + mnemonic + ")";
+            } else if (op == 186) {
+                problem = "lambdas and dynamic invocation are not supported (invokedynamic)";
+            } else if (op == 197) {
+                problem = "multidimensional arrays are not supported (multianewarray)";
+            } else if (op == 188) {
+                problem = newarray(bc[pc + 1] & 0xFF);
+            } else if (op == 18 || op == 19) {
+                problem = ldc(cls, op == 18 ? bc[pc + 1] & 0xFF : ClassFile.u2(bc, pc + 1));
+            } else if (op == 189 || op == 192 || op == 193 || op == 187) { // anewarray, checkcast, instanceof, new
+                problem = classRef(cls.className(ClassFile.u2(bc, pc + 1)));
+            } else if (op >= 178 && op <= 185) { // field access and invocations
+                ClassFile.Ref ref = cls.ref(ClassFile.u2(bc, pc + 1));
+                String p = classRef(ref.owner);
+                problem = p != null ? p : checkDescriptor(ref.descriptor).map(t -> "reference to " + ref + " uses unsupported type " + t).orElse(null);
+            } else {
+                problem = null;
+            }
+            if (problem != null)
+                problems.add(String.format("%s: %s in %s", at, problem, mn));
+        }
+        result.addAll(problems);
+    }
+
+    private String newarray(int atype) {
+        switch (atype) {
+            case 5:
+                return "char arrays are not supported";
+            case 6:
+            case 7:
+            case 11:
+                return "long, float and double arrays are not supported";
+            case 10:
+                return ints ? null : "int arrays require integer support (ints=\"true\")";
+            default:
+                return null;
+        }
+    }
+
+    private String ldc(ClassFile cls, int index) {
+        switch (cls.getConstantTag(index)) {
+            case ClassFile.CONSTANT_Float:
+                return "float constants are not supported (" + cls.getConstant(index) + ")";
+            case ClassFile.CONSTANT_String:
+                return "String literals are not supported (\"" + cls.getConstant(index) + "\")";
+            case ClassFile.CONSTANT_Class:
+                return "class literals are not supported (" + cls.getConstant(index) + ")";
+            case ClassFile.CONSTANT_Integer:
+                return ints ? null : "int constants require integer support (ints=\"true\"): " + cls.getConstant(index);
+            default:
+                return "constant type is not supported (tag " + cls.getConstantTag(index) + ")";
+        }
+    }
+
+    private String classRef(String name) {
+        String n = name.replaceFirst("^\\[+L?", "").replace(";", "");
+        if (n.equals("java/lang/String") || n.equals("java/lang/StringBuilder") || n.equals("java/lang/StringBuffer"))
+            return "strings are not supported (" + n.replace('/', '.') + ")";
+        if (n.startsWith("javacardx/framework/string/") && !target.isOneOf(V304, V305, V310, V320))
+            return n.replace('/', '.') + " requires JavaCard 3.0.4 or later (targeting " + target + ")";
+        if (name.startsWith("[["))
+            return "multidimensional arrays are not supported (" + name + ")";
+        return null;
+    }
+
+    // Returns the first unsupported type in a field or method descriptor
+    Optional<String> checkDescriptor(String descriptor) {
+        for (int i = 0; i < descriptor.length(); i++) {
+            char c = descriptor.charAt(i);
+            switch (c) {
+                case 'L':
+                    int end = descriptor.indexOf(';', i);
+                    if (descriptor.substring(i + 1, end).startsWith("java/lang/String"))
+                        return Optional.of(descriptor.substring(i + 1, end).replace('/', '.'));
+                    i = end;
+                    break;
+                case 'J':
+                    return Optional.of("long");
+                case 'F':
+                    return Optional.of("float");
+                case 'D':
+                    return Optional.of("double");
+                case 'C':
+                    return Optional.of("char");
+                case 'I':
+                    if (!ints)
+                        return Optional.of("int (requires ints=\"true\")");
+                    break;
+                case '[':
+                    if (i + 1 < descriptor.length() && descriptor.charAt(i + 1) == '[')
+                        return Optional.of("multidimensional array");
+                    break;
+                default:
+                    break;
+            }
+        }
+        return Optional.empty();
+    }
+}
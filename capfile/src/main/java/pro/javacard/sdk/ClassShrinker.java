@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Removes classes, methods and fields that can not be reached from applets (or the exported API) from the class
+ * files of a package, before conversion.
+ * <p>
+ * Starting from install() of applet classes, and public and protected members of public classes if the package
+ * is exported, everything that is referenced by reachable code is kept. Virtual calls keep the method in all
+ * reachable subclasses, and classes with a supertype from another package keep all their virtual methods, as
+ * they may be called by the framework. There is no reflection on JavaCard, so this is safe.
+ */
+public final class ClassShrinker {
+    static final String INSTALL = "install([BSB)V";
+    static final String CLINIT = "<clinit>()V";
+    static final String OBJECT = "java/lang/Object";
+
+    private final Path root;
+    private final String pkg; // internal form
+    private final Map<String, ClassFile> classes = new TreeMap<>();
+    private final Set<String> liveClasses = new LinkedHashSet<>();
+    private final Set<String> liveMethods = new HashSet<>(); // owner.name(descriptor)
+    private final Set<String> liveFields = new HashSet<>(); // owner.name
+    private final Set<String> virtualCalls = new HashSet<>(); // owner.name(descriptor) of call sites
+    private final Deque<String> todo = new ArrayDeque<>();
+    private final Map<String, byte[]> shrunk = new TreeMap<>();
+    private final List<String> removed = new ArrayList<>();
+    private int savedBytes = 0;
+    private int removedCode = 0;
+
+    private ClassShrinker(Path root, String pkg) {
+        this.root = root;
+        this.pkg = pkg;
+    }
+
+    /**
+     * Finds what can be removed from a package in a folder with compiled classes.
+     *
+     * @param classes root folder of compiled classes
+     * @param pkg     package name ("foo.bar")
+     * @param applets applet classes ("foo.bar.MyApplet")
+     * @param api     true to keep public and protected classes and members, for packages with an export file
+     */
+    public static ClassShrinker shrink(Path classes, String pkg, Collection<String> applets, boolean api) throws IOException {
+        ClassShrinker s = new ClassShrinker(classes, pkg.replace('.', '/'));
+        Path dir = classes.resolve(s.pkg);
+        if (!Files.isDirectory(dir))
+            throw new IOException("No such folder: " + dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList())) {
+                ClassFile cls = ClassFile.fromFile(p);
+                s.classes.put(cls.getName(), cls);
+            }
+        }
+        if (applets.isEmpty() && !api)
+            throw new IOException("Nothing to keep: no applets and no exported API");
+        for (String applet : applets) {
+            String name = applet.replace('.', '/');
+            if (!s.classes.containsKey(name))
+                throw new IOException("Applet class not found: " + applet);
+            s.markClass(name);
+            s.markMethod(name, INSTALL);
+        }
+        if (api) {
+            for (ClassFile cls : s.classes.values()) {
+                if ((cls.getAccess() & ClassFile.ACC_PUBLIC) == 0)
+                    continue;
+                s.markClass(cls.getName());
+                for (ClassFile.Member f : cls.getFields())
+                    if (isApi(f))
+                        s.markField(cls.getName(), f.name);
+                for (ClassFile.Member m : cls.getMethods())
+                    if (isApi(m))
+                        s.markMethod(cls.getName(), m.name + m.descriptor);
+            }
+        }
+        try {
+            while (!s.todo.isEmpty())
+                s.scan(s.todo.poll());
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed bytecode: " + e.getMessage(), e);
+        }
+        s.rewrite();
+        return s;
+    }
+
+    private static boolean isApi(ClassFile.Member m) {
+        return (m.access & (ClassFile.ACC_PUBLIC | ClassFile.ACC_PROTECTED)) != 0;
+    }
+
+    /**
+     * Removed classes and members, like "foo/bar/Util" and "foo/bar/Util.unused(S)V".
+     */
+    public List<String> getRemoved() {
+        return Collections.unmodifiableList(removed);
+    }
+
+    // Difference in size of class files of the package
+    public int getSavedBytes() {
+        return savedBytes;
+    }
+
+    // Bytecode and method headers of removed methods, estimate of the reduction of the Method component
+    public int getRemovedCodeSize() {
+        return removedCode;
+    }
+
+    /**
+     * Writes a copy of the classes folder with the shrunk package. Classes of other packages are copied as is.
+     */
+    public void write(Path to) throws IOException {
+        Path dir = root.resolve(pkg);
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(root)) {
+            files = s.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path p : files) {
+            if (p.getParent().equals(dir) && p.toString().endsWith(".class"))
+                continue;
+            Path target = to.resolve(root.relativize(p).toString());
+            Files.createDirectories(target.getParent());
+            Files.copy(p, target);
+        }
+        Path out = to.resolve(pkg);
+        Files.createDirectories(out);
+        for (Map.Entry<String, byte[]> e : shrunk.entrySet())
+            Files.write(out.resolve(e.getKey().substring(e.getKey().lastIndexOf('/') + 1) + ".class"), e.getValue());
+    }
+
+    private void markClass(String name) {
+        ClassFile cls = classes.get(name);
+        if (cls == null || !liveClasses.add(name))
+            return;
+        cls.getSuperName().ifPresent(this::markClass);
+        cls.getInterfaces().forEach(this::markClass);
+        boolean external = hasExternalSupertype(name, 0);
+        for (ClassFile.Member m : cls.getMethods()) {
+            String nt = m.name + m.descriptor;
+            if (nt.equals(CLINIT) || m.code == null || nt.equals("equals(Ljava/lang/Object;)Z"))
+                markMethod(name, nt);
+            else if (external && !m.isStatic() && (m.access & ClassFile.ACC_PRIVATE) == 0 && !m.name.equals("<init>"))
+                markMethod(name, nt);
+        }
+        // Calls that were seen before this class was reachable
+        for (String call : new ArrayList<>(virtualCalls)) {
+            int dot = call.lastIndexOf('.', call.indexOf('('));
+            if (isSubtype(name, call.substring(0, dot), 0))
+                markDeclared(name, call.substring(dot + 1));
+        }
+    }
+
+    private void markMethod(String owner, String nameAndType) {
+        if (!classes.containsKey(owner))
+            return;
+        String key = owner + "." + nameAndType;
+        if (liveMethods.add(key))
+            todo.add(key);
+    }
+
+    // Marks the method if declared in the class
+    private void markDeclared(String owner, String nameAndType) {
+        for (ClassFile.Member m : classes.get(owner).getMethods())
+            if ((m.name + m.descriptor).equals(nameAndType))
+                markMethod(owner, nameAndType);
+    }
+
+    // Marks the method where it is declared in the class or its superclasses
+    private void markResolved(String owner, String nameAndType) {
+        for (int depth = 0; owner != null && classes.containsKey(owner) && depth < 256; depth++) {
+            markClass(owner);
+            ClassFile cls = classes.get(owner);
+            for (ClassFile.Member m : cls.getMethods()) {
+                if ((m.name + m.descriptor).equals(nameAndType)) {
+                    markMethod(owner, nameAndType);
+                    return;
+                }
+            }
+            owner = cls.getSuperName().orElse(null);
+        }
+    }
+
+    private void markVirtual(String owner, String nameAndType) {
+        if (!classes.containsKey(owner) || !virtualCalls.add(owner + "." + nameAndType))
+            return;
+        markResolved(owner, nameAndType);
+        // Interface methods may be implemented in a superclass of the implementing class
+        for (String c : new ArrayList<>(liveClasses)) {
+            if (isSubtype(c, owner, 0)) {
+                for (String s = c; s != null && classes.containsKey(s); s = classes.get(s).getSuperName().orElse(null))
+                    markDeclared(s, nameAndType);
+            }
+        }
+    }
+
+    private void markField(String owner, String name) {
+        for (int depth = 0; owner != null && classes.containsKey(owner) && depth < 256; depth++) {
+            ClassFile cls = classes.get(owner);
+            for (ClassFile.Member f : cls.getFields()) {
+                if (f.name.equals(name)) {
+                    if (liveFields.add(owner + "." + name))
+                        markDescriptor(f.descriptor);
+                    return;
+                }
+            }
+            for (String i : cls.getInterfaces()) // Constants in interfaces
+                markField(i, name);
+            owner = cls.getSuperName().orElse(null);
+        }
+    }
+
+    private void markDescriptor(String descriptor) {
+        for (int i = descriptor.indexOf('L'); i >= 0; i = descriptor.indexOf('L', i)) {
+            int end = descriptor.indexOf(';', i);
+            markClass(descriptor.substring(i + 1, end));
+            i = end;
+        }
+    }
+
+    private void markType(String type) {
+        // Array classes are in descriptor form
+        if (type.startsWith("["))
+            markDescriptor(type);
+        else
+            markClass(type);
+    }
+
+    private boolean isSubtype(String name, String base, int depth) {
+        if (name.equals(base))
+            return true;
+        ClassFile cls = classes.get(name);
+        if (cls == null || depth > 256)
+            return false;
+        if (cls.getSuperName().map(s -> isSubtype(s, base, depth + 1)).orElse(false))
+            return true;
+        for (String i : cls.getInterfaces())
+            if (isSubtype(i, base, depth + 1))
+                return true;
+        return false;
+    }
+
+    private boolean hasExternalSupertype(String name, int depth) {
+        ClassFile cls = classes.get(name);
+        if (cls == null)
+            return !name.equals(OBJECT);
+        if (depth > 256)
+            return true;
+        if (cls.getSuperName().map(s -> hasExternalSupertype(s, depth + 1)).orElse(false))
+            return true;
+        for (String i : cls.getInterfaces())
+            if (hasExternalSupertype(i, depth + 1))
+                return true;
+        return false;
+    }
+
+    private void scan(String key) {
+        int dot = key.lastIndexOf('.', key.indexOf('('));
+        String owner = key.substring(0, dot);
+        String nameAndType = key.substring(dot + 1);
+        ClassFile cls = classes.get(owner);
+        markClass(owner);
+        ClassFile.Member method = null;
+        for (ClassFile.Member m : cls.getMethods())
+            if ((m.name + m.descriptor).equals(nameAndType))
+                method = m;
+        if (method == null)
+            return;
+        markDescriptor(method.descriptor);
+        if (method.code == null)
+            return;
+        byte[] code = method.code.code;
+        int[] handlers = method.code.handlers;
+        for (int i = 3; i < handlers.length; i += 4)
+            if (handlers[i] != 0)
+                markClass(cls.className(handlers[i]));
+        for (int pc = 0; pc < code.length; pc += ClassFile.instructionLength(code, pc)) {
+            int op = code[pc] & 0xFF;
+            switch (op) {
+                case 18: // ldc
+                case 19: { // ldc_w
+                    int index = op == 18 ? code[pc + 1] & 0xFF : ClassFile.u2(code, pc + 1);
+                    if (cls.getConstantTag(index) == ClassFile.CONSTANT_Class)
+                        markType(cls.className(index));
+                    break;
+                }
+                case 178:
+                case 179:
+                case 180:
+                case 181: { // field access
+                    ClassFile.Ref r = cls.ref(ClassFile.u2(code, pc + 1));
+                    markClass(r.owner);
+                    markField(r.owner, r.name);
+                    markDescriptor(r.descriptor);
+                    break;
+                }
+                case 182:
+                case 185: { // invokevirtual, invokeinterface
+                    ClassFile.Ref r = cls.ref(ClassFile.u2(code, pc + 1));
+                    markType(r.owner);
+                    markDescriptor(r.descriptor);
+                    markVirtual(r.owner, r.name + r.descriptor);
+                    break;
+                }
+                case 183: { // invokespecial
+                    ClassFile.Ref r = cls.ref(ClassFile.u2(code, pc + 1));
+                    markClass(r.owner);
+                    markDescriptor(r.descriptor);
+                    if (r.name.equals("<init>"))
+                        markMethod(r.owner, r.name + r.descriptor);
+                    else
+                        markResolved(r.owner, r.name + r.descriptor);
+                    break;
+                }
+                case 184: { // invokestatic
+                    ClassFile.Ref r = cls.ref(ClassFile.u2(code, pc + 1));
+                    markClass(r.owner);
+                    markDescriptor(r.descriptor);
+                    markResolved(r.owner, r.name + r.descriptor);
+                    break;
+                }
+                case 187:
+                case 189:
+                case 192:
+                case 193:
+                case 197: // new, anewarray, checkcast, instanceof, multianewarray
+                    markType(cls.className(ClassFile.u2(code, pc + 1)));
+                    break;
+                default:
+            }
+        }
+    }
+
+    // Creates shrunk class files of reachable classes
+    private void rewrite() {
+        for (ClassFile cls : classes.values()) {
+            byte[] bytes = cls.getBytes();
+            if (!liveClasses.contains(cls.getName())) {
+                removed.add(cls.getName());
+                savedBytes += bytes.length;
+                for (ClassFile.Member m : cls.getMethods())
+                    removedCode += codeSize(m);
+                continue;
+            }
+            List<ClassFile.Member> fields = new ArrayList<>();
+            List<ClassFile.Member> methods = new ArrayList<>();
+            Set<ClassFile.Member> drop = new HashSet<>();
+            for (ClassFile.Member f : cls.getFields()) {
+                if (liveFields.contains(cls.getName() + "." + f.name))
+                    fields.add(f);
+                else
+                    drop.add(f);
+            }
+            for (ClassFile.Member m : cls.getMethods()) {
+                if (liveMethods.contains(cls.getName() + "." + m.name + m.descriptor)) {
+                    methods.add(m);
+                } else {
+                    drop.add(m);
+                    removedCode += codeSize(m);
+                }
+            }
+            if (drop.isEmpty()) {
+                shrunk.put(cls.getName(), bytes);
+                continue;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+            int pos = copyCount(out, bytes, 0, cls.fieldsOffset, fields.size());
+            for (ClassFile.Member f : cls.getFields()) {
+                if (drop.contains(f)) {
+                    out.write(bytes, pos, f.start - pos);
+                    pos = f.end;
+                    removed.add(cls.getName() + "." + f.name);
+                }
+            }
+            pos = copyCount(out, bytes, pos, cls.methodsOffset, methods.size());
+            for (ClassFile.Member m : cls.getMethods()) {
+                if (drop.contains(m)) {
+                    out.write(bytes, pos, m.start - pos);
+                    pos = m.end;
+                    removed.add(cls.getName() + "." + m.name + m.descriptor);
+                }
+            }
+            out.write(bytes, pos, bytes.length - pos);
+            byte[] result = out.toByteArray();
+            savedBytes += bytes.length - result.length;
+            shrunk.put(cls.getName(), result);
+        }
+    }
+
+    // Copies bytes up to a count, writes the new count instead of the old one
+    private static int copyCount(ByteArrayOutputStream out, byte[] bytes, int pos, int offset, int count) {
+        out.write(bytes, pos, offset - pos);
+        out.write(count >> 8);
+        out.write(count);
+        return offset + 2;
+    }
+
+    private static int codeSize(ClassFile.Member m) {
+        return m.code == null ? 0 : m.code.code.length + 2;
+    }
+}
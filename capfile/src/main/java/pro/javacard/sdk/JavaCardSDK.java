@@ -104,6 +104,8 @@ public final class JavaCardSDK {
     private final List<Path> apiJars;
     private final List<Path> toolJars;
     private final List<Path> compilerJars;
+    private volatile boolean warm = false;
+    private volatile ClassLoader loader = null;
 
     private JavaCardSDK(Path root, SDKVersion version, Path exportDir, List<Path> apiJars, List<Path> toolJars, List<Path> compilerJars) {
         this.path = root;
@@ -146,7 +148,8 @@ public final class JavaCardSDK {
             apiJars.add(Paths.get("lib", "api_classic-" + targetVersion.v + ".jar"));
             apiJars.add(Paths.get("lib", "api_classic_annotations-" + targetVersion.v + ".jar"));
             Path exportPath = Paths.get("api_export_files_" + targetVersion.v);
-            return new JavaCardSDK(path, targetVersion, exportPath, apiJars, toolJars, compilerJars);
+            JavaCardSDK sdk = new JavaCardSDK(path, targetVersion, exportPath, apiJars, toolJars, compilerJars);
+            return warm ? sdk.warm() : sdk;
         } else {
             throw new IllegalStateException("Can not target " + targetVersion + " with " + version);
         }
@@ -171,9 +174,28 @@ public final class JavaCardSDK {
         }
     }
 
-    // Returns the classloader of verifier
-    @SuppressWarnings("removal") // AccessController
+    // Keeps the classloader of verifier once created, so that loaded classes stay warm for further use of this SDK.
+    // For long running builds (watch mode, daemon), where the same SDK verifies again and again.
+    public JavaCardSDK warm() {
+        warm = true;
+        return this;
+    }
+
+    // Returns the classloader of verifier, a new one unless the SDK is warm
     public ClassLoader getClassLoader() {
+        if (!warm)
+            return createClassLoader();
+        if (loader == null) {
+            synchronized (this) {
+                if (loader == null)
+                    loader = createClassLoader();
+            }
+        }
+        return loader;
+    }
+
+    @SuppressWarnings("removal") // AccessController
+    private ClassLoader createClassLoader() {
         return java.security.AccessController.doPrivileged(new PrivilegedAction<URLClassLoader>() {
             public URLClassLoader run() {
                 try {
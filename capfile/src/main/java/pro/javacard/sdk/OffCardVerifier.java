@@ -22,6 +22,9 @@
 package pro.javacard.sdk;
 
 import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.CAPValidator;
+import pro.javacard.jfr.Span;
+import pro.javacard.jfr.Trace;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
@@ -73,47 +76,57 @@ public final class OffCardVerifier {
 
     // Verify a given CAP file against a set of EXP files
     public void verify(Path f, List<Path> exps) throws VerifierError, IOException {
-        Path tmp = Files.createTempDirectory("capfile");
-        try (InputStream in = Files.newInputStream(f)) {
-            CAPFile cap = CAPFile.fromStream(in);
-
-            // Get verifier class
-            Class<?> verifier = Class.forName("com.sun.javacard.offcardverifier.Verifier", true, sdk.getClassLoader());
-
-            // Verifier takes a vector of files, so collect
-            final Vector<File> expfiles = new Vector<>();
-            for (Path e : exps) {
-                // collect all export files to a list
-                if (Files.isDirectory(e)) {
-                    expfiles.addAll(Files.walk(e.toRealPath()).filter(p -> p.toString().endsWith(".exp")).map(Path::toFile).collect(Collectors.toList()));
-                } else if (Files.isReadable(e)) {
-                    if (e.toString().endsWith(".exp")) {
-                        expfiles.add(e.toFile());
-                    } else if (e.toString().endsWith(".jar")) {
-                        expfiles.addAll(extractExps(e, tmp).stream().map(Path::toFile).collect(Collectors.toList()));
+        try (Span span = Trace.verify()) {
+            Path tmp = Files.createTempDirectory("capfile");
+            try (InputStream in = Files.newInputStream(f)) {
+                CAPFile cap = CAPFile.fromStream(in);
+                if (span.enabled()) {
+                    span.packageAID(cap.getPackageAID().toString()).sdk(sdk.getVersion().toString()).read(Files.size(f));
+                }
+
+                // Fail fast on structurally broken files, before loading the SDK
+                List<String> problems = CAPValidator.validate(cap);
+                if (!problems.isEmpty())
+                    throw new VerifierError("Invalid CAP file structure: " + String.join("; ", problems));
+
+                // Get verifier class
+                Class<?> verifier = Class.forName("com.sun.javacard.offcardverifier.Verifier", true, sdk.getClassLoader());
+
+                // Verifier takes a vector of files, so collect
+                final Vector<File> expfiles = new Vector<>();
+                for (Path e : exps) {
+                    // collect all export files to a list
+                    if (Files.isDirectory(e)) {
+                        expfiles.addAll(Files.walk(e.toRealPath()).filter(p -> p.toString().endsWith(".exp")).map(Path::toFile).collect(Collectors.toList()));
+                    } else if (Files.isReadable(e)) {
+                        if (e.toString().endsWith(".exp")) {
+                            expfiles.add(e.toFile());
+                        } else if (e.toString().endsWith(".jar")) {
+                            expfiles.addAll(extractExps(e, tmp).stream().map(Path::toFile).collect(Collectors.toList()));
+                        }
                     }
                 }
-            }
 
-            String packagename = cap.getPackageName();
+                String packagename = cap.getPackageName();
 
-            try (FileInputStream input = new FileInputStream(f.toFile())) {
-                // 3.0.5u1 still uses old signature
-                if (sdk.getRelease().equals("3.0.5u3") || sdk.getRelease().equals("3.0.5u2") || sdk.getVersion().isOneOf(V310, V320)) {
-                    Method m = verifier.getMethod("verifyCap", File.class, String.class, Vector.class);
-                    m.invoke(null, f.toFile(), packagename, expfiles);
-                } else {
-                    Method m = verifier.getMethod("verifyCap", FileInputStream.class, String.class, Vector.class);
-                    m.invoke(null, input, packagename, expfiles);
+                try (FileInputStream input = new FileInputStream(f.toFile())) {
+                    // 3.0.5u1 still uses old signature
+                    if (sdk.getRelease().equals("3.0.5u3") || sdk.getRelease().equals("3.0.5u2") || sdk.getVersion().isOneOf(V310, V320)) {
+                        Method m = verifier.getMethod("verifyCap", File.class, String.class, Vector.class);
+                        m.invoke(null, f.toFile(), packagename, expfiles);
+                    } else {
+                        Method m = verifier.getMethod("verifyCap", FileInputStream.class, String.class, Vector.class);
+                        m.invoke(null, input, packagename, expfiles);
+                    }
+                } catch (InvocationTargetException e) {
+                    throw new VerifierError(e.getTargetException().getMessage(), e.getTargetException());
                 }
-            } catch (InvocationTargetException e) {
-                throw new VerifierError(e.getTargetException().getMessage(), e.getTargetException());
+            } catch (ReflectiveOperationException | IOException e) {
+                throw new RuntimeException("Could not run verifier: " + e.getMessage());
+            } finally {
+                // Clean extracted exps
+                rmminusrf(tmp);
             }
-        } catch (ReflectiveOperationException | IOException e) {
-            throw new RuntimeException("Could not run verifier: " + e.getMessage());
-        } finally {
-            // Clean extracted exps
-            rmminusrf(tmp);
         }
     }
 
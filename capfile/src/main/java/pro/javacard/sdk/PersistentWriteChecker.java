@@ -0,0 +1,889 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.sdk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Finds writes to persistent memory on the APDU processing paths of applets.
+ * <p>
+ * Starting from process(APDU) of every applet class, calls within the package are followed and every store to a
+ * field, and every store to an array that was not created with JCSystem.makeTransient*Array() (or is not the
+ * APDU buffer), is reported. Persistent writes are much slower than writes to RAM and wear the chip.
+ * <p>
+ * Array references are tracked through locals, fields, the operand stack and method arguments. Arrays of unknown
+ * origin (return values, elements of object arrays) are not reported. Write counts are static: every write
+ * instruction and call site is counted once, loops are only marked.
+ */
+public final class PersistentWriteChecker {
+    static final String APPLET = "javacard/framework/Applet";
+    static final String PROCESS = "process(Ljavacard/framework/APDU;)V";
+
+    // Labels of reference values, besides field names
+    static final String TRANSIENT = "transient";
+    static final String NEW = "new";
+    static final String UNKNOWN = "?";
+
+    // Library methods that write to an array argument: owner.name -> argument index
+    static final Map<String, Integer> ARRAY_WRITERS = new HashMap<>();
+
+    static {
+        ARRAY_WRITERS.put("javacard/framework/Util.arrayCopy", 2);
+        ARRAY_WRITERS.put("javacard/framework/Util.arrayCopyNonAtomic", 2);
+        ARRAY_WRITERS.put("javacard/framework/Util.arrayFill", 0);
+        ARRAY_WRITERS.put("javacard/framework/Util.arrayFillNonAtomic", 0);
+        ARRAY_WRITERS.put("javacard/framework/Util.setShort", 0);
+        ARRAY_WRITERS.put("javacard/security/RandomData.generateData", 0);
+        ARRAY_WRITERS.put("javacard/security/RandomData.nextBytes", 0);
+        ARRAY_WRITERS.put("javacard/security/MessageDigest.doFinal", 3);
+        ARRAY_WRITERS.put("javacard/security/Signature.sign", 3);
+        ARRAY_WRITERS.put("javacardx/crypto/Cipher.doFinal", 3);
+        ARRAY_WRITERS.put("javacardx/crypto/Cipher.update", 3);
+    }
+
+    private final Map<String, ClassFile> classes = new LinkedHashMap<>();
+    private final Set<String> transientFields = new HashSet<>();
+    private final Map<String, String[]> entries = new LinkedHashMap<>();
+    private final Map<String, Analysis> analyzed = new LinkedHashMap<>();
+    private final Map<String, String> roots = new LinkedHashMap<>(); // applet class -> process() key
+    private final Map<String, Map<String, Integer>> paths = new LinkedHashMap<>();
+    private final Map<String, Integer> totals = new HashMap<>();
+
+    /**
+     * Persistent write found on an APDU path.
+     */
+    public static final class Write {
+        final String method;
+        final String where;
+        final int line;
+        final String target;
+        final boolean loop;
+
+        Write(String method, String where, int line, String target, boolean loop) {
+            this.method = method;
+            this.where = where;
+            this.line = line;
+            this.target = target;
+            this.loop = loop;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        // Source file, relative to the root of sources
+        public String getSource() {
+            return where;
+        }
+
+        // Source line, -1 if not known
+        public int getLine() {
+            return line;
+        }
+
+        // Written field or array, like "field Wallet.balance" or "array Wallet.log"
+        public String getTarget() {
+            return target;
+        }
+
+        public boolean isInLoop() {
+            return loop;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s:%d: persistent write to %s in %s%s", where, line, target, method, loop ? " (in a loop)" : "");
+        }
+    }
+
+    // Per-instruction results of a method
+    private static final class Analysis {
+        final ClassFile cls;
+        final ClassFile.Member method;
+        final ClassFile.Code code;
+        final String name;
+        final Frame[] frames;
+        final Map<Integer, String> writes = new TreeMap<>(); // pc -> target, persistent only
+        final Map<Integer, String> calls = new TreeMap<>(); // pc -> method key
+        final Set<Integer> loops = new HashSet<>();
+
+        Analysis(ClassFile cls, ClassFile.Member method) {
+            this.cls = cls;
+            this.method = method;
+            this.code = method.code;
+            this.name = simpleName(cls.getName()) + "." + method.name + "()";
+            this.frames = new Frame[code.code.length];
+        }
+    }
+
+    // Labels of local variables and operand stack, one per slot; null for values that are not tracked
+    private static final class Frame {
+        final String[] locals;
+        final ArrayList<String> stack;
+
+        Frame(String[] locals, List<String> stack) {
+            this.locals = locals.clone();
+            this.stack = new ArrayList<>(stack);
+        }
+
+        Frame copy() {
+            return new Frame(locals, stack);
+        }
+
+        void push(String v) {
+            stack.add(v);
+        }
+
+        String pop() {
+            return stack.remove(stack.size() - 1);
+        }
+
+        void pop(int n) {
+            for (int i = 0; i < n; i++)
+                pop();
+        }
+
+        void push(int n) {
+            for (int i = 0; i < n; i++)
+                push(null);
+        }
+
+        // Merges other frame into this one, returns true if anything changed
+        boolean merge(Frame other) {
+            boolean changed = false;
+            for (int i = 0; i < locals.length; i++) {
+                String m = union(locals[i], other.locals[i]);
+                changed |= !equal(m, locals[i]);
+                locals[i] = m;
+            }
+            for (int i = 0; i < Math.min(stack.size(), other.stack.size()); i++) {
+                String m = union(stack.get(i), other.stack.get(i));
+                changed |= !equal(m, stack.get(i));
+                stack.set(i, m);
+            }
+            return changed;
+        }
+    }
+
+    private PersistentWriteChecker() {
+    }
+
+    /**
+     * Checks a package in a folder with compiled classes.
+     *
+     * @param classes root folder of compiled classes
+     * @param pkg     package name ("foo.bar")
+     * @param applets applet classes ("foo.bar.MyApplet"), or empty to use all subclasses of Applet in the package
+     */
+    public static PersistentWriteChecker check(Path classes, String pkg, Collection<String> applets) throws IOException {
+        Path dir = classes.resolve(pkg.replace('.', '/'));
+        if (!Files.isDirectory(dir))
+            throw new IOException("No such folder: " + dir);
+        List<ClassFile> files = new ArrayList<>();
+        try (Stream<Path> s = Files.list(dir)) {
+            for (Path p : s.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList()))
+                files.add(ClassFile.fromFile(p));
+        }
+        return check(files, applets);
+    }
+
+    /**
+     * Checks a set of classes of a package.
+     *
+     * @param applets applet classes ("foo.bar.MyApplet"), or empty to use all subclasses of Applet
+     */
+    public static PersistentWriteChecker check(Collection<ClassFile> classes, Collection<String> applets) throws IOException {
+        PersistentWriteChecker c = new PersistentWriteChecker();
+        for (ClassFile cls : classes)
+            c.classes.put(cls.getName(), cls);
+        c.findTransientFields();
+        List<String> names = applets.stream().map(a -> a.replace('.', '/')).collect(Collectors.toList());
+        if (names.isEmpty()) {
+            for (String n : c.classes.keySet())
+                if (c.isApplet(n))
+                    names.add(n);
+        }
+        for (String n : names) {
+            if (!c.classes.containsKey(n))
+                throw new IOException("Applet class not found: " + n.replace('/', '.'));
+            String process = c.resolve(n, PROCESS);
+            if (process != null)
+                c.roots.put(n.replace('/', '.'), process);
+        }
+        try {
+            c.run();
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed bytecode: " + e.getMessage(), e);
+        }
+        return c;
+    }
+
+    /**
+     * Persistent writes reachable from process() of any applet, in the order of classes and bytecode.
+     */
+    public List<Write> getWrites() {
+        List<Write> result = new ArrayList<>();
+        for (Analysis a : analyzed.values()) {
+            String pkgdir = ClassFile.packageOf(a.cls.getName());
+            String file = a.cls.getSourceFile().orElse(simpleName(a.cls.getName()) + ".class");
+            String where = pkgdir.isEmpty() ? file : pkgdir + "/" + file;
+            for (Map.Entry<Integer, String> w : a.writes.entrySet())
+                result.add(new Write(a.name, where, a.code.line(w.getKey()), w.getValue(), a.loops.contains(w.getKey())));
+        }
+        return result;
+    }
+
+    /**
+     * Number of persistent writes per APDU path of every applet.
+     * <p>
+     * If process() has a switch statement, paths are the cases of the first switch, with the code before the
+     * switch included in every case. Every write instruction and call site is counted once, also in loops.
+     *
+     * @return applet class -> path ("process()", "case 0xCA", "default") -> write count
+     */
+    public Map<String, Map<String, Integer>> getPathWrites() {
+        return Collections.unmodifiableMap(paths);
+    }
+
+    // Human readable summary of paths
+    public List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Integer>> e : paths.entrySet()) {
+            lines.add(String.format("%s.process(): %s", e.getKey(), e.getValue().entrySet().stream()
+                    .map(p -> p.getKey() + " " + p.getValue()).collect(Collectors.joining(", "))));
+        }
+        return lines;
+    }
+
+    private boolean isApplet(String name) {
+        for (int depth = 0; name != null && depth < 256; depth++) {
+            ClassFile cls = classes.get(name);
+            if (cls == null)
+                return false;
+            String sup = cls.getSuperName().orElse(null);
+            if (APPLET.equals(sup))
+                return true;
+            name = sup;
+        }
+        return false;
+    }
+
+    // Method key of a non-abstract method, looked up in the class and its superclasses within the package
+    private String resolve(String owner, String nameAndType) {
+        for (int depth = 0; owner != null && depth < 256; depth++) {
+            ClassFile cls = classes.get(owner);
+            if (cls == null)
+                return null;
+            for (ClassFile.Member m : cls.getMethods()) {
+                if ((m.name + m.descriptor).equals(nameAndType))
+                    return m.code == null ? null : owner + "." + nameAndType;
+            }
+            owner = cls.getSuperName().orElse(null);
+        }
+        return null;
+    }
+
+    // Fields that are only ever assigned the result of JCSystem.makeTransient*() or null
+    private void findTransientFields() {
+        Set<String> assigned = new HashSet<>();
+        for (ClassFile cls : classes.values()) {
+            for (ClassFile.Member m : cls.getMethods()) {
+                if (m.code == null)
+                    continue;
+                byte[] code = m.code.code;
+                int prev = -1;
+                int prevprev = -1;
+                for (int pc = 0; pc < code.length; pc += ClassFile.instructionLength(code, pc)) {
+                    int op = code[pc] & 0xFF;
+                    if (op == 179 || op == 181) { // putstatic, putfield
+                        ClassFile.Ref r = cls.ref(ClassFile.u2(code, pc + 1));
+                        String field = fieldName(r.owner, r.name);
+                        int source = prev >= 0 && (code[prev] & 0xFF) == 192 ? prevprev : prev; // skip checkcast
+                        if (source >= 0 && (code[source] & 0xFF) == 184 && isTransientSource(cls.ref(ClassFile.u2(code, source + 1))))
+                            transientFields.add(field);
+                        else if (source < 0 || (code[source] & 0xFF) != 1) // aconst_null
+                            assigned.add(field);
+                    }
+                    prevprev = prev;
+                    prev = pc;
+                }
+            }
+        }
+        transientFields.removeAll(assigned);
+    }
+
+    static boolean isTransientSource(ClassFile.Ref r) {
+        if (r.owner.equals("javacard/framework/JCSystem"))
+            return r.name.startsWith("makeTransient") || r.name.equals("makeGlobalArray");
+        return r.owner.equals("javacard/framework/APDU") && r.name.equals("getBuffer");
+    }
+
+    private void run() {
+        Deque<String> todo = new ArrayDeque<>();
+        for (String key : roots.values()) {
+            Analysis a = create(key);
+            String[] entry = new String[a.code.maxLocals];
+            int slot = a.method.isStatic() ? 0 : 1;
+            for (String type : argumentTypes(a.method.descriptor)) {
+                if (type.startsWith("[") || type.startsWith("L"))
+                    entry[slot] = UNKNOWN;
+                slot += size(type);
+            }
+            entries.put(key, entry);
+            todo.add(key);
+        }
+        while (!todo.isEmpty()) {
+            String key = todo.poll();
+            Analysis a = analyzed.containsKey(key) ? analyzed.get(key) : create(key);
+            for (String callee : interpret(a, entries.get(key))) {
+                if (!todo.contains(callee))
+                    todo.add(callee);
+            }
+        }
+        for (Map.Entry<String, String> root : roots.entrySet())
+            paths.put(root.getKey(), paths(root.getValue()));
+    }
+
+    private Analysis create(String key) {
+        int dot = key.lastIndexOf('.', key.indexOf('('));
+        ClassFile cls = classes.get(key.substring(0, dot));
+        String nameAndType = key.substring(dot + 1);
+        for (ClassFile.Member m : cls.getMethods()) {
+            if ((m.name + m.descriptor).equals(nameAndType)) {
+                Analysis a = new Analysis(cls, m);
+                analyzed.put(key, a);
+                return a;
+            }
+        }
+        throw new IllegalStateException("Method not found: " + key);
+    }
+
+    // Interprets a method with given labels of arguments, returns callees whose argument labels changed
+    private List<String> interpret(Analysis a, String[] entry) {
+        byte[] code = a.code.code;
+        int[] handlers = a.code.handlers;
+        Arrays.fill(a.frames, null);
+        a.frames[0] = new Frame(entry, Collections.emptyList());
+        Map<String, String[]> arguments = new LinkedHashMap<>();
+        Deque<Integer> work = new ArrayDeque<>();
+        work.add(0);
+        while (!work.isEmpty()) {
+            int pc = work.poll();
+            Frame f = a.frames[pc].copy();
+            String[] before = f.locals.clone();
+            List<Integer> next = execute(a, pc, f, arguments);
+            for (int i = 0; i < handlers.length; i += 4) {
+                if (pc >= handlers[i] && pc < handlers[i + 1])
+                    flow(a, handlers[i + 2], new Frame(before, Collections.singletonList(UNKNOWN)), work);
+            }
+            for (int target : next) {
+                if (target <= pc)
+                    for (int l = target; l <= pc; l++)
+                        a.loops.add(l);
+                flow(a, target, f, work);
+            }
+        }
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String[]> e : arguments.entrySet()) {
+            String[] previous = entries.get(e.getKey());
+            if (previous == null) {
+                entries.put(e.getKey(), e.getValue());
+                changed.add(e.getKey());
+            } else {
+                Frame p = new Frame(previous, Collections.emptyList());
+                if (p.merge(new Frame(e.getValue(), Collections.emptyList()))) {
+                    entries.put(e.getKey(), p.locals);
+                    changed.add(e.getKey());
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static void flow(Analysis a, int target, Frame f, Deque<Integer> work) {
+        if (a.frames[target] == null) {
+            a.frames[target] = f.copy();
+            work.add(target);
+        } else if (a.frames[target].merge(f) && !work.contains(target)) {
+            work.add(target);
+        }
+    }
+
+    // Executes the instruction at pc on the frame, returns the offsets of following instructions
+    private List<Integer> execute(Analysis a, int pc, Frame f, Map<String, String[]> arguments) {
+        byte[] code = a.code.code;
+        int op = code[pc] & 0xFF;
+        int length = ClassFile.instructionLength(code, pc);
+        List<Integer> next = new ArrayList<>();
+        next.add(pc + length);
+        if (op == 196) { // wide
+            op = code[pc + 1] & 0xFF;
+            if (op != 132)
+                local(f, op, ClassFile.u2(code, pc + 2));
+            return next;
+        }
+        if (op >= 21 && op <= 25 || op >= 54 && op <= 58) {
+            local(f, op, code[pc + 1] & 0xFF);
+            return next;
+        }
+        if (op >= 26 && op <= 45) {
+            local(f, 21 + (op - 26) / 4, (op - 26) % 4);
+            return next;
+        }
+        if (op >= 59 && op <= 78) {
+            local(f, 54 + (op - 59) / 4, (op - 59) % 4);
+            return next;
+        }
+        if (op >= 79 && op <= 86) { // xastore
+            int value = op == 80 || op == 82 ? 2 : 1;
+            String array = f.stack.get(f.stack.size() - 2 - value);
+            write(a, pc, array);
+            f.pop(2 + value);
+            return next;
+        }
+        switch (op) {
+            case 50: // aaload
+                f.pop(2);
+                f.push(UNKNOWN);
+                break;
+            case 89: // dup
+                f.push(f.stack.get(f.stack.size() - 1));
+                break;
+            case 90: { // dup_x1
+                String v1 = f.pop(), v2 = f.pop();
+                f.stack.addAll(Arrays.asList(v1, v2, v1));
+                break;
+            }
+            case 91: { // dup_x2
+                String v1 = f.pop(), v2 = f.pop(), v3 = f.pop();
+                f.stack.addAll(Arrays.asList(v1, v3, v2, v1));
+                break;
+            }
+            case 92: { // dup2
+                String v1 = f.pop(), v2 = f.pop();
+                f.stack.addAll(Arrays.asList(v2, v1, v2, v1));
+                break;
+            }
+            case 93: { // dup2_x1
+                String v1 = f.pop(), v2 = f.pop(), v3 = f.pop();
+                f.stack.addAll(Arrays.asList(v2, v1, v3, v2, v1));
+                break;
+            }
+            case 94: { // dup2_x2
+                String v1 = f.pop(), v2 = f.pop(), v3 = f.pop(), v4 = f.pop();
+                f.stack.addAll(Arrays.asList(v2, v1, v4, v3, v2, v1));
+                break;
+            }
+            case 95: { // swap
+                String v1 = f.pop(), v2 = f.pop();
+                f.stack.addAll(Arrays.asList(v1, v2));
+                break;
+            }
+            case 132: // iinc
+                break;
+            case 167: // goto
+                next.set(0, pc + (short) ClassFile.u2(code, pc + 1));
+                break;
+            case 200: // goto_w
+                next.set(0, pc + ClassFile.s4(code, pc + 1));
+                break;
+            case 168: // jsr
+            case 169: // ret
+            case 201: // jsr_w, not supported by JavaCard
+            case 172:
+            case 173:
+            case 174:
+            case 175:
+            case 176:
+            case 177: // returns
+            case 191: // athrow
+                next.clear();
+                break;
+            case 170:
+            case 171: // tableswitch, lookupswitch
+                f.pop();
+                next.clear();
+                next.addAll(switchTargets(code, pc).values());
+                break;
+            case 178:
+            case 180: { // getstatic, getfield
+                ClassFile.Ref r = a.cls.ref(ClassFile.u2(code, pc + 1));
+                if (op == 180)
+                    f.pop();
+                String field = fieldName(r.owner, r.name);
+                if (r.descriptor.startsWith("["))
+                    f.push(transientFields.contains(field) ? TRANSIENT : field);
+                else if (r.descriptor.startsWith("L"))
+                    f.push(UNKNOWN);
+                else
+                    f.push(size(r.descriptor));
+                break;
+            }
+            case 179:
+            case 181: { // putstatic, putfield
+                ClassFile.Ref r = a.cls.ref(ClassFile.u2(code, pc + 1));
+                f.pop(size(r.descriptor) + (op == 181 ? 1 : 0));
+                String field = fieldName(r.owner, r.name);
+                if (!transientFields.contains(field))
+                    a.writes.put(pc, "field " + field);
+                break;
+            }
+            case 182:
+            case 183:
+            case 184:
+            case 185:
+            case 186: { // invokes
+                invoke(a, pc, op, f, arguments);
+                break;
+            }
+            case 187: // new
+                f.push(UNKNOWN);
+                break;
+            case 188:
+            case 189: // newarray, anewarray
+                f.pop();
+                f.push(NEW);
+                break;
+            case 197: // multianewarray
+                f.pop(code[pc + 3] & 0xFF);
+                f.push(NEW);
+                break;
+            case 192: // checkcast
+                break;
+            default: {
+                int[] effect = EFFECTS[op];
+                if (effect == null)
+                    throw new IndexOutOfBoundsException(String.format("opcode 0x%02X at %d in %s", op, pc, a.name));
+                f.pop(effect[0]);
+                f.push(effect[1]);
+                if (op >= 153 && op <= 166 || op == 198 || op == 199)
+                    next.add(pc + (short) ClassFile.u2(code, pc + 1));
+            }
+        }
+        return next;
+    }
+
+    // xload or xstore (as the 21..25 and 54..58 forms) of a local
+    private static void local(Frame f, int op, int index) {
+        if (op == 25) {
+            f.push(f.locals[index]);
+        } else if (op >= 21 && op <= 24) {
+            f.push(op == 22 || op == 24 ? 2 : 1);
+        } else if (op == 58) {
+            f.locals[index] = f.pop();
+        } else {
+            int size = op == 55 || op == 57 ? 2 : 1;
+            f.pop(size);
+            for (int i = 0; i < size; i++)
+                f.locals[index + i] = null;
+        }
+    }
+
+    private void invoke(Analysis a, int pc, int op, Frame f, Map<String, String[]> arguments) {
+        byte[] code = a.code.code;
+        ClassFile.Ref r = op == 186 ? null : a.cls.ref(ClassFile.u2(code, pc + 1));
+        String descriptor = op == 186 ? a.cls.utf8(invokeDynamicType(a.cls, ClassFile.u2(code, pc + 1))) : r.descriptor;
+        List<String> types = argumentTypes(descriptor);
+        int slots = op == 184 || op == 186 ? 0 : 1;
+        for (String t : types)
+            slots += size(t);
+        List<String> args = new ArrayList<>(f.stack.subList(f.stack.size() - slots, f.stack.size()));
+        f.pop(slots);
+        if (r != null) {
+            Integer written = ARRAY_WRITERS.get(r.owner + "." + r.name);
+            if (written != null && written < types.size()) {
+                int slot = op == 184 ? 0 : 1;
+                for (int i = 0; i < written; i++)
+                    slot += size(types.get(i));
+                write(a, pc, args.get(slot), simpleName(r.owner) + "." + r.name + "()");
+            }
+            String callee = op == 185 ? null : resolve(r.owner, r.name + r.descriptor);
+            if (callee != null) {
+                a.calls.put(pc, callee);
+                String[] entry = arguments.get(callee);
+                Analysis target = analyzed.get(callee);
+                int locals = target == null ? maxLocals(callee) : target.code.maxLocals;
+                String[] incoming = new String[Math.max(locals, args.size())];
+                for (int i = 0; i < args.size(); i++)
+                    incoming[i] = args.get(i);
+                if (entry == null) {
+                    arguments.put(callee, incoming);
+                } else {
+                    Frame merged = new Frame(entry, Collections.emptyList());
+                    merged.merge(new Frame(incoming, Collections.emptyList()));
+                    arguments.put(callee, merged.locals);
+                }
+            }
+        }
+        String ret = descriptor.substring(descriptor.indexOf(')') + 1);
+        if (r != null && isTransientSource(r))
+            f.push(TRANSIENT);
+        else if (ret.startsWith("[") || ret.startsWith("L"))
+            f.push(UNKNOWN);
+        else if (!ret.equals("V"))
+            f.push(size(ret));
+    }
+
+    private int maxLocals(String key) {
+        int dot = key.lastIndexOf('.', key.indexOf('('));
+        for (ClassFile.Member m : classes.get(key.substring(0, dot)).getMethods())
+            if ((m.name + m.descriptor).equals(key.substring(dot + 1)))
+                return m.code.maxLocals;
+        return 0;
+    }
+
+    private static int invokeDynamicType(ClassFile cls, int index) {
+        return cls.entry(cls.entry(index)[1])[1];
+    }
+
+    private void write(Analysis a, int pc, String array) {
+        write(a, pc, array, null);
+    }
+
+    // Records a write to an array, if the array is persistent
+    private void write(Analysis a, int pc, String array, String via) {
+        if (array == null)
+            return;
+        Set<String> targets = new TreeSet<>();
+        for (String label : array.split("\\|")) {
+            if (label.equals(NEW))
+                targets.add("array allocated during process()");
+            else if (!label.equals(TRANSIENT) && !label.equals(UNKNOWN))
+                targets.add("array " + label);
+        }
+        if (targets.isEmpty())
+            a.writes.remove(pc);
+        else
+            a.writes.put(pc, String.join(" or ", targets) + (via == null ? "" : " by " + via));
+    }
+
+    // Write counts per path of process()
+    private Map<String, Integer> paths(String key) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        Analysis process = analyzed.get(key);
+        byte[] code = process.code.code;
+        int switchPc = -1;
+        for (int pc = 0; pc < code.length; pc += ClassFile.instructionLength(code, pc)) {
+            int op = code[pc] & 0xFF;
+            if ((op == 170 || op == 171) && process.frames[pc] != null) {
+                switchPc = pc;
+                break;
+            }
+        }
+        if (switchPc < 0) {
+            result.put("process()", total(key, new HashSet<>()));
+            return result;
+        }
+        Set<Integer> prefix = reachable(process, 0, switchPc);
+        int common = count(process, prefix, new HashSet<>());
+        Map<Integer, List<String>> cases = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> c : switchTargets(code, switchPc).entrySet())
+            cases.computeIfAbsent(c.getValue(), k -> new ArrayList<>()).add(c.getKey());
+        for (Map.Entry<Integer, List<String>> c : cases.entrySet()) {
+            Set<Integer> pcs = reachable(process, c.getKey(), -1);
+            pcs.removeAll(prefix);
+            result.put(String.join(", ", c.getValue()), common + count(process, pcs, new HashSet<>()));
+        }
+        return result;
+    }
+
+    // Persistent writes in a method and its callees, every call site counted once
+    private int total(String key, Set<String> active) {
+        if (totals.containsKey(key))
+            return totals.get(key);
+        if (!active.add(key))
+            return 0; // recursion
+        Analysis a = analyzed.get(key);
+        Set<Integer> all = new HashSet<>();
+        for (int pc = 0; pc < a.frames.length; pc++)
+            if (a.frames[pc] != null)
+                all.add(pc);
+        int n = count(a, all, active);
+        active.remove(key);
+        totals.put(key, n);
+        return n;
+    }
+
+    private int count(Analysis a, Set<Integer> pcs, Set<String> active) {
+        int n = 0;
+        for (int pc : pcs) {
+            if (a.writes.containsKey(pc))
+                n++;
+            String callee = a.calls.get(pc);
+            if (callee != null && analyzed.containsKey(callee))
+                n += total(callee, active);
+        }
+        return n;
+    }
+
+    // Instructions reachable from start, without going past stop
+    private static Set<Integer> reachable(Analysis a, int start, int stop) {
+        byte[] code = a.code.code;
+        Set<Integer> seen = new TreeSet<>();
+        Deque<Integer> todo = new ArrayDeque<>();
+        todo.add(start);
+        while (!todo.isEmpty()) {
+            int pc = todo.poll();
+            if (pc < 0 || pc >= code.length || a.frames[pc] == null || !seen.add(pc) || pc == stop)
+                continue;
+            int op = code[pc] & 0xFF;
+            int length = ClassFile.instructionLength(code, pc);
+            if (op == 170 || op == 171) {
+                todo.addAll(switchTargets(code, pc).values());
+            } else if (op == 167) {
+                todo.add(pc + (short) ClassFile.u2(code, pc + 1));
+            } else if (op == 200) {
+                todo.add(pc + ClassFile.s4(code, pc + 1));
+            } else if (op >= 153 && op <= 166 || op == 198 || op == 199) {
+                todo.add(pc + (short) ClassFile.u2(code, pc + 1));
+                todo.add(pc + length);
+            } else if (!(op >= 168 && op <= 169 || op >= 172 && op <= 177 || op == 191 || op == 201)) {
+                todo.add(pc + length);
+            }
+        }
+        return seen;
+    }
+
+    // Targets of a switch instruction: "case 0xNN" or "default" -> offset
+    static Map<String, Integer> switchTargets(byte[] code, int pc) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        int base = pc + 1 + ((4 - ((pc + 1) % 4)) % 4);
+        if ((code[pc] & 0xFF) == 170) {
+            int low = ClassFile.s4(code, base + 4);
+            int high = ClassFile.s4(code, base + 8);
+            for (int i = 0; i <= high - low; i++)
+                result.put(caseName(low + i), pc + ClassFile.s4(code, base + 12 + i * 4));
+        } else {
+            int npairs = ClassFile.s4(code, base + 4);
+            for (int i = 0; i < npairs; i++)
+                result.put(caseName(ClassFile.s4(code, base + 8 + i * 8)), pc + ClassFile.s4(code, base + 12 + i * 8));
+        }
+        result.put("default", pc + ClassFile.s4(code, base));
+        return result;
+    }
+
+    private static String caseName(int value) {
+        return value >= 0 && value <= 0xFF ? String.format("case 0x%02X", value) : "case " + value;
+    }
+
+    static List<String> argumentTypes(String descriptor) {
+        List<String> result = new ArrayList<>();
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            int start = i;
+            while (descriptor.charAt(i) == '[')
+                i++;
+            if (descriptor.charAt(i) == 'L')
+                i = descriptor.indexOf(';', i);
+            i++;
+            result.add(descriptor.substring(start, i));
+        }
+        return result;
+    }
+
+    private static int size(String type) {
+        return type.equals("J") || type.equals("D") ? 2 : 1;
+    }
+
+    private static String fieldName(String owner, String name) {
+        return simpleName(owner) + "." + name;
+    }
+
+    private static String simpleName(String internal) {
+        return internal.substring(internal.lastIndexOf('/') + 1);
+    }
+
+    private static String union(String a, String b) {
+        if (a == null)
+            return b;
+        if (b == null || a.equals(b))
+            return a;
+        Set<String> labels = new TreeSet<>(Arrays.asList(a.split("\\|")));
+        labels.addAll(Arrays.asList(b.split("\\|")));
+        return String.join("|", labels);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // Pop and push counts of instructions that only work with untracked values
+    private static final int[][] EFFECTS = new int[256][];
+
+    static {
+        EFFECTS[0] = new int[]{0, 0};
+        for (int op = 1; op <= 20; op++)
+            EFFECTS[op] = new int[]{0, op == 9 || op == 10 || op == 14 || op == 15 || op == 20 ? 2 : 1};
+        for (int op = 46; op <= 53; op++)
+            EFFECTS[op] = new int[]{2, op == 47 || op == 49 ? 2 : 1};
+        EFFECTS[87] = new int[]{1, 0};
+        EFFECTS[88] = new int[]{2, 0};
+        for (int op = 96; op <= 115; op++) {
+            int s = (op - 96) % 4 % 2 == 1 ? 2 : 1;
+            EFFECTS[op] = new int[]{2 * s, s};
+        }
+        for (int op = 116; op <= 119; op++) {
+            int s = (op - 116) % 2 == 1 ? 2 : 1;
+            EFFECTS[op] = new int[]{s, s};
+        }
+        for (int op = 120; op <= 125; op++)
+            EFFECTS[op] = (op - 120) % 2 == 0 ? new int[]{2, 1} : new int[]{3, 2};
+        for (int op = 126; op <= 131; op++)
+            EFFECTS[op] = (op - 126) % 2 == 0 ? new int[]{2, 1} : new int[]{4, 2};
+        int[][] conversions = {{1, 2}, {1, 1}, {1, 2}, {2, 1}, {2, 1}, {2, 2}, {1, 1}, {1, 2}, {1, 2}, {2, 1}, {2, 2}, {2, 1}, {1, 1}, {1, 1}, {1, 1}};
+        for (int i = 0; i < conversions.length; i++)
+            EFFECTS[133 + i] = conversions[i];
+        EFFECTS[148] = new int[]{4, 1};
+        EFFECTS[149] = new int[]{2, 1};
+        EFFECTS[150] = new int[]{2, 1};
+        EFFECTS[151] = new int[]{4, 1};
+        EFFECTS[152] = new int[]{4, 1};
+        for (int op = 153; op <= 158; op++)
+            EFFECTS[op] = new int[]{1, 0};
+        for (int op = 159; op <= 166; op++)
+            EFFECTS[op] = new int[]{2, 0};
+        EFFECTS[190] = new int[]{1, 1};
+        EFFECTS[193] = new int[]{1, 1};
+        EFFECTS[194] = new int[]{1, 0};
+        EFFECTS[195] = new int[]{1, 0};
+        EFFECTS[198] = new int[]{1, 0};
+        EFFECTS[199] = new int[]{1, 0};
+    }
+}
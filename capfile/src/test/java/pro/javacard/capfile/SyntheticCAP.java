@@ -0,0 +1,469 @@
+package pro.javacard.capfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Generates structurally valid CAP files of arbitrary size, for tests and benchmarks.
+// Every class has static short fields and static methods that increment the fields in a loop and call the next method.
+public final class SyntheticCAP {
+    private String name = "synthetic";
+    private byte[] aid = {(byte) 0xA0, 0x00, 0x00, 0x06, 0x17, 0x00, 0x01};
+    private int major = 1;
+    private int minor = 0;
+    private int classes = 1;
+    private int methods = 2;
+    private int statics = 1;
+    private int arrays = 0;
+    private int length = 16;
+    private int body = 16;
+    private int applets = 1;
+    private boolean debug = false;
+    private String created = null;
+    private byte[] prefix = new byte[0];
+    private final List<CAPPackage> imports = new ArrayList<>();
+    private final List<byte[]> appletAIDs = new ArrayList<>();
+    private final List<int[]> handlers = new ArrayList<>();
+    // Entry times, so that equal parameters give equal bytes
+    public static final long TIME = 946684800000L;
+
+    public static SyntheticCAP builder() {
+        return new SyntheticCAP();
+    }
+
+    public SyntheticCAP name(String name) {
+        this.name = name;
+        return this;
+    }
+
+    public SyntheticCAP aid(String aid) {
+        this.aid = pro.javacard.HexUtils.hex2bin(aid);
+        return this;
+    }
+
+    public SyntheticCAP version(int major, int minor) {
+        this.major = major;
+        this.minor = minor;
+        return this;
+    }
+
+    public SyntheticCAP classes(int classes) {
+        this.classes = classes;
+        return this;
+    }
+
+    // Methods per class
+    public SyntheticCAP methods(int methods) {
+        this.methods = methods;
+        return this;
+    }
+
+    // Static short fields per class
+    public SyntheticCAP statics(int statics) {
+        this.statics = statics;
+        return this;
+    }
+
+    // Static short arrays with initial values per class, not referenced from code
+    public SyntheticCAP arrays(int arrays, int length) {
+        this.arrays = arrays;
+        this.length = length;
+        return this;
+    }
+
+    // Approximate bytecode size of every method
+    public SyntheticCAP body(int body) {
+        this.body = body;
+        return this;
+    }
+
+    public SyntheticCAP applets(int applets) {
+        this.applets = applets;
+        return this;
+    }
+
+    // Adds an applet with given AID, instead of package AID with applet index
+    public SyntheticCAP applet(String aid) {
+        appletAIDs.add(pro.javacard.HexUtils.hex2bin(aid));
+        applets = appletAIDs.size();
+        return this;
+    }
+
+    public SyntheticCAP debug(boolean debug) {
+        this.debug = debug;
+        return this;
+    }
+
+    // Adds an import of a library package, in addition to java.lang and javacard.framework
+    public SyntheticCAP imports(String aid, int major, int minor) {
+        imports.add(new CAPPackage(AID.fromString(aid), major, minor));
+        return this;
+    }
+
+    // Bytecode at the start of every method, must not use the constant pool and must be stack neutral
+    public SyntheticCAP prefix(byte[] prefix) {
+        this.prefix = prefix.clone();
+        return this;
+    }
+
+    // Adds a catch all exception handler, offsets are relative to the bytecode of the first method.
+    // Bit 15 of length is the stop bit.
+    public SyntheticCAP handler(int start, int length, int handler) {
+        handlers.add(new int[]{start, length, handler});
+        return this;
+    }
+
+    // Adds a manifest with given creation time
+    public SyntheticCAP created(String created) {
+        this.created = created;
+        return this;
+    }
+
+    static byte[] component(int tag, ByteArrayOutputStream info) {
+        byte[] i = info.toByteArray();
+        if (i.length > 0xFFFF)
+            throw new IllegalArgumentException(Components.NAMES[tag] + " component would be too large: " + i.length);
+        ByteArrayOutputStream c = new ByteArrayOutputStream();
+        c.write(tag);
+        u2(c, i.length);
+        c.write(i, 0, i.length);
+        return c.toByteArray();
+    }
+
+    static void u2(ByteArrayOutputStream out, int v) {
+        out.write(v >> 8);
+        out.write(v);
+    }
+
+    public byte[] build() {
+        if (applets > classes || classes > 255 || methods > 255 || methods < 1 || statics + arrays > 255 || length > 0x7FFF)
+            throw new IllegalArgumentException("Invalid parameters");
+        // Static field image: array references first, then short fields
+        int refs = classes * arrays * 2;
+        // Constant pool: classrefs, static fieldrefs, static methodrefs
+        int cpClasses = 0;
+        int cpFields = classes;
+        int cpMethods = cpFields + classes * statics;
+        int cpCount = cpMethods + classes * methods;
+
+        // Class component: signature pool length + class_info (10 bytes each)
+        ByteArrayOutputStream cls = new ByteArrayOutputStream();
+        u2(cls, 0);
+        int[] classOffsets = new int[classes];
+        for (int i = 0; i < classes; i++) {
+            classOffsets[i] = cls.size();
+            cls.write(0x00); // flags, interface_count
+            // super: javacard.framework.Applet or java.lang.Object
+            cls.write(i < applets ? 0x81 : 0x80);
+            cls.write(i < applets ? 0x03 : 0x00);
+            cls.write(0); // declared_instance_size
+            cls.write(0xFF); // first_reference_token
+            cls.write(0); // reference_count
+            cls.write(0); // public_method_table_base
+            cls.write(0); // public_method_table_count
+            cls.write(0); // package_method_table_base
+            cls.write(0); // package_method_table_count
+        }
+
+        // Method component
+        ByteArrayOutputStream mth = new ByteArrayOutputStream();
+        mth.write(handlers.size()); // handler_count
+        int first = 1 + handlers.size() * 8 + 2;
+        for (int[] h : handlers) {
+            u2(mth, first + h[0]);
+            u2(mth, h[1]);
+            u2(mth, first + h[2]);
+            u2(mth, 0); // catch_type_index, any
+        }
+        int[][] methodOffsets = new int[classes][methods];
+        int[][] methodSizes = new int[classes][methods];
+        List<Integer> byte2 = new ArrayList<>();
+        for (int i = 0; i < classes; i++) {
+            for (int j = 0; j < methods; j++) {
+                methodOffsets[i][j] = mth.size();
+                mth.write(0x03); // flags 0, max_stack 3
+                mth.write(0x01); // nargs 0, max_locals 1
+                int start = mth.size();
+                mth.write(prefix, 0, prefix.length);
+                // loop: sconst_0 sstore_0 L: sinc 0 1 sload_0 bspush 10 if_scmplt L
+                mth.write(new byte[]{0x03, 0x2F, 0x59, 0x00, 0x01, 0x1C, 0x10, 0x0A, 0x6C, (byte) 0xFA}, 0, 10);
+                int k = 0;
+                while (mth.size() - start < body - 4) {
+                    int field = cpFields + i * statics + (k++ % statics);
+                    // getstatic_s sconst_1 sadd putstatic_s
+                    mth.write(0x7D);
+                    byte2.add(mth.size());
+                    u2(mth, field);
+                    mth.write(0x04);
+                    mth.write(0x41);
+                    mth.write(0x81);
+                    byte2.add(mth.size());
+                    u2(mth, field);
+                }
+                if (j + 1 < methods) {
+                    mth.write(0x8D); // invokestatic
+                    byte2.add(mth.size());
+                    u2(mth, cpMethods + i * methods + j + 1);
+                }
+                mth.write(0x7A); // return
+                methodSizes[i][j] = mth.size() - start;
+            }
+        }
+
+        // Constant pool
+        ByteArrayOutputStream cp = new ByteArrayOutputStream();
+        u2(cp, cpCount);
+        for (int i = 0; i < classes; i++) {
+            cp.write(1);
+            u2(cp, classOffsets[i]);
+            cp.write(0);
+        }
+        for (int i = 0; i < classes * statics; i++) {
+            cp.write(5);
+            cp.write(0);
+            u2(cp, refs + i * 2);
+        }
+        for (int i = 0; i < classes; i++) {
+            for (int j = 0; j < methods; j++) {
+                cp.write(6);
+                cp.write(0);
+                u2(cp, methodOffsets[i][j]);
+            }
+        }
+
+        // RefLocation, all references are 2 byte indexes
+        ByteArrayOutputStream rl = new ByteArrayOutputStream();
+        u2(rl, 0);
+        ByteArrayOutputStream deltas = new ByteArrayOutputStream();
+        int last = 0;
+        for (int location : byte2) {
+            int delta = location - last;
+            while (delta >= 255) {
+                deltas.write(255);
+                delta -= 255;
+            }
+            deltas.write(delta);
+            last = location;
+        }
+        u2(rl, deltas.size());
+        rl.write(deltas.toByteArray(), 0, deltas.size());
+
+        // Static fields: initialized arrays and short fields with default values
+        int image = refs + classes * statics * 2;
+        ByteArrayOutputStream sf = new ByteArrayOutputStream();
+        u2(sf, image);
+        u2(sf, classes * arrays); // reference_count
+        u2(sf, classes * arrays); // array_init_count
+        for (int i = 0; i < classes * arrays; i++) {
+            sf.write(4); // short
+            u2(sf, length * 2);
+            for (int k = 0; k < length; k++)
+                u2(sf, i * 31 + k);
+        }
+        u2(sf, classes * statics * 2); // default_value_count
+        u2(sf, 0); // non_default_value_count
+
+        // Imports: java.lang and javacard.framework
+        ByteArrayOutputStream imp = new ByteArrayOutputStream();
+        imp.write(2 + imports.size());
+        imp.write(new byte[]{0x00, 0x01, 0x07, (byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x00, 0x01}, 0, 10);
+        imp.write(new byte[]{0x03, 0x01, 0x07, (byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x01, 0x01}, 0, 10);
+        for (CAPPackage p : imports) {
+            imp.write(p.getMinor());
+            imp.write(p.getMajor());
+            imp.write(p.getAid().getLength());
+            imp.write(p.getAid().getBytes(), 0, p.getAid().getLength());
+        }
+
+        // Applets
+        ByteArrayOutputStream app = new ByteArrayOutputStream();
+        app.write(applets);
+        for (int i = 0; i < applets; i++) {
+            if (i < appletAIDs.size()) {
+                app.write(appletAIDs.get(i).length);
+                app.write(appletAIDs.get(i), 0, appletAIDs.get(i).length);
+            } else {
+                app.write(aid.length + 1);
+                app.write(aid, 0, aid.length);
+                app.write(i + 1);
+            }
+            u2(app, methodOffsets[i][0]);
+        }
+
+        // Descriptor
+        ByteArrayOutputStream dsc = new ByteArrayOutputStream();
+        dsc.write(classes);
+        int typesBase = 2 + cpCount * 2;
+        for (int i = 0; i < classes; i++) {
+            dsc.write(i); // token
+            dsc.write(0x01); // ACC_PUBLIC
+            u2(dsc, classOffsets[i]);
+            dsc.write(0); // interface_count
+            u2(dsc, statics + arrays);
+            u2(dsc, methods);
+            for (int f = 0; f < statics; f++) {
+                dsc.write(f);
+                dsc.write(0x09); // ACC_PUBLIC | ACC_STATIC
+                dsc.write(0);
+                u2(dsc, refs + (i * statics + f) * 2);
+                u2(dsc, 0x8004); // short
+            }
+            for (int a = 0; a < arrays; a++) {
+                dsc.write(statics + a);
+                dsc.write(0x09); // ACC_PUBLIC | ACC_STATIC
+                dsc.write(0);
+                u2(dsc, (i * arrays + a) * 2);
+                u2(dsc, typesBase + 4); // short[]
+            }
+            for (int j = 0; j < methods; j++) {
+                dsc.write(j);
+                dsc.write(0x09); // ACC_PUBLIC | ACC_STATIC
+                u2(dsc, methodOffsets[i][j]);
+                u2(dsc, typesBase);
+                u2(dsc, methodSizes[i][j]);
+                u2(dsc, 0);
+                u2(dsc, 0);
+            }
+        }
+        u2(dsc, cpCount);
+        for (int i = 0; i < cpCount; i++)
+            u2(dsc, i < cpFields ? 0xFFFF : i < cpMethods ? typesBase + 2 : typesBase);
+        dsc.write(new byte[]{0x01, 0x10, 0x01, 0x40, 0x01, (byte) 0xC0}, 0, 6); // ()V, S and [S
+
+        String internal = name.replace('.', '/');
+        Map<Integer, byte[]> components = new LinkedHashMap<>();
+        ByteArrayOutputStream hdr = new ByteArrayOutputStream();
+        hdr.write(new byte[]{(byte) 0xDE, (byte) 0xCA, (byte) 0xFF, (byte) 0xED, 0x02, 0x02}, 0, 6);
+        hdr.write(applets > 0 ? 0x04 : 0x00);
+        hdr.write(minor);
+        hdr.write(major);
+        hdr.write(aid.length);
+        hdr.write(aid, 0, aid.length);
+        hdr.write(internal.length());
+        hdr.write(internal.getBytes(StandardCharsets.US_ASCII), 0, internal.length());
+        components.put(Components.HEADER, component(Components.HEADER, hdr));
+        components.put(Components.DIRECTORY, null); // Placeholder, for order
+        components.put(Components.IMPORT, component(Components.IMPORT, imp));
+        if (applets > 0)
+            components.put(Components.APPLET, component(Components.APPLET, app));
+        components.put(Components.CLASS, component(Components.CLASS, cls));
+        components.put(Components.METHOD, component(Components.METHOD, mth));
+        components.put(Components.STATIC_FIELD, component(Components.STATIC_FIELD, sf));
+        components.put(Components.CONSTANT_POOL, component(Components.CONSTANT_POOL, cp));
+        components.put(Components.REF_LOCATION, component(Components.REF_LOCATION, rl));
+        components.put(Components.DESCRIPTOR, component(Components.DESCRIPTOR, dsc));
+        if (debug)
+            components.put(Components.DEBUG, component(Components.DEBUG, debug(internal, refs, methodOffsets, methodSizes)));
+
+        ByteArrayOutputStream dir = new ByteArrayOutputStream();
+        for (int tag = 1; tag <= 12; tag++) {
+            byte[] c = components.get(tag);
+            u2(dir, tag == Components.DIRECTORY ? 33 : c == null ? 0 : c.length - 3);
+        }
+        u2(dir, image);
+        u2(dir, classes * arrays); // array_init_count
+        u2(dir, 0);
+        dir.write(2 + imports.size());
+        dir.write(applets);
+        dir.write(0);
+        components.put(Components.DIRECTORY, component(Components.DIRECTORY, dir));
+
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(zip)) {
+            if (created != null) {
+                out.putNextEntry(entry("META-INF/MANIFEST.MF"));
+                String mf = "Manifest-Version: 1.0\r\nCreated-By: synthetic\r\n\r\nName: " + internal + "/javacard/" + "\r\n"
+                        + "Java-Card-CAP-Creation-Time: " + created + "\r\nJava-Card-Converter-Version: 0.0\r\nJava-Card-Converter-Provider: synthetic\r\n\r\n";
+                out.write(mf.getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+            for (Map.Entry<Integer, byte[]> e : components.entrySet()) {
+                out.putNextEntry(entry(internal + "/javacard/" + Components.NAMES[e.getKey()] + ".cap"));
+                out.write(e.getValue());
+                out.closeEntry();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return zip.toByteArray();
+    }
+
+    private static ZipEntry entry(String name) {
+        ZipEntry e = new ZipEntry(name);
+        e.setTime(TIME);
+        return e;
+    }
+
+    // Debug component with class and method names, see JCVM 2.2.2 section 6.14
+    private ByteArrayOutputStream debug(String internal, int refs, int[][] methodOffsets, int[][] methodSizes) {
+        List<String> strings = new ArrayList<>();
+        strings.add(internal);
+        strings.add("()V");
+        strings.add("S");
+        for (int i = 0; i < classes; i++) {
+            strings.add(internal + "/C" + i);
+            strings.add("C" + i + ".java");
+        }
+        for (int j = 0; j < Math.max(methods, statics); j++) {
+            strings.add("m" + j);
+            strings.add("f" + j);
+        }
+        int arrayStrings = strings.size();
+        strings.add("[S");
+        for (int a = 0; a < arrays; a++)
+            strings.add("a" + a);
+        ByteArrayOutputStream dbg = new ByteArrayOutputStream();
+        u2(dbg, strings.size());
+        for (String s : strings) {
+            u2(dbg, s.length());
+            dbg.write(s.getBytes(StandardCharsets.UTF_8), 0, s.length());
+        }
+        u2(dbg, 0); // package name
+        u2(dbg, classes);
+        for (int i = 0; i < classes; i++) {
+            u2(dbg, 3 + i * 2); // name
+            u2(dbg, 0x0001); // access
+            u2(dbg, 2 + i * 10); // location
+            u2(dbg, 0xFFFF); // superclass name
+            u2(dbg, 4 + i * 2); // source file
+            dbg.write(0); // interface_count
+            u2(dbg, statics + arrays);
+            u2(dbg, methods);
+            for (int f = 0; f < statics; f++) {
+                u2(dbg, 3 + classes * 2 + f * 2 + 1);
+                u2(dbg, 2);
+                u2(dbg, 0x0009);
+                u2(dbg, 0);
+                u2(dbg, refs + (i * statics + f) * 2);
+            }
+            for (int a = 0; a < arrays; a++) {
+                u2(dbg, arrayStrings + 1 + a);
+                u2(dbg, arrayStrings);
+                u2(dbg, 0x0009);
+                u2(dbg, 0);
+                u2(dbg, (i * arrays + a) * 2);
+            }
+            for (int j = 0; j < methods; j++) {
+                u2(dbg, 3 + classes * 2 + j * 2);
+                u2(dbg, 1);
+                u2(dbg, 0x0009);
+                u2(dbg, methodOffsets[i][j]);
+                dbg.write(2); // header_size
+                u2(dbg, methodSizes[i][j]);
+                u2(dbg, 0); // variable_count
+                u2(dbg, 1); // line_count
+                u2(dbg, 0);
+                u2(dbg, methodSizes[i][j] - 1);
+                u2(dbg, 10 + j);
+            }
+        }
+        return dbg;
+    }
+}
@@ -0,0 +1,106 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import pro.javacard.HexUtils;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+
+// Bytes allocated per operation must stay within budget. Budgets are about 1.5 times what was measured on Temurin 17.0.9
+// when they were set, lower them when an improvement lands. Allocation depends on the JVM, so these tests
+// only run with -Pallocation. Same CAP files as the small, medium and large corpus of the benchmarks.
+@Test(groups = "allocation")
+public class TestAllocation {
+    static final int WARMUP = 200;
+    static final int OPERATIONS = 50;
+    static final int ROUNDS = 5;
+
+    static final byte[] SMALL = SyntheticCAP.builder().classes(1).methods(2).statics(1).body(16).debug(true).build();
+    static final byte[] MEDIUM = SyntheticCAP.builder().classes(8).methods(8).statics(4).arrays(2, 32).body(48).debug(true).build();
+    static final byte[] LARGE = SyntheticCAP.builder().classes(32).methods(16).statics(8).arrays(4, 64).body(100).debug(true).build();
+
+    static final PrintStream NULL = new PrintStream(OutputStream.nullOutputStream());
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @BeforeClass(groups = "allocation")
+    public void setUp() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            throw new SkipException("No com.sun.management.ThreadMXBean");
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported())
+            throw new SkipException("Thread allocated memory not supported");
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    // Least of average bytes allocated per operation over a few rounds, after warmup
+    long allocated(Callable<?> operation) throws Exception {
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP; i++)
+            operation.call();
+        long least = Long.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < OPERATIONS; i++)
+                operation.call();
+            least = Math.min(least, (threads.getThreadAllocatedBytes(id) - start) / OPERATIONS);
+        }
+        return least;
+    }
+
+    void budget(String name, long budget, Callable<?> operation) throws Exception {
+        long bytes = allocated(operation);
+        Assert.assertTrue(bytes <= budget, String.format("%s allocates %d bytes per operation, budget is %d", name, bytes, budget));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        budget("parse small", 32_000, () -> CAPFile.fromBytes(SMALL));
+        budget("parse medium", 80_000, () -> CAPFile.fromBytes(MEDIUM));
+        budget("parse large", 640_000, () -> CAPFile.fromBytes(LARGE));
+    }
+
+    @Test
+    public void testHash() throws Exception {
+        CAPFile small = CAPFile.fromBytes(SMALL);
+        CAPFile medium = CAPFile.fromBytes(MEDIUM);
+        CAPFile large = CAPFile.fromBytes(LARGE);
+        budget("hash small", 10_000, () -> small.getLoadFileDataHash("SHA-256"));
+        budget("hash medium", 36_000, () -> medium.getLoadFileDataHash("SHA-256"));
+        budget("hash large", 380_000, () -> large.getLoadFileDataHash("SHA-256"));
+    }
+
+    @Test
+    public void testDump() throws Exception {
+        CAPFile small = CAPFile.fromBytes(SMALL);
+        CAPFile medium = CAPFile.fromBytes(MEDIUM);
+        CAPFile large = CAPFile.fromBytes(LARGE);
+        budget("dump small", 48_000, () -> {
+            small.dump(NULL);
+            return null;
+        });
+        budget("dump medium", 175_000, () -> {
+            medium.dump(NULL);
+            return null;
+        });
+        budget("dump large", 1_900_000, () -> {
+            large.dump(NULL);
+            return null;
+        });
+    }
+
+    @Test
+    public void testAIDAndHex() throws Exception {
+        byte[] bytes = HexUtils.hex2bin("A000000151000000");
+        AID aid = new AID(bytes);
+        budget("AID.fromString", 6_700, () -> AID.fromString("A000000151000000"));
+        budget("AID.toString", 256, aid::toString);
+        budget("HexUtils.hex2bin", 128, () -> HexUtils.hex2bin("A000000151000000"));
+        budget("HexUtils.bin2hex", 160, () -> HexUtils.bin2hex(bytes));
+    }
+}
@@ -0,0 +1,67 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.EnumSet;
+
+public class TestCAPDiff {
+    static SyntheticCAP base() {
+        return SyntheticCAP.builder().classes(2).methods(2).statics(2).body(20).created("Mon Jan 01 00:00:00 UTC 2024");
+    }
+
+    @Test
+    public void testIdentical() throws Exception {
+        CAPFile a = CAPFile.fromBytes(base().build());
+        CAPDiff d = CAPDiff.of(a, CAPFile.fromBytes(base().build()));
+        Assert.assertTrue(d.getDifferences().isEmpty());
+        Assert.assertFalse(d.needsReload());
+    }
+
+    @Test
+    public void testMetadata() throws Exception {
+        CAPFile a = CAPFile.fromBytes(base().build());
+        CAPFile b = CAPFile.fromBytes(base().created("Tue Jan 02 00:00:00 UTC 2024").build());
+        CAPDiff d = CAPDiff.of(a, b);
+        Assert.assertEquals(d.getChanges(), EnumSet.of(CAPDiff.Change.METADATA));
+        Assert.assertEquals(d.getDifferences().get(0).getEntry(), "META-INF/MANIFEST.MF");
+        Assert.assertFalse(d.needsReload());
+        Assert.assertEquals(CAPDiff.getDeployHash(a), CAPDiff.getDeployHash(b));
+    }
+
+    @Test
+    public void testDebug() throws Exception {
+        CAPFile a = CAPFile.fromBytes(base().build());
+        CAPFile b = CAPFile.fromBytes(base().debug(true).build());
+        CAPDiff d = CAPDiff.of(a, b);
+        Assert.assertEquals(d.getChanges(), EnumSet.of(CAPDiff.Change.DEBUG));
+        Assert.assertFalse(d.needsReload());
+        // Directory has the size of Debug component, so load file data differs
+        Assert.assertNotEquals(a.getLoadFileDataHash("SHA-256"), b.getLoadFileDataHash("SHA-256"));
+        Assert.assertEquals(CAPDiff.getDeployHash(a), CAPDiff.getDeployHash(b));
+    }
+
+    @Test
+    public void testCode() throws Exception {
+        CAPFile a = CAPFile.fromBytes(base().debug(true).build());
+        CAPFile b = CAPFile.fromBytes(base().debug(true).body(30).build());
+        CAPDiff d = CAPDiff.of(a, b);
+        Assert.assertTrue(d.getChanges().contains(CAPDiff.Change.CODE));
+        Assert.assertTrue(d.needsReload());
+        Assert.assertNotEquals(CAPDiff.getDeployHash(a), CAPDiff.getDeployHash(b));
+        CAPDiff.Difference method = d.getDifferences().stream().filter(x -> x.getEntry().equals("Method")).findFirst().orElseThrow();
+        Assert.assertTrue(method.getDescription().contains("4 of 4 methods changed: synthetic.C0.m0()V"), method.getDescription());
+    }
+
+    @Test
+    public void testIdentity() throws Exception {
+        CAPFile a = CAPFile.fromBytes(base().applets(1).build());
+        CAPFile b = CAPFile.fromBytes(base().applets(1).version(1, 1).build());
+        CAPDiff d = CAPDiff.of(a, b);
+        Assert.assertEquals(d.getChanges(), EnumSet.of(CAPDiff.Change.IDENTITY));
+        Assert.assertTrue(d.needsReload());
+
+        CAPFile c = CAPFile.fromBytes(base().applets(1).aid("A000000617000002").build());
+        Assert.assertEquals(CAPDiff.of(a, c).getDifferences().stream().filter(x -> x.getChange() == CAPDiff.Change.IDENTITY).count(), 2);
+    }
+}
@@ -0,0 +1,41 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.StringWriter;
+
+public class TestCAPDisassembler {
+
+    @Test
+    public void testDisassemble() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(2).methods(2).statics(2).body(20).applets(1).debug(true).build());
+        String jca = CAPDisassembler.disassemble(cap);
+        Assert.assertTrue(jca.startsWith("// CAP file format 2.2: applets\n\n.package synthetic {\n"));
+        Assert.assertTrue(jca.contains("\t.aid 0xA0:0x00:0x00:0x06:0x17:0x00:0x01;\n"));
+        Assert.assertTrue(jca.contains("\t\t0xA0:0x00:0x00:0x00:0x62:0x01:0x01 1.3;\t\t// 1 javacard/framework\n"));
+        Assert.assertTrue(jca.contains("\t\t// 6\n\t\tstaticMethodRef synthetic/C0.m0()V;\n"));
+        Assert.assertTrue(jca.contains("\t\t\tpublic static short f1 1;\n"));
+        Assert.assertTrue(jca.contains("\t\t.method public static m0()V 0 {\n\t\t\t.stack 3;\n\t\t\t.locals 1;\n"));
+        Assert.assertTrue(jca.contains("\t\t\tL0:\tsinc 0 1;\n"));
+        Assert.assertTrue(jca.contains("\t\t\t\tif_scmplt L0;\n"));
+        Assert.assertTrue(jca.contains("\t\t\t\tinvokestatic 7;\t\t// staticMethodRef synthetic/C0.m1()V\n"));
+        Assert.assertTrue(jca.endsWith("}\n"));
+
+        StringWriter w = new StringWriter();
+        CAPDisassembler.disassemble(cap, w);
+        Assert.assertEquals(w.toString(), jca);
+    }
+
+    @Test
+    public void testWithoutDebug() throws Exception {
+        // Wide branch and a dead value in every method
+        byte[] prefix = {0x11, 0x00, 0x05, 0x29, 0x00, (byte) 0xA8, 0x00, 0x03, 0x16, 0x00, 0x3B};
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(1).methods(2).body(20).prefix(prefix).build());
+        String jca = CAPDisassembler.disassemble(cap);
+        Assert.assertTrue(jca.contains("\t.class public class_0 0 extends 1.3 {\n"));
+        Assert.assertTrue(jca.contains("\t\t.method public static method@1()V 0 {\n"));
+        Assert.assertTrue(jca.contains("\t\t\t\tsspush 5;\n\t\t\t\tsstore 0;\n\t\t\t\tgoto_w L0;\n\t\t\tL0:\tsload 0;\n\t\t\t\tpop;\n"));
+        Assert.assertTrue(jca.contains("staticMethodRef class_0.method@"));
+    }
+}
@@ -0,0 +1,78 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class TestCAPIndex {
+
+    static Path write(Path dir, String name, SyntheticCAP cap) throws Exception {
+        Path p = dir.resolve(name + ".cap");
+        Files.write(p, cap.build());
+        return p;
+    }
+
+    static List<String> names(List<CAPIndex.Entry> entries) {
+        return entries.stream().map(e -> e.getPath().getFileName().toString()).sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        Path dir = Files.createTempDirectory("capindex");
+        Path index = dir.resolve("caps.idx");
+        try {
+            write(dir, "lib10", SyntheticCAP.builder().aid("A0000006170101").version(1, 0).applets(0));
+            write(dir, "lib12", SyntheticCAP.builder().aid("A0000006170101").version(1, 2).applets(0));
+            write(dir, "lib20", SyntheticCAP.builder().aid("A0000006170101").version(2, 0).applets(0));
+            Path app = write(dir, "app", SyntheticCAP.builder().aid("A0000006170201").imports("A0000006170101", 1, 1));
+            write(dir, "other", SyntheticCAP.builder().aid("A0000001510001").classes(2).applets(2));
+
+            CAPIndex.Stats stats = CAPIndex.update(index, Collections.singletonList(dir));
+            Assert.assertEquals(stats.parsed, 5);
+            Assert.assertTrue(stats.failed.isEmpty());
+
+            try (CAPIndex idx = CAPIndex.open(index)) {
+                Assert.assertEquals(idx.size(), 5);
+                Assert.assertEquals(names(idx.findByPackagePrefix(pro.javacard.HexUtils.hex2bin("A000000617"))), List.of("app.cap", "lib10.cap", "lib12.cap", "lib20.cap"));
+                Assert.assertEquals(names(idx.findByPackagePrefix(pro.javacard.HexUtils.hex2bin("A0000006170101"))), List.of("lib10.cap", "lib12.cap", "lib20.cap"));
+                Assert.assertEquals(names(idx.findByPackagePrefix(pro.javacard.HexUtils.hex2bin("A0000006170101FF"))), List.of());
+                Assert.assertEquals(names(idx.findProviders(AID.fromString("A0000006170101"), 1, 1)), List.of("lib12.cap"));
+                Assert.assertEquals(names(idx.findByAppletPrefix(pro.javacard.HexUtils.hex2bin("A000000151"))), List.of("other.cap"));
+                Assert.assertEquals(names(idx.findDependents(AID.fromString("A0000006170101"))), List.of("app.cap"));
+                Assert.assertEquals(idx.findDependents(AID.fromString("A0000000620101")).size(), 5);
+
+                CAPFile cap = CAPFile.fromFile(app);
+                List<CAPIndex.Entry> byHash = idx.findByHash(cap.getLoadFileDataHash("SHA-256"));
+                Assert.assertEquals(names(byHash), List.of("app.cap"));
+                Assert.assertEquals(byHash.get(0).getImports(), cap.getImports());
+                Assert.assertEquals(byHash.get(0).getApplets(), cap.getAppletAIDs());
+                Assert.assertEquals(names(idx.findByHash(cap.getLoadFileDataHash("SHA-1"))), List.of("app.cap"));
+            }
+
+            // Incremental update: one changed, one removed, one added
+            write(dir, "app", SyntheticCAP.builder().aid("A0000006170201").classes(2).imports("A0000006170101", 1, 1));
+            Files.setLastModifiedTime(app, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+            Files.delete(dir.resolve("lib20.cap"));
+            write(dir, "new", SyntheticCAP.builder().aid("A0000006170301"));
+            stats = CAPIndex.update(index, Collections.singletonList(dir));
+            Assert.assertEquals(stats.unchanged, 3);
+            Assert.assertEquals(stats.parsed, 2);
+            Assert.assertEquals(stats.removed, 1);
+            try (CAPIndex idx = CAPIndex.open(index)) {
+                Assert.assertEquals(idx.size(), 5);
+                Assert.assertEquals(names(idx.findByHash(CAPFile.fromFile(app).getLoadFileDataHash("SHA-1"))), List.of("app.cap"));
+            }
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+                files.forEach(CAPFile::uncheckedDelete);
+            }
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static pro.javacard.capfile.Components.*;
+
+public class TestCAPOptimizer {
+    // sspush 5; sstore 0; goto_w +3; sload 0; pop
+    static final byte[] PREFIX = {0x11, 0x00, 0x05, 0x29, 0x00, (byte) 0xA8, 0x00, 0x03, 0x16, 0x00, 0x3B};
+
+    @Test
+    public void testOptimize() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(2).methods(3).statics(2).body(30).applets(1).debug(true).prefix(PREFIX).build());
+        CAPOptimizer.Result r = CAPOptimizer.optimize(cap);
+        CAPFile optimized = r.getCAP();
+        Assert.assertEquals(CAPValidator.validate(optimized), List.of());
+
+        // Every method loses 9 bytes: sspush -> sconst_5, sstore 0 -> sstore_0, goto_w and sload 0; pop removed
+        Assert.assertEquals(r.getMethodSizeBefore() - r.getMethodSizeAfter(), 6 * 9);
+        Assert.assertEquals(r.getLoadFileSizeBefore() - r.getLoadFileSizeAfter(), 6 * 9);
+        Map<String, Integer> counts = r.getCounts();
+        Assert.assertEquals(counts.get(CAPOptimizer.CONSTANT), Integer.valueOf(6));
+        Assert.assertEquals(counts.get(CAPOptimizer.LOCAL), Integer.valueOf(6 * 2));
+        Assert.assertEquals(counts.get(CAPOptimizer.GOTO_NEXT), Integer.valueOf(6));
+        Assert.assertEquals(counts.get(CAPOptimizer.DEAD_VALUE), Integer.valueOf(6 * 2));
+        Assert.assertEquals(r.getSavings().values().stream().mapToInt(Integer::intValue).sum(), 6 * 9);
+        Assert.assertTrue(r.getCostAfter() < r.getCostBefore());
+
+        byte[] method = optimized.getComponent("Method");
+        int body = body(optimized, 0);
+        // sconst_5 sstore_0 sconst_0 sstore_0
+        Assert.assertEquals(u1(method, body), 0x08);
+        Assert.assertEquals(u1(method, body + 1), 0x2F);
+        Assert.assertEquals(u1(method, body + 2), 0x03);
+
+        assertRefLocations(optimized);
+
+        // Calls, names and applets still resolve
+        List<CodeAnalyzer.MethodInfo> methods = CodeAnalyzer.of(optimized).getMethods();
+        Assert.assertEquals(methods.get(0).getName(), "synthetic.C0.m0()V");
+        Assert.assertEquals(CodeAnalyzer.of(optimized).getReachable(methods.get(0)).size(), 3);
+        Assert.assertEquals(optimized.getApplets(), cap.getApplets());
+    }
+
+    @Test
+    public void testIdempotent() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(1).methods(2).body(20).debug(true).prefix(PREFIX).build());
+        CAPOptimizer.Result first = CAPOptimizer.optimize(cap);
+        CAPOptimizer.Result second = CAPOptimizer.optimize(first.getCAP());
+        Assert.assertEquals(second.getMethodSizeAfter(), first.getMethodSizeAfter());
+        Assert.assertTrue(second.getCounts().values().stream().allMatch(c -> c == 0));
+        Assert.assertEquals(second.getCAP().getCode(), first.getCAP().getCode());
+    }
+
+    @Test
+    public void testNothingToDo() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(1).methods(2).body(20).build());
+        CAPOptimizer.Result r = CAPOptimizer.optimize(cap);
+        Assert.assertEquals(r.getCAP().getCode(), cap.getCode());
+        Assert.assertEquals(r.getSavings().get(CAPOptimizer.BRANCH), Integer.valueOf(0));
+    }
+
+    @Test
+    public void testRelocationGap255() throws Exception {
+        // nop * 237; sspush 5; sstore 0 shrinks by 3 bytes, so that the gap between the invokestatic operand of
+        // the first method and the first getstatic operand of the second method goes from 258 to exactly 255
+        byte[] prefix = new byte[242];
+        System.arraycopy(new byte[]{0x11, 0x00, 0x05, 0x29, 0x00}, 0, prefix, 237, 5);
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(1).methods(2).body(prefix.length + 30).prefix(prefix).build());
+        CAPOptimizer.Result r = CAPOptimizer.optimize(cap);
+        CAPFile optimized = r.getCAP();
+        Assert.assertEquals(CAPValidator.validate(optimized), List.of());
+        Assert.assertEquals(r.getMethodSizeBefore() - r.getMethodSizeAfter(), 2 * 3);
+
+        byte[] refs = optimized.getComponent("RefLocation");
+        int off = INFO + 2 + u2(refs, INFO);
+        boolean gap = false;
+        for (int i = 0; i + 1 < u2(refs, off); i++)
+            gap |= u1(refs, off + 2 + i) == 255 && u1(refs, off + 3 + i) == 0;
+        Assert.assertTrue(gap, "Gap of 255 bytes must be encoded as 255, 0");
+        assertRefLocations(optimized);
+        Assert.assertEquals(CAPOptimizer.optimize(optimized).getCAP().getComponent("RefLocation"), refs);
+    }
+
+    @Test
+    public void testExceptionHandler() throws Exception {
+        // sspush 5; sstore 0; sload 0; pop, with a handler over sload 0; pop that is the loop
+        byte[] prefix = {0x11, 0x00, 0x05, 0x29, 0x00, 0x16, 0x00, 0x3B};
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(1).methods(1).body(30).prefix(prefix).handler(5, 0x8000 | 3, 8).build());
+        CAPOptimizer.Result r = CAPOptimizer.optimize(cap);
+        CAPFile optimized = r.getCAP();
+        Assert.assertEquals(CAPValidator.validate(optimized), List.of());
+        // sload 0; pop is covered by the handler, so it stays as sload_0; pop
+        Assert.assertEquals(r.getCounts().get(CAPOptimizer.DEAD_VALUE), Integer.valueOf(0));
+        Assert.assertEquals(r.getCounts().get(CAPOptimizer.LOCAL), Integer.valueOf(2));
+
+        byte[] method = optimized.getComponent("Method");
+        int body = body(optimized, 0);
+        Assert.assertEquals(u1(method, body + 2), 0x1C); // sload_0
+        Assert.assertEquals(u1(method, body + 3), 0x3B); // pop
+        Assert.assertEquals(u1(method, INFO), 1);
+        Assert.assertEquals(u2(method, INFO + 1), body - INFO + 2);
+        Assert.assertEquals(u2(method, INFO + 3), 0x8000 | 2);
+        Assert.assertEquals(u2(method, INFO + 5), body - INFO + 4);
+        Assert.assertEquals(u2(method, INFO + 7), 0);
+        assertRefLocations(optimized);
+    }
+
+    @Test
+    public void testSwitch() throws Exception {
+        byte[] prefix = {
+                0x11, 0x00, 0x00, // 0: sspush 0
+                0x73, 0x00, 0x0B, 0x00, 0x00, 0x00, 0x01, 0x00, 0x0B, 0x00, 0x17, // 3: stableswitch 0..1, default 14, 14, 26
+                0x11, 0x00, 0x01, // 14: sspush 1
+                0x75, 0x00, 0x0E, 0x00, 0x01, 0x00, 0x01, 0x00, 0x0E, // 17: slookupswitch default 31, 1: 31
+                0x11, 0x00, 0x03, 0x29, 0x00 // 26: sspush 3; sstore 0
+        };
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(1).methods(1).body(50).prefix(prefix).build());
+        CAPOptimizer.Result r = CAPOptimizer.optimize(cap);
+        CAPFile optimized = r.getCAP();
+        Assert.assertEquals(CAPValidator.validate(optimized), List.of());
+
+        // 0: sconst_0 1: stableswitch 12: sconst_1 13: slookupswitch 22: sconst_3 23: sstore_0 24: loop
+        byte[] method = optimized.getComponent("Method");
+        int body = body(optimized, 0);
+        Assert.assertEquals(u1(method, body + 1), 0x73);
+        Assert.assertEquals(u2(method, body + 2), 11);
+        Assert.assertEquals(u2(method, body + 8), 11);
+        Assert.assertEquals(u2(method, body + 10), 21);
+        Assert.assertEquals(u1(method, body + 13), 0x75);
+        Assert.assertEquals(u2(method, body + 14), 11);
+        Assert.assertEquals(u2(method, body + 18), 1);
+        Assert.assertEquals(u2(method, body + 20), 11);
+        Assert.assertEquals(u1(method, body + 24), 0x03);
+        assertRefLocations(optimized);
+    }
+
+    @Test
+    public void testJumpThread() throws Exception {
+        byte[] prefix = {
+                0x03, // 0: sconst_0
+                0x60, 0x05, // 1: ifeq 6
+                0x04, 0x2F, // 3: sconst_1; sstore_0
+                0x00, // 5: nop
+                0x70, 0x04, // 6: goto 10
+                0x05, 0x2F // 8: sconst_2; sstore_0
+        };
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(1).methods(2).body(30).prefix(prefix).build());
+        CAPOptimizer.Result r = CAPOptimizer.optimize(cap);
+        CAPFile optimized = r.getCAP();
+        Assert.assertEquals(CAPValidator.validate(optimized), List.of());
+        Assert.assertEquals(r.getCounts().get(CAPOptimizer.JUMP_THREAD), Integer.valueOf(2));
+        Assert.assertEquals(r.getMethodSizeAfter(), r.getMethodSizeBefore());
+
+        // ifeq jumps over the goto, straight to the loop
+        byte[] method = optimized.getComponent("Method");
+        for (int m = 0; m < 2; m++) {
+            int body = body(optimized, m);
+            Assert.assertEquals(u1(method, body + 1), 0x60);
+            Assert.assertEquals(u1(method, body + 2), 9);
+            Assert.assertEquals(u1(method, body + 6), 0x70);
+            Assert.assertEquals(u1(method, body + 7), 4);
+        }
+        assertRefLocations(optimized);
+    }
+
+    @Test
+    public void testBranchWidening() throws Exception {
+        // ifeq to a goto_w is threaded to the far target of the goto_w and needs the wide form
+        byte[] prefix = new byte[207];
+        System.arraycopy(new byte[]{0x03, 0x60, 0x03, 0x00, (byte) 0xA8, 0x00, (byte) 0xCB}, 0, prefix, 0, 7);
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(1).methods(1).body(prefix.length + 30).prefix(prefix).build());
+        CAPOptimizer.Result r = CAPOptimizer.optimize(cap);
+        CAPFile optimized = r.getCAP();
+        Assert.assertEquals(CAPValidator.validate(optimized), List.of());
+        Assert.assertEquals(r.getCounts().get(CAPOptimizer.JUMP_THREAD), Integer.valueOf(1));
+        Assert.assertEquals(r.getSavings().get(CAPOptimizer.BRANCH), Integer.valueOf(-1));
+
+        // 0: sconst_0 1: ifeq_w 208 4: nop 5: goto_w 208 8: nop... 208: loop
+        byte[] method = optimized.getComponent("Method");
+        int body = body(optimized, 0);
+        Assert.assertEquals(u1(method, body + 1), 0x98);
+        Assert.assertEquals(u2(method, body + 2), 207);
+        Assert.assertEquals(u1(method, body + 5), 0xA8);
+        Assert.assertEquals(u2(method, body + 6), 203);
+        Assert.assertEquals(u1(method, body + 208), 0x03);
+        assertRefLocations(optimized);
+    }
+
+    // Offset of bytecode of a method in Method component, including component header
+    static int body(CAPFile cap, int index) {
+        byte[] method = cap.getComponent("Method");
+        Descriptor.MethodDescriptor m = Descriptor.parse(cap.getComponent("Descriptor")).methods.get(index);
+        return INFO + m.offset + Descriptor.headerSize(method, m.offset);
+    }
+
+    // RefLocation points to exactly the constant pool operands
+    static void assertRefLocations(CAPFile cap) {
+        byte[] method = cap.getComponent("Method");
+        Set<Integer> operands = new HashSet<>();
+        for (Descriptor.MethodDescriptor m : Descriptor.parse(cap.getComponent("Descriptor")).methods) {
+            int start = m.offset + Descriptor.headerSize(method, m.offset);
+            for (int pc = 0; pc < m.bytecodes; pc += Bytecode.length(method, INFO + start + pc)) {
+                int index = Bytecode.poolIndex(u1(method, INFO + start + pc));
+                if (index > 0)
+                    operands.add(start + pc + index);
+            }
+        }
+        byte[] refs = cap.getComponent("RefLocation");
+        int off = INFO + 2 + u2(refs, INFO);
+        Set<Integer> byte2 = new HashSet<>();
+        int location = 0;
+        for (int i = 0; i < u2(refs, off); i++) {
+            location += u1(refs, off + 2 + i);
+            if (u1(refs, off + 2 + i) != 255)
+                byte2.add(location);
+        }
+        Assert.assertEquals(byte2, operands);
+    }
+}
@@ -0,0 +1,131 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class TestCAPValidator {
+
+    @Test
+    public void testValid() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(3).methods(4).statics(2).applets(2).debug(true).build());
+        Assert.assertEquals(CAPValidator.validate(cap), List.of());
+        Assert.assertEquals(cap.getApplets().size(), 2);
+    }
+
+    @Test
+    public void testLarge() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(30).methods(10).body(200).build());
+        Assert.assertEquals(CAPValidator.validate(cap), List.of());
+    }
+
+    @Test
+    public void testMaximumClasses() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(255).methods(2).statics(1).arrays(1, 4).body(40).debug(true).build());
+        Assert.assertEquals(CAPValidator.validate(cap), List.of());
+        Assert.assertEquals(LoadProfile.of(cap).getClasses().size(), 255);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTooLarge() {
+        SyntheticCAP.builder().classes(40).methods(20).body(200).build();
+    }
+
+    @Test
+    public void testDirectorySize() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().build());
+        byte[] directory = cap.component("Directory");
+        // Method component size
+        Components.put2(directory, Components.INFO + (Components.METHOD - 1) * 2, 1);
+        List<String> problems = CAPValidator.validate(cap);
+        Assert.assertEquals(problems.size(), 1, problems.toString());
+        Assert.assertTrue(problems.get(0).contains("Method"), problems.get(0));
+    }
+
+    @Test
+    public void testConstantPoolIndex() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().build());
+        byte[] method = cap.component("Method");
+        // Operand of first getstatic_s, after handler count, method header and loop
+        Components.put2(method, Components.INFO + 1 + 2 + 10 + 1, 0x1234);
+        Assert.assertFalse(CAPValidator.validate(cap).isEmpty());
+    }
+
+    @Test
+    public void testInvalidMagic() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().build());
+        byte[] header = cap.component("Header");
+        header[Components.INFO] = 0x00;
+        List<String> problems = CAPValidator.validate(cap);
+        Assert.assertEquals(problems.size(), 1, problems.toString());
+        Assert.assertTrue(problems.get(0).contains("magic"), problems.get(0));
+    }
+
+    @Test
+    public void testMissingComponent() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().build());
+        Map<String, byte[]> entries = new LinkedHashMap<>(cap.entries);
+        entries.remove(entry(cap, "ConstantPool"));
+        List<String> problems = CAPValidator.validate(zip(entries));
+        Assert.assertTrue(problems.contains("ConstantPool component is missing"), problems.toString());
+    }
+
+    // CAP 2.3 (JavaCard 3.1 compact format) with a StaticResources component (tag 13) in the Directory
+    @Test
+    public void testStaticResources() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(2).debug(true).build());
+        cap.component("Header")[7] = 3; // minor
+        byte[] resources = {13, 0x00, 12, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x04, 1, 2, 3, 4};
+        byte[] directory = cap.component("Directory");
+        byte[] extended = new byte[directory.length + 2];
+        int sizes = Components.INFO + 12 * 2;
+        System.arraycopy(directory, 0, extended, 0, sizes);
+        Components.put2(extended, sizes, resources.length - Components.INFO);
+        System.arraycopy(directory, sizes, extended, sizes + 2, directory.length - sizes);
+        Components.put2(extended, 1, extended.length - Components.INFO);
+        Components.put2(extended, Components.INFO + (Components.DIRECTORY - 1) * 2, extended.length - Components.INFO);
+        Map<String, byte[]> entries = new LinkedHashMap<>(cap.entries);
+        entries.put(entry(cap, "Directory"), extended);
+        entries.put(entry(cap, "Directory").replace("Directory", "StaticResources"), resources);
+        CAPFile v23 = zip(entries);
+        Assert.assertEquals(v23.getCAPVersion(), "2.3");
+        List<String> valid = CAPValidator.validate(v23);
+        Assert.assertEquals(valid, List.of(), valid.toString());
+
+        // Known components are still checked
+        Components.put2(v23.component("Directory"), Components.INFO + (Components.METHOD - 1) * 2, 1);
+        List<String> problems = CAPValidator.validate(v23);
+        Assert.assertEquals(problems.size(), 1, problems.toString());
+        Assert.assertTrue(problems.get(0).contains("Method"), problems.get(0));
+    }
+
+    @Test
+    public void testExtendedNotChecked() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().build());
+        cap.component("Header")[9] |= Components.ACC_EXTENDED;
+        Assert.assertEquals(CAPValidator.validate(cap), List.of());
+    }
+
+    private static String entry(CAPFile cap, String component) {
+        return cap.entries.keySet().stream().filter(e -> e.endsWith("/" + component + ".cap")).findFirst().get();
+    }
+
+    private static CAPFile zip(Map<String, byte[]> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(e.getKey()));
+                out.write(e.getValue());
+                out.closeEntry();
+            }
+        }
+        return CAPFile.fromBytes(bytes.toByteArray());
+    }
+}
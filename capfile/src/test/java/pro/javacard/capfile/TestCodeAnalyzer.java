@@ -0,0 +1,62 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class TestCodeAnalyzer {
+
+    @Test
+    public void testAnalyze() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(2).methods(3).statics(2).body(20).debug(true).build());
+        CodeAnalyzer analyzer = CodeAnalyzer.of(cap);
+        List<CodeAnalyzer.MethodInfo> methods = analyzer.getMethods();
+        Assert.assertEquals(methods.size(), 6);
+
+        CodeAnalyzer.MethodInfo m0 = methods.get(0);
+        Assert.assertEquals(m0.getName(), "synthetic.C0.m0()V");
+        Assert.assertEquals(m0.getMaxStack(), 3);
+        Assert.assertEquals(m0.getMaxLocals(), 1);
+        Assert.assertEquals(m0.getArguments(), 0);
+        Assert.assertEquals(m0.getCalls(), 1);
+        Assert.assertEquals(m0.getIntArithmetic(), 0);
+        Assert.assertEquals(m0.getIntInstructions(), 0);
+        // sinc in the loop and sadd in every increment
+        Assert.assertTrue(m0.getShortArithmetic() >= 2);
+        Assert.assertTrue(m0.getCost() >= m0.getInstructions());
+        Assert.assertEquals(m0.getCallees().size(), 1);
+        Assert.assertEquals(m0.getCallees().iterator().next(), methods.get(1));
+        Assert.assertEquals(methods.get(1).getCallers(), 1);
+        Assert.assertEquals(m0.getCallers(), 0);
+
+        // m0 -> m1 -> m2
+        List<CodeAnalyzer.MethodInfo> reachable = analyzer.getReachable(m0);
+        Assert.assertEquals(reachable.size(), 3);
+        Assert.assertTrue(reachable.get(0).getCost() >= reachable.get(2).getCost());
+        Assert.assertEquals(analyzer.getReachable(methods.get(2)).size(), 1);
+    }
+
+    @Test
+    public void testWeights() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(1).methods(1).statics(1).body(10).build());
+        Properties p = new Properties();
+        p.setProperty("default", "0");
+        for (String m : Bytecode.MNEMONICS)
+            if (m != null)
+                p.setProperty(m, "0");
+        p.setProperty("sinc", "100");
+        Map<String, Integer> weights = CodeAnalyzer.weights(p);
+        CodeAnalyzer.MethodInfo m = CodeAnalyzer.of(cap, weights).getMethods().get(0);
+        Assert.assertEquals(m.getCost(), 100);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownWeight() {
+        Properties p = new Properties();
+        p.setProperty("foo", "1");
+        CodeAnalyzer.weights(p);
+    }
+}
@@ -0,0 +1,61 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class TestLoadOrder {
+
+    static CAPFile cap(String name, String aid, int major, int minor, String... imports) throws Exception {
+        SyntheticCAP builder = SyntheticCAP.builder().name(name).aid(aid).version(major, minor).applets(0);
+        for (String imp : imports) {
+            String[] parts = imp.split(":");
+            builder.imports(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        }
+        return CAPFile.fromBytes(builder.build());
+    }
+
+    static List<String> names(List<CAPFile> caps) {
+        return caps.stream().map(CAPFile::getPackageName).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        CAPFile app = cap("app", "A0000006170301", 1, 0, "A0000006170201:1:0", "A0000006170101:1:1");
+        CAPFile lib2 = cap("lib2", "A0000006170201", 1, 0, "A0000006170101:1:0");
+        CAPFile lib1 = cap("lib1", "A0000006170101", 1, 2);
+        CAPFile other = cap("other", "A0000006170401", 1, 0);
+
+        LoadOrder order = LoadOrder.resolve(Arrays.asList(app, lib2, other, lib1));
+        Assert.assertEquals(order.getProblems(), List.of());
+        Assert.assertEquals(names(order.getLoadOrder()), List.of("other", "lib1", "lib2", "app"));
+        Assert.assertEquals(names(order.getDeleteOrder()), List.of("app", "lib2", "lib1", "other"));
+        Assert.assertEquals(order.getGroups().size(), 2);
+        Assert.assertEquals(names(order.getGroups().get(0)), List.of("other"));
+        Assert.assertEquals(names(order.getGroups().get(1)), List.of("lib1", "lib2", "app"));
+    }
+
+    @Test
+    public void testProblems() throws Exception {
+        CAPFile app = cap("app", "A0000006170301", 1, 0, "A0000006170101:1:3", "A0000006170501:1:0");
+        CAPFile lib1 = cap("lib1", "A0000006170101", 1, 2);
+
+        LoadOrder order = LoadOrder.resolve(Arrays.asList(app, lib1));
+        Assert.assertEquals(order.getProblems().size(), 2, order.getProblems().toString());
+        Assert.assertTrue(order.getProblems().get(0).contains("provides v1.2"));
+        Assert.assertTrue(order.getProblems().get(1).contains("missing"));
+        Assert.assertEquals(names(order.getLoadOrder()), List.of("lib1", "app"));
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        CAPFile a = cap("a", "A0000006170101", 1, 0, "A0000006170201:1:0");
+        CAPFile b = cap("b", "A0000006170201", 1, 0, "A0000006170101:1:0");
+        LoadOrder order = LoadOrder.resolve(Arrays.asList(a, b));
+        Assert.assertEquals(order.getProblems().size(), 1);
+        Assert.assertTrue(order.getProblems().get(0).startsWith("Circular"));
+    }
+}
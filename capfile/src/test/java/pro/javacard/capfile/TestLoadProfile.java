@@ -0,0 +1,49 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+public class TestLoadProfile {
+
+    @Test
+    public void testProfile() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(3).methods(2).statics(2).body(30).debug(true).build());
+        LoadProfile profile = LoadProfile.of(cap);
+
+        Assert.assertEquals(profile.getCodeSize(), cap.getCode().length);
+        Assert.assertEquals(profile.getFullSize(), cap.getCode(true).length);
+        Assert.assertEquals(profile.getStaticImageSize(), 3 * 2 * 2);
+        Assert.assertEquals(profile.getArrayInitCount(), 0);
+        Assert.assertEquals(profile.getLoadCommands(255, false), (cap.getCode().length + 4 + 254) / 255);
+        Assert.assertEquals(profile.getByteRelocations(), 0);
+        Assert.assertTrue(profile.getShortRelocations() > 0);
+
+        Assert.assertEquals(profile.getClasses().size(), 3);
+        Assert.assertEquals(profile.getMethods().size(), 6);
+        // First method of each class calls the next one, so it is the largest
+        Assert.assertEquals(profile.getMethods().get(0).getName(), "synthetic.C0.m0()V");
+        Assert.assertTrue(profile.getMethods().get(0).getSize() > profile.getMethods().get(5).getSize());
+        Assert.assertEquals(profile.getClasses().get(0).getName(), "synthetic.C0");
+        int total = profile.getMethods().stream().mapToInt(LoadProfile.Item::getSize).sum();
+        Assert.assertEquals(profile.getClasses().stream().mapToInt(LoadProfile.Item::getSize).sum(), total);
+    }
+
+    @Test
+    public void testArrays() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(2).statics(1).arrays(3, 20).debug(true).build());
+        LoadProfile profile = LoadProfile.of(cap);
+        Assert.assertEquals(profile.getArrayInitCount(), 6);
+        Assert.assertEquals(profile.getArrayInitSize(), 6 * 20 * 2);
+        Assert.assertEquals(profile.getStaticImageSize(), 6 * 2 + 2 * 2);
+        Assert.assertEquals(CAPValidator.validate(cap), List.of());
+    }
+
+    @Test
+    public void testWithoutDebug() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(2).build());
+        LoadProfile profile = LoadProfile.of(cap);
+        Assert.assertTrue(profile.getMethods().get(0).getName().startsWith("class@2 (token 0).method@"), profile.getMethods().get(0).getName());
+    }
+}
@@ -0,0 +1,76 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pro.javacard.HexUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestLoadStream {
+
+    @Test
+    public void testLoad() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(4).methods(4).body(40).build());
+        byte[] code = cap.getCode();
+        Assert.assertTrue(code.length > 255 && code.length < 0x10000);
+
+        LoadStream load = LoadStream.of(cap).blockSize(200);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        load.writeLoadFile(file);
+        byte[] expected = file.toByteArray();
+        Assert.assertEquals(Arrays.copyOf(expected, 3), new byte[]{(byte) 0xC4, (byte) 0x82, (byte) (code.length >> 8)});
+        Assert.assertEquals(Arrays.copyOfRange(expected, 4, expected.length), code);
+
+        List<byte[]> apdus = new ArrayList<>();
+        load.forEach(apdus::add);
+        Assert.assertEquals(apdus.size(), load.getBlockCount());
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < apdus.size(); i++) {
+            byte[] apdu = apdus.get(i);
+            Assert.assertEquals(apdu[0], (byte) 0x80);
+            Assert.assertEquals(apdu[1], (byte) 0xE8);
+            Assert.assertEquals(apdu[2], (byte) (i == apdus.size() - 1 ? 0x80 : 0x00));
+            Assert.assertEquals(apdu[3], (byte) i);
+            Assert.assertEquals(apdu[4] & 0xFF, apdu.length - 5);
+            Assert.assertTrue(apdu.length - 5 <= 200);
+            data.write(apdu, 5, apdu.length - 5);
+        }
+        Assert.assertEquals(data.toByteArray(), expected);
+        Assert.assertEquals(load.getLoadFileDataHash("SHA-256"), cap.getLoadFileDataHash("SHA-256"));
+    }
+
+    @Test
+    public void testExtendedAndDAP() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().classes(4).methods(4).body(40).build());
+        AID sd = AID.fromString("A000000151000000");
+        LoadStream load = LoadStream.of(cap).extendedLength(true).blockSize(0x1000).dap(sd, new byte[128]);
+        Assert.assertEquals(load.getBlockCount(), 1);
+        byte[] apdu = load.iterator().next();
+        Assert.assertEquals(Arrays.copyOf(apdu, 7), new byte[]{(byte) 0x80, (byte) 0xE8, (byte) 0x80, 0x00, 0x00, (byte) (load.getLength() >> 8), (byte) load.getLength()});
+        // E2 L 4F 08 <aid> C3 81 80 <signature>
+        Assert.assertEquals(Arrays.copyOfRange(apdu, 7, 11), new byte[]{(byte) 0xE2, (byte) 0x81, (byte) 0x8D, 0x4F});
+        Assert.assertEquals(apdu[7 + 3 + 10 + 3 + 128], (byte) 0xC4);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testBlockSize() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().build());
+        LoadStream.of(cap).blockSize(256).getBlockCount();
+    }
+
+    @Test
+    public void testScript() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.builder().build());
+        StringWriter script = new StringWriter();
+        LoadStream.of(cap).writeScript(script, null, "SHA-1");
+        String[] lines = script.toString().split(System.lineSeparator());
+        String install = lines[2];
+        String hash = HexUtils.bin2hex(cap.getLoadFileDataHash("SHA-1"));
+        Assert.assertEquals(install, "80E602002007A0000006170001" + "00" + "14" + hash + "0000");
+        Assert.assertTrue(lines[4].startsWith("80E88000"));
+    }
+}
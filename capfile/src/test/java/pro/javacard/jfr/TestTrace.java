@@ -0,0 +1,77 @@
+package pro.javacard.jfr;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.SyntheticCAP;
+import pro.javacard.sdk.FakeSDK;
+import pro.javacard.sdk.OffCardVerifier;
+import pro.javacard.sdk.SDKVersion;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class TestTrace {
+
+    @Test
+    public void testNotRecording() throws Exception {
+        Assert.assertFalse(Trace.recording());
+        Assert.assertSame(Trace.parse(), Span.NONE);
+        Assert.assertSame(Trace.phase("compile"), Span.NONE);
+        Assert.assertSame(Trace.hash("SHA-256"), Span.NONE);
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        Path tmp = Files.createTempDirectory("jfr");
+        byte[] bytes = SyntheticCAP.builder().name("pkg.test").aid("0102030405").classes(2).applets(1).build();
+        Path capfile = tmp.resolve("test.cap");
+        Files.write(capfile, bytes);
+        FakeSDK fake = FakeSDK.create(SDKVersion.V320, tmp.resolve("sdk"));
+
+        Path jfr = tmp.resolve("recording.jfr");
+        try (Recording recording = new Recording()) {
+            for (String event : new String[]{"pro.javacard.CAPParse", "pro.javacard.CAPHash", "pro.javacard.CAPStrip", "pro.javacard.Verify", "pro.javacard.BuildPhase"})
+                recording.enable(event).withoutThreshold();
+            recording.start();
+            Assert.assertTrue(Trace.recording());
+            CAPFile cap = CAPFile.fromBytes(bytes);
+            cap.getLoadFileDataHash("SHA-256");
+            OffCardVerifier.withSDK(fake.getSDK()).verify(capfile, Collections.singletonList(fake.getSDK().getExportDir()));
+            CAPFile.strip(capfile);
+            try (Span span = Trace.phase("compile")) {
+                span.packageName("pkg.test").cache("hit").written(42);
+            }
+            recording.stop();
+            recording.dump(jfr);
+        }
+        Map<String, List<RecordedEvent>> events = RecordingFile.readAllEvents(jfr).stream()
+                .filter(e -> e.getEventType().getName().startsWith("pro.javacard."))
+                .collect(Collectors.groupingBy(e -> e.getEventType().getName()));
+
+        RecordedEvent parse = events.get("pro.javacard.CAPParse").get(0);
+        Assert.assertEquals(parse.getString("packageAID"), "0102030405");
+        Assert.assertTrue(parse.getLong("read") > 0);
+        RecordedEvent hash = events.get("pro.javacard.CAPHash").get(0);
+        Assert.assertEquals(hash.getString("algorithm"), "SHA-256");
+        Assert.assertEquals(hash.getLong("read"), CAPFile.fromBytes(bytes).getCode().length);
+        RecordedEvent verify = events.get("pro.javacard.Verify").get(0);
+        Assert.assertEquals(verify.getString("sdk"), "3.2.0");
+        Assert.assertEquals(verify.getLong("read"), bytes.length);
+        RecordedEvent strip = events.get("pro.javacard.CAPStrip").get(0);
+        Assert.assertEquals(strip.getLong("read"), bytes.length);
+        Assert.assertTrue(strip.getLong("written") > 0);
+        RecordedEvent phase = events.get("pro.javacard.BuildPhase").get(0);
+        Assert.assertEquals(phase.getString("phase"), "compile");
+        Assert.assertEquals(phase.getString("packageName"), "pkg.test");
+        Assert.assertEquals(phase.getString("cache"), "hit");
+        Assert.assertEquals(phase.getLong("written"), 42);
+    }
+}
@@ -0,0 +1,390 @@
+package pro.javacard.sdk;
+
+import pro.javacard.HexUtils;
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.SyntheticCAP;
+import pro.javacard.jfr.Trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.spi.ToolProvider;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+
+import static pro.javacard.sdk.SDKVersion.*;
+
+// A stand-in for JavaCard SDK-s, for testing and benchmarking the build without Oracle kits.
+// The directory layout is what JavaCardSDK.detectSDK expects for every SDKVersion. API jars have just enough
+// of the JavaCard API for the test applets and SyntheticSources, tool jars have the converter, the off-card verifier
+// and the string constants processor, which call FakeTools. The converter writes a deterministic SyntheticCAP with
+// the package, AID, version and applets it is given, an export file and a JCA listing.
+// Latency and failures are configured in fake.properties of the SDK root, invocations are logged to fake.log.
+//
+// java -cp capfile/target/classes:capfile/target/test-classes pro.javacard.sdk.FakeSDK 3.1.0 sdks/fake_kit
+public final class FakeSDK {
+    public static final String PROPERTIES = "fake.properties";
+    public static final String LOG = "fake.log";
+
+    // Compiled once per JVM: stub API, annotations and tool entry points
+    private static Map<String, byte[]> compiled = null;
+
+    static final Map<String, String> API = new LinkedHashMap<>();
+    static final Map<String, String> ANNOTATIONS = new LinkedHashMap<>();
+    static final Map<String, String> TOOLS = new LinkedHashMap<>();
+
+    static {
+        String fw = "package javacard.framework; ";
+        API.put("javacard/framework/AID.java", fw + "public final class AID { public AID(byte[] b, short o, byte l) { } }");
+        API.put("javacard/framework/Shareable.java", fw + "public interface Shareable { }");
+        API.put("javacard/framework/ISO7816.java", fw + "public interface ISO7816 { byte OFFSET_CLA = 0; byte OFFSET_INS = 1; byte OFFSET_P1 = 2; byte OFFSET_P2 = 3;"
+                + " byte OFFSET_LC = 4; byte OFFSET_CDATA = 5; short SW_NO_ERROR = (short) 0x9000; short SW_WRONG_LENGTH = 0x6700;"
+                + " short SW_INS_NOT_SUPPORTED = 0x6D00; short SW_CLA_NOT_SUPPORTED = 0x6E00; short SW_UNKNOWN = 0x6F00; }");
+        API.put("javacard/framework/CardRuntimeException.java", fw + "public class CardRuntimeException extends RuntimeException {"
+                + " public CardRuntimeException(short reason) { } public short getReason() { return 0; } public static void throwIt(short reason) { throw new CardRuntimeException(reason); } }");
+        API.put("javacard/framework/ISOException.java", fw + "public class ISOException extends CardRuntimeException {"
+                + " public ISOException(short sw) { super(sw); } public static void throwIt(short sw) { throw new ISOException(sw); } }");
+        API.put("javacard/framework/APDU.java", fw + "public final class APDU { public byte[] getBuffer() { return null; } public short setIncomingAndReceive() { return 0; }"
+                + " public short setOutgoing() { return 0; } public void setOutgoingLength(short l) { } public void sendBytes(short o, short l) { }"
+                + " public void setOutgoingAndSend(short o, short l) { } }");
+        API.put("javacard/framework/Applet.java", fw + "public abstract class Applet { protected Applet() { }"
+                + " public static void install(byte[] b, short o, byte l) { } public abstract void process(APDU apdu) throws ISOException;"
+                + " public boolean select() { return true; } public void deselect() { } public Shareable getShareableInterfaceObject(AID client, byte parameter) { return null; }"
+                + " protected final void register() { } protected final void register(byte[] b, short o, byte l) { } protected final boolean selectingApplet() { return false; } }");
+        API.put("javacard/framework/JCSystem.java", fw + "public final class JCSystem { public static final byte CLEAR_ON_RESET = 1; public static final byte CLEAR_ON_DESELECT = 2;"
+                + " public static byte[] makeTransientByteArray(short l, byte e) { return null; } public static short[] makeTransientShortArray(short l, byte e) { return null; }"
+                + " public static void beginTransaction() { } public static void commitTransaction() { } public static AID getAID() { return null; }"
+                + " public static Shareable getAppletShareableInterfaceObject(AID server, byte parameter) { return null; } }");
+        API.put("javacard/framework/Util.java", fw + "public final class Util {"
+                + " public static short arrayCopy(byte[] s, short so, byte[] d, short doff, short l) { return 0; }"
+                + " public static short arrayCopyNonAtomic(byte[] s, short so, byte[] d, short doff, short l) { return 0; }"
+                + " public static short arrayFillNonAtomic(byte[] b, short o, short l, byte v) { return 0; }"
+                + " public static byte arrayCompare(byte[] s, short so, byte[] d, short doff, short l) { return 0; }"
+                + " public static short makeShort(byte b1, byte b2) { return 0; } public static short getShort(byte[] b, short o) { return 0; }"
+                + " public static short setShort(byte[] b, short o, short v) { return 0; } }");
+        String sec = "package javacard.security; ";
+        API.put("javacard/security/CryptoException.java", sec + "public class CryptoException extends javacard.framework.CardRuntimeException {"
+                + " public CryptoException(short reason) { super(reason); } public static void throwIt(short reason) { throw new CryptoException(reason); } }");
+        API.put("javacard/security/RandomData.java", sec + "public abstract class RandomData { public static final byte ALG_SECURE_RANDOM = 2;"
+                + " public static RandomData getInstance(byte algorithm) { return null; } public abstract void generateData(byte[] b, short o, short l); }");
+        // Markers of SDK versions, see JavaCardSDK.detectSDKVersion
+        API.put("javacardx/apdu/ExtendedLength.java", "package javacardx.apdu; public interface ExtendedLength { }");
+        API.put("javacardx/framework/string/StringUtil.java", "package javacardx.framework.string; public final class StringUtil { }");
+        API.put("javacard/framework/SensitiveArrays.java", fw + "public final class SensitiveArrays { }");
+
+        String ann = "package javacardx.annotations; import java.lang.annotation.*; @Retention(RetentionPolicy.SOURCE) ";
+        ANNOTATIONS.put("javacardx/annotations/StringDef.java", ann + "@Target({}) public @interface StringDef { String name(); String value(); }");
+        ANNOTATIONS.put("javacardx/annotations/StringPool.java", ann + "@Target(ElementType.TYPE) public @interface StringPool { String name(); StringDef[] value(); }");
+
+        String root = "    private static java.nio.file.Path root(Class<?> c) throws Exception {\n"
+                + "        return java.nio.file.Paths.get(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getParent().getParent();\n"
+                + "    }\n";
+        String convert = "    public static void main(String[] args) throws Exception {\n"
+                + "        Object rc = Class.forName(\"pro.javacard.sdk.FakeTools\").getMethod(\"convert\", java.nio.file.Path.class, String[].class).invoke(null, root(%s.class), args);\n"
+                + "        System.exit((Integer) rc);\n"
+                + "    }\n";
+        TOOLS.put("com/sun/javacard/converter/Main.java", "package com.sun.javacard.converter;\npublic class Main {\n" + String.format(convert, "Main") + root + "}\n");
+        TOOLS.put("com/sun/javacard/converter/Converter.java", "package com.sun.javacard.converter;\npublic class Converter {\n" + String.format(convert, "Converter") + root + "}\n");
+        TOOLS.put("com/sun/javacard/offcardverifier/Verifier.java", "package com.sun.javacard.offcardverifier;\n"
+                + "import java.io.*;\nimport java.util.Vector;\nimport java.lang.reflect.InvocationTargetException;\n"
+                + "public class Verifier {\n" + root
+                + "    private static void verify(byte[] cap, String pkg, Vector<File> exps) throws Throwable {\n"
+                + "        try {\n"
+                + "            Class.forName(\"pro.javacard.sdk.FakeTools\").getMethod(\"verify\", java.nio.file.Path.class, byte[].class, String.class, Vector.class)\n"
+                + "                    .invoke(null, root(Verifier.class), cap, pkg, exps);\n"
+                + "        } catch (InvocationTargetException e) {\n"
+                + "            throw e.getTargetException();\n"
+                + "        }\n"
+                + "    }\n"
+                + "    public static void verifyCap(File f, String pkg, Vector<File> exps) throws Throwable {\n"
+                + "        verify(java.nio.file.Files.readAllBytes(f.toPath()), pkg, exps);\n"
+                + "    }\n"
+                + "    public static void verifyCap(FileInputStream in, String pkg, Vector<File> exps) throws Throwable {\n"
+                + "        ByteArrayOutputStream bos = new ByteArrayOutputStream();\n"
+                + "        byte[] buf = new byte[4096];\n"
+                + "        for (int r = in.read(buf); r != -1; r = in.read(buf))\n"
+                + "            bos.write(buf, 0, r);\n"
+                + "        verify(bos.toByteArray(), pkg, exps);\n"
+                + "    }\n"
+                + "    // Makes 3.0.5 kits report release 3.0.5u3\n"
+                + "    public static void verifyTargetPlatform(String target) {\n"
+                + "    }\n"
+                + "}\n");
+        // Generates a class with byte array constants for every @StringPool
+        TOOLS.put("com/oracle/javacard/stringproc/StringConstantsProcessor.java", "package com.oracle.javacard.stringproc;\n"
+                + "import java.io.Writer;\nimport java.nio.charset.StandardCharsets;\nimport java.util.Set;\n"
+                + "import javax.annotation.processing.*;\nimport javax.lang.model.SourceVersion;\nimport javax.lang.model.element.*;\n"
+                + "import javacardx.annotations.StringDef;\nimport javacardx.annotations.StringPool;\n"
+                + "@SupportedAnnotationTypes(\"javacardx.annotations.StringPool\")\n"
+                + "public class StringConstantsProcessor extends AbstractProcessor {\n"
+                + "    public SourceVersion getSupportedSourceVersion() {\n"
+                + "        return SourceVersion.latestSupported();\n"
+                + "    }\n"
+                + "    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {\n"
+                + "        for (Element e : round.getElementsAnnotatedWith(StringPool.class)) {\n"
+                + "            StringPool pool = e.getAnnotation(StringPool.class);\n"
+                + "            String pkg = processingEnv.getElementUtils().getPackageOf(e).getQualifiedName().toString();\n"
+                + "            StringBuilder sb = new StringBuilder();\n"
+                + "            sb.append(\"package \").append(pkg).append(\";\\npublic final class \").append(pool.name()).append(\" {\\n\");\n"
+                + "            for (StringDef d : pool.value()) {\n"
+                + "                sb.append(\"    public static final byte[] \").append(d.name()).append(\" = {\");\n"
+                + "                byte[] v = d.value().getBytes(StandardCharsets.UTF_8);\n"
+                + "                for (int i = 0; i < v.length; i++)\n"
+                + "                    sb.append(i == 0 ? \"\" : \", \").append(v[i]);\n"
+                + "                sb.append(\"};\\n\");\n"
+                + "            }\n"
+                + "            sb.append(\"}\\n\");\n"
+                + "            try (Writer w = processingEnv.getFiler().createSourceFile(pkg + \".\" + pool.name(), e).openWriter()) {\n"
+                + "                w.write(sb.toString());\n"
+                + "            } catch (java.io.IOException x) {\n"
+                + "                throw new RuntimeException(x);\n"
+                + "            }\n"
+                + "        }\n"
+                + "        return true;\n"
+                + "    }\n"
+                + "}\n");
+    }
+
+    private final Path root;
+    private final SDKVersion version;
+
+    private FakeSDK(Path root, SDKVersion version) {
+        this.root = root;
+        this.version = version;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public SDKVersion getVersion() {
+        return version;
+    }
+
+    public JavaCardSDK getSDK() {
+        return JavaCardSDK.detectSDK(root).orElseThrow(() -> new IllegalStateException("Not detected: " + root));
+    }
+
+    // Milliseconds the converter waits before converting
+    public FakeSDK converterDelay(long ms) throws IOException {
+        return configure("converter.delay", Long.toString(ms));
+    }
+
+    // Milliseconds the verifier waits before verifying
+    public FakeSDK verifierDelay(long ms) throws IOException {
+        return configure("verifier.delay", Long.toString(ms));
+    }
+
+    // Makes the converter fail for given packages, or all of them with none
+    public FakeSDK failConverter(String... packages) throws IOException {
+        return configure("converter.fail", packages.length == 0 ? "true" : String.join(",", packages));
+    }
+
+    public FakeSDK failVerifier(String... packages) throws IOException {
+        return configure("verifier.fail", packages.length == 0 ? "true" : String.join(",", packages));
+    }
+
+    // Removes injected latency and failures
+    public FakeSDK reset() throws IOException {
+        Files.deleteIfExists(root.resolve(PROPERTIES));
+        return this;
+    }
+
+    // Lines like "convert <package>" and "verify <package>", in order of invocation
+    public List<String> getInvocations() throws IOException {
+        Path log = root.resolve(LOG);
+        return Files.exists(log) ? Files.readAllLines(log, StandardCharsets.UTF_8) : Collections.emptyList();
+    }
+
+    private FakeSDK configure(String key, String value) throws IOException {
+        Properties p = FakeTools.config(root);
+        p.setProperty(key, value);
+        try (OutputStream out = Files.newOutputStream(root.resolve(PROPERTIES))) {
+            p.store(out, "FakeSDK");
+        }
+        return this;
+    }
+
+    public static FakeSDK create(SDKVersion version, Path root) throws IOException {
+        Map<String, byte[]> classes = compiled();
+        Files.createDirectories(root);
+        Path lib = root.resolve("lib");
+
+        // API classes with version markers
+        Map<String, byte[]> api = new TreeMap<>();
+        classes.forEach((k, v) -> {
+            if (k.startsWith("javacard/") || k.startsWith("javacardx/apdu/") || k.startsWith("javacardx/framework/"))
+                api.put(k, v);
+        });
+        if (!version.isV3() && version != V222)
+            api.remove("javacardx/apdu/ExtendedLength.class");
+        if (!version.isOneOf(V304, V305, V310, V320))
+            api.remove("javacardx/framework/string/StringUtil.class");
+        if (!version.isOneOf(V305, V310, V320))
+            api.remove("javacard/framework/SensitiveArrays.class");
+        Map<String, byte[]> annotations = subset(classes, "javacardx/annotations/");
+
+        // Tool entry points, together with the classes of this library and FakeTools
+        Map<String, byte[]> tools = subset(classes, "com/");
+        for (Class<?> c : Arrays.asList(HexUtils.class, CAPFile.class, Trace.class, SyntheticCAP.class, JavaCardSDK.class, FakeTools.class))
+            tools.putAll(packageClasses(c));
+        if (version == V211) {
+            jar(root.resolve("bin").resolve("api.jar"), api);
+            jar(root.resolve("bin").resolve("converter.jar"), tools);
+        } else if (!version.isV3()) {
+            jar(lib.resolve(version == V212 ? "api21.jar" : "api.jar"), api);
+            jar(lib.resolve("converter.jar"), tools);
+            jar(lib.resolve("offcardverifier.jar"), tools);
+        } else {
+            jar(lib.resolve("tools.jar"), tools);
+            if (version.isOneOf(V310, V320)) {
+                // Targets of 3.1 and 3.2 kits, see JavaCardSDK.target()
+                List<SDKVersion> targets = new ArrayList<>(Arrays.asList(V304, V305, V310));
+                targets.add(version);
+                for (SDKVersion t : targets) {
+                    jar(lib.resolve("api_classic-" + t + ".jar"), api);
+                    jar(lib.resolve("api_classic_annotations-" + t + ".jar"), annotations);
+                    exports(root.resolve("api_export_files_" + t));
+                }
+            } else {
+                jar(lib.resolve("api_classic.jar"), api);
+                jar(lib.resolve("api_classic_annotations.jar"), annotations);
+            }
+        }
+        exports(root.resolve(JavaCardSDK.getExportDir(version)));
+        return new FakeSDK(root, version);
+    }
+
+    private static Map<String, byte[]> subset(Map<String, byte[]> classes, String prefix) {
+        return classes.entrySet().stream().filter(e -> e.getKey().startsWith(prefix))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> a, TreeMap::new));
+    }
+
+    // Export files of java.lang and javacard.framework
+    private static void exports(Path dir) throws IOException {
+        String[][] packages = {{"java.lang", "A0000000620001"}, {"javacard.framework", "A0000000620101"}};
+        for (String[] p : packages) {
+            String last = p[0].substring(p[0].lastIndexOf('.') + 1);
+            Path d = dir.resolve(p[0].replace('.', '/')).resolve("javacard");
+            Files.createDirectories(d);
+            Files.write(d.resolve(last + ".exp"), FakeTools.exp(p[0], p[1], 1, 0));
+        }
+    }
+
+    private static void jar(Path path, Map<String, byte[]> entries) throws IOException {
+        Files.createDirectories(path.getParent());
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(path))) {
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                ZipEntry entry = new ZipEntry(e.getKey());
+                entry.setTime(SyntheticCAP.TIME);
+                out.putNextEntry(entry);
+                out.write(e.getValue());
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static synchronized Map<String, byte[]> compiled() throws IOException {
+        if (compiled != null)
+            return compiled;
+        Path tmp = Files.createTempDirectory("fakesdk");
+        try {
+            Map<String, String> sources = new LinkedHashMap<>(API);
+            sources.putAll(ANNOTATIONS);
+            sources.putAll(TOOLS);
+            Path out = tmp.resolve("classes");
+            List<String> args = new ArrayList<>(Arrays.asList("--release", "8", "-nowarn", "-d", out.toString()));
+            for (Map.Entry<String, String> e : sources.entrySet()) {
+                Path p = tmp.resolve("src").resolve(e.getKey());
+                Files.createDirectories(p.getParent());
+                Files.write(p, e.getValue().getBytes(StandardCharsets.UTF_8));
+                args.add(p.toString());
+            }
+            ToolProvider javac = ToolProvider.findFirst("javac").orElseThrow(() -> new IllegalStateException("javac not available"));
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            if (javac.run(new java.io.PrintStream(err), new java.io.PrintStream(err), args.toArray(new String[0])) != 0)
+                throw new IllegalStateException("Could not compile FakeSDK classes: " + err);
+            Map<String, byte[]> result = new TreeMap<>();
+            try (Stream<Path> files = Files.walk(out)) {
+                for (Path p : files.filter(Files::isRegularFile).collect(Collectors.toList()))
+                    result.put(out.relativize(p).toString().replace(java.io.File.separatorChar, '/'), Files.readAllBytes(p));
+            }
+            compiled = Collections.unmodifiableMap(result);
+            return compiled;
+        } finally {
+            try (Stream<Path> files = Files.walk(tmp)) {
+                files.sorted(Collections.reverseOrder()).forEach(CAPFile::uncheckedDelete);
+            }
+        }
+    }
+
+    // All classes in the package of c, from a directory or a jar
+    static Map<String, byte[]> packageClasses(Class<?> c) throws IOException {
+        String pkg = c.getPackageName().replace('.', '/') + "/";
+        URL url = c.getResource(c.getSimpleName() + ".class");
+        if (url == null)
+            throw new IllegalStateException("Can not locate " + c);
+        Map<String, byte[]> result = new TreeMap<>();
+        if (url.getProtocol().equals("file")) {
+            Path dir;
+            try {
+                dir = Paths.get(url.toURI()).getParent();
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path p : files.filter(p -> p.toString().endsWith(".class")).collect(Collectors.toList()))
+                    result.put(pkg + p.getFileName(), Files.readAllBytes(p));
+            }
+        } else if (url.getProtocol().equals("jar")) {
+            JarURLConnection connection = (JarURLConnection) url.openConnection();
+            connection.setUseCaches(false);
+            try (JarFile jar = connection.getJarFile()) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry e = entries.nextElement();
+                    String name = e.getName();
+                    if (name.startsWith(pkg) && name.endsWith(".class") && name.indexOf('/', pkg.length()) < 0) {
+                        try (InputStream in = jar.getInputStream(e)) {
+                            result.put(name, FakeTools.readAll(in));
+                        }
+                    }
+                }
+            }
+        } else {
+            throw new IllegalStateException("Can not copy classes from " + url);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 || !SDKVersion.fromVersion(args[0]).isPresent()) {
+            System.err.println("Usage: FakeSDK <version> <directory>, versions: "
+                    + Arrays.stream(SDKVersion.values()).map(SDKVersion::toString).collect(Collectors.joining(", ")));
+            System.exit(1);
+        }
+        FakeSDK sdk = create(SDKVersion.fromVersion(args[0]).get(), Paths.get(args[1]));
+        System.out.println("Fake JavaCard SDK " + sdk.getSDK().getVersion() + " in " + sdk.getRoot());
+    }
+}
@@ -0,0 +1,194 @@
+package pro.javacard.sdk;
+
+import pro.javacard.capfile.CAPDisassembler;
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.SyntheticCAP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Converter and verifier of FakeSDK. The entry points in its tool jars call these with the SDK root,
+// the converter in a forked JVM and the verifier in the class loader of OffCardVerifier.
+public final class FakeTools {
+
+    private FakeTools() {
+    }
+
+    // Arguments as given by JCCap to com.sun.javacard.converter.Main, returns exit code
+    public static int convert(Path root, String[] argv) throws IOException {
+        List<String> args = new ArrayList<>(Arrays.asList(argv));
+        String out = option(args, "-d");
+        String classdir = option(args, "-classdir");
+        option(args, "-exportpath");
+        option(args, "-target");
+        boolean debug = args.remove("-debug");
+        List<String> outputs = new ArrayList<>();
+        int o = args.indexOf("-out");
+        if (o >= 0) {
+            args.remove(o);
+            while (o < args.size() && Arrays.asList("CAP", "EXP", "JCA").contains(args.get(o)))
+                outputs.add(args.remove(o));
+        }
+        List<String[]> applets = new ArrayList<>();
+        for (int i = args.indexOf("-applet"); i >= 0; i = args.indexOf("-applet")) {
+            args.remove(i);
+            applets.add(new String[]{args.remove(i), args.remove(i)});
+        }
+        args.removeIf(a -> a.startsWith("-"));
+        if (out == null || classdir == null || args.size() != 3) {
+            System.err.println("error: usage: -d <dir> -classdir <dir> [options] <package> <aid> <version>");
+            return 1;
+        }
+        String pkg = args.get(0);
+        String aid = hex(args.get(1));
+        String[] version = args.get(2).split("\\.");
+
+        Properties config = config(root);
+        delay(config, "converter.delay");
+        log(root, "convert " + pkg);
+        if (fails(config, "converter.fail", pkg)) {
+            System.err.println("error: injected failure converting " + pkg);
+            return 1;
+        }
+
+        Path classes = new File(classdir).toPath().resolve(pkg.replace('.', File.separatorChar));
+        long count;
+        try (Stream<Path> files = Files.list(classes)) {
+            count = files.filter(p -> p.toString().endsWith(".class")).count();
+        } catch (IOException e) {
+            count = 0;
+        }
+        if (count == 0) {
+            System.err.println("error: no classes of package " + pkg + " in " + classdir);
+            return 1;
+        }
+        System.out.println("Converting package " + pkg);
+
+        SyntheticCAP synthetic = SyntheticCAP.builder().name(pkg).aid(aid).version(Integer.parseInt(version[0]), Integer.parseInt(version[1]))
+                .classes((int) Math.min(255, Math.max(count, applets.size()))).methods(2).statics(1).applets(0).debug(debug)
+                .created("Sat Jan 01 00:00:00 UTC 2000");
+        for (String[] applet : applets)
+            synthetic.applet(hex(applet[0]));
+        byte[] cap = synthetic.build();
+
+        String last = pkg.substring(pkg.lastIndexOf('.') + 1);
+        Path dir = new File(out).toPath().resolve(pkg.replace('.', File.separatorChar)).resolve("javacard");
+        Files.createDirectories(dir);
+        if (outputs.isEmpty() || outputs.contains("CAP"))
+            Files.write(dir.resolve(last + ".cap"), cap);
+        if (outputs.contains("EXP"))
+            Files.write(dir.resolve(last + ".exp"), exp(pkg, aid, Integer.parseInt(version[0]), Integer.parseInt(version[1])));
+        if (outputs.contains("JCA"))
+            Files.write(dir.resolve(last + ".jca"), CAPDisassembler.disassemble(CAPFile.fromBytes(cap)).getBytes(StandardCharsets.UTF_8));
+        System.out.println("conversion completed with 0 errors and 0 warnings.");
+        return 0;
+    }
+
+    // Called by com.sun.javacard.offcardverifier.Verifier.verifyCap
+    public static void verify(Path root, byte[] cap, String pkg, Vector<File> exps) throws IOException {
+        Properties config = config(root);
+        delay(config, "verifier.delay");
+        log(root, "verify " + pkg);
+        if (fails(config, "verifier.fail", pkg))
+            throw new RuntimeException("Injected failure verifying " + pkg);
+        CAPFile capfile = CAPFile.fromBytes(cap);
+        if (!capfile.getPackageName().equals(pkg))
+            throw new RuntimeException("Package of CAP file is " + capfile.getPackageName() + ", not " + pkg);
+        for (File exp : exps) {
+            if (!exp.isFile())
+                throw new RuntimeException("Export file not found: " + exp);
+        }
+    }
+
+    public static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int r = in.read(buf); r != -1; r = in.read(buf))
+            bos.write(buf, 0, r);
+        return bos.toByteArray();
+    }
+
+    // Export file of version 2.1 with the package and no classes
+    static byte[] exp(String pkg, String aid, int major, int minor) throws IOException {
+        byte[] name = pkg.replace('.', '/').getBytes(StandardCharsets.UTF_8);
+        byte[] a = pro.javacard.HexUtils.hex2bin(aid);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(0x00FACADE);
+        out.writeByte(1); // minor
+        out.writeByte(2); // major
+        out.writeShort(2); // constant_pool_count
+        out.writeByte(1); // CONSTANT_Utf8
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeByte(13); // CONSTANT_Package
+        out.writeByte(0); // flags
+        out.writeShort(0); // name_index
+        out.writeByte(minor);
+        out.writeByte(major);
+        out.writeByte(a.length);
+        out.write(a);
+        out.writeShort(1); // this_package
+        out.writeByte(0); // export_class_count
+        return bos.toByteArray();
+    }
+
+    static Properties config(Path root) throws IOException {
+        Properties p = new Properties();
+        Path f = root.resolve(FakeSDK.PROPERTIES);
+        if (Files.exists(f)) {
+            try (InputStream in = Files.newInputStream(f)) {
+                p.load(in);
+            }
+        }
+        return p;
+    }
+
+    private static void delay(Properties config, String key) {
+        long ms = Long.parseLong(config.getProperty(key, "0"));
+        if (ms <= 0)
+            return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // "true" fails everything, otherwise a comma separated list of packages
+    private static boolean fails(Properties config, String key, String pkg) {
+        String v = config.getProperty(key, "");
+        return v.equals("true") || Arrays.stream(v.split(",")).map(String::trim).collect(Collectors.toList()).contains(pkg);
+    }
+
+    private static synchronized void log(Path root, String line) throws IOException {
+        Files.write(root.resolve(FakeSDK.LOG), (line + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static String option(List<String> args, String name) {
+        int i = args.indexOf(name);
+        if (i < 0 || i + 1 >= args.size())
+            return null;
+        args.remove(i);
+        return args.remove(i);
+    }
+
+    // 0x01:0x02 to 0102
+    private static String hex(String aid) {
+        return Arrays.stream(aid.split(":")).map(b -> b.replaceFirst("(?i)^0x", "")).map(b -> b.length() == 1 ? "0" + b : b).collect(Collectors.joining());
+    }
+}
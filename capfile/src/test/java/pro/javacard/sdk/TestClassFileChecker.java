@@ -0,0 +1,215 @@
+package pro.javacard.sdk;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+public class TestClassFileChecker {
+
+    static class Unsupported {
+        short counter;
+
+        float half(short v) {
+            return v / 2.0f;
+        }
+
+        short ok(short a, short b) {
+            counter++;
+            return (short) (a + b);
+        }
+    }
+
+    // Same constructs as src/testapplets, without the JavaCard API
+
+    // testapplets/library
+    static class Library {
+        static final short TRUE = (short) 0x5AA5;
+        static final short FALSE = (short) 0xA55A;
+
+        static short booleantest(boolean b) {
+            return b ? TRUE : FALSE;
+        }
+    }
+
+    // testapplets/integer, converted with ints="true"
+    static class EmptyInt {
+        private EmptyInt(byte[] parameters, short offset, byte length) {
+            int everything = 42;
+            parameters[offset] = (byte) everything;
+        }
+
+        static void install(byte[] parameters, short offset, byte length) {
+            new EmptyInt(parameters, offset, length);
+        }
+    }
+
+    static class Integers {
+        int[] values = new int[4];
+
+        int big() {
+            return 0x12345678;
+        }
+    }
+
+    // testapplets/stringdefs: @StringDef values become byte arrays of a string pool class
+    static final class HelloWorldStrings {
+        static final byte[] hello = {'H', 'e', 'l', 'l', 'o', ' ', 'W', 'o', 'r', 'l', 'd', '!'};
+    }
+
+    static class StringDefs {
+        short process() {
+            return (short) HelloWorldStrings.hello.length;
+        }
+    }
+
+    static class Wide {
+        long l = 1L;
+        double d;
+
+        long[] array() {
+            return new long[2];
+        }
+    }
+
+    static class Chars {
+        char c;
+
+        byte first(char[] chars) {
+            return (byte) chars[0];
+        }
+
+        char[] make() {
+            return new char[2];
+        }
+    }
+
+    static class Strings {
+        static final String NAME = "name";
+
+        short length() {
+            return (short) "hello".length();
+        }
+    }
+
+    static class Locked {
+        synchronized void method() {
+        }
+
+        void block(Object o) {
+            synchronized (o) {
+                o.hashCode();
+            }
+        }
+    }
+
+    static class Lambda {
+        Runnable make() {
+            return () -> {
+            };
+        }
+    }
+
+    static class Arrays2D {
+        short[][] make() {
+            return new short[2][2];
+        }
+    }
+
+    static class Literal {
+        Object make() {
+            return Literal.class;
+        }
+    }
+
+    static ClassFile load(Class<?> c) throws IOException {
+        String name = c.getName();
+        try (InputStream in = c.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+            return ClassFile.fromBytes(in.readAllBytes());
+        }
+    }
+
+    // Class file version of Java 7, as accepted by the converter of JavaCard 3.2
+    static List<String> check(Class<?> c, boolean ints) throws IOException {
+        String name = c.getName();
+        try (InputStream in = c.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+            byte[] bytes = in.readAllBytes();
+            bytes[6] = 0;
+            bytes[7] = 51;
+            return new ClassFileChecker(SDKVersion.V320, ints).check(ClassFile.fromBytes(bytes));
+        }
+    }
+
+    static void assertProblem(List<String> problems, String problem) {
+        Assert.assertTrue(problems.stream().anyMatch(p -> p.contains(problem)), problems.toString());
+    }
+
+    @Test
+    public void testUnsupportedTypes() throws Exception {
+        ClassFile cls = load(Unsupported.class);
+        Assert.assertEquals(cls.getName(), "pro/javacard/sdk/TestClassFileChecker$Unsupported");
+        List<String> problems = new ClassFileChecker(SDKVersion.V320, false).check(cls);
+        // Compiled for Java 11
+        Assert.assertTrue(problems.get(0).contains("has version 55.0"), problems.get(0));
+        Assert.assertTrue(problems.stream().anyMatch(p -> p.startsWith("pro/javacard/sdk/TestClassFileChecker.java:16: long, float and double types are not supported")), problems.toString());
+        Assert.assertTrue(problems.stream().noneMatch(p -> p.contains(".ok()")), problems.toString());
+    }
+
+    @Test
+    public void testTestApplets() throws Exception {
+        Assert.assertEquals(check(Library.class, false), List.of());
+        Assert.assertEquals(check(EmptyInt.class, true), List.of());
+        Assert.assertEquals(check(Integers.class, true), List.of());
+        Assert.assertEquals(check(HelloWorldStrings.class, false), List.of());
+        Assert.assertEquals(check(StringDefs.class, false), List.of());
+    }
+
+    @Test
+    public void testIntegers() throws Exception {
+        List<String> problems = check(Integers.class, false);
+        assertProblem(problems, "field pro.javacard.sdk.TestClassFileChecker$Integers.values uses unsupported type int (requires ints=\"true\")");
+        assertProblem(problems, "int arrays require integer support");
+        assertProblem(problems, "int constants require integer support (ints=\"true\"): 305419896");
+    }
+
+    @Test
+    public void testWideTypes() throws Exception {
+        List<String> problems = check(Wide.class, true);
+        assertProblem(problems, "field pro.javacard.sdk.TestClassFileChecker$Wide.l uses unsupported type long");
+        assertProblem(problems, "field pro.javacard.sdk.TestClassFileChecker$Wide.d uses unsupported type double");
+        assertProblem(problems, "long, float and double types are not supported (lconst_1)");
+        assertProblem(problems, "long, float and double arrays are not supported");
+    }
+
+    @Test
+    public void testChars() throws Exception {
+        List<String> problems = check(Chars.class, true);
+        assertProblem(problems, "field pro.javacard.sdk.TestClassFileChecker$Chars.c uses unsupported type char");
+        assertProblem(problems, "char type is not supported (caload)");
+        assertProblem(problems, "char arrays are not supported");
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        List<String> problems = check(Strings.class, true);
+        assertProblem(problems, "field pro.javacard.sdk.TestClassFileChecker$Strings.NAME uses unsupported type java.lang.String");
+        assertProblem(problems, "String literals are not supported (\"hello\")");
+        assertProblem(problems, "strings are not supported (java.lang.String)");
+    }
+
+    @Test
+    public void testSynchronized() throws Exception {
+        List<String> problems = check(Locked.class, true);
+        assertProblem(problems, "method pro.javacard.sdk.TestClassFileChecker$Locked.method() is synchronized");
+        assertProblem(problems, "synchronized blocks are not supported (monitorenter)");
+    }
+
+    @Test
+    public void testOtherConstructs() throws Exception {
+        assertProblem(check(Lambda.class, true), "lambdas and dynamic invocation are not supported (invokedynamic)");
+        assertProblem(check(Arrays2D.class, true), "multidimensional arrays are not supported (multianewarray)");
+        assertProblem(check(Literal.class, true), "class literals are not supported");
+    }
+}
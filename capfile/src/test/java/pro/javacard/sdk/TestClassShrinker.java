@@ -0,0 +1,86 @@
+package pro.javacard.sdk;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestClassShrinker {
+
+    static final Map<String, String> SOURCES = new LinkedHashMap<>();
+
+    static {
+        SOURCES.put("test/Main.java", String.join("\n",
+                "package test;",
+                "import javacard.framework.*;",
+                "public class Main extends Applet {",
+                "    private Shape shape = new Square();",
+                "    private short dead;",
+                "    public static void install(byte[] b, short o, byte l) {",
+                "        new Main().register();",
+                "    }",
+                "    public void process(APDU apdu) {",
+                "        Helper.used(shape.area());",
+                "    }",
+                "}"));
+        SOURCES.put("test/Helper.java", String.join("\n",
+                "package test;",
+                "class Helper {",
+                "    static short total;",
+                "    static short unusedField;",
+                "    static void used(short v) { total += v; }",
+                "    static void unused() { unusedField++; }",
+                "}"));
+        SOURCES.put("test/Shape.java", "package test; interface Shape { short area(); }");
+        SOURCES.put("test/Square.java", "package test; class Square implements Shape { public short area() { return 4; } short side() { return 2; } }");
+        SOURCES.put("test/Circle.java", "package test; class Circle implements Shape { public short area() { return 3; } }");
+        SOURCES.put("test/Unused.java", "package test; public class Unused { public void foo() { } }");
+    }
+
+    @Test
+    public void testShrink() throws Exception {
+        Path classes = TestPersistentWriteChecker.compile(SOURCES);
+        ClassShrinker shrinker = ClassShrinker.shrink(classes, "test", List.of("test.Main"), false);
+        List<String> removed = shrinker.getRemoved();
+        Assert.assertTrue(removed.contains("test/Circle"), removed.toString());
+        Assert.assertTrue(removed.contains("test/Unused"), removed.toString());
+        Assert.assertTrue(removed.contains("test/Main.dead"), removed.toString());
+        Assert.assertTrue(removed.contains("test/Helper.unusedField"), removed.toString());
+        Assert.assertTrue(removed.contains("test/Helper.unused()V"), removed.toString());
+        Assert.assertTrue(removed.contains("test/Square.side()S"), removed.toString());
+        // Never instantiated
+        Assert.assertTrue(removed.contains("test/Helper.<init>()V"), removed.toString());
+        Assert.assertEquals(removed.size(), 7, removed.toString());
+        Assert.assertTrue(shrinker.getSavedBytes() > 0);
+        Assert.assertTrue(shrinker.getRemovedCodeSize() > 0);
+
+        Path out = Files.createTempDirectory("shrunk");
+        shrinker.write(out);
+        Assert.assertFalse(Files.exists(out.resolve("test/Circle.class")));
+        Assert.assertTrue(Files.exists(out.resolve("javacard/framework/Applet.class")));
+        ClassFile helper = ClassFile.fromFile(out.resolve("test/Helper.class"));
+        Assert.assertEquals(helper.getFields().size(), 1);
+        Assert.assertEquals(helper.getMethods().size(), 1);
+
+        // Shrunk classes must load and verify
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{out.toUri().toURL()}, null)) {
+            for (String c : new String[]{"test.Main", "test.Helper", "test.Square", "test.Shape"})
+                Class.forName(c, true, loader);
+        }
+    }
+
+    @Test
+    public void testExportedAPI() throws Exception {
+        Path classes = TestPersistentWriteChecker.compile(SOURCES);
+        ClassShrinker shrinker = ClassShrinker.shrink(classes, "test", List.of("test.Main"), true);
+        List<String> removed = shrinker.getRemoved();
+        Assert.assertFalse(removed.contains("test/Unused"), removed.toString());
+        Assert.assertTrue(removed.contains("test/Circle"), removed.toString());
+    }
+}
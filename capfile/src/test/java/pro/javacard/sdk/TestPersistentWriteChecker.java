@@ -0,0 +1,99 @@
+package pro.javacard.sdk;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.spi.ToolProvider;
+import java.util.stream.Collectors;
+
+public class TestPersistentWriteChecker {
+
+    // Just enough of the JavaCard API
+    static final Map<String, String> API = new LinkedHashMap<>();
+    static final Map<String, String> SOURCES = new LinkedHashMap<>();
+
+    static {
+        API.put("javacard/framework/Applet.java", "package javacard.framework; public abstract class Applet { public abstract void process(APDU apdu); protected final void register() { } }");
+        API.put("javacard/framework/APDU.java", "package javacard.framework; public class APDU { public byte[] getBuffer() { return null; } }");
+        API.put("javacard/framework/JCSystem.java", "package javacard.framework; public class JCSystem { public static final byte CLEAR_ON_DESELECT = 2;"
+                + " public static byte[] makeTransientByteArray(short l, byte e) { return null; } }");
+        API.put("javacard/framework/Util.java", "package javacard.framework; public class Util {"
+                + " public static short arrayCopyNonAtomic(byte[] s, short so, byte[] d, short doff, short l) { return 0; } }");
+        SOURCES.put("test/Wallet.java", String.join("\n",
+                "package test;",
+                "import javacard.framework.*;",
+                "public class Wallet extends Applet {",
+                "    private short balance;",
+                "    private byte[] log = new byte[16];",
+                "    private byte[] scratch;",
+                "    Wallet() {",
+                "        scratch = JCSystem.makeTransientByteArray((short) 16, JCSystem.CLEAR_ON_DESELECT);",
+                "    }",
+                "    public void process(APDU apdu) {",
+                "        byte[] buf = apdu.getBuffer();",
+                "        switch (buf[1]) {",
+                "            case 0x10:",
+                "                credit(buf);",
+                "                return;",
+                "            case 0x20:",
+                "                Util.arrayCopyNonAtomic(buf, (short) 5, scratch, (short) 0, (short) 4);",
+                "                return;",
+                "            case 0x30:",
+                "                for (short i = 0; i < 4; i++)",
+                "                    log[i] = buf[i];",
+                "                return;",
+                "            default:",
+                "                buf[0] = 1;",
+                "        }",
+                "    }",
+                "    private void credit(byte[] buf) {",
+                "        balance += buf[5];",
+                "        append(log, buf);",
+                "    }",
+                "    private static void append(byte[] to, byte[] from) {",
+                "        Util.arrayCopyNonAtomic(from, (short) 0, to, (short) 0, (short) 1);",
+                "    }",
+                "}"));
+    }
+
+    // Compiles sources together with the API stubs
+    static Path compile(Map<String, String> sources) throws Exception {
+        Path dir = Files.createTempDirectory("classes");
+        List<String> args = new ArrayList<>(List.of("-g", "-d", dir.toString()));
+        Map<String, String> all = new LinkedHashMap<>(API);
+        all.putAll(sources);
+        for (Map.Entry<String, String> e : all.entrySet()) {
+            Path p = dir.resolve("src").resolve(e.getKey());
+            Files.createDirectories(p.getParent());
+            Files.write(p, e.getValue().getBytes(StandardCharsets.UTF_8));
+            args.add(p.toString());
+        }
+        ToolProvider javac = ToolProvider.findFirst("javac").orElseThrow();
+        Assert.assertEquals(javac.run(System.out, System.err, args.toArray(new String[0])), 0);
+        return dir;
+    }
+
+    @Test
+    public void testWallet() throws Exception {
+        PersistentWriteChecker checker = PersistentWriteChecker.check(compile(SOURCES), "test", Collections.emptyList());
+        List<String> writes = checker.getWrites().stream().map(Object::toString).collect(Collectors.toList());
+        Assert.assertEquals(writes.size(), 3, writes.toString());
+        Assert.assertTrue(writes.contains("test/Wallet.java:21: persistent write to array Wallet.log in Wallet.process() (in a loop)"), writes.toString());
+        Assert.assertTrue(writes.contains("test/Wallet.java:28: persistent write to field Wallet.balance in Wallet.credit()"), writes.toString());
+        Assert.assertTrue(writes.contains("test/Wallet.java:32: persistent write to array Wallet.log by Util.arrayCopyNonAtomic() in Wallet.append()"), writes.toString());
+
+        Map<String, Integer> paths = checker.getPathWrites().get("test.Wallet");
+        Assert.assertEquals(paths.get("case 0x10"), Integer.valueOf(2));
+        Assert.assertEquals(paths.get("case 0x20"), Integer.valueOf(0));
+        Assert.assertEquals(paths.get("case 0x30"), Integer.valueOf(1));
+        Assert.assertEquals(paths.get("default"), Integer.valueOf(0));
+    }
+}
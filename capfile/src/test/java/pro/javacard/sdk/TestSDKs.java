@@ -1,14 +1,41 @@
 package pro.javacard.sdk;
 
+import org.testng.Assert;
 import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.CAPValidator;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.stream.Stream;
 
 public class TestSDKs {
+    private Path tmp;
+    // Output of the last convert()
+    private String output;
+
+    @BeforeMethod
+    public void createTemp() throws IOException {
+        tmp = Files.createTempDirectory("fakesdk");
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void deleteTemp() throws IOException {
+        try (Stream<Path> files = Files.walk(tmp)) {
+            files.sorted(Collections.reverseOrder()).forEach(CAPFile::uncheckedDelete);
+        }
+    }
 
     static boolean interactive() {
         return System.getProperty("java.class.path").contains("idea_rt.jar");
@@ -23,4 +50,68 @@ public class TestSDKs {
             System.out.println("Folder: " + dir + ": " + JavaCardSDK.detectSDK(dir).map(sdk -> sdk.getRelease()).orElse("not SDK"));
         });
     }
+
+    @Test
+    public void testFakeDetection() throws Exception {
+        for (SDKVersion v : SDKVersion.values()) {
+            JavaCardSDK sdk = FakeSDK.create(v, tmp.resolve(v.toString())).getSDK();
+            Assert.assertEquals(sdk.getVersion(), v);
+            for (Path jar : sdk.getApiJars())
+                Assert.assertTrue(Files.isRegularFile(jar), jar.toString());
+            for (Path jar : sdk.getToolJars())
+                Assert.assertTrue(Files.isRegularFile(jar), jar.toString());
+            Assert.assertTrue(Files.isDirectory(sdk.getExportDir()));
+        }
+        Assert.assertEquals(JavaCardSDK.detectSDK(tmp.resolve(SDKVersion.V305.toString())).get().getRelease(), "3.0.5u3");
+    }
+
+    @Test
+    public void testFakeConverter() throws Exception {
+        FakeSDK fake = FakeSDK.create(SDKVersion.V320, tmp.resolve("sdk"));
+        Path classes = tmp.resolve("classes");
+        Files.createDirectories(classes.resolve("pkg/test"));
+        Files.write(classes.resolve("pkg/test/Applet1.class"), new byte[0]);
+        Files.write(classes.resolve("pkg/test/Helper.class"), new byte[0]);
+
+        Assert.assertEquals(convert(fake, classes, tmp.resolve("a")), 0);
+        Assert.assertTrue(output.contains("conversion completed with 0 errors and 0 warnings."), output);
+        Assert.assertEquals(convert(fake, classes, tmp.resolve("b")), 0);
+        Path cap = Paths.get("pkg", "test", "javacard", "test.cap");
+        byte[] bytes = Files.readAllBytes(tmp.resolve("a").resolve(cap));
+        Assert.assertEquals(Files.readAllBytes(tmp.resolve("b").resolve(cap)), bytes);
+
+        CAPFile capfile = CAPFile.fromBytes(bytes);
+        Assert.assertEquals(capfile.getPackageName(), "pkg.test");
+        Assert.assertEquals(capfile.getPackageAID().toString(), "010203040506");
+        Assert.assertEquals(capfile.getPackageVersion(), "1.2");
+        Assert.assertEquals(capfile.getAppletAIDs().get(0).toString(), "01020304050601");
+        Assert.assertEquals(CAPValidator.validate(capfile), new ArrayList<>());
+        Path exp = tmp.resolve("a").resolve("pkg/test/javacard/test.exp");
+        Assert.assertEquals(ExportFileHelper.getVersion(exp).get(), ExportFileHelper.ExportFileVersion.V21);
+        Assert.assertTrue(Files.exists(tmp.resolve("a").resolve("pkg/test/javacard/test.jca")));
+        Assert.assertEquals(fake.getInvocations(), Arrays.asList("convert pkg.test", "convert pkg.test"));
+
+        fake.failConverter("pkg.test");
+        Assert.assertEquals(convert(fake, classes, tmp.resolve("c")), 1);
+        Assert.assertTrue(output.contains("error: injected failure converting pkg.test"), output);
+        Assert.assertFalse(Files.exists(tmp.resolve("c").resolve(cap)));
+        fake.reset();
+        Assert.assertEquals(convert(fake, classes, tmp.resolve("c")), 0);
+    }
+
+    // Like JCCap does, output is kept in output
+    int convert(FakeSDK fake, Path classes, Path out) throws Exception {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-cp");
+        cmd.add(fake.getSDK().getToolJars().get(0).toString());
+        cmd.addAll(Arrays.asList("com.sun.javacard.converter.Main", "-d", out.toString(), "-classdir", classes.toString(),
+                "-exportpath", fake.getSDK().getExportDir().toString(), "-verbose", "-nobanner", "-debug", "-out", "CAP", "EXP", "JCA",
+                "-applet", "0x01:0x02:0x03:0x04:0x05:0x06:0x01", "pkg.test.Applet1", "pkg.test", "0x01:0x02:0x03:0x04:0x05:0x06", "1.2"));
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        try (InputStream in = p.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        return p.waitFor();
+    }
 }
@@ -1,5 +1,69 @@
 package pro.javacard.sdk;
 
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.SyntheticCAP;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
+
 public class TestVerifier {
+    private Path tmp;
+
+    @BeforeMethod
+    public void createTemp() throws IOException {
+        tmp = Files.createTempDirectory("fakesdk");
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void deleteTemp() throws IOException {
+        try (Stream<Path> files = Files.walk(tmp)) {
+            files.sorted(Collections.reverseOrder()).forEach(CAPFile::uncheckedDelete);
+        }
+    }
+
+    @Test
+    public void testFakeVerifier() throws Exception {
+        Path cap = tmp.resolve("test.cap");
+        Files.write(cap, SyntheticCAP.builder().name("pkg.test").classes(2).applets(1).build());
+        for (SDKVersion v : Arrays.asList(SDKVersion.V222, SDKVersion.V305, SDKVersion.V320)) {
+            FakeSDK fake = FakeSDK.create(v, tmp.resolve(v.toString()));
+            JavaCardSDK sdk = fake.getSDK();
+            OffCardVerifier.withSDK(sdk).verify(cap, Collections.singletonList(sdk.getExportDir()));
+            Assert.assertEquals(fake.getInvocations(), Collections.singletonList("verify pkg.test"));
+        }
+    }
+
+    @Test
+    public void testVerifierStaysLoaded() throws Exception {
+        Path cap = tmp.resolve("test.cap");
+        Files.write(cap, SyntheticCAP.builder().name("pkg.test").classes(1).build());
+        JavaCardSDK sdk = FakeSDK.create(SDKVersion.V320, tmp.resolve("sdk")).getSDK().warm();
+        ClassLoader loader = sdk.getClassLoader();
+        for (int i = 0; i < 3; i++) {
+            OffCardVerifier.withSDK(sdk).verify(cap, Collections.singletonList(sdk.getExportDir()));
+        }
+        Assert.assertSame(sdk.getClassLoader(), loader);
+    }
+
+    @Test
+    public void testFreshVerifierByDefault() throws Exception {
+        JavaCardSDK sdk = FakeSDK.create(SDKVersion.V320, tmp.resolve("sdk")).getSDK();
+        Assert.assertNotSame(sdk.getClassLoader(), sdk.getClassLoader());
+    }
 
+    @Test(expectedExceptions = VerifierError.class, expectedExceptionsMessageRegExp = "Injected failure verifying pkg.test")
+    public void testFakeVerifierFailure() throws Exception {
+        Path cap = tmp.resolve("test.cap");
+        Files.write(cap, SyntheticCAP.builder().name("pkg.test").classes(1).build());
+        FakeSDK fake = FakeSDK.create(SDKVersion.V320, tmp.resolve("sdk")).failVerifier();
+        OffCardVerifier.withSDK(fake.getSDK()).verify(cap, Collections.singletonList(fake.getSDK().getExportDir()));
+    }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import pro.javacard.sdk.JavaCardSDK;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Map;
+
+// Ant build in this JVM, for "watch" and "build" of the command line utility.
+// Kept apart from DummyMain, so that other commands work without Ant in classpath.
+final class AntBuild {
+
+    private AntBuild() {
+    }
+
+    // Runs a target (or the default target) of a build file. With sdks, <javacard> tasks keep javac in process and share
+    // detected SDK-s, see JavaCard.SDKS
+    static int run(Path buildFile, String target, Map<String, String> properties, Map<Path, JavaCardSDK> sdks, PrintStream out, PrintStream err) {
+        Project p = new Project();
+        DefaultLogger logger = new DefaultLogger();
+        logger.setOutputPrintStream(out);
+        logger.setErrorPrintStream(err);
+        logger.setMessageOutputLevel(Project.MSG_INFO);
+        p.addBuildListener(logger);
+        p.init();
+        p.setUserProperty("ant.file", buildFile.toAbsolutePath().toString());
+        properties.forEach(p::setUserProperty);
+        if (sdks != null) {
+            p.addReference(JavaCard.SDKS, sdks);
+        }
+        try {
+            ProjectHelper.configureProject(p, buildFile.toAbsolutePath().toFile());
+            p.executeTarget(target == null ? p.getDefaultTarget() : target);
+            return 0;
+        } catch (BuildException e) {
+            err.println("Build failed: " + e.getMessage());
+            return 1;
+        }
+    }
+}
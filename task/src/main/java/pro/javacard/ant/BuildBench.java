@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.stream.Collectors;
+
+// Build performance regression suite: runs the perf-* targets of perf.xml repeatedly,
+// records median wall and CPU time per phase and peak RSS of forked tools, and compares with a baseline.
+// Exit code is 0 when within tolerances, 1 on regression and 2 on failed builds or bad usage.
+public final class BuildBench {
+    static final String PREFIX = "perf-";
+    // Generated packages for perf-synthetic-* targets, by directory under perf.synthetic
+    static final Map<String, SyntheticSources> SYNTHETIC = new LinkedHashMap<>();
+
+    static {
+        SYNTHETIC.put("medium", SyntheticSources.builder("perf.medium").classes(8).methods(12).arrays(2, 32));
+        SYNTHETIC.put("large", SyntheticSources.builder("perf.large").classes(32).methods(24).arrays(4, 64).applets(2).interfaces(2));
+        SYNTHETIC.put("lib", SyntheticSources.builder("perf.lib").classes(8).methods(8).applets(0));
+        SYNTHETIC.put("user", SyntheticSources.builder("perf.user").classes(4).methods(8).imports("perf.lib"));
+    }
+
+    private final Path buildFile;
+    private final Path synthetic;
+    private final String kit;
+    private final boolean verbose;
+
+    private BuildBench(Path buildFile, Path synthetic, String kit, boolean verbose) {
+        this.buildFile = buildFile;
+        this.synthetic = synthetic;
+        this.kit = kit;
+        this.verbose = verbose;
+    }
+
+    public static void main(String[] argv) {
+        try {
+            System.exit(run(argv));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    static int run(String[] argv) throws IOException {
+        Vector<String> args = new Vector<>(Arrays.asList(argv));
+        Path buildFile = Paths.get(DummyMain.option(args, "-f").orElse("perf.xml")).toAbsolutePath();
+        int iterations = Integer.parseInt(DummyMain.option(args, "-n").orElse("5"));
+        int warmup = Integer.parseInt(DummyMain.option(args, "-w").orElse("1"));
+        double tolerance = Double.parseDouble(DummyMain.option(args, "-t").orElse("25"));
+        double slack = Double.parseDouble(DummyMain.option(args, "-s").orElse("50"));
+        double rssTolerance = Double.parseDouble(DummyMain.option(args, "-r").orElse("20"));
+        String baseline = DummyMain.option(args, "-b").orElse(null);
+        String output = DummyMain.option(args, "-o").orElse(null);
+        String kit = DummyMain.option(args, "-k").orElse(System.getProperty("perf.jckit"));
+        boolean update = args.remove("-update");
+        boolean verbose = args.remove("-v");
+        if (iterations < 1 || warmup < 0 || args.stream().anyMatch(a -> a.startsWith("-"))) {
+            System.err.println("Usage: BuildBench [-f perf.xml] [-n iterations] [-w warmup] [-k jckit] [-b baseline.json [-update]]");
+            System.err.println("                  [-t time%] [-s slack ms] [-r rss%] [-o result.json] [-v] [scenario ...]");
+            return 2;
+        }
+        if (!Files.isRegularFile(buildFile))
+            throw new IOException("Build file not found: " + buildFile);
+        if (update && baseline == null)
+            throw new IllegalArgumentException("-update needs -b");
+
+        Path synthetic = Files.createTempDirectory("perf-synthetic");
+        try {
+            for (Map.Entry<String, SyntheticSources> e : SYNTHETIC.entrySet()) {
+                e.getValue().write(synthetic.resolve(e.getKey()));
+            }
+            BuildBench bench = new BuildBench(buildFile, synthetic, kit, verbose);
+
+            // Kit detection and target listing happen when the build file is parsed
+            Project probe = bench.project(synthetic);
+            String jckit = probe.getProperty("perf.jckit");
+            if (jckit == null) {
+                System.out.println("No JavaCard SDK found in sdks/ and none given with -k or perf.jckit, skipping");
+                return 0;
+            }
+            List<String> all = probe.getTargets().keySet().stream()
+                    .filter(t -> t.startsWith(PREFIX) && !t.equals(PREFIX + "init")).sorted().collect(Collectors.toList());
+            List<String> scenarios = new ArrayList<>();
+            for (String s : args.isEmpty() ? all : args) {
+                String name = s.startsWith(PREFIX) ? s : PREFIX + s;
+                if (!all.contains(name))
+                    throw new IllegalArgumentException("Unknown scenario " + s + ", available: " + String.join(", ", all));
+                scenarios.add(name);
+            }
+            System.out.printf("Using %s on Java %s, %d iterations after %d warmup%n", jckit, System.getProperty("java.version"), iterations, warmup);
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("java", System.getProperty("java.version"));
+            result.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+            result.put("jckit", jckit);
+            result.put("iterations", iterations);
+            result.put("warmup", warmup);
+            Map<String, Object> measured = new LinkedHashMap<>();
+            result.put("scenarios", measured);
+            boolean failed = false;
+            for (String scenario : scenarios) {
+                try {
+                    Map<String, Object> m = bench.measure(scenario, warmup, iterations);
+                    measured.put(scenario, m);
+                    print(scenario, m);
+                } catch (BuildException e) {
+                    System.out.printf("%s FAILED: %s%n", scenario, e.getMessage());
+                    failed = true;
+                }
+            }
+
+            if (output != null) {
+                Files.write(Paths.get(output), JSON.toPrettyJSON(result).getBytes(StandardCharsets.UTF_8));
+                System.out.println("Results saved to " + output);
+            }
+            int regressions = 0;
+            if (baseline != null) {
+                Path b = Paths.get(baseline);
+                if (update) {
+                    Files.write(b, JSON.toPrettyJSON(result).getBytes(StandardCharsets.UTF_8));
+                    System.out.println("Baseline saved to " + b);
+                } else if (Files.exists(b)) {
+                    Object base = JSON.parse(new String(Files.readAllBytes(b), StandardCharsets.UTF_8));
+                    List<String> lines = compare(base, result, tolerance, slack, rssTolerance);
+                    lines.forEach(System.out::println);
+                    regressions = lines.size();
+                    System.out.printf("%d regressions against %s (time +%s%% and %s ms, RSS +%s%%)%n", regressions, b, tolerance, slack, rssTolerance);
+                } else {
+                    System.out.println("No baseline in " + b + ", use -update to create");
+                }
+            }
+            return failed ? 2 : regressions > 0 ? 1 : 0;
+        } finally {
+            Misc.rmminusrf(synthetic);
+        }
+    }
+
+    private Project project(Path work) {
+        Project p = new Project();
+        if (verbose) {
+            DefaultLogger logger = new DefaultLogger();
+            logger.setOutputPrintStream(System.out);
+            logger.setErrorPrintStream(System.err);
+            logger.setMessageOutputLevel(Project.MSG_INFO);
+            p.addBuildListener(logger);
+        }
+        p.init();
+        p.setUserProperty("ant.file", buildFile.toString());
+        p.setUserProperty("perf.work", work.toString());
+        p.setUserProperty("perf.synthetic", synthetic.toString());
+        if (kit != null) {
+            p.setUserProperty("perf.jckit", new File(kit).getAbsolutePath());
+        }
+        ProjectHelper.configureProject(p, buildFile.toFile());
+        return p;
+    }
+
+    // Runs a scenario in a fresh project and work directory per iteration.
+    // Phases of all <cap> builds of one iteration are summed.
+    private Map<String, Object> measure(String scenario, int warmup, int iterations) throws IOException {
+        List<Long> total = new ArrayList<>();
+        Map<String, List<Long>> wall = new LinkedHashMap<>();
+        Map<String, List<Long>> cpu = new LinkedHashMap<>();
+        Map<String, List<Long>> forkCPU = new LinkedHashMap<>();
+        Map<String, Long> rss = new LinkedHashMap<>();
+        int caps = 0;
+        for (int i = 0; i < warmup + iterations; i++) {
+            Path work = Files.createTempDirectory("perf-work");
+            try {
+                Project p = project(work);
+                List<BuildMetrics> metrics = new ArrayList<>();
+                p.addReference(BuildMetrics.REFERENCE, metrics);
+                long start = System.nanoTime();
+                p.executeTarget(scenario);
+                long elapsed = System.nanoTime() - start;
+                if (i < warmup)
+                    continue;
+                total.add(elapsed);
+                caps = metrics.size();
+                Map<String, long[]> sums = new LinkedHashMap<>();
+                for (BuildMetrics m : metrics) {
+                    m.getPhases().forEach((k, v) -> {
+                        long[] s = sums.computeIfAbsent(k, x -> new long[]{0, 0, -1, 0});
+                        s[0] += v.getWall();
+                        s[1] = s[1] == -1 || v.getCPU() == -1 ? -1 : s[1] + v.getCPU();
+                        s[2] = Math.max(s[2], v.getForkRSS());
+                        s[3] = s[3] == -1 || v.getForkCPU() == -1 ? -1 : s[3] + v.getForkCPU();
+                    });
+                }
+                sums.forEach((k, v) -> {
+                    wall.computeIfAbsent(k, x -> new ArrayList<>()).add(v[0]);
+                    cpu.computeIfAbsent(k, x -> new ArrayList<>()).add(v[1]);
+                    forkCPU.computeIfAbsent(k, x -> new ArrayList<>()).add(v[3]);
+                    rss.merge(k, v[2], Math::max);
+                });
+            } finally {
+                Misc.rmminusrf(work);
+            }
+        }
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("caps", caps);
+        r.put("wall_ms", BuildMetrics.millis(median(total)));
+        r.put("wall_min_ms", BuildMetrics.millis(Collections.min(total)));
+        Map<String, Object> phases = new LinkedHashMap<>();
+        for (String phase : wall.keySet()) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("wall_ms", BuildMetrics.millis(median(wall.get(phase))));
+            long c = median(cpu.get(phase));
+            m.put("cpu_ms", c < 0 ? -1 : BuildMetrics.millis(c));
+            long f = median(forkCPU.get(phase));
+            m.put("fork_cpu_ms", f < 0 ? -1 : BuildMetrics.millis(f));
+            m.put("fork_rss_kb", rss.get(phase));
+            phases.put(phase, m);
+        }
+        r.put("phases", phases);
+        return r;
+    }
+
+    static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int n = sorted.size();
+        return n % 2 == 1 ? sorted.get(n / 2) : (sorted.get(n / 2 - 1) + sorted.get(n / 2)) / 2;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void print(String scenario, Map<String, Object> m) {
+        System.out.printf("%s: %s ms median (%s ms min), %s caps%n", scenario, m.get("wall_ms"), m.get("wall_min_ms"), m.get("caps"));
+        ((Map<String, Map<String, Object>>) m.get("phases")).forEach((k, v) -> {
+            long kb = ((Number) v.get("fork_rss_kb")).longValue();
+            double forks = ((Number) v.get("fork_cpu_ms")).doubleValue();
+            System.out.printf("  %-10s %10s ms wall %10s ms cpu%s%s%n", k, v.get("wall_ms"), v.get("cpu_ms"),
+                    forks <= 0 ? "" : String.format(" %10s ms fork cpu", forks), kb < 0 ? "" : String.format(" %8d KB fork RSS", kb));
+        });
+    }
+
+    // Returns a line for every scenario and phase that exceeds the baseline by more than the tolerances.
+    // Time must grow both by tolerance percent and by slack milliseconds, to ignore noise in short phases.
+    @SuppressWarnings("unchecked")
+    static List<String> compare(Object baseline, Map<String, Object> current, double tolerance, double slack, double rssTolerance) {
+        List<String> result = new ArrayList<>();
+        if (!(baseline instanceof Map) || !(((Map<String, Object>) baseline).get("scenarios") instanceof Map))
+            throw new IllegalArgumentException("Baseline has no scenarios");
+        Map<String, Object> base = (Map<String, Object>) ((Map<String, Object>) baseline).get("scenarios");
+        Map<String, Object> now = (Map<String, Object>) current.get("scenarios");
+        for (Map.Entry<String, Object> s : now.entrySet()) {
+            if (!(base.get(s.getKey()) instanceof Map))
+                continue;
+            Map<String, Object> b = (Map<String, Object>) base.get(s.getKey());
+            Map<String, Object> c = (Map<String, Object>) s.getValue();
+            check(result, s.getKey() + " total wall", b.get("wall_ms"), c.get("wall_ms"), tolerance, slack, "ms");
+            Map<String, Object> bp = b.get("phases") instanceof Map ? (Map<String, Object>) b.get("phases") : Collections.emptyMap();
+            Map<String, Object> cp = (Map<String, Object>) c.get("phases");
+            for (Map.Entry<String, Object> p : cp.entrySet()) {
+                if (!(bp.get(p.getKey()) instanceof Map))
+                    continue;
+                Map<String, Object> bm = (Map<String, Object>) bp.get(p.getKey());
+                Map<String, Object> cm = (Map<String, Object>) p.getValue();
+                String name = s.getKey() + " " + p.getKey();
+                check(result, name + " wall", bm.get("wall_ms"), cm.get("wall_ms"), tolerance, slack, "ms");
+                check(result, name + " cpu", bm.get("cpu_ms"), cm.get("cpu_ms"), tolerance, slack, "ms");
+                check(result, name + " fork cpu", bm.get("fork_cpu_ms"), cm.get("fork_cpu_ms"), tolerance, slack, "ms");
+                check(result, name + " fork RSS", bm.get("fork_rss_kb"), cm.get("fork_rss_kb"), rssTolerance, 0, "KB");
+            }
+        }
+        return result;
+    }
+
+    private static void check(List<String> result, String name, Object base, Object now, double tolerance, double slack, String unit) {
+        if (!(base instanceof Number) || !(now instanceof Number))
+            return;
+        double b = ((Number) base).doubleValue();
+        double n = ((Number) now).doubleValue();
+        // Not measured in one of the runs
+        if (b < 0 || n < 0)
+            return;
+        if (n > b * (1 + tolerance / 100) && n - b > slack) {
+            result.add(String.format("REGRESSION %s: %.2f %s, baseline %.2f %s (%+.1f%%)", name, n, unit, b, unit, b == 0 ? 100.0 : (n - b) * 100 / b));
+        }
+    }
+}
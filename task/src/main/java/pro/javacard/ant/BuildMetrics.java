@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import org.apache.tools.ant.Project;
+import pro.javacard.jfr.Span;
+import pro.javacard.jfr.Trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.stream.Stream;
+
+// Wall and CPU time of the phases of a single <cap> build.
+// CPU time is that of the building thread. Forked javac and converter are measured by their CPU time, as children of this
+// JVM that have exited (so forks of other threads running at the same time are included), and peak RSS. Both are Linux only.
+// Bytes read and written are sizes of the files a phase reads and writes, counted only if detailed.
+// Every phase is also a JFR event, see Trace, and a span of a Timeline track, if given.
+final class BuildMetrics {
+    // Project reference with a List<BuildMetrics>, finished builds are appended if present
+    static final String REFERENCE = "ant-javacard.metrics";
+
+    static final int SAMPLE_INTERVAL = 10; // milliseconds
+    static final long CLOCK_TICK = 10_000_000; // nanoseconds, USER_HZ is 100 on Linux
+    private static final Path STAT = Paths.get("/proc/self/stat");
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    static final class Phase {
+        private long wall; // nanoseconds
+        private long cpu; // nanoseconds, -1 if not supported
+        private int count;
+        private long forkCPU = -1; // nanoseconds, -1 if not measured
+        private volatile long forkRSS = -1; // kilobytes, -1 if nothing was forked or not measured
+        private long read;
+        private long written;
+
+        long getWall() {
+            return wall;
+        }
+
+        long getCPU() {
+            return cpu;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        long getForkCPU() {
+            return forkCPU;
+        }
+
+        long getForkRSS() {
+            return forkRSS;
+        }
+
+        long getRead() {
+            return read;
+        }
+
+        long getWritten() {
+            return written;
+        }
+    }
+
+    static final class Cache {
+        private int hits;
+        private int misses;
+
+        int getHits() {
+            return hits;
+        }
+
+        int getMisses() {
+            return misses;
+        }
+    }
+
+    private String name = null;
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+    private final Map<String, Cache> caches = new LinkedHashMap<>();
+    private final boolean detailed;
+    private final long started = System.nanoTime();
+    private long finished = -1;
+    private volatile Phase current = null;
+    private long currentWall;
+    private long currentCPU;
+    private long currentForkCPU;
+    private String currentName = null;
+    private String currentCache = null;
+    private Span span = Span.NONE;
+    private long spanRead;
+    private long spanWritten;
+    private String packageName = null;
+    private String packageAID = null;
+    private String sdk = null;
+    private ForkSampler sampler = null;
+    private Timeline timeline = null;
+    private Timeline.Track track = null;
+
+    BuildMetrics(boolean detailed) {
+        this.detailed = detailed;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Map<String, Phase> getPhases() {
+        return phases;
+    }
+
+    Map<String, Cache> getCaches() {
+        return caches;
+    }
+
+    boolean isDetailed() {
+        return detailed;
+    }
+
+    // Package and SDK of the build, for JFR events of phases that end after this
+    void describe(String packageName, String packageAID, String sdk) {
+        this.packageName = packageName;
+        this.packageAID = packageAID;
+        this.sdk = sdk;
+        if (track != null)
+            track.setName(packageName);
+    }
+
+    // Record phases as spans of the track
+    void timeline(Timeline timeline, Timeline.Track track) {
+        this.timeline = timeline;
+        this.track = track;
+    }
+
+    // Name of the last started phase, the failed one if the build failed
+    String getLastPhase() {
+        return currentName;
+    }
+
+    // Nanoseconds from creation to finish()
+    long getWall() {
+        return (finished == -1 ? System.nanoTime() : finished) - started;
+    }
+
+    // Ends the current phase and starts the named one. Repeated phases accumulate.
+    void start(String phase) {
+        end();
+        if (timeline != null)
+            timeline.temp(System.nanoTime());
+        Phase p = phases.computeIfAbsent(phase, k -> new Phase());
+        p.count++;
+        currentWall = System.nanoTime();
+        currentCPU = cpu();
+        currentForkCPU = forkCPU();
+        currentName = phase;
+        current = p;
+        span = Trace.phase(phase);
+        spanRead = p.read;
+        spanWritten = p.written;
+    }
+
+    void cache(String name, boolean hit) {
+        Cache c = caches.computeIfAbsent(name, k -> new Cache());
+        if (hit)
+            c.hits++;
+        else
+            c.misses++;
+        currentCache = hit ? "hit" : "miss";
+        span.cache(currentCache);
+    }
+
+    // Files or directories read by the current phase
+    void read(Path... paths) {
+        Phase p = current;
+        if (detailed && p != null)
+            p.read += size(paths, 0);
+    }
+
+    // Files or directories written by the current phase
+    void wrote(Path... paths) {
+        Phase p = current;
+        if (detailed && p != null)
+            p.written += size(paths, 0);
+    }
+
+    // Files in a directory written by the current phase, since given time (milliseconds)
+    void wroteSince(Path dir, long since) {
+        Phase p = current;
+        if (detailed && p != null)
+            p.written += size(new Path[]{dir}, since);
+    }
+
+    void read(File... files) {
+        read(Stream.of(files).map(File::toPath).toArray(Path[]::new));
+    }
+
+    void finish() {
+        end();
+        if (track != null) {
+            long now = System.nanoTime();
+            track.span("build", packageName == null ? "cap" : packageName, started, now, null);
+            timeline.temp(now);
+        }
+        if (sampler != null) {
+            sampler.interrupt();
+            try {
+                sampler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sampler = null;
+        }
+        finished = System.nanoTime();
+    }
+
+    static boolean collecting(Project project) {
+        return project.getReference(REFERENCE) instanceof List;
+    }
+
+    // Track peak RSS of child processes. Only on Linux, where /proc is available
+    void sampleForks() {
+        if (sampler == null && Files.isReadable(Paths.get("/proc/self/status"))) {
+            sampler = new ForkSampler();
+            sampler.start();
+        }
+    }
+
+    private void end() {
+        Phase p = current;
+        if (p == null)
+            return;
+        long ended = System.nanoTime();
+        p.wall += ended - currentWall;
+        long now = cpu();
+        p.cpu = now == -1 ? -1 : p.cpu + now - currentCPU;
+        long forks = forkCPU();
+        if (forks != -1 && currentForkCPU != -1)
+            p.forkCPU = Math.max(p.forkCPU, 0) + forks - currentForkCPU;
+        current = null;
+        if (track != null) {
+            Map<String, Object> args = new LinkedHashMap<>();
+            if (currentCache != null)
+                args.put("cache", currentCache);
+            if (detailed) {
+                args.put("read_bytes", p.read - spanRead);
+                args.put("written_bytes", p.written - spanWritten);
+            }
+            track.span("phase", currentName, currentWall, ended, args);
+        }
+        currentCache = null;
+        span.packageName(packageName).packageAID(packageAID).sdk(sdk).read(p.read - spanRead).written(p.written - spanWritten).close();
+        span = Span.NONE;
+    }
+
+    private static long cpu() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    // cutime and cstime of /proc/self/stat: CPU time of exited and waited for children, in nanoseconds
+    private static long forkCPU() {
+        try {
+            String stat = new String(Files.readAllBytes(STAT), StandardCharsets.US_ASCII);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return (Long.parseLong(fields[13]) + Long.parseLong(fields[14])) * CLOCK_TICK;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // Total size of files, in directories recursively, modified at or after since
+    static long size(Path[] paths, long since) {
+        long total = 0;
+        for (Path path : paths) {
+            if (path == null || !Files.exists(path))
+                continue;
+            try (Stream<Path> files = Files.walk(path)) {
+                total += files.map(f -> {
+                    try {
+                        BasicFileAttributes a = Files.readAttributes(f, BasicFileAttributes.class);
+                        return a.isRegularFile() && a.lastModifiedTime().toMillis() >= since ? a.size() : 0L;
+                    } catch (IOException e) {
+                        return 0L;
+                    }
+                }).mapToLong(Long::longValue).sum();
+            } catch (IOException | java.io.UncheckedIOException e) {
+                // Best effort
+            }
+        }
+        return total;
+    }
+
+    static double millis(long nanos) {
+        return Math.round(nanos / 10_000.0) / 100.0;
+    }
+
+    // Report of a finished build, see README
+    Map<String, Object> toMap() {
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("wall_ms", millis(getWall()));
+        Map<String, Object> ps = new LinkedHashMap<>();
+        phases.forEach((k, v) -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("count", v.count);
+            m.put("wall_ms", millis(v.wall));
+            if (v.cpu != -1)
+                m.put("cpu_ms", millis(v.cpu));
+            if (v.forkCPU > 0)
+                m.put("fork_cpu_ms", millis(v.forkCPU));
+            if (v.forkRSS != -1)
+                m.put("fork_rss_kb", v.forkRSS);
+            if (detailed) {
+                m.put("read_bytes", v.read);
+                m.put("written_bytes", v.written);
+            }
+            ps.put(k, m);
+        });
+        r.put("phases", ps);
+        Map<String, Object> cs = new LinkedHashMap<>();
+        caches.forEach((k, v) -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("hits", v.hits);
+            m.put("misses", v.misses);
+            cs.put(k, m);
+        });
+        r.put("caches", cs);
+        return r;
+    }
+
+    // One line of wall time per phase, like "compile 120ms, convert 450ms, verify 60ms, total 650ms"
+    String summary() {
+        StringJoiner r = new StringJoiner(", ");
+        phases.forEach((k, v) -> r.add(String.format("%s %dms", k, Math.round(v.wall / 1_000_000.0))));
+        r.add(String.format("total %dms", Math.round(getWall() / 1_000_000.0)));
+        return r.toString();
+    }
+
+    // Same values as toMap(), flattened: <prefix>.wall_ms, <prefix>.<phase>.wall_ms, <prefix>.cache.<name>.hits etc
+    Map<String, String> toProperties(String prefix) {
+        Map<String, String> r = new LinkedHashMap<>();
+        flatten(prefix, toMap(), r);
+        return r;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void flatten(String prefix, Map<String, Object> map, Map<String, String> into) {
+        map.forEach((k, v) -> {
+            String key = prefix + "." + (k.equals("caches") ? "cache" : k);
+            if (v instanceof Map) {
+                flatten(k.equals("phases") ? prefix : key, (Map<String, Object>) v, into);
+            } else {
+                into.put(key, String.valueOf(v));
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    static void publish(Project project, String name, BuildMetrics metrics) {
+        metrics.name = name;
+        Object o = project.getReference(REFERENCE);
+        if (o instanceof List) {
+            ((List<BuildMetrics>) o).add(metrics);
+        }
+    }
+
+    // Polls /proc for descendants of this JVM and records their peak resident set size into the current phase
+    private final class ForkSampler extends Thread {
+        private final Path proc = Paths.get("/proc");
+        private final String self;
+
+        ForkSampler() {
+            super("ant-javacard fork sampler");
+            setDaemon(true);
+            String pid;
+            try {
+                pid = proc.resolve("self").toRealPath().getFileName().toString();
+            } catch (IOException e) {
+                pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+            }
+            self = pid;
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                sample();
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            sample();
+        }
+
+        private void sample() {
+            Phase p = current;
+            if (p == null)
+                return;
+            long peak = -1;
+            for (String pid : descendants()) {
+                peak = Math.max(peak, hwm(pid));
+            }
+            if (peak > p.forkRSS) {
+                p.forkRSS = peak;
+            }
+        }
+
+        private Set<String> descendants() {
+            Map<String, String> parents = new HashMap<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(proc, "[0-9]*")) {
+                for (Path d : ds) {
+                    String ppid = ppid(d);
+                    if (ppid != null) {
+                        parents.put(d.getFileName().toString(), ppid);
+                    }
+                }
+            } catch (IOException e) {
+                // Listing can race with exiting processes, try again next time
+            }
+            Set<String> result = new HashSet<>();
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                for (Map.Entry<String, String> e : parents.entrySet()) {
+                    if ((e.getValue().equals(self) || result.contains(e.getValue())) && result.add(e.getKey())) {
+                        grew = true;
+                    }
+                }
+            }
+            return result;
+        }
+
+        // Fourth field of /proc/<pid>/stat, after the parenthesized command name
+        private String ppid(Path dir) {
+            try {
+                String stat = new String(Files.readAllBytes(dir.resolve("stat")), StandardCharsets.US_ASCII);
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return fields.length > 1 ? fields[1] : null;
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        // VmHWM of /proc/<pid>/status in kilobytes
+        private long hwm(String pid) {
+            try {
+                for (String line : Files.readAllLines(proc.resolve(pid).resolve("status"), StandardCharsets.US_ASCII)) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Process exited
+            }
+            return -1;
+        }
+    }
+}
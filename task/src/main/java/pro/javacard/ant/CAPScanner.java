@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import pro.javacard.capfile.AID;
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.CAPPackage;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Bulk inventory of CAP files: one JSONL or CSV record per file, parsed in parallel.
+// The output file doubles as the resume point: records already present are not scanned again.
+final class CAPScanner {
+    static final List<String> COMPONENTS = Arrays.asList("Header", "Directory", "Import", "Applet", "Class", "Method", "StaticField", "Export",
+            "ConstantPool", "RefLocation", "Descriptor", "Debug");
+    static final List<String> CSV_COLUMNS;
+
+    static {
+        List<String> columns = new ArrayList<>(Arrays.asList("path", "size", "package_aid", "package_name", "package_version", "cap_version", "flags",
+                "applets", "imports", "javacard", "globalplatform"));
+        COMPONENTS.forEach(c -> columns.add(c + "_size"));
+        columns.addAll(Arrays.asList("sha1", "sha256", "error"));
+        CSV_COLUMNS = columns;
+    }
+
+    private final boolean csv;
+    private final int threads;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final AtomicInteger scanned = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile long lastProgress = System.currentTimeMillis();
+
+    CAPScanner(boolean csv, int threads, PrintStream out, PrintStream err) {
+        this.csv = csv;
+        this.threads = threads;
+        this.out = out;
+        this.err = err;
+    }
+
+    // Returns the number of files that could not be parsed
+    int scan(List<Path> roots, Path output, boolean resume) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Path> files = new ArrayList<>();
+        for (Path root : roots) {
+            try (Stream<Path> paths = Files.walk(root)) {
+                files.addAll(paths.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".cap")).sorted().collect(Collectors.toList()));
+            }
+        }
+
+        Set<String> done = new HashSet<>();
+        final boolean append = resume && output != null && Files.exists(output);
+        if (append)
+            done = readDone(output);
+        final Set<String> skip = done;
+        List<Path> todo = files.stream().filter(p -> !skip.contains(p.toString())).collect(Collectors.toList());
+        if (!done.isEmpty())
+            err.printf("Resuming: %d of %d files already scanned%n", files.size() - todo.size(), files.size());
+
+        Writer writer = output == null ? new OutputStreamWriter(out, StandardCharsets.UTF_8)
+                : Files.newBufferedWriter(output, StandardCharsets.UTF_8, append ? new StandardOpenOption[]{StandardOpenOption.APPEND}
+                : new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE});
+        try {
+            if (csv && !append)
+                writer.write(String.join(",", CSV_COLUMNS) + "\n");
+            final Writer w = new BufferedWriter(writer);
+            // Parallel stream in a dedicated pool, so that work is split and stolen between all threads
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.submit(() -> todo.parallelStream().forEach(p -> emit(w, record(p), todo.size()))).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException)
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                throw new IOException("Scan failed: " + e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } finally {
+                pool.shutdown();
+            }
+            w.flush();
+        } finally {
+            if (output == null)
+                writer.flush();
+            else
+                writer.close();
+        }
+        long time = System.currentTimeMillis() - start;
+        err.printf("Scanned %d CAP files (%d failed) in %dms%n", scanned.get(), failed.get(), time);
+        return failed.get();
+    }
+
+    private void emit(Writer w, String record, int total) {
+        synchronized (w) {
+            try {
+                w.write(record);
+                w.write('\n');
+                int n = scanned.incrementAndGet();
+                long now = System.currentTimeMillis();
+                // Flushing only whole records keeps the output usable as a resume point
+                if (now - lastProgress > TimeUnit.SECONDS.toMillis(2)) {
+                    w.flush();
+                    lastProgress = now;
+                    err.printf("Scanned %d/%d%n", n, total);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    String record(Path p) {
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("path", p.toString());
+        try {
+            byte[] bytes = Files.readAllBytes(p);
+            r.put("size", bytes.length);
+            CAPFile cap = CAPFile.fromBytes(bytes);
+            r.put("package_aid", cap.getPackageAID().toString());
+            r.put("package_name", cap.getPackageName());
+            r.put("package_version", cap.getPackageVersion());
+            r.put("cap_version", cap.getCAPVersion());
+            r.put("flags", cap.getFlags());
+            List<Map<String, Object>> applets = new ArrayList<>();
+            for (Map.Entry<AID, String> a : cap.getApplets().entrySet()) {
+                Map<String, Object> applet = new LinkedHashMap<>();
+                applet.put("aid", a.getKey().toString());
+                applet.put("class", a.getValue());
+                applets.add(applet);
+            }
+            r.put("applets", applets);
+            List<Map<String, Object>> imports = new ArrayList<>();
+            for (CAPPackage i : cap.getImports()) {
+                Map<String, Object> imp = new LinkedHashMap<>();
+                imp.put("aid", i.getAid().toString());
+                imp.put("version", i.getVersionString());
+                imports.add(imp);
+            }
+            r.put("imports", imports);
+            r.put("javacard", cap.guessJavaCardVersion().orElse(null));
+            r.put("globalplatform", cap.guessGlobalPlatformVersion().orElse(null));
+            r.put("components", cap.getComponentSizes());
+            r.put("sha1", Misc.encodeHexString(cap.getLoadFileDataHash("SHA-1")).toLowerCase());
+            r.put("sha256", Misc.encodeHexString(cap.getLoadFileDataHash("SHA-256")).toLowerCase());
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            r.put("error", e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+        return csv ? toCSV(r) : JSON.toJSON(r);
+    }
+
+    @SuppressWarnings("unchecked")
+    static String toCSV(Map<String, Object> r) {
+        List<String> fields = new ArrayList<>();
+        Map<String, Integer> sizes = (Map<String, Integer>) r.get("components");
+        for (String column : CSV_COLUMNS) {
+            Object v;
+            if (column.endsWith("_size") && !column.equals("size")) {
+                v = sizes == null ? null : sizes.get(column.substring(0, column.length() - 5));
+            } else if (column.equals("applets")) {
+                v = r.get(column) == null ? null : ((List<Map<String, Object>>) r.get(column)).stream()
+                        .map(a -> a.get("aid") + (a.get("class") == null ? "" : ":" + a.get("class"))).collect(Collectors.joining(" "));
+            } else if (column.equals("imports")) {
+                v = r.get(column) == null ? null : ((List<Map<String, Object>>) r.get(column)).stream()
+                        .map(a -> a.get("aid") + ":" + a.get("version")).collect(Collectors.joining(" "));
+            } else if (column.equals("flags")) {
+                v = r.get(column) == null ? null : String.join(" ", (List<String>) r.get(column));
+            } else {
+                v = r.get(column);
+            }
+            fields.add(csvField(v == null ? "" : v.toString()));
+        }
+        return String.join(",", fields);
+    }
+
+    static String csvField(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+            return s;
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    // Paths of complete records in an existing output file. A partially written last record is removed
+    Set<String> readDone(Path output) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(output.toFile(), "rw")) {
+            long end = f.length();
+            while (end > 0) {
+                f.seek(end - 1);
+                if (f.read() == '\n')
+                    break;
+                end--;
+            }
+            f.setLength(end);
+        }
+        Set<String> done = new HashSet<>();
+        for (String line : Files.readAllLines(output, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || (csv && line.startsWith("path,")))
+                continue;
+            done.add(csv ? csvPath(line) : jsonPath(line));
+        }
+        return done;
+    }
+
+    // Path is always the first field of a record
+    static String csvPath(String line) {
+        if (!line.startsWith("\""))
+            return line.substring(0, line.indexOf(','));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    sb.append('"');
+                    i++;
+                } else {
+                    break;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String jsonPath(String line) {
+        // {"path":"...", with escapes as written by JSON.quote()
+        StringBuilder sb = new StringBuilder();
+        for (int i = "{\"path\":\"".length(); i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"')
+                break;
+            if (c == '\\') {
+                char n = line.charAt(++i);
+                switch (n) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        sb.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    default:
+                        sb.append(n);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import pro.javacard.capfile.AID;
+import pro.javacard.capfile.CodeAnalyzer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// Bytecode cost report of a CAP file, as JSON and as a human readable table
+final class CodeReport {
+    private CodeReport() {
+    }
+
+    // Methods reachable from process() of each applet if known, otherwise all methods; most expensive first
+    static Map<String, List<CodeAnalyzer.MethodInfo>> hotPaths(CodeAnalyzer a) {
+        Map<String, List<CodeAnalyzer.MethodInfo>> result = new LinkedHashMap<>();
+        for (Map.Entry<AID, CodeAnalyzer.MethodInfo> e : a.getProcessMethods().entrySet())
+            result.put(e.getKey().toString(), a.getReachable(e.getValue()));
+        if (result.isEmpty()) {
+            List<CodeAnalyzer.MethodInfo> all = new ArrayList<>(a.getMethods());
+            all.sort(Comparator.comparingLong(CodeAnalyzer.MethodInfo::getCost).reversed());
+            result.put("*", all);
+        }
+        return result;
+    }
+
+    static Map<String, Object> toMap(CodeAnalyzer a, int top) {
+        Map<String, Object> r = new LinkedHashMap<>();
+        for (Map.Entry<String, List<CodeAnalyzer.MethodInfo>> e : hotPaths(a).entrySet()) {
+            List<Map<String, Object>> methods = new ArrayList<>();
+            for (CodeAnalyzer.MethodInfo m : e.getValue().subList(0, Math.min(top, e.getValue().size()))) {
+                Map<String, Object> i = new LinkedHashMap<>();
+                i.put("name", m.getName());
+                i.put("offset", m.getOffset());
+                i.put("size", m.getSize());
+                i.put("cost", m.getCost());
+                i.put("instructions", m.getInstructions());
+                i.put("max_stack", m.getMaxStack());
+                i.put("max_locals", m.getMaxLocals());
+                i.put("arguments", m.getArguments());
+                i.put("short_arithmetic", m.getShortArithmetic());
+                i.put("int_arithmetic", m.getIntArithmetic());
+                i.put("int_instructions", m.getIntInstructions());
+                i.put("calls", m.getCalls());
+                i.put("callers", m.getCallers());
+                i.put("callees", m.getCallees().stream().map(CodeAnalyzer.MethodInfo::getName).collect(Collectors.toList()));
+                methods.add(i);
+            }
+            r.put(e.getKey(), methods);
+        }
+        return r;
+    }
+
+    static List<String> summary(CodeAnalyzer a, int top) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, List<CodeAnalyzer.MethodInfo>> e : hotPaths(a).entrySet()) {
+            List<CodeAnalyzer.MethodInfo> methods = e.getValue();
+            if (e.getKey().equals("*"))
+                lines.add(String.format("All %d methods, most expensive first:", methods.size()));
+            else
+                lines.add(String.format("Applet %s: %d methods reachable from %s, total cost %d:", e.getKey(), methods.size(),
+                        a.getProcessMethods().get(AID.fromString(e.getKey())).getName(), methods.stream().mapToLong(CodeAnalyzer.MethodInfo::getCost).sum()));
+            lines.add(String.format("%8s %6s %6s %5s %6s %6s %5s  %s", "cost", "size", "instr", "stack", "locals", "ints", "calls", "method"));
+            for (CodeAnalyzer.MethodInfo m : methods.subList(0, Math.min(top, methods.size())))
+                lines.add(String.format("%8d %6d %6d %5d %6d %6d %5d  %s", m.getCost(), m.getSize(), m.getInstructions(), m.getMaxStack(),
+                        m.getMaxLocals(), m.getIntInstructions(), m.getCalls(), m.getName()));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.sdk.JavaCardSDK;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Background process of the command line utility, that keeps detected SDK-s (with their verifier classes), parsed CAP
+// files and the JIT warm between commands. It listens on a loopback port; the port and a secret token are in a file
+// readable only by the user. Commands are serialized: one runs at a time, and a client connecting meanwhile waits in the
+// accept backlog until it is done. Output is streamed back as it is written:
+// commands write to the streams given to DummyMain.runcycle(), and System.out/err of the thread running the command
+// (for code that writes there directly, like the off-card verifier of SDK-s) goes to the same client. Other threads
+// write to the output of the daemon.
+// Protocol: client sends token, argument count and arguments (DataOutput UTF strings), daemon answers with frames of
+// type (OUT or ERR), length and bytes, and finally EXIT with the exit code.
+final class Daemon {
+    static final String ENV = "ANT_JAVACARD_DAEMON";
+    static final int EXIT = 0;
+    static final int OUT = 1;
+    static final int ERR = 2;
+    // Arguments of DummyMain commands that are file names, which are made absolute by the client, as the daemon has its
+    // own working directory. Without a command (dump and verify) all arguments are file names
+    private static final Map<String, Arguments> COMMANDS = new HashMap<>();
+
+    static {
+        COMMANDS.put("check", new Arguments().positions(1));
+        COMMANDS.put("shrink", new Arguments().positions(0, 2));
+        COMMANDS.put("writes", new Arguments().positions(0));
+        COMMANDS.put("validate", new Arguments());
+        COMMANDS.put("scan", new Arguments().options("-j").paths("-o"));
+        COMMANDS.put("index", new Arguments());
+        COMMANDS.put("query", new Arguments().positions(0));
+        COMMANDS.put("order", new Arguments());
+        COMMANDS.put("load", new Arguments().options("-b", "-sd", "-hash", "-dap"));
+        COMMANDS.put("report", new Arguments());
+        COMMANDS.put("history", new Arguments().options("-n", "-t"));
+        COMMANDS.put("analyze", new Arguments().options("-n").paths("-w"));
+        COMMANDS.put("optimize", new Arguments());
+        COMMANDS.put("disassemble", new Arguments());
+        COMMANDS.put("diff", new Arguments());
+        COMMANDS.put("synthetic", new Arguments().options("-classes", "-methods", "-arrays", "-length", "-applets", "-interfaces", "-import").positions(1));
+        COMMANDS.put("build", new Arguments().paths("-f").positions());
+        COMMANDS.put("daemon", new Arguments().options("-idle", "-memory").positions());
+    }
+
+    // Time for a client to send token and arguments, before the connection is dropped
+    private static final int AUTH_TIMEOUT = 2_000; // milliseconds
+    // Interval of idle time and memory checks
+    private static final long CHECK = 5_000; // milliseconds
+
+    // Set while serving, for the caches of DummyMain commands
+    static volatile Daemon current = null;
+
+    private final long idle; // milliseconds
+    private final long memory; // bytes
+    private final Map<Path, JavaCardSDK> sdks = new ConcurrentHashMap<>();
+    private final Map<Path, Cached> caps = new LinkedHashMap<>(16, 0.75f, true);
+    private long cached = 0;
+    private volatile long last; // end of the last authenticated command, or start
+    private volatile boolean busy = false;
+    private volatile String stopping = null;
+    private Routed stdout;
+    private Routed stderr;
+
+    private static final class Cached {
+        final long size;
+        final long modified;
+        final CAPFile cap;
+
+        Cached(long size, long modified, CAPFile cap) {
+            this.size = size;
+            this.modified = modified;
+            this.cap = cap;
+        }
+    }
+
+    Daemon(int idleMinutes, int memoryMegabytes) {
+        this.idle = TimeUnit.MINUTES.toMillis(idleMinutes);
+        this.memory = memoryMegabytes * 1024L * 1024L;
+    }
+
+    static Path stateFile() {
+        return Paths.get(System.getProperty("user.home"), ".ant-javacard", "daemon");
+    }
+
+    // Serves until stopped, idle for too long or over the memory cap
+    int serve() throws IOException {
+        if (connect().isPresent()) {
+            System.err.println("Daemon is already running");
+            return 1;
+        }
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        String token = Misc.encodeHexString(secret);
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            writeState(server.getLocalPort(), token);
+            System.out.printf("Daemon listening on port %d, stopping after %d minutes idle or over %d MB of heap%n",
+                    server.getLocalPort(), TimeUnit.MILLISECONDS.toMinutes(idle), memory / 1024 / 1024);
+            stdout = new Routed(System.out);
+            stderr = new Routed(System.err);
+            System.setOut(new PrintStream(stdout, true));
+            System.setErr(new PrintStream(stderr, true));
+            current = this;
+            last = System.currentTimeMillis();
+            // Connections that do not authenticate are not activity, so idle time and memory are checked on the side
+            Thread watchdog = new Thread(() -> watchdog(server), "ant-javacard daemon watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+            try {
+                while (stopping == null) {
+                    Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch (SocketException e) {
+                        if (stopping != null)
+                            break;
+                        throw e;
+                    }
+                    if (!handle(socket, token))
+                        break;
+                    if (!withinMemory())
+                        stopping = "Over memory cap, stopping";
+                }
+            } finally {
+                watchdog.interrupt();
+            }
+            if (stopping != null)
+                System.out.println(stopping);
+        } finally {
+            current = null;
+            if (stdout != null) {
+                System.setOut(stdout.fallback);
+                System.setErr(stderr.fallback);
+            }
+            Files.deleteIfExists(stateFile());
+        }
+        return 0;
+    }
+
+    private static void writeState(int port, String token) throws IOException {
+        Path state = stateFile();
+        Files.createDirectories(state.getParent());
+        Files.deleteIfExists(state);
+        try {
+            Files.createFile(state, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, the home directory of the user is assumed to be private
+            Files.createFile(state);
+        }
+        Properties p = new Properties();
+        p.setProperty("port", String.valueOf(port));
+        p.setProperty("token", token);
+        try (OutputStream out = Files.newOutputStream(state)) {
+            p.store(out, "ant-javacard daemon");
+        }
+    }
+
+    // Stops serving when idle for too long, or over the memory cap while idle or running a command. A running command
+    // is finished first
+    private void watchdog(ServerSocket server) {
+        while (true) {
+            try {
+                Thread.sleep(CHECK);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!busy && System.currentTimeMillis() - last > idle)
+                stopping = "Idle, stopping";
+            else if (!withinMemory())
+                stopping = "Over memory cap, stopping";
+            if (stopping != null) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    // Closed already
+                }
+                return;
+            }
+        }
+    }
+
+    // Runs one command, false if the daemon was asked to stop
+    private boolean handle(Socket socket, String token) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setSoTimeout(AUTH_TIMEOUT);
+            if (!MessageDigest.isEqual(in.readUTF().getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8)))
+                return true;
+            int count = in.readInt();
+            if (count < 0 || count > 4096)
+                return true;
+            String[] args = new String[count];
+            for (int i = 0; i < count; i++) {
+                args[i] = in.readUTF();
+            }
+            s.setSoTimeout(0);
+            busy = true;
+
+            PrintStream o = new PrintStream(new Frames(out, OUT), true);
+            PrintStream e = new PrintStream(new Frames(out, ERR), true);
+            int code;
+            boolean stop = false;
+            if (count > 0 && args[0].equals("daemon")) {
+                stop = count == 2 && args[1].equals("-stop");
+                if (stop) {
+                    o.println("Daemon stopping");
+                } else {
+                    e.println("Daemon is already running");
+                }
+                code = stop ? 0 : 1;
+            } else if (count > 0 && args[0].equals("watch")) {
+                e.println("watch does not run in the daemon");
+                code = 1;
+            } else {
+                code = run(args, o, e);
+            }
+            synchronized (out) {
+                out.writeByte(EXIT);
+                out.writeInt(code);
+                out.flush();
+            }
+            return !stop;
+        } catch (IOException e) {
+            // Client went away, or did not authenticate in time
+            return true;
+        } finally {
+            if (busy) {
+                busy = false;
+                last = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private int run(String[] args, PrintStream o, PrintStream e) {
+        stdout.route(o);
+        stderr.route(e);
+        try {
+            return DummyMain.runcycle(args, o, e);
+        } catch (Throwable x) {
+            e.printf("Error: %s: %s%n", x.getClass().getSimpleName(), x.getMessage());
+            return 1;
+        } finally {
+            stdout.route(null);
+            stderr.route(null);
+            Misc.cleanTemp();
+            o.flush();
+            e.flush();
+        }
+    }
+
+    // Caches are dropped when the heap is over the cap, the daemon stops if that is not enough
+    private boolean withinMemory() {
+        if (used() <= memory)
+            return true;
+        sdks.clear();
+        synchronized (caps) {
+            caps.clear();
+            cached = 0;
+        }
+        System.gc();
+        return used() <= memory;
+    }
+
+    private static long used() {
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    Optional<JavaCardSDK> sdk(Path path) {
+        return Optional.ofNullable(sdks.computeIfAbsent(path.toAbsolutePath().normalize(), p -> JavaCardSDK.detectSDK(p).map(JavaCardSDK::warm).orElse(null)));
+    }
+
+    Map<Path, JavaCardSDK> getSDKs() {
+        return sdks;
+    }
+
+    // Parsed CAP file, again if the file has changed. Least recently used files are dropped over a quarter of the memory cap
+    CAPFile cap(Path path) throws IOException {
+        Path p = path.toAbsolutePath().normalize();
+        BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+        synchronized (caps) {
+            Cached c = caps.get(p);
+            if (c != null && c.size == a.size() && c.modified == a.lastModifiedTime().toMillis())
+                return c.cap;
+        }
+        CAPFile cap = CAPFile.fromFile(path);
+        synchronized (caps) {
+            Cached old = caps.put(p, new Cached(a.size(), a.lastModifiedTime().toMillis(), cap));
+            cached += a.size() - (old == null ? 0 : old.size);
+            Iterator<Cached> it = caps.values().iterator();
+            while (cached > memory / 4 && it.hasNext()) {
+                cached -= it.next().size;
+                it.remove();
+            }
+        }
+        return cap;
+    }
+
+    // Runs a command in the running daemon. Empty if there is none, so that it is run here instead
+    static Optional<Integer> forward(String[] argv) {
+        Optional<Socket> connection = connect();
+        if (!connection.isPresent())
+            return Optional.empty();
+        // Default build file is in the working directory of the client
+        if (argv.length > 0 && argv[0].equals("build") && !Arrays.asList(argv).contains("-f")) {
+            String[] args = Arrays.copyOf(argv, argv.length + 2);
+            System.arraycopy(argv, 1, args, 3, argv.length - 1);
+            args[1] = "-f";
+            args[2] = "build.xml";
+            argv = args;
+        }
+        boolean answered = false;
+        try (Socket s = connection.get();
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+            out.writeUTF(readState().getProperty("token", ""));
+            out.writeInt(argv.length);
+            for (String arg : absolute(argv)) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            while (true) {
+                int type = in.read();
+                if (type == -1)
+                    throw new EOFException();
+                answered = true;
+                if (type == EXIT)
+                    return Optional.of(in.readInt());
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                PrintStream target = type == ERR ? System.err : System.out;
+                target.write(b);
+                target.flush();
+            }
+        } catch (IOException e) {
+            if (!answered)
+                return Optional.empty();
+            System.err.println("Daemon went away: " + e.getMessage());
+            return Optional.of(1);
+        }
+    }
+
+    private static Properties readState() throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(stateFile())) {
+            p.load(in);
+        }
+        return p;
+    }
+
+    private static Optional<Socket> connect() {
+        if (!Files.isReadable(stateFile()))
+            return Optional.empty();
+        Socket s = new Socket();
+        try {
+            int port = Integer.parseInt(readState().getProperty("port", "0"));
+            s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+            return Optional.of(s);
+        } catch (IOException | IllegalArgumentException e) {
+            try {
+                s.close();
+            } catch (IOException x) {
+                // Nothing to close
+            }
+            return Optional.empty();
+        }
+    }
+
+    // Command line with file names made absolute, see COMMANDS
+    static String[] absolute(String[] argv) {
+        String[] result = argv.clone();
+        Arguments command = argv.length == 0 ? null : COMMANDS.get(argv[0]);
+        int position = 0;
+        for (int i = command == null ? 0 : 1; i < argv.length; i++) {
+            if (command != null && command.options.contains(argv[i])) {
+                if (command.paths.contains(argv[i]) && i + 1 < argv.length)
+                    result[i + 1] = absolute(argv[i + 1]);
+                i++;
+            } else if (command != null && argv[i].startsWith("-")) {
+                continue; // Flag
+            } else {
+                if (command == null || command.positions == null || command.positions.contains(position))
+                    result[i] = absolute(argv[i]);
+                position++;
+            }
+        }
+        return result;
+    }
+
+    private static String absolute(String path) {
+        try {
+            return Paths.get(path).toAbsolutePath().toString();
+        } catch (InvalidPathException e) {
+            return path;
+        }
+    }
+
+    // Options with a value, those that are file names and positions of file names among other arguments (all by default)
+    private static final class Arguments {
+        final Set<String> options = new HashSet<>();
+        final Set<String> paths = new HashSet<>();
+        Set<Integer> positions = null;
+
+        Arguments options(String... names) {
+            options.addAll(Arrays.asList(names));
+            return this;
+        }
+
+        Arguments paths(String... names) {
+            paths.addAll(Arrays.asList(names));
+            return options(names);
+        }
+
+        Arguments positions(Integer... indexes) {
+            positions = new HashSet<>(Arrays.asList(indexes));
+            return this;
+        }
+    }
+
+    // System.out or System.err of the daemon, that goes to the client of the command running in the current thread
+    private static final class Routed extends OutputStream {
+        private final PrintStream fallback;
+        private final ThreadLocal<PrintStream> command = new ThreadLocal<>();
+
+        Routed(PrintStream fallback) {
+            this.fallback = fallback;
+        }
+
+        void route(PrintStream to) {
+            if (to == null)
+                command.remove();
+            else
+                command.set(to);
+        }
+
+        private PrintStream target() {
+            PrintStream to = command.get();
+            return to == null ? fallback : to;
+        }
+
+        @Override
+        public void write(int b) {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            target().flush();
+        }
+    }
+
+    // Output of a command as frames of the given type
+    private static final class Frames extends OutputStream {
+        private final DataOutputStream out;
+        private final int type;
+
+        Frames(DataOutputStream out, int type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+                out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import pro.javacard.capfile.CAPDiff;
+import pro.javacard.capfile.CAPFile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// Structural difference of two CAP files, as JSON
+final class DiffReport {
+    private DiffReport() {
+    }
+
+    static Map<String, Object> toMap(CAPFile a, CAPFile b, CAPDiff d) {
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("old_deploy_hash", Misc.encodeHexString(CAPDiff.getDeployHash(a)).toLowerCase());
+        r.put("new_deploy_hash", Misc.encodeHexString(CAPDiff.getDeployHash(b)).toLowerCase());
+        r.put("needs_reload", d.needsReload());
+        r.put("changes", d.getChanges().stream().map(CAPDiff.Change::toString).collect(Collectors.toList()));
+        List<Map<String, Object>> differences = new ArrayList<>();
+        for (CAPDiff.Difference x : d.getDifferences()) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("entry", x.getEntry());
+            m.put("change", x.getChange().toString());
+            m.put("description", x.getDescription());
+            differences.add(m);
+        }
+        r.put("differences", differences);
+        return r;
+    }
+}
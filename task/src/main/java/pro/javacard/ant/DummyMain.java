@@ -21,33 +21,473 @@
  */
 package pro.javacard.ant;
 
+import pro.javacard.capfile.AID;
+import pro.javacard.capfile.CAPDiff;
+import pro.javacard.capfile.CAPDisassembler;
 import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.CAPOptimizer;
+import pro.javacard.capfile.CAPIndex;
+import pro.javacard.capfile.CodeAnalyzer;
+import pro.javacard.capfile.LoadOrder;
+import pro.javacard.capfile.LoadProfile;
+import pro.javacard.capfile.LoadStream;
+import pro.javacard.capfile.CAPValidator;
+import pro.javacard.sdk.ClassFileChecker;
+import pro.javacard.sdk.ClassShrinker;
 import pro.javacard.sdk.ExportFileHelper;
 import pro.javacard.sdk.JavaCardSDK;
 import pro.javacard.sdk.OffCardVerifier;
+import pro.javacard.sdk.PersistentWriteChecker;
+import pro.javacard.sdk.SDKVersion;
 import pro.javacard.sdk.VerifierError;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
 import java.util.Vector;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public final class DummyMain {
 
     static int runcycle(String[] argv) throws IOException {
+        return runcycle(argv, System.out, System.err);
+    }
+
+    // Output goes to given streams, so that commands run in the daemon write to their client
+    static int runcycle(String[] argv, PrintStream out, PrintStream err) throws IOException {
         Vector<String> args = new Vector<>(Arrays.asList(argv));
 
         if (args.isEmpty()) {
-            System.out.println("This is an ANT task.");
-            System.out.println("Read usage instructions from https://github.com/martinpaljak/ant-javacard#syntax");
-            System.out.println();
-            System.out.println("But you can use it to dump/verify CAP files, like this:");
-            System.out.println("$ java -jar ant-javacard.jar <capfile>");
+            out.println("This is an ANT task.");
+            out.println("Read usage instructions from https://github.com/martinpaljak/ant-javacard#syntax");
+            out.println();
+            out.println("But you can use it to dump/verify CAP files, like this:");
+            out.println("$ java -jar ant-javacard.jar <capfile>");
+            out.println();
+            out.println("Or to check compiled classes before conversion:");
+            out.println("$ java -jar ant-javacard.jar check [-i] <jcversion> <classes> [<package>]");
+            out.println();
+            out.println("Or to remove unused classes, methods and fields before conversion:");
+            out.println("$ java -jar ant-javacard.jar shrink [-api] <classes> <package> <output> [<appletclass> ...]");
+            out.println();
+            out.println("Or to find persistent memory writes when processing APDUs:");
+            out.println("$ java -jar ant-javacard.jar writes <classes> <package> [<appletclass> ...]");
+            out.println();
+            out.println("Or to validate the structure of CAP files:");
+            out.println("$ java -jar ant-javacard.jar validate <capfile|directory> ...");
+            out.println();
+            out.println("Or to make an inventory of CAP files:");
+            out.println("$ java -jar ant-javacard.jar scan [-csv] [-j <threads>] [-o <output> [-resume]] <directory> ...");
+            out.println();
+            out.println("Or to maintain and query an index of CAP files:");
+            out.println("$ java -jar ant-javacard.jar index <indexfile> <directory> ...");
+            out.println("$ java -jar ant-javacard.jar query <indexfile> package|applet|hash|dependents <hex>");
+            out.println();
+            out.println("Or to resolve the load order of CAP files:");
+            out.println("$ java -jar ant-javacard.jar order <capfile|directory> ...");
+            out.println();
+            out.println("Or to generate GlobalPlatform LOAD commands:");
+            out.println("$ java -jar ant-javacard.jar load [-b <blocksize>] [-e] [-debug] [-sd <aid>] [-hash <algorithm>] [-dap <aid>:<signature>] <capfile> [<script>]");
+            out.println();
+            out.println("Or to see where the load bytes of a CAP file go:");
+            out.println("$ java -jar ant-javacard.jar report [-json] <capfile>");
+            out.println();
+            out.println("Or to compare a CAP file with its size history:");
+            out.println("$ java -jar ant-javacard.jar history [-n <count>] [-t <percent>] [-append] <historyfile> <capfile>");
+            out.println();
+            out.println("Or to estimate the bytecode cost of methods:");
+            out.println("$ java -jar ant-javacard.jar analyze [-w <weights.properties>] [-n <count>] [-json] <capfile>");
+            out.println();
+            out.println("Or to optimize the bytecode of a CAP file:");
+            out.println("$ java -jar ant-javacard.jar optimize <capfile> <output>");
+            out.println();
+            out.println("Or to disassemble a CAP file:");
+            out.println("$ java -jar ant-javacard.jar disassemble <capfile> [<output>]");
+            out.println();
+            out.println("Or to check if a new CAP file needs to be loaded instead of an old one:");
+            out.println("$ java -jar ant-javacard.jar diff [-json] <old.cap> <new.cap>");
+            out.println();
+            out.println("Or to generate Java Card sources for scale testing:");
+            out.println("$ java -jar ant-javacard.jar synthetic [-classes <n>] [-methods <n>] [-arrays <n>] [-length <n>] [-applets <n>] [-interfaces <n>] [-import <package>] <package> <directory>");
+            out.println();
+            out.println("Or to rebuild CAP files of an Ant build file whenever their sources change (with Ant in classpath):");
+            out.println("$ java -cp ant-javacard.jar:$ANT_HOME/lib/ant.jar:$ANT_HOME/lib/ant-launcher.jar pro.javacard.ant.DummyMain watch [-f <build.xml>] [-d <debounce ms>] [<target>]");
+            out.println();
+            out.println("Or to keep SDKs and parsed CAP files loaded between commands (used when " + Daemon.ENV + " is set):");
+            out.println("$ java -cp ant-javacard.jar:$ANT_HOME/lib/ant.jar:$ANT_HOME/lib/ant-launcher.jar pro.javacard.ant.DummyMain daemon [-idle <minutes>] [-memory <MB>]");
+            out.println("$ java -jar ant-javacard.jar daemon -stop");
+            out.println("$ java -cp ant-javacard.jar:$ANT_HOME/lib/ant.jar:$ANT_HOME/lib/ant-launcher.jar pro.javacard.ant.DummyMain build [-f <build.xml>] [<target>]");
             return 1;
+        } else if (args.get(0).equals("check")) {
+            // Checking of class files
+            args.remove(0);
+            final boolean ints = args.remove("-i");
+            if (args.size() < 2 || args.size() > 3) {
+                err.println("Usage: java -jar ant-javacard.jar check [-i] <jcversion> <classes> [<package>]");
+                return 1;
+            }
+            final String version = args.remove(0);
+            SDKVersion sdkVersion = SDKVersion.fromVersion(version).orElseThrow(() -> new IllegalArgumentException("Unknown JavaCard version: " + version));
+            Path classes = Paths.get(args.remove(0));
+            String pkg = args.isEmpty() ? null : args.remove(0);
+
+            long start = System.currentTimeMillis();
+            List<String> problems = new ClassFileChecker(sdkVersion, ints).check(classes, pkg);
+            problems.forEach(out::println);
+            out.printf("%d problem%s found in %dms%n", problems.size(), problems.size() == 1 ? "" : "s", System.currentTimeMillis() - start);
+            return problems.isEmpty() ? 0 : 1;
+        } else if (args.get(0).equals("shrink")) {
+            // Dead code elimination
+            args.remove(0);
+            final boolean api = args.remove("-api");
+            if (args.size() < 3) {
+                err.println("Usage: java -jar ant-javacard.jar shrink [-api] <classes> <package> <output> [<appletclass> ...]");
+                return 1;
+            }
+            Path classes = Paths.get(args.remove(0));
+            String pkg = args.remove(0);
+            Path output = Paths.get(args.remove(0));
+            ClassShrinker shrinker = ClassShrinker.shrink(classes, pkg, args, api);
+            shrinker.write(output);
+            shrinker.getRemoved().forEach(r -> out.println("Removed " + r.replace('/', '.')));
+            out.printf("%d bytes of class files, about %d bytes of CAP code removed%n", shrinker.getSavedBytes(), shrinker.getRemovedCodeSize());
+            return 0;
+        } else if (args.get(0).equals("writes")) {
+            // Persistent writes on APDU paths
+            args.remove(0);
+            if (args.size() < 2) {
+                err.println("Usage: java -jar ant-javacard.jar writes <classes> <package> [<appletclass> ...]");
+                return 1;
+            }
+            Path classes = Paths.get(args.remove(0));
+            String pkg = args.remove(0);
+            PersistentWriteChecker checker = PersistentWriteChecker.check(classes, pkg, args);
+            List<PersistentWriteChecker.Write> writes = checker.getWrites();
+            writes.forEach(out::println);
+            checker.summary().forEach(out::println);
+            return writes.isEmpty() ? 0 : 1;
+        } else if (args.get(0).equals("validate")) {
+            // Structural validation of CAP files, without SDK
+            args.remove(0);
+            if (args.isEmpty()) {
+                err.println("Usage: java -jar ant-javacard.jar validate <capfile|directory> ...");
+                return 1;
+            }
+            long start = System.currentTimeMillis();
+            List<Path> files = new ArrayList<>();
+            for (String arg : args) {
+                try (Stream<Path> paths = Files.walk(Paths.get(arg))) {
+                    files.addAll(paths.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".cap")).sorted().collect(Collectors.toList()));
+                }
+            }
+            List<List<String>> results = files.parallelStream().map(DummyMain::validate).collect(Collectors.toList());
+            int invalid = 0;
+            for (int i = 0; i < files.size(); i++) {
+                List<String> problems = results.get(i);
+                if (problems.isEmpty())
+                    continue;
+                invalid++;
+                for (String problem : problems)
+                    out.printf("%s: %s%n", files.get(i), problem);
+            }
+            out.printf("%d of %d CAP file%s invalid, validated in %dms%n", invalid, files.size(), files.size() == 1 ? "" : "s", System.currentTimeMillis() - start);
+            return invalid == 0 ? 0 : 1;
+        } else if (args.get(0).equals("scan")) {
+            // Inventory of CAP files, as JSONL or CSV
+            args.remove(0);
+            final boolean csv = args.remove("-csv");
+            final boolean resume = args.remove("-resume");
+            final int threads = option(args, "-j").map(Integer::parseInt).orElse(Runtime.getRuntime().availableProcessors());
+            final Path output = option(args, "-o").map(Paths::get).orElse(null);
+            if (args.isEmpty() || (resume && output == null)) {
+                err.println("Usage: java -jar ant-javacard.jar scan [-csv] [-j <threads>] [-o <output> [-resume]] <directory> ...");
+                return 1;
+            }
+            final int failed = new CAPScanner(csv, threads, out, err).scan(args.stream().map(Paths::get).collect(Collectors.toList()), output, resume);
+            return failed == 0 ? 0 : 1;
+        } else if (args.get(0).equals("index")) {
+            // Create or update index of CAP files
+            args.remove(0);
+            if (args.size() < 2) {
+                err.println("Usage: java -jar ant-javacard.jar index <indexfile> <directory> ...");
+                return 1;
+            }
+            long start = System.currentTimeMillis();
+            Path index = Paths.get(args.remove(0));
+            CAPIndex.Stats stats = CAPIndex.update(index, args.stream().map(Paths::get).collect(Collectors.toList()));
+            stats.failed.forEach(err::println);
+            out.printf("Updated %s: %s in %dms%n", index, stats, System.currentTimeMillis() - start);
+            return 0;
+        } else if (args.get(0).equals("query")) {
+            // Query index of CAP files
+            args.remove(0);
+            if (args.size() != 3) {
+                err.println("Usage: java -jar ant-javacard.jar query <indexfile> package|applet|hash|dependents <hex>");
+                return 1;
+            }
+            try (CAPIndex index = CAPIndex.open(Paths.get(args.get(0)))) {
+                byte[] value = Misc.stringToBin(args.get(2));
+                final List<CAPIndex.Entry> result;
+                switch (args.get(1)) {
+                    case "package":
+                        result = index.findByPackagePrefix(value);
+                        break;
+                    case "applet":
+                        result = index.findByAppletPrefix(value);
+                        break;
+                    case "hash":
+                        result = index.findByHash(value);
+                        break;
+                    case "dependents":
+                        result = index.findDependents(new AID(value));
+                        break;
+                    default:
+                        err.println("Unknown query: " + args.get(1));
+                        return 1;
+                }
+                result.forEach(out::println);
+                return result.isEmpty() ? 1 : 0;
+            }
+        } else if (args.get(0).equals("order")) {
+            // Load and delete order of a set of CAP files
+            args.remove(0);
+            if (args.isEmpty()) {
+                err.println("Usage: java -jar ant-javacard.jar order <capfile|directory> ...");
+                return 1;
+            }
+            List<Path> files = new ArrayList<>();
+            for (String arg : args) {
+                try (Stream<Path> paths = Files.walk(Paths.get(arg))) {
+                    files.addAll(paths.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".cap")).sorted().collect(Collectors.toList()));
+                }
+            }
+            LoadOrder order = LoadOrder.fromFiles(files);
+            out.println("Load order:");
+            order.getLoadOrder().forEach(c -> out.printf("  %s %s v%s %s%n", c.getPackageAID(), c.getPackageName(), c.getPackageVersion(), c.getFile().get()));
+            out.println("Delete order:");
+            order.getDeleteOrder().forEach(c -> out.printf("  %s %s%n", c.getPackageAID(), c.getPackageName()));
+            List<List<CAPFile>> groups = order.getGroups();
+            for (int i = 0; i < groups.size(); i++)
+                out.printf("Independent group %d: %s%n", i + 1, groups.get(i).stream().map(CAPFile::getPackageName).collect(Collectors.joining(", ")));
+            order.getProblems().forEach(p -> out.println("Problem: " + p));
+            return order.getProblems().isEmpty() ? 0 : 1;
+        } else if (args.get(0).equals("load")) {
+            // Script of INSTALL [for load] and LOAD commands
+            args.remove(0);
+            final boolean extended = args.remove("-e");
+            final boolean debug = args.remove("-debug");
+            final Optional<String> blocksize = option(args, "-b");
+            final AID sd = option(args, "-sd").map(AID::fromString).orElse(null);
+            final String hash = option(args, "-hash").orElse("SHA-1");
+            final Optional<String> dap = option(args, "-dap");
+            if (args.isEmpty() || args.size() > 2) {
+                err.println("Usage: java -jar ant-javacard.jar load [-b <blocksize>] [-e] [-debug] [-sd <aid>] [-hash <algorithm>] [-dap <aid>:<signature>] <capfile> [<script>]");
+                return 1;
+            }
+            LoadStream load = LoadStream.of(readCAP(Paths.get(args.get(0)))).extendedLength(extended).includeDebug(debug);
+            blocksize.ifPresent(b -> load.blockSize(Integer.parseInt(b)));
+            dap.ifPresent(d -> load.dap(AID.fromString(d.split(":")[0]), Misc.stringToBin(d.split(":")[1])));
+            final String algorithm = hash.equalsIgnoreCase("none") ? null : hash;
+            if (args.size() == 2) {
+                try (Writer script = Files.newBufferedWriter(Paths.get(args.get(1)), StandardCharsets.UTF_8)) {
+                    load.writeScript(script, sd, algorithm);
+                }
+            } else {
+                load.writeScript(new OutputStreamWriter(out, StandardCharsets.UTF_8), sd, algorithm);
+            }
+            return 0;
+        } else if (args.get(0).equals("report")) {
+            // Load cost report
+            args.remove(0);
+            final boolean json = args.remove("-json");
+            if (args.size() != 1) {
+                err.println("Usage: java -jar ant-javacard.jar report [-json] <capfile>");
+                return 1;
+            }
+            LoadProfile profile = LoadProfile.of(readCAP(Paths.get(args.get(0))));
+            if (json)
+                out.print(JSON.toPrettyJSON(LoadReport.toMap(profile)));
+            else
+                LoadReport.summary(profile).forEach(out::println);
+            return 0;
+        } else if (args.get(0).equals("history")) {
+            // Size history
+            args.remove(0);
+            final boolean append = args.remove("-append");
+            final int count = option(args, "-n").map(Integer::parseInt).orElse(5);
+            final double threshold = option(args, "-t").map(Double::parseDouble).orElse(5.0);
+            if (args.size() != 2) {
+                err.println("Usage: java -jar ant-javacard.jar history [-n <count>] [-t <percent>] [-append] <historyfile> <capfile>");
+                return 1;
+            }
+            Path file = Paths.get(args.get(0));
+            Path capfile = Paths.get(args.get(1));
+            SizeHistory.Record current = SizeHistory.of(readCAP(capfile), Misc.gitRevision(capfile.toAbsolutePath().getParent()).orElse(null));
+            List<SizeHistory.Record> previous = SizeHistory.last(file, current.aid, count);
+            for (SizeHistory.Record r : previous)
+                out.printf("%s %s v%s %s load file %d bytes%n", r.time, r.revision, r.version, r.sha256.substring(0, 8), r.sizes.get("loadfile"));
+            int grown = 0;
+            for (String line : SizeHistory.compare(current, previous, threshold)) {
+                if (line.startsWith("!"))
+                    grown++;
+                out.println(line.startsWith("!") ? "GREW " + line.substring(1) : "     " + line);
+            }
+            if (append)
+                SizeHistory.append(file, current);
+            return grown == 0 ? 0 : 1;
+        } else if (args.get(0).equals("analyze")) {
+            // Bytecode cost analysis
+            args.remove(0);
+            final boolean json = args.remove("-json");
+            final int count = option(args, "-n").map(Integer::parseInt).orElse(20);
+            final Optional<String> weightsFile = option(args, "-w");
+            if (args.size() != 1) {
+                err.println("Usage: java -jar ant-javacard.jar analyze [-w <weights.properties>] [-n <count>] [-json] <capfile>");
+                return 1;
+            }
+            Map<String, Integer> weights = CodeAnalyzer.defaultWeights();
+            if (weightsFile.isPresent()) {
+                Properties p = new Properties();
+                try (InputStream in = Files.newInputStream(Paths.get(weightsFile.get()))) {
+                    p.load(in);
+                }
+                weights = CodeAnalyzer.weights(p);
+            }
+            CodeAnalyzer analyzer = CodeAnalyzer.of(readCAP(Paths.get(args.get(0))), weights);
+            if (json)
+                out.print(JSON.toPrettyJSON(CodeReport.toMap(analyzer, count)));
+            else
+                CodeReport.summary(analyzer, count).forEach(out::println);
+            return 0;
+        } else if (args.get(0).equals("optimize")) {
+            // Peephole optimization of the Method component
+            args.remove(0);
+            if (args.size() != 2) {
+                err.println("Usage: java -jar ant-javacard.jar optimize <capfile> <output>");
+                return 1;
+            }
+            CAPOptimizer.Result result = CAPOptimizer.optimize(readCAP(Paths.get(args.get(0))));
+            result.summary().forEach(out::println);
+            Files.write(Paths.get(args.get(1)), result.getBytes());
+            return 0;
+        } else if (args.get(0).equals("disassemble")) {
+            // JCA-like listing, without SDK
+            args.remove(0);
+            if (args.size() < 1 || args.size() > 2) {
+                err.println("Usage: java -jar ant-javacard.jar disassemble <capfile> [<output>]");
+                return 1;
+            }
+            CAPFile cap = readCAP(Paths.get(args.get(0)));
+            if (args.size() == 2) {
+                try (Writer w = Files.newBufferedWriter(Paths.get(args.get(1)), StandardCharsets.UTF_8)) {
+                    CAPDisassembler.disassemble(cap, w);
+                }
+            } else {
+                Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                CAPDisassembler.disassemble(cap, w);
+            }
+            return 0;
+        } else if (args.get(0).equals("diff")) {
+            // Structural difference, exit code tells if a reload is needed
+            args.remove(0);
+            final boolean json = args.remove("-json");
+            if (args.size() != 2) {
+                err.println("Usage: java -jar ant-javacard.jar diff [-json] <old.cap> <new.cap>");
+                return 1;
+            }
+            CAPFile a = readCAP(Paths.get(args.get(0)));
+            CAPFile b = readCAP(Paths.get(args.get(1)));
+            CAPDiff diff = CAPDiff.of(a, b);
+            if (json)
+                out.print(JSON.toPrettyJSON(DiffReport.toMap(a, b, diff)));
+            else
+                diff.summary().forEach(out::println);
+            return diff.needsReload() ? 1 : 0;
+        } else if (args.get(0).equals("synthetic")) {
+            // Generated source package
+            args.remove(0);
+            final int classes = option(args, "-classes").map(Integer::parseInt).orElse(1);
+            final int methods = option(args, "-methods").map(Integer::parseInt).orElse(2);
+            final int arrays = option(args, "-arrays").map(Integer::parseInt).orElse(1);
+            final int length = option(args, "-length").map(Integer::parseInt).orElse(32);
+            final int applets = option(args, "-applets").map(Integer::parseInt).orElse(1);
+            final int interfaces = option(args, "-interfaces").map(Integer::parseInt).orElse(0);
+            List<String> imports = new ArrayList<>();
+            for (Optional<String> i = option(args, "-import"); i.isPresent(); i = option(args, "-import"))
+                imports.add(i.get());
+            if (args.size() != 2) {
+                err.println("Usage: java -jar ant-javacard.jar synthetic [-classes <n>] [-methods <n>] [-arrays <n>] [-length <n>] [-applets <n>] [-interfaces <n>] [-import <package>] <package> <directory>");
+                return 1;
+            }
+            SyntheticSources sources = SyntheticSources.builder(args.get(0)).classes(classes).methods(methods).arrays(arrays, length)
+                    .applets(applets).interfaces(interfaces);
+            imports.forEach(sources::imports);
+            List<Path> files = sources.write(Paths.get(args.get(1)));
+            out.printf("Wrote %d files to %s%n", files.size(), files.get(0).getParent());
+            for (String applet : sources.getAppletClasses())
+                out.println("Applet: " + applet);
+            return 0;
+        } else if (args.get(0).equals("watch") || args.get(0).equals("build")) {
+            // Ant build, with watching <javacard> tasks
+            final boolean watch = args.remove(0).equals("watch");
+            final String usage = "java -cp ant-javacard.jar:$ANT_HOME/lib/ant.jar:$ANT_HOME/lib/ant-launcher.jar pro.javacard.ant.DummyMain";
+            final Path buildfile = Paths.get(option(args, "-f").orElse("build.xml"));
+            final Optional<String> debounce = watch ? option(args, "-d") : Optional.empty();
+            if (args.size() > 1) {
+                err.println("Usage: " + usage + (watch ? " watch [-f <build.xml>] [-d <debounce ms>] [<target>]" : " build [-f <build.xml>] [<target>]"));
+                return 1;
+            }
+            if (!Files.isRegularFile(buildfile)) {
+                err.println("Build file not found: " + buildfile);
+                return 1;
+            }
+            try {
+                Class.forName("org.apache.tools.ant.Project");
+            } catch (ClassNotFoundException e) {
+                err.println("Ant is not in classpath, use:");
+                err.println("$ " + usage + (watch ? " watch ..." : " build ..."));
+                return 1;
+            }
+            final Map<String, String> properties = new HashMap<>();
+            if (watch) {
+                properties.put(JavaCard.WATCH, "true");
+                debounce.ifPresent(d -> properties.put(JavaCard.DEBOUNCE, d));
+            }
+            final Daemon daemon = Daemon.current;
+            return AntBuild.run(buildfile, args.isEmpty() ? null : args.get(0), properties, daemon == null ? null : daemon.getSDKs(), out, err);
+        } else if (args.get(0).equals("daemon")) {
+            // Background process for the commands of this utility
+            args.remove(0);
+            if (args.size() == 1 && args.get(0).equals("-stop")) {
+                Optional<Integer> stopped = Daemon.forward(new String[]{"daemon", "-stop"});
+                if (!stopped.isPresent())
+                    err.println("No daemon running");
+                return stopped.orElse(1);
+            }
+            final int idle = Integer.parseInt(option(args, "-idle").orElse("30"));
+            final int memory = Integer.parseInt(option(args, "-memory").orElse("512"));
+            if (!args.isEmpty() || idle <= 0 || memory <= 0) {
+                err.println("Usage: java -jar ant-javacard.jar daemon [-idle <minutes>] [-memory <MB>] | -stop");
+                return 1;
+            }
+            return new Daemon(idle, memory).serve();
         } else if (args.size() == 1) {
             // Simple dumping of capfile
             final String capfile = args.remove(0);
@@ -55,23 +495,23 @@ public final class DummyMain {
             Path path = Paths.get(capfile);
             if (Files.isRegularFile(path) && capfile.endsWith(".cap")) {
                 try {
-                    CAPFile cap = CAPFile.fromBytes(Files.readAllBytes(path));
-                    cap.dump(System.out);
+                    CAPFile cap = readCAP(path);
+                    cap.dump(out);
                     return 0;
                 } catch (Exception e) {
-                    System.err.printf("Failed to read/parse CAP file: %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
+                    err.printf("Failed to read/parse CAP file: %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
                     return 1;
                 }
             } else if (Files.isRegularFile(path) && capfile.endsWith(".exp")) {
                 try {
-                    System.out.printf("%s: %s%n", path, ExportFileHelper.getVersion(path).get());
+                    out.printf("%s: %s%n", path, ExportFileHelper.getVersion(path).get());
                     return 0;
                 } catch (Exception e) {
-                    System.err.printf("Failed to read/parse EXP file: %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
+                    err.printf("Failed to read/parse EXP file: %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
                     return 1;
                 }
             } else {
-                System.err.println("Usage: java -jar ant-javacard.jar <capfile|expfile>");
+                err.println("Usage: java -jar ant-javacard.jar <capfile|expfile>");
                 return 1;
             }
         } else {
@@ -91,28 +531,68 @@ public final class DummyMain {
             // If jarfile is given, exports from jar files are extracted internally.
             Vector<File> exps = args.stream().map(File::new).collect(Collectors.toCollection(Vector::new));
 
-            CAPFile cap = CAPFile.fromBytes(Files.readAllBytes(Paths.get(capfile)));
+            CAPFile cap = readCAP(Paths.get(capfile));
             try {
-                JavaCardSDK sdk = JavaCardSDK.detectSDK(sdkpath).orElseThrow(() -> new VerifierError("No SDK detected in " + sdkpath));
-                JavaCardSDK target = JavaCardSDK.detectSDK(targetsdkpath).orElseThrow(() -> new VerifierError("No target SDK detected with " + targetsdkpath));
+                JavaCardSDK sdk = detectSDK(sdkpath).orElseThrow(() -> new VerifierError("No SDK detected in " + sdkpath));
+                JavaCardSDK target = detectSDK(targetsdkpath).orElseThrow(() -> new VerifierError("No target SDK detected with " + targetsdkpath));
 
                 OffCardVerifier verifier = OffCardVerifier.withSDK(sdk);
 
-                cap.dump(System.out);
+                cap.dump(out);
 
                 verifier.verifyAgainst(new File(capfile), target, exps);
-                System.out.printf("Verified %s with SDK v%s against SDK v%s%n", capfile, sdk.getVersion(), target.getVersion());
+                out.printf("Verified %s with SDK v%s against SDK v%s%n", capfile, sdk.getVersion(), target.getVersion());
                 return 0;
             } catch (VerifierError e) {
-                System.err.println("Verification failed: " + e.getMessage());
+                err.println("Verification failed: " + e.getMessage());
                 return 1;
             }
         }
     }
 
+    // Parsed CAP file, from the cache of the daemon if serving
+    static CAPFile readCAP(Path path) throws IOException {
+        final Daemon daemon = Daemon.current;
+        return daemon == null ? CAPFile.fromFile(path) : daemon.cap(path);
+    }
+
+    static Optional<JavaCardSDK> detectSDK(Path path) {
+        final Daemon daemon = Daemon.current;
+        return daemon == null ? JavaCardSDK.detectSDK(path) : daemon.sdk(path);
+    }
+
+    // Removes an option and its value from arguments
+    static Optional<String> option(List<String> args, String name) {
+        int i = args.indexOf(name);
+        if (i < 0)
+            return Optional.empty();
+        if (i + 1 >= args.size())
+            throw new IllegalArgumentException("Option " + name + " needs a value");
+        args.remove(i);
+        return Optional.of(args.remove(i));
+    }
+
+    static List<String> validate(Path path) {
+        try {
+            return CAPValidator.validate(CAPFile.fromBytes(Files.readAllBytes(path)));
+        } catch (Exception e) {
+            return Collections.singletonList(String.format("Failed to read/parse CAP file: %s: %s", e.getClass().getSimpleName(), e.getMessage()));
+        }
+    }
+
     public static void main(String[] argv) {
         try {
-            runcycle(argv);
+            if (System.getenv(Daemon.ENV) != null && !(argv.length > 0 && argv[0].equals("daemon"))) {
+                Optional<Integer> forwarded = Daemon.forward(argv);
+                if (forwarded.isPresent()) {
+                    if (forwarded.get() != 0)
+                        System.exit(forwarded.get());
+                    return;
+                }
+            }
+            int ret = runcycle(argv);
+            if (ret != 0)
+                System.exit(ret);
         } catch (Throwable e) {
             Misc.cleanTemp();
             System.err.printf("Error: %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
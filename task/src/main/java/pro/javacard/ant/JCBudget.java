@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import pro.javacard.capfile.LoadProfile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Just for Ant: <budget loadfile="" method="" staticfield="" constantpool="" staticimage="" classes="" fail=""/>
+public class JCBudget {
+    Integer loadfile = null;
+    Integer method = null;
+    Integer staticfield = null;
+    Integer constantpool = null;
+    Integer staticimage = null;
+    Integer classes = null;
+    boolean fail = true;
+
+    public void setLoadfile(int arg) {
+        loadfile = arg;
+    }
+
+    public void setMethod(int arg) {
+        method = arg;
+    }
+
+    public void setStaticfield(int arg) {
+        staticfield = arg;
+    }
+
+    public void setConstantpool(int arg) {
+        constantpool = arg;
+    }
+
+    public void setStaticimage(int arg) {
+        staticimage = arg;
+    }
+
+    public void setClasses(int arg) {
+        classes = arg;
+    }
+
+    public void setFail(boolean arg) {
+        fail = arg;
+    }
+
+    // Returns a line for every budgeted item: actual value, budget and delta. Items over budget are prefixed with "!"
+    List<String> check(LoadProfile profile) {
+        List<String> result = new ArrayList<>();
+        check(result, "Load file data block", profile.getCodeSize(), loadfile, "bytes");
+        check(result, "Method component", profile.getComponentSizes().getOrDefault("Method", 0), method, "bytes");
+        check(result, "StaticField component", profile.getComponentSizes().getOrDefault("StaticField", 0), staticfield, "bytes");
+        check(result, "ConstantPool component", profile.getComponentSizes().getOrDefault("ConstantPool", 0), constantpool, "bytes");
+        check(result, "Static field image", profile.getStaticImageSize(), staticimage, "bytes");
+        check(result, "Classes", profile.getClasses().size(), classes, "");
+        return result;
+    }
+
+    private static void check(List<String> result, String what, int actual, Integer budget, String unit) {
+        if (budget == null)
+            return;
+        String line = String.format("%s: %d%s, budget %d (%+d)", what, actual, unit.isEmpty() ? "" : " " + unit, budget, actual - budget);
+        result.add(actual > budget ? "!" + line : line);
+    }
+}
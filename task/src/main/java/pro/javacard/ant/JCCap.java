@@ -30,16 +30,24 @@ import org.apache.tools.ant.taskdefs.Javac;
 import org.apache.tools.ant.types.Environment;
 import org.apache.tools.ant.types.FileSet;
 import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.CAPOptimizer;
+import pro.javacard.capfile.LoadProfile;
+import pro.javacard.jfr.Trace;
+import pro.javacard.sdk.ClassFileChecker;
+import pro.javacard.sdk.ClassShrinker;
 import pro.javacard.sdk.JavaCardSDK;
 import pro.javacard.sdk.OffCardVerifier;
+import pro.javacard.sdk.PersistentWriteChecker;
 import pro.javacard.sdk.SDKVersion;
 import pro.javacard.sdk.VerifierError;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static pro.javacard.sdk.SDKVersion.*;
 
@@ -50,6 +58,7 @@ public class JCCap extends Task {
     private final String master_jckit_path;
     private JavaCardSDK jckit = null;
     private String classes_path = null;
+    private boolean temporary_classes = false;
     private String sources_path = null;
     private String sources2_path = null;
     private String includes = null;
@@ -59,6 +68,9 @@ public class JCCap extends Task {
     private String package_version = null;
     private Vector<JCApplet> raw_applets = new Vector<>();
     private Vector<JCImport> raw_imports = new Vector<>();
+    private JCBudget budget = null;
+    private JCHistory history = null;
+    private String raw_output_cap = null;
     private String output_cap = null;
     private String output_exp = null;
     private String output_jar = null;
@@ -72,18 +84,94 @@ public class JCCap extends Task {
     private boolean strip = false;
     private boolean ints = false;
     private boolean exportmap = false;
+    private String precheck = null;
+    private String persistentwrites = null;
+    private boolean shrink = false;
+    private String shrunk_path = null;
+    private int shrunk_code = 0;
+    private boolean optimize = false;
+    private BuildMetrics metrics = null;
+    private String metrics_path = null;
+    private String metrics_property = null;
+    private String report = null;
+    private Timeline timeline = null;
+    private Timeline.Track track = null;
+    private Map<Path, JavaCardSDK> sdks = null;
 
 
     public JCCap(String master_jckit_path) {
         this.master_jckit_path = master_jckit_path;
     }
 
+    // Track of the build in the timeline of <javacard>
+    void setTimeline(Timeline timeline, Timeline.Track track) {
+        this.timeline = timeline;
+        this.track = track;
+    }
+
+    // For repeated builds: javac runs in this JVM and detected SDKs are shared, so that their classes stay loaded
+    void warm(Map<Path, JavaCardSDK> sdks) {
+        this.sdks = sdks;
+    }
+
+    BuildMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Package name, once known, for messages
+    String getPackageName() {
+        return package_name == null ? "cap" : package_name;
+    }
+
+    // Files and directories the build depends on, once it has run
+    List<Path> inputs() {
+        List<Path> r = new ArrayList<>();
+        if (sources_path != null) {
+            for (String path : sources_path.split(Pattern.quote(File.pathSeparator)))
+                r.add(getProject().resolveFile(path).toPath());
+            if (sources2_path != null)
+                r.add(getProject().resolveFile(sources2_path).toPath());
+        } else if (classes_path != null) {
+            r.add(getProject().resolveFile(classes_path).toPath());
+        }
+        for (JCImport i : raw_imports) {
+            if (i.jar != null)
+                r.add(getProject().resolveFile(i.jar).toPath());
+            if (i.exps != null)
+                r.add(getProject().resolveFile(i.exps).toPath());
+        }
+        // Jars and export files of SDK-s, not all of their folders
+        for (JavaCardSDK sdk : Arrays.asList(jckit, targetsdk)) {
+            if (sdk != null) {
+                r.addAll(sdk.getApiJars());
+                r.addAll(sdk.getToolJars());
+                r.addAll(sdk.getCompilerJars());
+                r.add(sdk.getExportDir());
+            }
+        }
+        return r.stream().map(p -> p.toAbsolutePath().normalize()).distinct().collect(Collectors.toList());
+    }
+
+    // Files and directories the build writes, changes of them do not need a new build
+    List<Path> outputs() {
+        List<Path> r = new ArrayList<>();
+        if (sources_path != null && classes_path != null && !temporary_classes)
+            r.add(getProject().resolveFile(classes_path).toPath());
+        for (String path : Arrays.asList(output_cap, output_exp, output_jar, output_jca, report, metrics_path)) {
+            if (path != null)
+                r.add(getProject().resolveFile(path).toPath());
+        }
+        if (history != null && history.file != null)
+            r.add(getProject().resolveFile(history.file).toPath());
+        return r.stream().map(p -> p.toAbsolutePath().normalize()).collect(Collectors.toList());
+    }
+
     public void setJCKit(String msg) {
         jckit_path = msg;
     }
 
     public void setOutput(String msg) {
-        output_cap = msg;
+        raw_output_cap = msg;
     }
 
     public void setExport(String msg) {
@@ -146,6 +234,38 @@ public class JCCap extends Task {
         exportmap = arg;
     }
 
+    public void setPrecheck(String arg) {
+        if (!arg.equals("warn") && !arg.equals("fail"))
+            throw new BuildException("precheck must be \"warn\" or \"fail\": " + arg);
+        precheck = arg;
+    }
+
+    public void setShrink(boolean arg) {
+        shrink = arg;
+    }
+
+    public void setOptimize(boolean arg) {
+        optimize = arg;
+    }
+
+    public void setPersistentwrites(String arg) {
+        if (!arg.equals("warn") && !arg.equals("fail"))
+            throw new BuildException("persistentwrites must be \"warn\" or \"fail\": " + arg);
+        persistentwrites = arg;
+    }
+
+    public void setReport(String arg) {
+        report = arg;
+    }
+
+    public void setMetrics(String arg) {
+        metrics_path = arg;
+    }
+
+    public void setMetricsproperty(String arg) {
+        metrics_property = arg;
+    }
+
     public void setTargetsdk(String arg) {
         raw_targetsdk = arg;
     }
@@ -175,29 +295,51 @@ public class JCCap extends Task {
         return imp;
     }
 
+    // Size limits of the CAP file
+    public JCBudget createBudget() {
+        if (budget != null)
+            throw new HelpingBuildException("Only one budget per cap is allowed");
+        budget = new JCBudget();
+        return budget;
+    }
+
+    // Size history of the CAP file
+    public JCHistory createHistory() {
+        if (history != null)
+            throw new HelpingBuildException("Only one history per cap is allowed");
+        history = new JCHistory();
+        return history;
+    }
+
     // To support usage from Gradle, where import is a reserved name
     public JCImport createJimport() {
         return this.createImport();
     }
 
+    private Optional<JavaCardSDK> detectSDK(Path path) {
+        if (sdks == null)
+            return JavaCardSDK.detectSDK(path);
+        return Optional.ofNullable(sdks.computeIfAbsent(path.toAbsolutePath().normalize(), p -> JavaCardSDK.detectSDK(p).map(JavaCardSDK::warm).orElse(null)));
+    }
+
     private Optional<JavaCardSDK> findSDK() {
         // try local configuration first
         if (jckit_path != null) {
-            return JavaCardSDK.detectSDK(getProject().resolveFile(jckit_path).toPath());
+            return detectSDK(getProject().resolveFile(jckit_path).toPath());
         }
         // then try the master configuration
         if (master_jckit_path != null) {
-            return JavaCardSDK.detectSDK(getProject().resolveFile(master_jckit_path).toPath());
+            return detectSDK(getProject().resolveFile(master_jckit_path).toPath());
         }
         // now check via ant property
         String propPath = getProject().getProperty("jc.home");
         if (propPath != null) {
-            return JavaCardSDK.detectSDK(getProject().resolveFile(propPath).toPath());
+            return detectSDK(getProject().resolveFile(propPath).toPath());
         }
         // finally via the environment
         String envPath = System.getenv("JC_HOME");
         if (envPath != null) {
-            return JavaCardSDK.detectSDK(getProject().resolveFile(envPath).toPath());
+            return detectSDK(getProject().resolveFile(envPath).toPath());
         }
         // return null if no options
         return Optional.empty();
@@ -205,7 +347,9 @@ public class JCCap extends Task {
 
     // Check that arguments are sufficient and do some DWIM
     private void check() {
+        phase("sdk");
         jckit = findSDK().orElseThrow(() -> new HelpingBuildException("No usable JavaCard SDK referenced"));
+        targetsdk = null;
 
         log("INFO: using JavaCard " + jckit.getVersion() + " SDK in " + jckit.getRoot() + " with JDK " + Misc.getCurrentJDKVersion(), Project.MSG_INFO);
 
@@ -220,7 +364,7 @@ public class JCCap extends Task {
                     throw new HelpingBuildException("Can not target JavaCard " + target + " with JavaCard kit " + jckit.getVersion());
                 }
             } else {
-                targetsdk = JavaCardSDK.detectSDK(getProject().resolveFile(raw_targetsdk).toPath()).orElseThrow(() -> new HelpingBuildException("Invalid targetsdk: " + raw_targetsdk));
+                targetsdk = detectSDK(getProject().resolveFile(raw_targetsdk).toPath()).orElseThrow(() -> new HelpingBuildException("Invalid targetsdk: " + raw_targetsdk));
                 if (jckit.getVersion() == V310 && !targetsdk.getVersion().isOneOf(V304, V305, V310)) {
                     throw new HelpingBuildException("targetsdk " + targetsdk.getVersion() + " is not compatible with jckit " + jckit.getVersion());
                 }
@@ -232,6 +376,7 @@ public class JCCap extends Task {
         } else {
             log("INFO: targeting JavaCard " + targetsdk.getVersion() + " SDK in " + targetsdk.getRoot(), Project.MSG_INFO);
         }
+        phase("setup");
 
         // Warn about deprecation in future
         if (sources_path != null && sources2_path != null) {
@@ -251,6 +396,11 @@ public class JCCap extends Task {
             throw new HelpingBuildException("Must specify sources or classes");
         }
 
+        // Rewritten bytecode is only published after the off-card verifier has accepted it
+        if (optimize && !verify) {
+            throw new HelpingBuildException("optimize=\"true\" needs verify=\"true\"");
+        }
+
         // Check package version
         if (package_version == null) {
             package_version = "0.0";
@@ -347,9 +497,7 @@ public class JCCap extends Task {
             output_jar = new File(output_exp, ln + ".jar").toString();
         }
         // Default output name
-        if (output_cap == null) {
-            output_cap = DEFAULT_CAP_NAME_TEMPLATE;
-        }
+        output_cap = raw_output_cap == null ? DEFAULT_CAP_NAME_TEMPLATE : raw_output_cap;
     }
 
     // To lessen the java.nio and apache.ant namespace clash...
@@ -361,10 +509,19 @@ public class JCCap extends Task {
 
     private void compile() {
         Project project = getProject();
-        setTaskName("compile");
-
-        // construct javac task
-        Javac j = new Javac();
+        phase("compile");
+
+        // construct javac task, that forks only if there is something to compile
+        Javac j = new Javac() {
+            @Override
+            protected void compile() {
+                if (getFileList().length > 0) {
+                    fork("javac", super::compile);
+                } else {
+                    super.compile();
+                }
+            }
+        };
         j.setProject(project);
         // See https://github.com/martinpaljak/ant-javacard/pull/96
         j.setEncoding("utf-8");
@@ -412,9 +569,12 @@ public class JCCap extends Task {
             // else generate temporary folder
             tmp = Misc.makeTemp("classes");
             classes_path = tmp.toAbsolutePath().toString();
+            temporary_classes = true;
         }
 
         j.setDestdir(tmp.toFile());
+        // Classes written from now on, at file time resolution of a second
+        long since = System.currentTimeMillis() / 1000 * 1000;
         // See "Setting Java Compiler Options" in User Guide
         j.setDebug(true);
         j.setDebugLevel("lines,vars,source");
@@ -455,7 +615,7 @@ public class JCCap extends Task {
         }
 
         j.setFailonerror(true);
-        j.setFork(true);
+        j.setFork(sdks == null);
         j.setListfiles(true);
 
         // set classpath
@@ -471,6 +631,98 @@ public class JCCap extends Task {
             }
         }
         j.execute();
+        // Javac compiles only sources newer than their classes
+        metrics.cache("compile", j.getFileList().length == 0);
+        metrics.read(j.getFileList());
+        metrics.wroteSince(tmp, since);
+    }
+
+    // Classes given to the converter: shrunk copy, if shrinking
+    private Path conversionClasses() {
+        return shrunk_path != null ? Paths.get(shrunk_path) : getProject().resolveFile(classes_path).toPath();
+    }
+
+    // Remove what is not reachable from applets or the exported API
+    private void shrink() {
+        phase("shrink");
+        try {
+            List<String> applets = raw_applets.stream().map(a -> a.klass).collect(Collectors.toList());
+            ClassShrinker shrinker = ClassShrinker.shrink(getProject().resolveFile(classes_path).toPath(), package_name, applets, output_exp != null);
+            Path out = Misc.makeTemp("shrunk");
+            shrinker.write(out);
+            metrics.read(getProject().resolveFile(classes_path).toPath());
+            metrics.wrote(out);
+            for (String removed : shrinker.getRemoved()) {
+                log("Removed " + removed.replace('/', '.'), Project.MSG_VERBOSE);
+            }
+            log(String.format("Removed %d unused classes, methods and fields: %d bytes of class files, about %d bytes of CAP code",
+                    shrinker.getRemoved().size(), shrinker.getSavedBytes(), shrinker.getRemovedCodeSize()), Project.MSG_INFO);
+            shrunk_path = out.toString();
+            shrunk_code = shrinker.getRemovedCodeSize();
+        } catch (IOException e) {
+            throw new BuildException("Could not shrink " + package_name + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Peephole optimization of the converted CAP file, in place
+    private void optimize(Path cap) {
+        phase("optimize");
+        try {
+            CAPOptimizer.Result result = CAPOptimizer.optimize(CAPFile.fromBytes(Files.readAllBytes(cap)));
+            result.summary().forEach(l -> log(l, Project.MSG_INFO));
+            Files.write(cap, result.getBytes());
+            metrics.read(cap);
+            metrics.wrote(cap);
+        } catch (IllegalArgumentException e) {
+            log("Not optimizing: " + e.getMessage(), Project.MSG_WARN);
+        } catch (IOException e) {
+            throw new BuildException("Could not optimize " + cap + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Check class files for things the converter would reject, before running the converter
+    private void precheck() {
+        phase("check");
+        ClassFileChecker checker = new ClassFileChecker(jckit.getVersion(), targetsdk.getVersion(), ints);
+        final List<String> problems;
+        try {
+            problems = checker.check(conversionClasses(), package_name);
+            metrics.read(conversionClasses().resolve(package_name.replace(".", File.separator)));
+        } catch (IOException e) {
+            log("WARN: could not check class files: " + e.getMessage(), Project.MSG_WARN);
+            return;
+        }
+        int level = precheck.equals("fail") ? Project.MSG_ERR : Project.MSG_WARN;
+        for (String problem : problems) {
+            log(problem, level);
+        }
+        if (!problems.isEmpty() && precheck.equals("fail")) {
+            throw new BuildException("Class files of " + package_name + " are not compatible with JavaCard " + targetsdk.getVersion() + " (" + problems.size() + " problem" + (problems.size() > 1 ? "s" : "") + ")");
+        }
+    }
+
+    // Find writes to persistent memory reachable from process() of applets
+    private void checkPersistentWrites() {
+        phase("writes");
+        final PersistentWriteChecker checker;
+        try {
+            List<String> applets = raw_applets.stream().map(a -> a.klass).collect(Collectors.toList());
+            checker = PersistentWriteChecker.check(conversionClasses(), package_name, applets);
+        } catch (IOException e) {
+            log("WARN: could not check persistent writes: " + e.getMessage(), Project.MSG_WARN);
+            return;
+        }
+        List<PersistentWriteChecker.Write> writes = checker.getWrites();
+        int level = persistentwrites.equals("fail") ? Project.MSG_ERR : Project.MSG_WARN;
+        for (PersistentWriteChecker.Write write : writes) {
+            log(write.toString(), level);
+        }
+        for (String line : checker.summary()) {
+            log("Persistent writes per APDU: " + line, writes.isEmpty() ? Project.MSG_VERBOSE : Project.MSG_INFO);
+        }
+        if (!writes.isEmpty() && persistentwrites.equals("fail")) {
+            throw new BuildException(package_name + " writes to persistent memory when processing APDUs (" + writes.size() + " place" + (writes.size() > 1 ? "s" : "") + ")");
+        }
     }
 
     private void addKitClasses(Java j) {
@@ -483,7 +735,7 @@ public class JCCap extends Task {
     }
 
     private void convert(Path applet_folder, List<Path> exps) {
-        setTaskName("convert");
+        phase("convert");
         // construct java task
         Java j = new Java(this);
         j.setTaskName("convert");
@@ -509,7 +761,7 @@ public class JCCap extends Task {
         j.createArg().setLine("-d '" + applet_folder + "'");
 
         // classes for conversion
-        j.createArg().setLine("-classdir '" + classes_path + "'");
+        j.createArg().setLine("-classdir '" + conversionClasses() + "'");
 
         // construct export path
         StringJoiner expstringbuilder = new StringJoiner(File.pathSeparator);
@@ -570,22 +822,70 @@ public class JCCap extends Task {
         log("command: " + j.getCommandLine(), Project.MSG_VERBOSE);
 
         // execute the converter
-        j.execute();
+        fork("converter", j::execute);
+        metrics.read(conversionClasses().resolve(package_name.replace(".", File.separator)));
+        metrics.wrote(applet_folder);
+    }
+
+    // Runs a forked javac or converter, as a span of the timeline
+    private void fork(String name, Runnable process) {
+        if (track != null) {
+            track.fork(name, process);
+        } else {
+            process.run();
+        }
+    }
+
+    // Names the task in log output and starts timing the phase
+    private void phase(String name) {
+        setTaskName(name);
+        if (metrics != null) {
+            metrics.start(name);
+        }
     }
 
     @Override
     public void execute() {
         Project project = getProject();
 
-        // perform checks
-        check();
+        boolean collecting = BuildMetrics.collecting(project);
+        metrics = new BuildMetrics(collecting || metrics_path != null || metrics_property != null || track != null || Trace.recording());
+        metrics.timeline(timeline, track);
+        // Temporary classes of a previous build are gone
+        if (temporary_classes) {
+            classes_path = null;
+            temporary_classes = false;
+        }
+        shrunk_path = null;
+        metrics.start("setup");
+        if (metrics.isDetailed()) {
+            metrics.sampleForks();
+        }
 
+        boolean success = false;
         try {
+            // perform checks
+            check();
+            metrics.describe(package_name, package_aid == null ? null : Misc.encodeHexString(package_aid), jckit.getVersion().toString());
+
             // Compile first if necessary
             if (sources_path != null) {
                 compile();
             }
 
+            // Remove unused code before checks and conversion
+            if (shrink) {
+                shrink();
+            }
+
+            // Fail fast, before the converter
+            if (precheck != null) {
+                precheck();
+            }
+            if (persistentwrites != null) {
+                checkPersistentWrites();
+            }
+
             // Create temporary folder and add to cleanup
             Path applet_folder = Misc.makeTemp("applet");
 
@@ -593,6 +893,9 @@ public class JCCap extends Task {
             ArrayList<Path> exps = new ArrayList<>();
 
             // add imports
+            if (raw_imports.stream().anyMatch(i -> i.exps == null)) {
+                phase("imports");
+            }
             for (JCImport imp : raw_imports) {
                 // Support import clauses with only jar or exp values
                 final Path f;
@@ -603,6 +906,8 @@ public class JCCap extends Task {
                         // Assume exp files in jar
                         f = Misc.makeTemp("imports");
                         OffCardVerifier.extractExps(project.resolveFile(imp.jar).toPath(), f);
+                        metrics.read(project.resolveFile(imp.jar).toPath());
+                        metrics.wrote(f);
                     } catch (IOException e) {
                         throw new BuildException("Can not extract EXP files from JAR", e);
                     }
@@ -631,22 +936,29 @@ public class JCCap extends Task {
             Path exp = jcsrc.resolve(ln + ".exp");
             Path jca = jcsrc.resolve(ln + ".jca");
 
+            // Optimize before verification, so that the verifier checks the result (verify is required with optimize)
+            if (optimize && Files.exists(cap)) {
+                optimize(cap);
+            }
+
             // Verify
             if (verify) {
-                setTaskName("verify");
+                phase("verify");
                 OffCardVerifier verifier = OffCardVerifier.withSDK(jckit);
                 // Add current export file
                 exps.add(exp);
                 exps.add(targetsdk.getExportDir());
                 try {
                     verifier.verify(cap, exps);
+                    metrics.read(exps.toArray(new Path[0]));
+                    metrics.read(cap);
                     log("Verification passed", Project.MSG_INFO);
                 } catch (VerifierError | IOException e) {
                     throw new BuildException("Verification failed: " + e.getMessage());
                 }
             }
 
-            setTaskName("cap");
+            phase("cap");
             // Copy resources to final destination
             try {
                 // check that a CAP file got created
@@ -656,6 +968,7 @@ public class JCCap extends Task {
 
                 // copy CAP file
                 CAPFile capfile = CAPFile.fromBytes(Files.readAllBytes(cap));
+                metrics.read(cap);
 
                 // Create output name, if not given.
                 output_cap = capFileName(capfile, output_cap);
@@ -663,19 +976,48 @@ public class JCCap extends Task {
                 // resolve output path
                 Path outCap = project.resolveFile(output_cap).toPath();
 
+                // check size limits before publishing
+                if (budget != null) {
+                    checkBudget(capfile);
+                }
+
                 // strip classes, if asked
                 if (strip) {
+                    phase("strip");
+                    metrics.read(cap);
                     CAPFile.strip(cap);
+                    metrics.wrote(cap);
+                    phase("cap");
                 }
 
                 // perform the copy
                 Files.copy(cap, outCap, StandardCopyOption.REPLACE_EXISTING);
+                metrics.wrote(outCap);
                 // report destination
                 log("CAP saved to " + outCap, Project.MSG_INFO);
+                if (shrink) {
+                    log(String.format("Load file is %d bytes, about %d bytes less because of shrinking", capfile.getCode().length, shrunk_code), Project.MSG_INFO);
+                }
+
+                // Load cost report
+                if (report != null) {
+                    phase("report");
+                    LoadProfile profile = LoadProfile.of(capfile);
+                    LoadReport.summary(profile).forEach(l -> log(l, Project.MSG_INFO));
+                    Path outReport = project.resolveFile(report).toPath();
+                    Files.write(outReport, JSON.toPrettyJSON(LoadReport.toMap(profile)).getBytes(StandardCharsets.UTF_8));
+                    metrics.wrote(outReport);
+                    log("Report saved to " + outReport, Project.MSG_INFO);
+                }
+
+                // Size history
+                if (history != null) {
+                    updateHistory(capfile);
+                }
 
                 // copy EXP file
                 if (output_exp != null) {
-                    setTaskName("exp");
+                    phase("exp");
                     // check that an EXP file got created
                     if (!Files.exists(exp)) {
                         throw new BuildException("Can not find EXP in " + jcsrc);
@@ -693,6 +1035,8 @@ public class JCCap extends Task {
                     Path exp_file = outExpPkgJc.resolve(exp.getFileName());
 
                     Files.copy(exp, exp_file, StandardCopyOption.REPLACE_EXISTING);
+                    metrics.read(exp);
+                    metrics.wrote(exp_file);
                     // report destination
                     log("EXP saved to " + exp_file, Project.MSG_INFO);
                     // add the export directory to the export path for verification
@@ -701,7 +1045,7 @@ public class JCCap extends Task {
 
                 // copy JCA file
                 if (output_jca != null) {
-                    setTaskName("jca");
+                    phase("jca");
                     // check that a JCA file got created
                     if (!Files.exists(jca)) {
                         throw new BuildException("Can not find JCA in " + jcsrc);
@@ -709,12 +1053,14 @@ public class JCCap extends Task {
                     // resolve output path
                     outCap = project.resolveFile(output_jca).toPath();
                     Files.copy(jca, outCap, StandardCopyOption.REPLACE_EXISTING);
+                    metrics.read(jca);
+                    metrics.wrote(outCap);
                     log("JCA saved to " + outCap.toAbsolutePath(), Project.MSG_INFO);
                 }
 
                 // create JAR file
                 if (output_jar != null) {
-                    setTaskName("jar");
+                    phase("jar");
                     File outJar = project.resolveFile(output_jar);
                     // create a new JAR task
                     Jar jarz = new Jar();
@@ -731,15 +1077,98 @@ public class JCCap extends Task {
                     jarz.add(jarout);
                     // create the JAR
                     jarz.execute();
+                    metrics.read(project.resolveFile(classes_path).toPath(), applet_folder);
+                    metrics.wrote(outJar.toPath());
                     log("JAR saved to " + outJar.getAbsolutePath(), Project.MSG_INFO);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
                 throw new BuildException("Can not copy output CAP, EXP or JCA", e);
             }
+            success = true;
         } finally {
+            String last = metrics.getLastPhase();
             Misc.cleanTemp();
+            metrics.finish();
+            BuildMetrics.publish(project, package_name, metrics);
+            publishMetrics(success, last);
+        }
+    }
+
+    // JSON report and Ant properties of metrics, also for failed builds
+    private void publishMetrics(boolean success, String last) {
+        if (metrics_path == null && metrics_property == null)
+            return;
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("package_name", package_name);
+        r.put("package_aid", package_aid == null ? null : Misc.encodeHexString(package_aid));
+        r.put("output", success ? getProject().resolveFile(output_cap).toString() : null);
+        r.put("jckit", jckit == null ? null : jckit.getVersion().toString());
+        r.put("target", targetsdk == null ? null : targetsdk.getVersion().toString());
+        r.put("jdk", Misc.getCurrentJDKVersion());
+        r.put("success", success);
+        if (!success)
+            r.put("failed_phase", last);
+        r.putAll(metrics.toMap());
+        if (metrics_path != null) {
+            Path out = getProject().resolveFile(metrics_path).toPath();
+            try {
+                Files.write(out, JSON.toPrettyJSON(r).getBytes(StandardCharsets.UTF_8));
+                log("Metrics saved to " + out, Project.MSG_VERBOSE);
+            } catch (IOException e) {
+                // Do not hide the failure of the build
+                log("WARN: could not save metrics to " + out + ": " + e.getMessage(), Project.MSG_WARN);
+            }
+        }
+        if (metrics_property != null) {
+            getProject().setNewProperty(metrics_property + ".success", String.valueOf(success));
+            metrics.toProperties(metrics_property).forEach((k, v) -> getProject().setNewProperty(k, v));
+        }
+    }
+
+    private void checkBudget(CAPFile cap) {
+        phase("budget");
+        List<String> over = new ArrayList<>();
+        for (String line : budget.check(LoadProfile.of(cap))) {
+            if (line.startsWith("!")) {
+                over.add(line.substring(1));
+                log(line.substring(1), budget.fail ? Project.MSG_ERR : Project.MSG_WARN);
+            } else {
+                log(line, Project.MSG_VERBOSE);
+            }
+        }
+        if (!over.isEmpty()) {
+            String msg = String.format("%s exceeds %d of its size budgets", package_name, over.size());
+            if (budget.fail)
+                throw new BuildException(msg);
+            log("WARN: " + msg, Project.MSG_WARN);
+        } else {
+            log("Size budget met", Project.MSG_INFO);
+        }
+        phase("cap");
+    }
+
+    private void updateHistory(CAPFile cap) throws IOException {
+        phase("history");
+        if (history.file == null)
+            throw new HelpingBuildException("history needs a file");
+        Path file = getProject().resolveFile(history.file).toPath();
+        SizeHistory.Record current = SizeHistory.of(cap, Misc.gitRevision(getProject().getBaseDir().toPath()).orElse(null));
+        List<SizeHistory.Record> previous = SizeHistory.last(file, current.aid, history.compare);
+        List<String> grown = new ArrayList<>();
+        for (String line : SizeHistory.compare(current, previous, history.threshold)) {
+            if (line.startsWith("!")) {
+                grown.add(line.substring(1));
+                log(line.substring(1), history.fail ? Project.MSG_ERR : Project.MSG_WARN);
+            } else {
+                log(line, Project.MSG_VERBOSE);
+            }
         }
+        if (!grown.isEmpty() && history.fail)
+            throw new BuildException(String.format("%s grew more than %s%% in %d sizes", package_name, history.threshold, grown.size()));
+        SizeHistory.append(file, current);
+        log(String.format("Size history updated in %s (%d sizes grew more than %s%%)", file, grown.size(), history.threshold), Project.MSG_INFO);
+        phase("cap");
     }
 
     private String capFileName(CAPFile cap, String template) {
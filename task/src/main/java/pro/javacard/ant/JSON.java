@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Minimal JSON serialization of maps, collections, strings, numbers and booleans, for machine readable reports.
+// Parsing gives back LinkedHashMap, ArrayList, String, Long or Double, Boolean and null.
+final class JSON {
+
+    private JSON() {
+    }
+
+    static String toJSON(Object o) {
+        StringBuilder sb = new StringBuilder();
+        write(sb, o, -1);
+        return sb.toString();
+    }
+
+    static String toPrettyJSON(Object o) {
+        StringBuilder sb = new StringBuilder();
+        write(sb, o, 0);
+        return sb.append('\n').toString();
+    }
+
+    // indent < 0 means compact, single line output
+    private static void write(StringBuilder sb, Object o, int indent) {
+        if (o == null) {
+            sb.append("null");
+        } else if (o instanceof String) {
+            quote(sb, (String) o);
+        } else if (o instanceof Number || o instanceof Boolean) {
+            sb.append(o);
+        } else if (o instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) o;
+            sb.append('{');
+            Iterator<? extends Map.Entry<?, ?>> it = m.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<?, ?> e = it.next();
+                newline(sb, indent, 1);
+                quote(sb, String.valueOf(e.getKey()));
+                sb.append(indent < 0 ? ":" : ": ");
+                write(sb, e.getValue(), indent < 0 ? indent : indent + 1);
+                if (it.hasNext())
+                    sb.append(',');
+            }
+            if (!m.isEmpty())
+                newline(sb, indent, 0);
+            sb.append('}');
+        } else if (o instanceof Collection) {
+            Collection<?> c = (Collection<?>) o;
+            sb.append('[');
+            Iterator<?> it = c.iterator();
+            while (it.hasNext()) {
+                newline(sb, indent, 1);
+                write(sb, it.next(), indent < 0 ? indent : indent + 1);
+                if (it.hasNext())
+                    sb.append(',');
+            }
+            if (!c.isEmpty())
+                newline(sb, indent, 0);
+            sb.append(']');
+        } else {
+            quote(sb, o.toString());
+        }
+    }
+
+    private static void newline(StringBuilder sb, int indent, int extra) {
+        if (indent < 0)
+            return;
+        sb.append('\n');
+        for (int i = 0; i < indent + extra; i++)
+            sb.append("  ");
+    }
+
+    static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    static Object parse(String json) {
+        int[] pos = {0};
+        Object o = value(json, pos);
+        if (skip(json, pos) < json.length())
+            throw new IllegalArgumentException("Trailing data at " + pos[0]);
+        return o;
+    }
+
+    private static int skip(String s, int[] pos) {
+        while (pos[0] < s.length() && Character.isWhitespace(s.charAt(pos[0])))
+            pos[0]++;
+        return pos[0];
+    }
+
+    private static void expect(String s, int[] pos, char c) {
+        if (skip(s, pos) >= s.length() || s.charAt(pos[0]) != c)
+            throw new IllegalArgumentException(String.format("Expected '%c' at %d", c, pos[0]));
+        pos[0]++;
+    }
+
+    private static Object value(String s, int[] pos) {
+        if (skip(s, pos) >= s.length())
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        char c = s.charAt(pos[0]);
+        if (c == '{') {
+            Map<String, Object> m = new LinkedHashMap<>();
+            pos[0]++;
+            if (skip(s, pos) < s.length() && s.charAt(pos[0]) == '}') {
+                pos[0]++;
+                return m;
+            }
+            do {
+                skip(s, pos);
+                String key = string(s, pos);
+                expect(s, pos, ':');
+                m.put(key, value(s, pos));
+            } while (next(s, pos, '}'));
+            return m;
+        } else if (c == '[') {
+            List<Object> l = new ArrayList<>();
+            pos[0]++;
+            if (skip(s, pos) < s.length() && s.charAt(pos[0]) == ']') {
+                pos[0]++;
+                return l;
+            }
+            do {
+                l.add(value(s, pos));
+            } while (next(s, pos, ']'));
+            return l;
+        } else if (c == '"') {
+            return string(s, pos);
+        } else if (s.startsWith("true", pos[0])) {
+            pos[0] += 4;
+            return Boolean.TRUE;
+        } else if (s.startsWith("false", pos[0])) {
+            pos[0] += 5;
+            return Boolean.FALSE;
+        } else if (s.startsWith("null", pos[0])) {
+            pos[0] += 4;
+            return null;
+        }
+        int start = pos[0];
+        while (pos[0] < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos[0])) >= 0)
+            pos[0]++;
+        String n = s.substring(start, pos[0]);
+        try {
+            if (n.indexOf('.') >= 0 || n.indexOf('e') >= 0 || n.indexOf('E') >= 0)
+                return Double.parseDouble(n);
+            return Long.parseLong(n);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value at " + start);
+        }
+    }
+
+    // Consumes a ',' and returns true, or the closing character and returns false
+    private static boolean next(String s, int[] pos, char close) {
+        if (skip(s, pos) < s.length()) {
+            char c = s.charAt(pos[0]++);
+            if (c == ',')
+                return true;
+            if (c == close)
+                return false;
+        }
+        throw new IllegalArgumentException(String.format("Expected ',' or '%c' at %d", close, pos[0]));
+    }
+
+    private static String string(String s, int[] pos) {
+        expect(s, pos, '"');
+        StringBuilder sb = new StringBuilder();
+        while (pos[0] < s.length()) {
+            char c = s.charAt(pos[0]++);
+            if (c == '"')
+                return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos[0] >= s.length())
+                break;
+            char e = s.charAt(pos[0]++);
+            switch (e) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    if (pos[0] + 4 > s.length())
+                        throw new IllegalArgumentException("Invalid escape at " + pos[0]);
+                    sb.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default:
+                    sb.append(e);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+}
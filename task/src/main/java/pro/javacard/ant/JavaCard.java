@@ -21,22 +21,52 @@
  */
 package pro.javacard.ant;
 
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
+import pro.javacard.sdk.JavaCardSDK;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.stream.Collectors;
 
 // <javacard jckit="${env.JCKIT}">...</javacard>
 // This is a wrapper task that can contain one or more <cap> subtasks for building capfiles.
 public final class JavaCard extends Task {
+    // Project properties that turn on watching for any <javacard>, used by "watch" of the command line utility
+    static final String WATCH = "javacard.watch";
+    static final String DEBOUNCE = "javacard.debounce";
+    // Project reference with a Map<Path, JavaCardSDK> of detected SDK-s, for keeping them between builds, see Daemon
+    static final String SDKS = "ant-javacard.sdks";
 
     private String master_jckit_path = null;
     private Vector<JCCap> packages = new Vector<>();
+    private String trace_path = null;
+    private Boolean watch = null;
+    private Integer debounce = null;
 
     public void setJCKit(String msg) {
         master_jckit_path = msg;
     }
 
+    public void setWatch(boolean arg) {
+        watch = arg;
+    }
+
+    public void setDebounce(int arg) {
+        debounce = arg;
+    }
+
+    public void setTrace(String msg) {
+        trace_path = msg;
+    }
+
     public JCCap createCap() {
         JCCap pkg = new JCCap(master_jckit_path);
         packages.add(pkg);
@@ -44,19 +74,101 @@ public final class JavaCard extends Task {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public void execute() {
+        Object sdks = getProject().getReference(SDKS);
+        if (sdks instanceof Map) {
+            packages.forEach(p -> p.warm((Map<Path, JavaCardSDK>) sdks));
+        }
         Thread cleanup = new Thread(() -> {
             log("Ctrl-C, cleaning up", Project.MSG_INFO);
             Misc.cleanTemp();
         });
         Runtime.getRuntime().addShutdownHook(cleanup);
+        Timeline timeline = trace_path == null ? null : new Timeline();
         try {
-            for (JCCap p : packages) {
-                p.execute();
+            if (watch == null ? Project.toBoolean(getProject().getProperty(WATCH)) : watch) {
+                watch(timeline);
+            } else {
+                for (JCCap p : packages) {
+                    build(p, timeline);
+                }
             }
         } finally {
             Runtime.getRuntime().removeShutdownHook(cleanup);
+            if (timeline != null) {
+                writeTrace(timeline);
+            }
+        }
+    }
+
+    private void build(JCCap p, Timeline timeline) {
+        if (timeline != null) {
+            // Named after the package, once known
+            p.setTimeline(timeline, timeline.track("cap"));
+        }
+        p.execute();
+    }
+
+    // Builds all caps, then again those with changed sources, imports or SDK, until interrupted. Failed builds are
+    // reported and the next change is waited for.
+    private void watch(Timeline timeline) {
+        String quiet = getProject().getProperty(DEBOUNCE);
+        long delay = debounce != null ? debounce : quiet != null ? Long.parseLong(quiet) : 200;
+        Map<Path, JavaCardSDK> sdks = new HashMap<>();
+        packages.forEach(p -> p.warm(sdks));
+        try (Watcher watcher = new Watcher()) {
+            List<JCCap> changed = new ArrayList<>(packages);
+            while (true) {
+                for (JCCap p : changed) {
+                    try {
+                        build(p, timeline);
+                    } catch (BuildException e) {
+                        log("Build failed: " + e.getMessage(), Project.MSG_ERR);
+                    }
+                    if (p.getMetrics() != null) {
+                        log(p.getPackageName() + ": " + p.getMetrics().summary(), Project.MSG_INFO);
+                    }
+                }
+                if (timeline != null) {
+                    writeTrace(timeline);
+                }
+                for (JCCap p : packages) {
+                    for (Path input : p.inputs()) {
+                        watcher.watch(input);
+                    }
+                }
+                log("Watching for changes, Ctrl-C to stop", Project.MSG_INFO);
+                do {
+                    Set<Path> changes = watcher.changes(delay);
+                    changes.forEach(c -> log("Changed " + c, Project.MSG_VERBOSE));
+                    // SDK is detected again if anything in it changed
+                    sdks.keySet().removeIf(k -> changes.stream().anyMatch(c -> c.startsWith(k)));
+                    changed = packages.stream().filter(p -> affected(p, changes)).collect(Collectors.toList());
+                } while (changed.isEmpty());
+                log("Changed: " + changed.stream().map(JCCap::getPackageName).collect(Collectors.joining(", ")), Project.MSG_INFO);
+            }
+        } catch (IOException e) {
+            throw new BuildException("Can not watch for changes: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    private static boolean affected(JCCap p, Set<Path> changes) {
+        List<Path> inputs = p.inputs();
+        List<Path> outputs = p.outputs();
+        return changes.stream().anyMatch(c -> inputs.stream().anyMatch(c::startsWith) && outputs.stream().noneMatch(c::startsWith));
+    }
+
+    // Also written when a build fails
+    private void writeTrace(Timeline timeline) {
+        Path out = getProject().resolveFile(trace_path).toPath();
+        try {
+            timeline.write(out);
+            log("Trace saved to " + out, Project.MSG_INFO);
+        } catch (IOException e) {
+            log("WARN: could not save trace to " + out + ": " + e.getMessage(), Project.MSG_WARN);
+        }
+    }
 }
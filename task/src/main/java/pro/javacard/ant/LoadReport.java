@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.LoadProfile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// Load cost report of a CAP file, as JSON and as a human readable summary
+final class LoadReport {
+    static final int TOP = 10;
+
+    private LoadReport() {
+    }
+
+    static Map<String, Object> toMap(LoadProfile p) {
+        CAPFile cap = p.getCAP();
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("package_aid", cap.getPackageAID().toString());
+        r.put("package_name", cap.getPackageName());
+        r.put("package_version", cap.getPackageVersion());
+        r.put("sha256", Misc.encodeHexString(cap.getLoadFileDataHash("SHA-256")).toLowerCase());
+        r.put("components", p.getComponentSizes());
+        r.put("code_size", p.getCodeSize());
+        r.put("full_size", p.getFullSize());
+        Map<String, Integer> commands = new LinkedHashMap<>();
+        p.getLoadCommands().forEach((k, v) -> commands.put(String.valueOf(k), v));
+        r.put("load_commands", commands);
+        Map<String, Object> relocations = new LinkedHashMap<>();
+        relocations.put("byte", p.getByteRelocations());
+        relocations.put("short", p.getShortRelocations());
+        r.put("relocations", relocations);
+        Map<String, Object> statics = new LinkedHashMap<>();
+        statics.put("image_size", p.getStaticImageSize());
+        statics.put("array_init_count", p.getArrayInitCount());
+        statics.put("array_init_size", p.getArrayInitSize());
+        r.put("static_fields", statics);
+        r.put("classes", items(p.getClasses()));
+        r.put("methods", items(p.getMethods()));
+        return r;
+    }
+
+    private static List<Map<String, Object>> items(List<LoadProfile.Item> items) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (LoadProfile.Item i : items.subList(0, Math.min(TOP, items.size()))) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("name", i.getName());
+            m.put("size", i.getSize());
+            result.add(m);
+        }
+        return result;
+    }
+
+    static List<String> summary(LoadProfile p) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("Load file %d bytes (%d with Descriptor and Debug): %s", p.getCodeSize(), p.getFullSize(),
+                p.getComponentSizes().entrySet().stream().map(e -> e.getKey() + " " + e.getValue()).collect(Collectors.joining(", "))));
+        lines.add("LOAD commands: " + p.getLoadCommands().entrySet().stream().map(e -> e.getValue() + " of " + e.getKey()).collect(Collectors.joining(", ")) + " bytes");
+        lines.add(String.format("Relocations: %d byte and %d short; static field image %d bytes, %d array initializers of %d bytes",
+                p.getByteRelocations(), p.getShortRelocations(), p.getStaticImageSize(), p.getArrayInitCount(), p.getArrayInitSize()));
+        lines.add("Largest classes: " + top(p.getClasses(), 5));
+        lines.add("Largest methods: " + top(p.getMethods(), 5));
+        return lines;
+    }
+
+    private static String top(List<LoadProfile.Item> items, int n) {
+        return items.stream().limit(n).map(i -> i.getName() + " " + i.getSize()).collect(Collectors.joining(", "));
+    }
+}
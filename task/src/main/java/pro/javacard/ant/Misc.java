@@ -23,10 +23,13 @@ package pro.javacard.ant;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
 
 final class Misc {
 
@@ -122,6 +125,45 @@ final class Misc {
         return decodeHexString(s);
     }
 
+    // Short git revision of the repository containing dir, read from .git without running git
+    static Optional<String> gitRevision(Path dir) {
+        try {
+            for (Path d = dir.toAbsolutePath(); d != null; d = d.getParent()) {
+                Path git = d.resolve(".git");
+                if (Files.isRegularFile(git)) {
+                    // Worktree or submodule: "gitdir: path"
+                    String gitdir = new String(Files.readAllBytes(git), StandardCharsets.UTF_8).trim();
+                    if (!gitdir.startsWith("gitdir:"))
+                        return Optional.empty();
+                    git = d.resolve(gitdir.substring(7).trim());
+                } else if (!Files.isDirectory(git)) {
+                    continue;
+                }
+                String head = new String(Files.readAllBytes(git.resolve("HEAD")), StandardCharsets.UTF_8).trim();
+                if (!head.startsWith("ref:"))
+                    return Optional.of(head.substring(0, Math.min(12, head.length())));
+                String ref = head.substring(4).trim();
+                // Shared refs of a worktree are in the common directory
+                Path common = Files.isRegularFile(git.resolve("commondir")) ? git.resolve(new String(Files.readAllBytes(git.resolve("commondir")), StandardCharsets.UTF_8).trim()) : git;
+                for (Path g : Arrays.asList(git, common)) {
+                    if (Files.isRegularFile(g.resolve(ref)))
+                        return Optional.of(new String(Files.readAllBytes(g.resolve(ref)), StandardCharsets.UTF_8).trim().substring(0, 12));
+                }
+                Path packed = common.resolve("packed-refs");
+                if (Files.isRegularFile(packed)) {
+                    for (String line : Files.readAllLines(packed, StandardCharsets.UTF_8)) {
+                        if (line.endsWith(" " + ref))
+                            return Optional.of(line.substring(0, 12));
+                    }
+                }
+                return Optional.empty();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not fatal, history is recorded without revision
+        }
+        return Optional.empty();
+    }
+
     // foo.bar.Baz -> Baz; Foo -> Foo
     static String className(String fqdn) {
         String ln = fqdn;
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.LoadProfile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// Append-only size history of CAP files, one tab separated line per build.
+// Several packages can share one file, records are matched by package AID.
+final class SizeHistory {
+    static final String HEADER = "# time\trevision\tpackage\tversion\tsha256\tloadfile\tfull\tclasses\tmethods\tcomponents";
+
+    static final class Record {
+        String time;
+        String revision;
+        String aid;
+        String version;
+        String sha256;
+        final Map<String, Integer> sizes = new LinkedHashMap<>(); // loadfile, full, classes, methods and components
+
+        String toLine() {
+            String components = sizes.entrySet().stream().skip(4).map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining(","));
+            return String.join("\t", time, revision, aid, version, sha256, String.valueOf(sizes.get("loadfile")), String.valueOf(sizes.get("full")),
+                    String.valueOf(sizes.get("classes")), String.valueOf(sizes.get("methods")), components);
+        }
+
+        static Record fromLine(String line) {
+            String[] f = line.split("\t");
+            if (f.length != 10)
+                throw new IllegalArgumentException("Invalid history line: " + line);
+            Record r = new Record();
+            r.time = f[0];
+            r.revision = f[1];
+            r.aid = f[2];
+            r.version = f[3];
+            r.sha256 = f[4];
+            r.sizes.put("loadfile", Integer.parseInt(f[5]));
+            r.sizes.put("full", Integer.parseInt(f[6]));
+            r.sizes.put("classes", Integer.parseInt(f[7]));
+            r.sizes.put("methods", Integer.parseInt(f[8]));
+            for (String c : f[9].split(",")) {
+                String[] kv = c.split("=");
+                if (kv.length == 2)
+                    r.sizes.put(kv[0], Integer.parseInt(kv[1]));
+            }
+            return r;
+        }
+    }
+
+    private SizeHistory() {
+    }
+
+    static Record of(CAPFile cap, String revision) {
+        LoadProfile profile = LoadProfile.of(cap);
+        Record r = new Record();
+        r.time = Instant.now().toString();
+        r.revision = revision == null ? "-" : revision;
+        r.aid = cap.getPackageAID().toString();
+        r.version = cap.getPackageVersion();
+        r.sha256 = Misc.encodeHexString(cap.getLoadFileDataHash("SHA-256")).toLowerCase();
+        r.sizes.put("loadfile", profile.getCodeSize());
+        r.sizes.put("full", profile.getFullSize());
+        r.sizes.put("classes", profile.getClasses().size());
+        r.sizes.put("methods", profile.getMethods().size());
+        r.sizes.putAll(profile.getComponentSizes());
+        return r;
+    }
+
+    static void append(Path file, Record r) throws IOException {
+        String line = r.toLine() + "\n";
+        if (!Files.exists(file))
+            line = HEADER + "\n" + line;
+        Files.write(file, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // Last n records of a package, oldest first. Reads the file backwards, so that long histories stay cheap
+    static List<Record> last(Path file, String aid, int n) throws IOException {
+        List<Record> result = new ArrayList<>();
+        if (!Files.exists(file) || n <= 0)
+            return result;
+        try (RandomAccessFile f = new RandomAccessFile(file.toFile(), "r")) {
+            long position = f.length();
+            byte[] rest = new byte[0];
+            byte[] block = new byte[8192];
+            while (position > 0 && result.size() < n) {
+                int len = (int) Math.min(block.length, position);
+                position -= len;
+                f.seek(position);
+                f.readFully(block, 0, len);
+                byte[] data = new byte[len + rest.length];
+                System.arraycopy(block, 0, data, 0, len);
+                System.arraycopy(rest, 0, data, len, rest.length);
+                // First line may be incomplete, unless at the beginning of the file
+                int end = data.length;
+                for (int i = data.length - 1; i >= 0 && result.size() < n; i--) {
+                    if (data[i] == '\n' || (i == 0 && position == 0)) {
+                        int start = data[i] == '\n' ? i + 1 : i;
+                        add(result, new String(data, start, end - start, StandardCharsets.UTF_8).trim(), aid);
+                        end = i;
+                    }
+                }
+                rest = new byte[end];
+                System.arraycopy(data, 0, rest, 0, end);
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private static void add(List<Record> result, String line, String aid) {
+        if (line.isEmpty() || line.startsWith("#"))
+            return;
+        Record r = Record.fromLine(line);
+        if (r.aid.equals(aid))
+            result.add(r);
+    }
+
+    // Compares with the smallest value of every size in previous records. Lines exceeding threshold (percent) are prefixed with "!"
+    static List<String> compare(Record current, List<Record> previous, double threshold) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : current.sizes.entrySet()) {
+            int base = previous.stream().map(r -> r.sizes.get(e.getKey())).filter(v -> v != null).mapToInt(Integer::intValue).min().orElse(0);
+            if (base == 0)
+                continue;
+            double growth = (e.getValue() - base) * 100.0 / base;
+            String line = String.format("%s: %d, smallest of last %d builds %d (%+d, %+.1f%%)", e.getKey(), e.getValue(), previous.size(), base, e.getValue() - base, growth);
+            result.add(growth > threshold ? "!" + line : line);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Generates Java Card 2.2 compatible source packages of arbitrary size, for scale tests and build benchmarks.
+// Helper classes have static short and byte arrays and static methods that mix the arrays into a short and call the next method.
+// Applets dispatch on INS to the first method of every helper, the first applet implements the exported Shareable interfaces.
+// Imported packages must have been generated by this class as well, their Helper0.m0 is called.
+final class SyntheticSources {
+    static final int MAX_CLASSES = 255; // JCVM 2.2.2 section 2.2.4.3
+    static final int MAX_METHODS = 255;
+    static final int MAX_ARRAY = 32767;
+
+    private final String pkg;
+    private int classes = 1;
+    private int methods = 2;
+    private int arrays = 1;
+    private int length = 32;
+    private int applets = 1;
+    private int interfaces = 0;
+    private final List<String> imports = new ArrayList<>();
+
+    private SyntheticSources(String pkg) {
+        this.pkg = pkg;
+    }
+
+    static SyntheticSources builder(String pkg) {
+        return new SyntheticSources(pkg);
+    }
+
+    // Helper classes
+    SyntheticSources classes(int classes) {
+        this.classes = classes;
+        return this;
+    }
+
+    // Static methods per helper class
+    SyntheticSources methods(int methods) {
+        this.methods = methods;
+        return this;
+    }
+
+    // Static short arrays per helper class, each with a byte array of half the length
+    SyntheticSources arrays(int arrays, int length) {
+        this.arrays = arrays;
+        this.length = length;
+        return this;
+    }
+
+    // Applet classes, 0 for a library package
+    SyntheticSources applets(int applets) {
+        this.applets = applets;
+        return this;
+    }
+
+    // Shareable interfaces, implemented by the first applet
+    SyntheticSources interfaces(int interfaces) {
+        this.interfaces = interfaces;
+        return this;
+    }
+
+    // Adds a call to another generated package
+    SyntheticSources imports(String pkg) {
+        imports.add(pkg);
+        return this;
+    }
+
+    String getPackage() {
+        return pkg;
+    }
+
+    List<String> getAppletClasses() {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < applets; i++)
+            result.add(pkg + ".Applet" + i);
+        return result;
+    }
+
+    private void check() {
+        if (classes < 1 || methods < 1 || methods > MAX_METHODS || arrays < 0 || length < 1 || length > MAX_ARRAY || applets < 0 || interfaces < 0)
+            throw new IllegalArgumentException("Invalid parameters");
+        if (classes + applets + interfaces > MAX_CLASSES)
+            throw new IllegalArgumentException(String.format("%d classes and interfaces, more than %d", classes + applets + interfaces, MAX_CLASSES));
+        if (interfaces > 0 && applets == 0)
+            throw new IllegalArgumentException("Interfaces need an applet");
+        // Array initializers go to the Static Field component, which can not be larger than 64K
+        long init = (long) classes * arrays * (2 * length + Math.max(1, length / 2) + 10);
+        if (init > 0xFFFF)
+            throw new IllegalArgumentException("Static Field component would be too large: " + init);
+    }
+
+    // Writes sources to root/<package path>/ and returns the written files
+    List<Path> write(Path root) throws IOException {
+        check();
+        Path dir = root.resolve(pkg.replace('.', '/'));
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        for (int c = 0; c < classes; c++)
+            files.add(write(dir, "Helper" + c, helper(c)));
+        for (int i = 0; i < interfaces; i++)
+            files.add(write(dir, "Service" + i, service(i)));
+        for (int a = 0; a < applets; a++)
+            files.add(write(dir, "Applet" + a, applet(a)));
+        return files;
+    }
+
+    private static Path write(Path dir, String name, String source) throws IOException {
+        Path p = dir.resolve(name + ".java");
+        Files.write(p, source.getBytes(StandardCharsets.UTF_8));
+        return p;
+    }
+
+    private String helper(int c) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(pkg).append(";\n\n");
+        sb.append("public final class Helper").append(c).append(" {\n");
+        for (int a = 0; a < arrays; a++) {
+            sb.append("    private static final short[] TABLE").append(a).append(" = {");
+            for (int i = 0; i < length; i++)
+                sb.append(i == 0 ? "" : ", ").append((short) (c * 7919 + a * 331 + i * 104729));
+            sb.append("};\n");
+            sb.append("    private static final byte[] KEYS").append(a).append(" = {");
+            for (int i = 0; i < Math.max(1, length / 2); i++)
+                sb.append(i == 0 ? "" : ", ").append((byte) (c * 31 + a * 7 + i * 17));
+            sb.append("};\n");
+        }
+        for (int m = 0; m < methods; m++) {
+            sb.append('\n');
+            sb.append(String.format("    public static short m%d(short x) {%n", m));
+            if (arrays > 0) {
+                int a = m % arrays;
+                sb.append(String.format("        for (short i = 0; i < TABLE%d.length; i++) {%n", a));
+                sb.append(String.format("            x = (short) ((x ^ TABLE%d[i]) + KEYS%d[(short) (i %% KEYS%d.length)] + %d);%n", a, a, a, m + 1));
+                sb.append("        }\n");
+            } else {
+                sb.append(String.format("        x = (short) ((x ^ %d) + %d);%n", (short) (c * 7919 + m), m + 1));
+            }
+            sb.append("        if (x < 0) {\n");
+            sb.append(String.format("            x = (short) (x >> %d);%n", m % 15 + 1));
+            sb.append("        }\n");
+            // Calls to other packages from the last method of the first helper
+            if (c == 0 && m + 1 == methods) {
+                for (String i : imports)
+                    sb.append(String.format("        x = %s.Helper0.m0(x);%n", i));
+            }
+            sb.append(m + 1 < methods ? String.format("        return m%d(x);%n", m + 1) : "        return x;\n");
+            sb.append("    }\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private String service(int i) {
+        return "package " + pkg + ";\n\n"
+                + "import javacard.framework.Shareable;\n\n"
+                + "public interface Service" + i + " extends Shareable {\n"
+                + "    short call" + i + "(short x);\n"
+                + "}\n";
+    }
+
+    private String applet(int a) {
+        boolean shares = a == 0 && interfaces > 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(pkg).append(";\n\n");
+        sb.append("import javacard.framework.APDU;\n");
+        if (shares)
+            sb.append("import javacard.framework.AID;\n");
+        sb.append("import javacard.framework.Applet;\n");
+        sb.append("import javacard.framework.ISO7816;\n");
+        sb.append("import javacard.framework.ISOException;\n");
+        if (shares)
+            sb.append("import javacard.framework.Shareable;\n");
+        sb.append("import javacard.framework.Util;\n\n");
+        sb.append("public class Applet").append(a).append(" extends Applet");
+        for (int i = 0; shares && i < interfaces; i++)
+            sb.append(i == 0 ? " implements " : ", ").append("Service").append(i);
+        sb.append(" {\n");
+        sb.append("    public static void install(byte[] bArray, short bOffset, byte bLength) {\n");
+        sb.append("        new Applet").append(a).append("().register();\n");
+        sb.append("    }\n\n");
+        sb.append("    public void process(APDU apdu) {\n");
+        sb.append("        if (selectingApplet())\n");
+        sb.append("            return;\n");
+        sb.append("        byte[] buffer = apdu.getBuffer();\n");
+        sb.append("        short x = Util.getShort(buffer, ISO7816.OFFSET_P1);\n");
+        sb.append("        switch (buffer[ISO7816.OFFSET_INS]) {\n");
+        for (int c = 0; c < classes; c++)
+            sb.append(String.format("            case %d:%n                x = Helper%d.m0(x);%n                break;%n", (byte) (a + c), c));
+        sb.append("            default:\n");
+        sb.append("                ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);\n");
+        sb.append("        }\n");
+        sb.append("        Util.setShort(buffer, (short) 0, x);\n");
+        sb.append("        apdu.setOutgoingAndSend((short) 0, (short) 2);\n");
+        sb.append("    }\n");
+        if (shares) {
+            sb.append('\n');
+            sb.append("    public Shareable getShareableInterfaceObject(AID clientAID, byte parameter) {\n");
+            sb.append("        return this;\n");
+            sb.append("    }\n");
+            for (int i = 0; i < interfaces; i++) {
+                sb.append('\n');
+                sb.append(String.format("    public short call%d(short x) {%n", i));
+                sb.append(String.format("        return Helper%d.m0(x);%n", i % classes));
+                sb.append("    }\n");
+            }
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+}
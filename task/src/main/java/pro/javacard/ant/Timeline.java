@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+// Timeline of a <javacard> build in the trace event format of chrome://tracing and Perfetto.
+// Every <cap> is a track with spans of its build, its phases and forked javac and converter. Counters show forks running
+// at the same time (in this JVM, so also of <javacard> tasks in <parallel>) and the size of temporary files.
+final class Timeline {
+    static final int PID = 1;
+    private static final AtomicInteger forks = new AtomicInteger();
+
+    private final long started = System.nanoTime();
+    private final List<Map<String, Object>> events = new ArrayList<>();
+    private final List<Track> tracks = new ArrayList<>();
+
+    final class Track {
+        private final int tid;
+        private String name;
+
+        private Track(int tid, String name) {
+            this.tid = tid;
+            this.name = name;
+        }
+
+        void setName(String name) {
+            this.name = name;
+        }
+
+        // Complete event from start to end, nanoTime
+        void span(String category, String name, long start, long end, Map<String, Object> args) {
+            Map<String, Object> e = event("X", category, name, start);
+            e.put("dur", micros(end) - micros(start));
+            e.put("tid", tid);
+            if (args != null && !args.isEmpty())
+                e.put("args", args);
+            add(e);
+        }
+
+        // Runs a forked process as a span of this track, counting concurrent forks
+        void fork(String name, Runnable process) {
+            long start = System.nanoTime();
+            counter("forks", start, "running", forks.incrementAndGet());
+            try {
+                process.run();
+            } finally {
+                long end = System.nanoTime();
+                counter("forks", end, "running", forks.decrementAndGet());
+                span("fork", name, start, end, null);
+            }
+        }
+    }
+
+    synchronized Track track(String name) {
+        Track t = new Track(tracks.size() + 1, name);
+        tracks.add(t);
+        return t;
+    }
+
+    void counter(String name, long at, String series, long value) {
+        Map<String, Object> e = event("C", "counter", name, at);
+        Map<String, Object> args = new LinkedHashMap<>();
+        args.put(series, value);
+        e.put("args", args);
+        add(e);
+    }
+
+    // Size of temporary files at given time, nanoTime
+    void temp(long at) {
+        List<Path> paths = new ArrayList<>(Arrays.asList(Misc.temporary.toArray(new Path[0])));
+        if (System.getenv("ANT_JAVACARD_TMP") != null)
+            paths.add(Paths.get(System.getenv("ANT_JAVACARD_TMP")));
+        counter("temp", at, "bytes", BuildMetrics.size(paths.toArray(new Path[0]), 0));
+    }
+
+    private Map<String, Object> event(String type, String category, String name, long at) {
+        Map<String, Object> e = new LinkedHashMap<>();
+        e.put("name", name);
+        e.put("cat", category);
+        e.put("ph", type);
+        e.put("ts", micros(at));
+        e.put("pid", PID);
+        return e;
+    }
+
+    private long micros(long nanos) {
+        return (nanos - started) / 1000;
+    }
+
+    private synchronized void add(Map<String, Object> event) {
+        events.add(event);
+    }
+
+    private static Map<String, Object> metadata(String type, int tid, String key, Object value) {
+        Map<String, Object> e = new LinkedHashMap<>();
+        e.put("name", type);
+        e.put("ph", "M");
+        e.put("pid", PID);
+        e.put("tid", tid);
+        Map<String, Object> args = new LinkedHashMap<>();
+        args.put(key, value);
+        e.put("args", args);
+        return e;
+    }
+
+    // One event per line, so that large traces stay readable and diffable
+    synchronized void write(Path path) throws IOException {
+        List<Map<String, Object>> all = new ArrayList<>();
+        all.add(metadata("process_name", 0, "name", "ant-javacard"));
+        for (Track t : tracks) {
+            all.add(metadata("thread_name", t.tid, "name", t.name));
+            all.add(metadata("thread_sort_index", t.tid, "sort_index", t.tid));
+        }
+        all.addAll(events);
+        String json = all.stream().map(JSON::toJSON).collect(Collectors.joining(",\n", "{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n", "\n]}\n"));
+        Files.write(path, json.getBytes(StandardCharsets.UTF_8));
+    }
+}
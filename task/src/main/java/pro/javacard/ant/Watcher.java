@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// Changes of files and directories, with WatchService. Directories are watched recursively, files via their parent.
+final class Watcher implements Closeable {
+    private final WatchService service;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    Watcher() throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+    }
+
+    // Already watched directories are skipped, missing paths ignored
+    void watch(Path path) throws IOException {
+        Path p = path.toAbsolutePath().normalize();
+        if (Files.isDirectory(p)) {
+            try (Stream<Path> dirs = Files.walk(p)) {
+                dirs.filter(Files::isDirectory).forEach(this::register);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else if (p.getParent() != null && Files.isDirectory(p.getParent())) {
+            register(p.getParent());
+        }
+    }
+
+    private void register(Path dir) {
+        if (keys.containsValue(dir))
+            return;
+        try {
+            keys.put(dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Waits for a change, then until nothing has changed for quiet milliseconds. If events were lost, the directory
+    // where it happened is reported as changed.
+    Set<Path> changes(long quiet) throws InterruptedException {
+        Set<Path> changed = new LinkedHashSet<>();
+        WatchKey key = service.take();
+        while (key != null) {
+            Path dir = keys.get(key);
+            for (WatchEvent<?> e : key.pollEvents()) {
+                if (e.kind() == OVERFLOW) {
+                    changed.add(dir);
+                    continue;
+                }
+                Path p = dir.resolve((Path) e.context());
+                changed.add(p);
+                // Files can be created in a new directory before it is watched
+                if (e.kind() == ENTRY_CREATE && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        watch(p);
+                    } catch (IOException | UncheckedIOException x) {
+                        // Gone already
+                    }
+                }
+            }
+            if (!key.reset())
+                keys.remove(key);
+            key = service.poll(quiet, TimeUnit.MILLISECONDS);
+        }
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+}